@@ -0,0 +1,69 @@
+#!/usr/bin/env bash
+# Compare startup time of the jvm, cds and native images: time from container start to the
+# first successful POST /api/search. Vespa is expected on the host (make up); searches
+# succeed through the fallback index even if it is not.
+#
+# Usage: scripts/startup-benchmark.sh [runs] [variants...]
+#   e.g. scripts/startup-benchmark.sh 5 jvm cds native
+
+set -euo pipefail
+
+RUNS=${1:-3}
+shift || true
+VARIANTS=${*:-jvm cds native}
+PORT=18081
+VESPA_ENDPOINT=${VESPA_ENDPOINT:-http://host.docker.internal:8080}
+
+build() {
+    case "$1" in
+        jvm) docker build -q --target jvm -t vespa-rag-app:jvm . ;;
+        cds) docker build -q --target cds -t vespa-rag-app:cds . ;;
+        native) docker build -q -f Dockerfile.native -t vespa-rag-app:native . ;;
+        *) echo "Unknown variant: $1" >&2; exit 2 ;;
+    esac
+}
+
+now_ms() {
+    date +%s%3N
+}
+
+measure() {
+    local image=$1
+    local start container status
+    start=$(now_ms)
+    container=$(docker run -d --rm -p "$PORT:8081" --add-host=host.docker.internal:host-gateway \
+        -e VESPA_ENDPOINT="$VESPA_ENDPOINT" -e GEMINI_API_KEY=unused "$image")
+
+    while true; do
+        status=$(curl -s -o /dev/null -w '%{http_code}' -X POST "http://localhost:$PORT/api/search" \
+            -H "Content-Type: application/json" \
+            -d '{"query": "rock music", "maxResults": 3, "searchMode": "text"}' || true)
+        if [ "$status" = "200" ]; then
+            break
+        fi
+        if [ $(( $(now_ms) - start )) -gt 120000 ]; then
+            echo "timeout" >&2
+            docker logs "$container" | tail -20 >&2
+            docker stop "$container" > /dev/null
+            return 1
+        fi
+        sleep 0.05
+    done
+
+    echo $(( $(now_ms) - start ))
+    docker stop "$container" > /dev/null
+}
+
+for variant in $VARIANTS; do
+    echo "Building $variant image..."
+    build "$variant" > /dev/null
+done
+
+printf "\n%-8s %s\n" "variant" "ms to first search (per run)"
+for variant in $VARIANTS; do
+    results=()
+    for _ in $(seq "$RUNS"); do
+        results+=("$(measure "vespa-rag-app:$variant")")
+    done
+    printf "%-8s %s\n" "$variant" "${results[*]}"
+done
@@ -0,0 +1,69 @@
+package app.vespa.demo.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Configuration properties for admission control
+ * Binds to 'admission.*' properties in application.yml
+ */
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "admission")
+public class AdmissionConfig {
+
+    /**
+     * Whether requests over the concurrency limits are shed
+     */
+    private Boolean enabled;
+
+    /**
+     * Retry-After value sent with shed requests, in seconds
+     */
+    private Integer retryAfterSeconds;
+
+    /**
+     * Limiters by name: endpoint classes ("search", "rag") and downstreams ("vespa", "gemini", "openai")
+     */
+    private Map<String, LimitConfig> limits = new HashMap<>();
+
+    @Data
+    public static class LimitConfig {
+        /**
+         * Concurrency limit before any latency has been observed
+         */
+        private Integer initialLimit;
+
+        /**
+         * Lower bound for the adaptive limit
+         */
+        private Integer minLimit;
+
+        /**
+         * Upper bound for the adaptive limit
+         */
+        private Integer maxLimit;
+
+        /**
+         * Tolerated ratio of current to baseline latency before the limit shrinks
+         * Default: 1.5
+         */
+        private Double tolerance = 1.5;
+
+        /**
+         * Weight of each new limit estimate (0.0 - 1.0)
+         * Default: 0.2
+         */
+        private Double smoothing = 0.2;
+
+        /**
+         * Multiplier applied to the limit when a request fails
+         * Default: 0.9
+         */
+        private Double backoffRatio = 0.9;
+    }
+}
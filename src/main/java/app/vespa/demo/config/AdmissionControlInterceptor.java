@@ -0,0 +1,74 @@
+package app.vespa.demo.config;
+
+import app.vespa.demo.service.ConcurrencyLimiterRegistry;
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+
+/**
+ * Interceptor applying a separate adaptive concurrency limit per endpoint class,
+ * so saturated RAG traffic cannot starve cheap search requests
+ *
+ * For async requests (SSE, reactive return types) the permit is held until the
+ * async dispatch completes, not just until the handler method returns.
+ */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@RequiredArgsConstructor
+public class AdmissionControlInterceptor implements AsyncHandlerInterceptor {
+
+    private static final String PERMIT_ATTRIBUTE = AdmissionControlInterceptor.class.getName() + ".permit";
+
+    private final ConcurrencyLimiterRegistry limiterRegistry;
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response,
+                             Object handler) {
+        // Async dispatches continue a request that was already admitted
+        if (request.getDispatcherType() != DispatcherType.REQUEST) {
+            return true;
+        }
+
+        String endpointClass = endpointClass(request.getRequestURI());
+        if (endpointClass != null) {
+            // Throws OverloadedException, rendered as 503 by GlobalExceptionHandler
+            request.setAttribute(PERMIT_ATTRIBUTE, limiterRegistry.acquire(endpointClass));
+        }
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response,
+                                Object handler, Exception ex) {
+        Object permit = request.getAttribute(PERMIT_ATTRIBUTE);
+        if (permit instanceof ConcurrencyLimiterRegistry.AdmissionPermit admissionPermit) {
+            request.removeAttribute(PERMIT_ATTRIBUTE);
+            if (ex != null || response.getStatus() >= 500) {
+                admissionPermit.releaseDropped();
+            } else {
+                admissionPermit.release();
+            }
+        }
+    }
+
+    /**
+     * Map a request path to its endpoint class, shared with {@link ReactiveAdmissionFilter}
+     */
+    static String endpointClass(String uri) {
+        // Bulk jobs run in the background at their own concurrency; submitting and downloading is I/O only
+        if (uri.startsWith("/api/rag/jobs")) {
+            return null;
+        }
+        if (uri.startsWith("/api/rag") || uri.startsWith("/api/reactive/rag")) {
+            return "rag";
+        }
+        if (uri.startsWith("/api/search") || uri.startsWith("/api/reactive/search")) {
+            return "search";
+        }
+        return null;
+    }
+}
@@ -0,0 +1,121 @@
+package app.vespa.demo.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Configuration properties for LLM providers
+ * Binds to 'llm.*' properties in application.yml
+ * Sampling parameters are shared by all providers and live under 'rag.generation'
+ */
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "llm")
+public class LlmConfig {
+
+    /**
+     * Providers by name ("gemini", "openai"); the first one answers unless racing
+     * Default: gemini
+     */
+    private List<String> providers = new ArrayList<>(List.of("gemini"));
+
+    /**
+     * Send each request to the first two providers and use whichever succeeds first
+     * Default: false
+     */
+    private Boolean race = false;
+
+    /**
+     * Timeout of one generation request in milliseconds
+     * Default: 30000 (30 seconds)
+     */
+    private Integer timeoutMs = 30000;
+
+    /**
+     * Provider calls running at once while racing, two per request; further races are
+     * rejected with 503
+     * Default: 200
+     */
+    private Integer maxRaceCalls = 200;
+
+    /**
+     * Google AI Gemini
+     */
+    private GeminiConfig gemini = new GeminiConfig();
+
+    /**
+     * Any OpenAI-compatible chat completions API (OpenAI, vLLM, llama.cpp server, stubs)
+     */
+    private OpenAiConfig openai = new OpenAiConfig();
+
+    @Data
+    public static class GeminiConfig {
+        /**
+         * API key
+         */
+        private String apiKey;
+
+        /**
+         * Model resource URL; cached contents live under the same API root
+         * Default: https://generativelanguage.googleapis.com/v1beta/models/gemini-2.5-flash
+         */
+        private String modelUrl = "https://generativelanguage.googleapis.com/v1beta/models/gemini-2.5-flash";
+
+        /**
+         * Context caching of the system instruction
+         */
+        private ContextCacheConfig contextCache = new ContextCacheConfig();
+    }
+
+    @Data
+    public static class ContextCacheConfig {
+        /**
+         * Reference the system instruction through a cachedContents entry instead of resending it
+         * Default: true
+         */
+        private Boolean enabled = true;
+
+        /**
+         * Lifetime of the cache entry
+         * Default: 3600 (1 hour)
+         */
+        private Long ttlSeconds = 3600L;
+
+        /**
+         * Extend the entry's lifetime once it is this close to expiring
+         * Default: 300 (5 minutes)
+         */
+        private Long refreshMarginSeconds = 300L;
+
+        /**
+         * Smallest instruction to cache, in tokens estimated as 4 characters each; Gemini rejects
+         * smaller entries (1024 tokens for Flash models, 4096 for Pro), so these are sent inline
+         * Default: 1024
+         */
+        private Integer minTokens = 1024;
+    }
+
+    @Data
+    public static class OpenAiConfig {
+        /**
+         * API base URL, the chat completions path is appended
+         * Default: https://api.openai.com/v1
+         */
+        private String baseUrl = "https://api.openai.com/v1";
+
+        /**
+         * API key, sent as a bearer token when set
+         */
+        private String apiKey;
+
+        /**
+         * Model name
+         * Default: gpt-4o-mini
+         */
+        private String model = "gpt-4o-mini";
+    }
+}
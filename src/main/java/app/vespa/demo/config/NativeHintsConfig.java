@@ -0,0 +1,31 @@
+package app.vespa.demo.config;
+
+import app.vespa.demo.model.DocumentUpdate;
+import app.vespa.demo.model.MusicDocument;
+import app.vespa.demo.model.QueryProfile;
+import app.vespa.demo.model.QueryRequest;
+import app.vespa.demo.model.RagResponse;
+import app.vespa.demo.model.Recording;
+import app.vespa.demo.model.SearchResponse;
+import org.springframework.aot.hint.annotation.RegisterReflectionForBinding;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Reflection hints for the native image
+ * Jackson binds these models through Lombok-generated accessors and constructors, which
+ * native images only keep when registered. Request and response bodies of controllers are
+ * registered by Spring AOT already; these are also (de)serialized outside of controllers,
+ * e.g. by the traffic recorder and the reactive clients
+ */
+@Configuration
+@RegisterReflectionForBinding({
+    MusicDocument.class,
+    QueryRequest.class,
+    SearchResponse.class,
+    RagResponse.class,
+    QueryProfile.class,
+    Recording.class,
+    DocumentUpdate.class
+})
+public class NativeHintsConfig {
+}
@@ -18,6 +18,24 @@ public class RagConfig {
      */
     private Integer maxRetrievalResults;
 
+    /**
+     * Share one pipeline execution between concurrent identical questions
+     */
+    private Boolean coalesceRequests;
+
+    /**
+     * Longest a caller joined to a shared execution waits without receiving anything new
+     * Default: 120000 (2 minutes)
+     */
+    private Integer coalesceWaitMs = 120000;
+
+    /**
+     * RAG pipelines running on background threads at once, for shared executions and for
+     * streams each; further requests are rejected with 503
+     * Default: 100 (admission.limits.rag.max-limit)
+     */
+    private Integer maxBackgroundExecutions = 100;
+
     /**
      * Embedding configuration
      */
@@ -28,6 +46,26 @@ public class RagConfig {
      */
     private GenerationConfig generation;
 
+    /**
+     * Diversity reranking of the retrieved documents
+     */
+    private DiversityConfig diversity = new DiversityConfig();
+
+    /**
+     * Retrieval depth chosen per question from the relevance scores
+     */
+    private AdaptiveDepthConfig adaptiveDepth = new AdaptiveDepthConfig();
+
+    /**
+     * Bulk RAG jobs over uploaded question sets
+     */
+    private JobsConfig jobs = new JobsConfig();
+
+    /**
+     * Multi-turn conversations
+     */
+    private ConversationConfig conversations = new ConversationConfig();
+
     @Data
     public static class EmbeddingConfig {
         /**
@@ -41,6 +79,141 @@ public class RagConfig {
         private Integer dimension;
     }
 
+    @Data
+    public static class DiversityConfig {
+        /**
+         * Whether retrieved documents are picked by Maximal Marginal Relevance from an over-fetched set
+         * Default: false
+         */
+        private Boolean enabled = false;
+
+        /**
+         * Candidates fetched per requested document
+         * Default: 3
+         */
+        private Integer candidateMultiplier = 3;
+
+        /**
+         * Weight of relevance against novelty, 1.0 keeps the plain relevance order
+         * Default: 0.7
+         */
+        private Double lambda = 0.7;
+
+        /**
+         * Weight of artist name overlap in document similarity, the rest is embedding similarity
+         * Default: 0.3
+         */
+        private Double artistWeight = 0.3;
+
+        /**
+         * Documents whose embeddings make them at least this similar to an already selected one
+         * are only used once no other candidate is left; 1.0 disables this
+         * Default: 0.9
+         */
+        private Double maxSimilarity = 0.9;
+    }
+
+    @Data
+    public static class AdaptiveDepthConfig {
+        /**
+         * Whether candidates are fetched with a minimal summary and cut where relevance drops off,
+         * fetching the full text only for the hits that are kept
+         * Default: false
+         */
+        private Boolean enabled = false;
+
+        /**
+         * Candidates fetched per requested document
+         * Default: 3
+         */
+        private Integer candidateMultiplier = 3;
+
+        /**
+         * Candidates scoring below this share of the top score are dropped
+         * Default: 0.5
+         */
+        private Double minRelativeScore = 0.5;
+
+        /**
+         * The list is cut at the largest drop between neighbouring scores if the drop is at least
+         * this share of the top score
+         * Default: 0.2
+         */
+        private Double minRelativeGap = 0.2;
+
+        /**
+         * Documents kept regardless of their scores
+         * Default: 1
+         */
+        private Integer minResults = 1;
+    }
+
+    @Data
+    public static class JobsConfig {
+        /**
+         * Directory holding each job's questions, results and state
+         * Default: jobs
+         */
+        private String directory = "jobs";
+
+        /**
+         * Questions retrieved from Vespa in parallel
+         * Default: 8
+         */
+        private Integer retrievalConcurrency = 8;
+
+        /**
+         * Answers generated in parallel, kept low to leave LLM capacity for interactive requests
+         * Default: 4
+         */
+        private Integer generationConcurrency = 4;
+
+        /**
+         * Questions read ahead of the written results; bounds the memory a job uses
+         * Default: 64
+         */
+        private Integer maxInFlight = 64;
+
+        /**
+         * Attempts per question when retrieval or generation is overloaded or fails
+         * Default: 5
+         */
+        private Integer maxAttempts = 5;
+    }
+
+    @Data
+    public static class ConversationConfig {
+        /**
+         * Conversations idle for longer are dropped
+         * Default: 1800000 (30 minutes)
+         */
+        private Long sessionTtlMs = 30L * 60 * 1000;
+
+        /**
+         * Conversations kept at once; the least recently used are dropped beyond this
+         * Default: 10000
+         */
+        private Integer maxSessions = 10000;
+
+        /**
+         * Estimated memory of all conversations; the least recently used are dropped beyond this
+         * Default: 67108864 (64 MiB)
+         */
+        private Long maxMemoryBytes = 64L * 1024 * 1024;
+
+        /**
+         * Earlier turns sent to the LLM; older turns and the albums they introduced are forgotten
+         * Default: 10
+         */
+        private Integer maxTurns = 10;
+
+        /**
+         * Whether follow-up questions are rewritten by the LLM into standalone search queries
+         * Default: true
+         */
+        private Boolean rewriteQueries = true;
+    }
+
     @Data
     public static class GenerationConfig {
         /**
@@ -52,5 +225,11 @@ public class RagConfig {
          * Temperature for generation (0.0 - 1.0)
          */
         private Double temperature;
+
+        /**
+         * Upper bound on generated tokens per answer
+         * Default: 2048
+         */
+        private Integer maxOutputTokens = 2048;
     }
 }
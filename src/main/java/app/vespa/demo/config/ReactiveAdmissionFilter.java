@@ -0,0 +1,85 @@
+package app.vespa.demo.config;
+
+import app.vespa.demo.service.ConcurrencyLimiterRegistry;
+import app.vespa.demo.service.OverloadedException;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reactive counterpart of {@link AdmissionControlInterceptor}, applying the per endpoint class
+ * concurrency limits when the application runs on WebFlux
+ *
+ * The permit is held until the response has been written, so streamed answers count for
+ * their whole duration. Rejected requests get the same 503 body and Retry-After header as
+ * on the servlet stack.
+ */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+@RequiredArgsConstructor
+public class ReactiveAdmissionFilter implements WebFilter {
+
+    private final ConcurrencyLimiterRegistry limiterRegistry;
+    private final ObjectMapper objectMapper;
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        String path = exchange.getRequest().getPath().value();
+        String endpointClass = path.endsWith("/health") ? null : AdmissionControlInterceptor.endpointClass(path);
+        if (endpointClass == null) {
+            return chain.filter(exchange);
+        }
+
+        ConcurrencyLimiterRegistry.AdmissionPermit permit;
+        try {
+            permit = limiterRegistry.acquire(endpointClass);
+        } catch (OverloadedException e) {
+            return reject(exchange.getResponse(), e);
+        }
+
+        return chain.filter(exchange)
+            .doFinally(signal -> {
+                HttpStatusCode status = exchange.getResponse().getStatusCode();
+                if (signal == SignalType.ON_ERROR || (status != null && status.is5xxServerError())) {
+                    permit.releaseDropped();
+                } else {
+                    permit.release();
+                }
+            });
+    }
+
+    private Mono<Void> reject(ServerHttpResponse response, OverloadedException e) {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("status", HttpStatus.SERVICE_UNAVAILABLE.value());
+        error.put("error", HttpStatus.SERVICE_UNAVAILABLE.getReasonPhrase());
+        error.put("message", e.getMessage());
+        error.put("timestamp", System.currentTimeMillis());
+
+        byte[] body;
+        try {
+            body = objectMapper.writeValueAsBytes(error);
+        } catch (JsonProcessingException jsonError) {
+            return Mono.error(jsonError);
+        }
+
+        response.setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
+        response.getHeaders().set(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()));
+        response.getHeaders().setContentType(MediaType.APPLICATION_JSON);
+        return response.writeWith(Mono.just(response.bufferFactory().wrap(body)));
+    }
+}
@@ -0,0 +1,51 @@
+package app.vespa.demo.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Configuration properties for the traffic recorder
+ * Binds to 'recorder.*' properties in application.yml
+ */
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "recorder")
+public class RecorderConfig {
+
+    /**
+     * Whether sampled requests are recorded
+     * Default: false
+     */
+    private Boolean enabled = false;
+
+    /**
+     * Share of requests to record, 0.0 - 1.0
+     * Default: 0.01
+     */
+    private Double sampleRate = 0.01;
+
+    /**
+     * Directory for the gzip-compressed JSONL files
+     * Default: recordings
+     */
+    private String directory = "recordings";
+
+    /**
+     * Recordings buffered between request threads and the writer; more are dropped
+     * Default: 4096
+     */
+    private Integer bufferSize = 4096;
+
+    /**
+     * Uncompressed bytes per file before rotating to a new one
+     * Default: 67108864 (64 MB)
+     */
+    private Long maxFileBytes = 64L * 1024 * 1024;
+
+    /**
+     * Number of files kept; the oldest are deleted
+     * Default: 20
+     */
+    private Integer maxFiles = 20;
+}
@@ -0,0 +1,46 @@
+package app.vespa.demo.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Configuration properties for search-as-you-type suggestions
+ * Binds to 'suggest.*' properties in application.yml
+ */
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "suggest")
+public class SuggestConfig {
+
+    /**
+     * JSONL corpus in Vespa feed format to take artist and album names from, when the
+     * fallback index is disabled; otherwise the names come from the fallback index
+     */
+    private String corpusPath;
+
+    /**
+     * Maximum number of suggestions per request
+     * Default: 10
+     */
+    private Integer maxSuggestions = 10;
+
+    /**
+     * Run a search for the top completion in the background and keep its hits, so a plain
+     * hybrid search the user submits for it next is answered without Vespa
+     * Default: false
+     */
+    private Boolean prefetch = false;
+
+    /**
+     * Shortest typed prefix that triggers a prefetch
+     * Default: 3
+     */
+    private Integer prefetchMinLength = 3;
+
+    /**
+     * How long prefetched hits are served, and the completion is not prefetched again, in milliseconds
+     * Default: 60000 (1 minute)
+     */
+    private Long prefetchTtlMs = 60000L;
+}
@@ -0,0 +1,25 @@
+package app.vespa.demo.config;
+
+import io.opentelemetry.exporter.logging.LoggingSpanExporter;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Tracing configuration
+ * Spans are exported over OTLP when 'management.otlp.tracing.endpoint' is set; this adds a
+ * logging exporter for local inspection without a collector
+ */
+@Configuration
+public class TracingConfig {
+
+    /**
+     * Log every finished span; enabled with 'tracing.log-spans'
+     */
+    @Bean
+    @ConditionalOnProperty(name = "tracing.log-spans", havingValue = "true")
+    public SpanExporter loggingSpanExporter() {
+        return LoggingSpanExporter.create();
+    }
+}
@@ -4,6 +4,8 @@ import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.List;
+
 /**
  * Configuration properties for Vespa connection
  * Binds to 'vespa.*' properties in application.yml
@@ -19,6 +21,12 @@ public class VespaConfig {
      */
     private String endpoint;
 
+    /**
+     * Vespa container endpoints to balance queries over, e.g. one per zone or replica
+     * Default: empty, only 'endpoint' is used
+     */
+    private List<String> endpoints;
+
     /**
      * Vespa schema name
      * Default: music
@@ -42,4 +50,195 @@ public class VespaConfig {
      * Default: 100
      */
     private Integer maxConnections;
+
+    /**
+     * HTTP method for queries: "POST" sends a JSON body, "GET" a URL query string
+     * Default: POST
+     */
+    private String queryMethod = "POST";
+
+    /**
+     * Ask Vespa for gzip-compressed responses, which are decompressed while parsing
+     * Default: true
+     */
+    private Boolean compressResponses = true;
+
+    /**
+     * Endpoint selection, health checking and outlier ejection
+     */
+    private RoutingConfig routing = new RoutingConfig();
+
+    /**
+     * Query tracing and rank profiling
+     */
+    private ProfilingConfig profiling = new ProfilingConfig();
+
+    /**
+     * Buffered partial updates sent through the feed client
+     */
+    private UpdateConfig updates = new UpdateConfig();
+
+    /**
+     * Document lookups by id through /document/v1
+     */
+    private LookupConfig lookup = new LookupConfig();
+
+    /**
+     * Local fallback index used while Vespa is unreachable
+     */
+    private FallbackConfig fallback;
+
+    @Data
+    public static class RoutingConfig {
+        /**
+         * Interval between /state/v1/health checks of each endpoint, 0 to disable
+         * Default: 5000
+         */
+        private Integer healthCheckIntervalMs = 5000;
+
+        /**
+         * Timeout of one health check
+         * Default: 2000
+         */
+        private Integer healthCheckTimeoutMs = 2000;
+
+        /**
+         * Consecutive failed queries (transport errors, 5xx) that eject an endpoint
+         * Default: 5
+         */
+        private Integer consecutiveFailures = 5;
+
+        /**
+         * How long an ejected endpoint stays out of rotation
+         * Default: 30000
+         */
+        private Integer ejectionMs = 30000;
+
+        /**
+         * Upper bound on the share of endpoints ejected at the same time
+         * Default: 50
+         */
+        private Integer maxEjectedPercent = 50;
+    }
+
+    @Data
+    public static class ProfilingConfig {
+        /**
+         * Share of queries profiled to feed the vespa.query.phase and vespa.ranking.cost metrics
+         * Profiled queries are slower, keep this low. Requests can also ask for profiling explicitly
+         * Default: 0.0
+         */
+        private Double sampleRate = 0.0;
+
+        /**
+         * trace.level of profiled queries; content node timings need at least 4
+         * Default: 5
+         */
+        private Integer traceLevel = 5;
+
+        /**
+         * trace.profiling depth for matching, first phase and second phase ranking
+         * Default: 100
+         */
+        private Integer depth = 100;
+    }
+
+    @Data
+    public static class UpdateConfig {
+        /**
+         * Interval between flushes of the update buffer
+         * Default: 1000
+         */
+        private Integer flushIntervalMs = 1000;
+
+        /**
+         * Buffered documents that trigger a flush before the interval elapses
+         * Default: 1000
+         */
+        private Integer maxBatchSize = 1000;
+
+        /**
+         * Buffered documents beyond which new updates are rejected with 503
+         * Default: 100000
+         */
+        private Integer maxPendingDocuments = 100000;
+
+        /**
+         * HTTP/2 connections to the document API
+         * Default: 4
+         */
+        private Integer connections = 4;
+
+        /**
+         * Concurrent streams per connection
+         * Default: 128
+         */
+        private Integer maxStreamsPerConnection = 128;
+
+        /**
+         * Timeout of one update operation, including feed client retries
+         * Default: 30000
+         */
+        private Integer timeoutMs = 30000;
+
+        /**
+         * Times an update is sent before it is dropped; it is sent again with the next batch
+         * after each failure
+         * Default: 3
+         */
+        private Integer maxAttempts = 3;
+    }
+
+    @Data
+    public static class LookupConfig {
+        /**
+         * Documents kept in the hot-document cache, least recently used are evicted; 0 disables it
+         * Default: 10000
+         */
+        private Integer cacheSize = 10000;
+
+        /**
+         * Time a cached document is served without asking Vespa again; bounds staleness
+         * after feeds that bypass the update API
+         * Default: 300000
+         */
+        private Long cacheTtlMs = 300000L;
+
+        /**
+         * Maximum ids in one multi-get request
+         * Default: 100
+         */
+        private Integer maxIds = 100;
+    }
+
+    @Data
+    public static class FallbackConfig {
+        /**
+         * Whether failed queries are answered from the local index
+         */
+        private Boolean enabled;
+
+        /**
+         * JSONL corpus in Vespa feed format to build the index from
+         */
+        private String corpusPath;
+
+        /**
+         * Memory-mapped snapshot of the index, reused on restart; empty to disable
+         */
+        private String snapshotPath;
+
+        /**
+         * Storage type of snapshot embeddings: "bfloat16" halves the size, "float32" is exact
+         * Default: bfloat16
+         */
+        private String snapshotEmbeddingFormat = "bfloat16";
+
+        /**
+         * Query embeddings computed by Vespa kept by query text, for vector ranking of fallback
+         * searches of the same text; least recently used are evicted
+         * Default: 10000
+         */
+        private Integer queryEmbeddingCacheSize = 10000;
+    }
 }
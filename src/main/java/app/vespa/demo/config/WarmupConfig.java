@@ -0,0 +1,44 @@
+package app.vespa.demo.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Configuration properties for startup warm-up
+ * Binds to 'warmup.*' properties in application.yml
+ */
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "warmup")
+public class WarmupConfig {
+
+    /**
+     * Whether recorded queries are replayed before the application reports ready
+     * Default: true
+     */
+    private Boolean enabled = true;
+
+    /**
+     * JSONL query log, one search or RAG request body per line
+     */
+    private String queryLogPath;
+
+    /**
+     * Number of most frequent distinct queries to replay
+     * Default: 50
+     */
+    private Integer topQueries = 50;
+
+    /**
+     * Queries replayed in parallel; also the number of Vespa connections opened up front
+     * Default: 4
+     */
+    private Integer concurrency = 4;
+
+    /**
+     * Upper bound on the warm-up duration, after which the application reports ready anyway
+     * Default: 30000 (30 seconds)
+     */
+    private Long timeBudgetMs = 30000L;
+}
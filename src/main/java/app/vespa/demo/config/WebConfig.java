@@ -1,6 +1,7 @@
 package app.vespa.demo.config;
 
 import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
@@ -10,10 +11,12 @@ import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
  * Web configuration for CORS and other settings
  */
 @Configuration
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 @RequiredArgsConstructor
 public class WebConfig implements WebMvcConfigurer {
 
     private final RequestLoggingInterceptor requestLoggingInterceptor;
+    private final AdmissionControlInterceptor admissionControlInterceptor;
 
     @Override
     public void addCorsMappings(CorsRegistry registry) {
@@ -29,5 +32,8 @@ public class WebConfig implements WebMvcConfigurer {
     public void addInterceptors(InterceptorRegistry registry) {
         registry.addInterceptor(requestLoggingInterceptor)
             .addPathPatterns("/api/**");
+        registry.addInterceptor(admissionControlInterceptor)
+            .addPathPatterns("/api/**")
+            .excludePathPatterns("/api/**/health");
     }
 }
@@ -0,0 +1,196 @@
+package app.vespa.demo.config;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.Set;
+
+/**
+ * Compresses search and RAG responses with zstd for clients that accept it
+ *
+ * Tomcat only speaks gzip (server.compression), and leaves responses alone that already
+ * have a Content-Encoding, so this filter takes the clients listing zstd and Tomcat the rest.
+ * Only the buffered JSON/Smile/CBOR endpoints are compressed; the SSE stream is not, since
+ * a compressor would hold back events until its buffer fills.
+ */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class ZstdCompressionFilter extends OncePerRequestFilter {
+
+    private static final Set<String> PATHS = Set.of("/api/search", "/api/rag/query");
+    private static final int LEVEL = 3;
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !PATHS.contains(request.getRequestURI())
+            || !acceptsZstd(request.getHeader(HttpHeaders.ACCEPT_ENCODING));
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+                                    FilterChain filterChain) throws ServletException, IOException {
+        ZstdResponse compressed = new ZstdResponse(response);
+        try {
+            filterChain.doFilter(request, compressed);
+        } finally {
+            compressed.finish();
+        }
+    }
+
+    /**
+     * Whether an Accept-Encoding header lists zstd with a non-zero quality
+     */
+    static boolean acceptsZstd(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            if (!parts[0].trim().equalsIgnoreCase("zstd")) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Response whose body is zstd-compressed once the handler starts writing it
+     * The compressed length is not known up front, so Content-Length is dropped
+     */
+    private static class ZstdResponse extends HttpServletResponseWrapper {
+
+        private ZstdOutputStream zstd;
+        private ServletOutputStream outputStream;
+        private PrintWriter writer;
+
+        ZstdResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (writer != null) {
+                throw new IllegalStateException("getWriter() has already been called");
+            }
+            if (outputStream == null) {
+                ZstdOutputStream out = compressor();
+                ServletOutputStream target = super.getOutputStream();
+                outputStream = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        out.write(b);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        out.flush();
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return target.isReady();
+                    }
+
+                    @Override
+                    public void setWriteListener(WriteListener writeListener) {
+                        target.setWriteListener(writeListener);
+                    }
+                };
+            }
+            return outputStream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (outputStream != null) {
+                throw new IllegalStateException("getOutputStream() has already been called");
+            }
+            if (writer == null) {
+                writer = new PrintWriter(new OutputStreamWriter(compressor(), Charset.forName(getCharacterEncoding())));
+            }
+            return writer;
+        }
+
+        private ZstdOutputStream compressor() throws IOException {
+            if (zstd == null) {
+                setHeader(HttpHeaders.CONTENT_ENCODING, "zstd");
+                addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+                zstd = new ZstdOutputStream(super.getOutputStream(), LEVEL);
+            }
+            return zstd;
+        }
+
+        @Override
+        public void setContentLength(int len) {
+        }
+
+        @Override
+        public void setContentLengthLong(long len) {
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if (!HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name)) {
+                super.setHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if (!HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name)) {
+                super.addHeader(name, value);
+            }
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            } else if (zstd != null) {
+                zstd.flush();
+            }
+            super.flushBuffer();
+        }
+
+        /**
+         * Write the end of the zstd frame; closes the underlying stream
+         */
+        void finish() throws IOException {
+            if (writer != null) {
+                writer.close();
+            } else if (zstd != null) {
+                zstd.close();
+            }
+        }
+    }
+}
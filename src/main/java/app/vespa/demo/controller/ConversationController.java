@@ -0,0 +1,101 @@
+package app.vespa.demo.controller;
+
+import app.vespa.demo.model.ConversationResponse;
+import app.vespa.demo.model.QueryRequest;
+import app.vespa.demo.service.ConversationService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+/**
+ * REST controller for multi-turn RAG conversations
+ * The first question starts a conversation; follow-up questions are posted to its id
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/rag/conversations")
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@RequiredArgsConstructor
+public class ConversationController {
+
+    private final ConversationService conversationService;
+
+    /**
+     * Start a conversation
+     *
+     * POST /api/rag/conversations
+     * {
+     *   "query": "Which albums did Miles Davis record?",
+     *   "searchMode": "hybrid"
+     * }
+     *
+     * @param request Query request
+     * @return Answer with the conversation id
+     */
+    @PostMapping
+    public ResponseEntity<ConversationResponse> start(@RequestBody QueryRequest request) {
+        String searchMode = validate(request);
+        log.info("Conversation request: query='{}', mode='{}'", request.getQuery(), searchMode);
+
+        return ResponseEntity.ok(
+            conversationService.start(request.getQuery(), searchMode, request.getMaxResults()));
+    }
+
+    /**
+     * Ask a follow-up question
+     *
+     * POST /api/rag/conversations/{id}
+     * {
+     *   "query": "What about his earlier albums?"
+     * }
+     *
+     * @param id Conversation id from an earlier response
+     * @param request Query request
+     * @return Answer, or 404 if the conversation does not exist or has expired
+     */
+    @PostMapping("/{id}")
+    public ResponseEntity<ConversationResponse> ask(@PathVariable String id, @RequestBody QueryRequest request) {
+        String searchMode = validate(request);
+        log.info("Conversation {} request: query='{}', mode='{}'", id, request.getQuery(), searchMode);
+
+        return ResponseEntity.of(
+            conversationService.ask(id, request.getQuery(), searchMode, request.getMaxResults()));
+    }
+
+    /**
+     * End a conversation, releasing its state
+     *
+     * DELETE /api/rag/conversations/{id}
+     */
+    @DeleteMapping("/{id}")
+    public ResponseEntity<Void> end(@PathVariable String id) {
+        return conversationService.end(id) ?
+            ResponseEntity.noContent().build() : ResponseEntity.notFound().build();
+    }
+
+    /**
+     * Validate the request, defaulting maxResults as /api/rag/query does
+     *
+     * @return Search mode to use
+     */
+    private String validate(QueryRequest request) {
+        if (request.getQuery() == null || request.getQuery().trim().isEmpty()) {
+            throw new IllegalArgumentException("Query cannot be empty");
+        }
+
+        String searchMode = request.getSearchMode() != null ?
+            request.getSearchMode() : "hybrid";
+
+        if (!searchMode.matches("(?i)(text|semantic|hybrid)")) {
+            throw new IllegalArgumentException(
+                "Invalid search mode: " + searchMode + ". Must be 'text', 'semantic', or 'hybrid'");
+        }
+
+        if (request.getMaxResults() == null || request.getMaxResults() <= 0) {
+            request.setMaxResults(3);
+        }
+        return searchMode;
+    }
+}
@@ -0,0 +1,113 @@
+package app.vespa.demo.controller;
+
+import app.vespa.demo.model.DocumentLookupRequest;
+import app.vespa.demo.model.DocumentLookupResponse;
+import app.vespa.demo.model.DocumentUpdateRequest;
+import app.vespa.demo.model.DocumentUpdateResponse;
+import app.vespa.demo.model.MusicDocument;
+import app.vespa.demo.service.DocumentLookupService;
+import app.vespa.demo.service.DocumentUpdateService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * REST controller for document operations
+ * Lookups by id are served from a hot-document cache where possible;
+ * updates are buffered and applied to Vespa asynchronously
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/documents")
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@RequiredArgsConstructor
+public class DocumentController {
+
+    private final DocumentUpdateService documentUpdateService;
+    private final DocumentLookupService documentLookupService;
+
+    /**
+     * Document lookup endpoint
+     *
+     * GET /api/documents/{id}
+     *
+     * @param id Full ("id:music:music::7") or local ("7") document id
+     * @return The document, 404 if there is none
+     */
+    @GetMapping("/{id}")
+    public ResponseEntity<MusicDocument> get(@PathVariable String id) {
+        return ResponseEntity.of(documentLookupService.get(id));
+    }
+
+    /**
+     * Multi-get endpoint
+     *
+     * POST /api/documents/_mget
+     * {
+     *   "ids": ["1", "7", "id:music:music::42"]
+     * }
+     *
+     * @param request Document ids
+     * @return Documents found in request order, and the ids without a document
+     */
+    @PostMapping("/_mget")
+    public ResponseEntity<DocumentLookupResponse> multiGet(@RequestBody DocumentLookupRequest request) {
+        if (request.getIds() == null || request.getIds().isEmpty()) {
+            throw new IllegalArgumentException("Ids cannot be empty");
+        }
+
+        List<Optional<MusicDocument>> lookups = documentLookupService.getAll(request.getIds());
+
+        List<MusicDocument> documents = new ArrayList<>();
+        List<String> missing = new ArrayList<>();
+        for (int i = 0; i < lookups.size(); i++) {
+            if (lookups.get(i).isPresent()) {
+                documents.add(lookups.get(i).get());
+            } else {
+                missing.add(request.getIds().get(i));
+            }
+        }
+
+        return ResponseEntity.ok(DocumentLookupResponse.builder()
+            .documents(documents)
+            .missing(missing)
+            .build());
+    }
+
+    /**
+     * Batched partial update endpoint
+     *
+     * POST /api/documents/updates
+     * {
+     *   "updates": [
+     *     { "id": "1", "categoryScoreUpdates": { "rock": 0.4 } },
+     *     { "id": "2", "year": 2016, "categoryScores": { "pop": 0, "rock": 1, "jazz": 0 } }
+     *   ]
+     * }
+     *
+     * @param request Updates in the order they were made
+     * @return 202 Accepted once the updates are buffered
+     */
+    @PostMapping("/updates")
+    public ResponseEntity<DocumentUpdateResponse> update(@RequestBody DocumentUpdateRequest request) {
+        if (request.getUpdates() == null || request.getUpdates().isEmpty()) {
+            throw new IllegalArgumentException("Updates cannot be empty");
+        }
+
+        int pendingDocuments = documentUpdateService.submit(request.getUpdates());
+
+        log.debug("Accepted {} document updates, {} documents pending", request.getUpdates().size(), pendingDocuments);
+
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(DocumentUpdateResponse.builder()
+            .accepted(request.getUpdates().size())
+            .pendingDocuments(pendingDocuments)
+            .build());
+    }
+}
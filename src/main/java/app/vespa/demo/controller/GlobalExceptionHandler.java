@@ -1,6 +1,8 @@
 package app.vespa.demo.controller;
 
+import app.vespa.demo.service.OverloadedException;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ExceptionHandler;
@@ -25,6 +27,19 @@ public class GlobalExceptionHandler {
         return buildErrorResponse(HttpStatus.BAD_REQUEST, e.getMessage());
     }
 
+    /**
+     * Handle requests shed by admission control
+     */
+    @ExceptionHandler(OverloadedException.class)
+    public ResponseEntity<Map<String, Object>> handleOverloaded(OverloadedException e) {
+        ResponseEntity<Map<String, Object>> error =
+            buildErrorResponse(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage());
+
+        return ResponseEntity.status(error.getStatusCode())
+            .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+            .body(error.getBody());
+    }
+
     /**
      * Handle generic exceptions
      */
@@ -1,18 +1,31 @@
 package app.vespa.demo.controller;
 
+import app.vespa.demo.config.RagConfig;
 import app.vespa.demo.model.QueryRequest;
 import app.vespa.demo.model.RagResponse;
-import app.vespa.demo.service.RagService;
-import lombok.RequiredArgsConstructor;
+import app.vespa.demo.service.OverloadedException;
+import app.vespa.demo.service.RagRequestCoalescer;
+import app.vespa.demo.service.TrafficRecorder;
+import io.micrometer.context.ContextExecutorService;
+import io.micrometer.context.ContextSnapshotFactory;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * REST controller for RAG (Retrieval Augmented Generation) operations
@@ -21,11 +34,38 @@ import java.util.concurrent.Executors;
 @Slf4j
 @RestController
 @RequestMapping("/api/rag")
-@RequiredArgsConstructor
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 public class RagController {
 
-    private final RagService ragService;
-    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final RagRequestCoalescer ragRequestCoalescer;
+    private final TrafficRecorder trafficRecorder;
+    private final ObservationRegistry observationRegistry;
+    // Stream tasks continue the request's trace
+    private final ExecutorService executor;
+
+    public RagController(RagRequestCoalescer ragRequestCoalescer, TrafficRecorder trafficRecorder,
+                         ObservationRegistry observationRegistry, RagConfig ragConfig) {
+        this.ragRequestCoalescer = ragRequestCoalescer;
+        this.trafficRecorder = trafficRecorder;
+        this.observationRegistry = observationRegistry;
+
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(0, ragConfig.getMaxBackgroundExecutions(),
+            60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "rag-stream-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        this.executor = ContextExecutorService.wrap(pool, ContextSnapshotFactory.builder().build());
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+            executor.shutdownNow();
+        }
+    }
 
     /**
      * RAG query endpoint
@@ -62,10 +102,11 @@ public class RagController {
             request.setMaxResults(3);
         }
 
-        RagResponse response = ragService.generateResponse(
+        RagResponse response = ragRequestCoalescer.generateResponse(
             request.getQuery(),
             searchMode,
-            request.getMaxResults()
+            request.getMaxResults(),
+            null
         );
 
         log.info("RAG query completed: retrievalTime={}ms, generationTime={}ms, totalTime={}ms",
@@ -73,6 +114,8 @@ public class RagController {
             response.getGenerationTimeMs(),
             response.getTotalTimeMs());
 
+        trafficRecorder.recordRag(request, response);
+
         return ResponseEntity.ok(response);
     }
 
@@ -85,6 +128,9 @@ public class RagController {
      *   "searchMode": "hybrid"
      * }
      *
+     * Emits one "chunk" event per generated text fragment and a final
+     * "rag-response" event with the complete response
+     *
      * @param request Query request
      * @return SSE emitter for streaming response
      */
@@ -109,30 +155,63 @@ public class RagController {
                 "Invalid search mode: " + searchMode + ". Must be 'text', 'semantic', or 'hybrid'");
         }
 
-        executor.execute(() -> {
-            try {
-                RagResponse response = ragService.generateResponse(
-                    request.getQuery(),
-                    searchMode,
-                    request.getMaxResults()
-                );
-
-                // Send response as server-sent event
-                emitter.send(SseEmitter.event()
-                    .name("rag-response")
-                    .data(response));
+        // Measures how long the task waits for an executor thread
+        Observation queued = Observation.start("rag.queue", observationRegistry);
 
-                emitter.complete();
+        try {
+            executor.execute(() -> streamResponse(emitter, queued, request, searchMode));
+        } catch (RejectedExecutionException e) {
+            queued.stop();
+            throw new OverloadedException("rag-stream", 1);
+        }
 
-                log.info("RAG stream completed");
+        return emitter;
+    }
 
-            } catch (IOException e) {
-                log.error("Error streaming RAG response", e);
-                emitter.completeWithError(e);
-            }
-        });
+    /**
+     * Run the pipeline and send its chunks and final response to the emitter
+     */
+    private void streamResponse(SseEmitter emitter, Observation queued, QueryRequest request, String searchMode) {
+        queued.stop();
+        try {
+            RagResponse response = ragRequestCoalescer.generateResponse(
+                request.getQuery(),
+                searchMode,
+                request.getMaxResults(),
+                chunk -> sendChunk(emitter, chunk)
+            );
+
+            // Send response as server-sent event
+            emitter.send(SseEmitter.event()
+                .name("rag-response")
+                .data(response));
+
+            emitter.complete();
+
+            log.info("RAG stream completed");
+
+            trafficRecorder.recordRag(request, response);
+
+        } catch (IOException | UncheckedIOException e) {
+            log.error("Error streaming RAG response", e);
+            emitter.completeWithError(e);
+        } catch (RuntimeException e) {
+            log.error("RAG stream failed", e);
+            emitter.completeWithError(e);
+        }
+    }
 
-        return emitter;
+    /**
+     * Send one answer chunk as a server-sent event
+     */
+    private void sendChunk(SseEmitter emitter, String chunk) {
+        try {
+            emitter.send(SseEmitter.event()
+                .name("chunk")
+                .data(chunk));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     /**
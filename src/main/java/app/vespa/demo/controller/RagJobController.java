@@ -0,0 +1,95 @@
+package app.vespa.demo.controller;
+
+import app.vespa.demo.model.RagJob;
+import app.vespa.demo.service.RagJobService;
+import jakarta.servlet.http.HttpServletRequest;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * REST controller for bulk RAG jobs
+ * Question sets are answered in the background; results are downloaded as JSONL
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/rag/jobs")
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@RequiredArgsConstructor
+public class RagJobController {
+
+    private static final MediaType NDJSON = MediaType.parseMediaType("application/x-ndjson");
+
+    private final RagJobService ragJobService;
+
+    /**
+     * Submit a question set
+     *
+     * POST /api/rag/jobs?searchMode=hybrid&maxResults=5
+     * {"query": "What are some good rock albums?"}
+     * {"query": "Which jazz albums came out in the sixties?", "searchMode": "semantic"}
+     *
+     * @param request Request whose body is JSONL, one query request per line
+     * @param searchMode Search mode for questions that do not set one
+     * @param maxResults Documents retrieved per question, for questions that do not set it (optional)
+     * @return 202 Accepted with the queued job
+     */
+    @PostMapping
+    public ResponseEntity<RagJob> submit(HttpServletRequest request,
+                                         @RequestParam(defaultValue = "hybrid") String searchMode,
+                                         @RequestParam(required = false) Integer maxResults) throws IOException {
+        RagJob job = ragJobService.submit(request.getInputStream(), searchMode, maxResults);
+
+        return ResponseEntity.status(HttpStatus.ACCEPTED)
+            .header(HttpHeaders.LOCATION, "/api/rag/jobs/" + job.getId())
+            .body(job);
+    }
+
+    /**
+     * All jobs, newest first
+     */
+    @GetMapping
+    public List<RagJob> list() {
+        return ragJobService.listJobs();
+    }
+
+    /**
+     * Job status and progress
+     */
+    @GetMapping("/{id}")
+    public ResponseEntity<RagJob> get(@PathVariable String id) {
+        return ResponseEntity.of(ragJobService.getJob(id));
+    }
+
+    /**
+     * Results as JSONL, in completion order; partial while the job runs
+     */
+    @GetMapping("/{id}/results")
+    public ResponseEntity<StreamingResponseBody> results(@PathVariable String id) {
+        if (ragJobService.getJob(id).isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+
+        return ResponseEntity.ok()
+            .contentType(NDJSON)
+            .body(out -> ragJobService.copyResults(id, out));
+    }
+
+    /**
+     * Cancel a queued or running job, keeping the results written so far
+     */
+    @PostMapping("/{id}/cancel")
+    public ResponseEntity<RagJob> cancel(@PathVariable String id) {
+        log.info("Cancelling RAG job {}", id);
+        return ResponseEntity.of(ragJobService.cancel(id));
+    }
+}
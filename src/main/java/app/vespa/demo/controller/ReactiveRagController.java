@@ -0,0 +1,131 @@
+package app.vespa.demo.controller;
+
+import app.vespa.demo.model.QueryRequest;
+import app.vespa.demo.model.RagResponse;
+import app.vespa.demo.service.ReactiveRagService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Reactive equivalent of {@link RagController}
+ * Streams answer chunks as they arrive from Gemini instead of parking a pool thread per request
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/reactive/rag")
+@Profile("reactive")
+@RequiredArgsConstructor
+public class ReactiveRagController {
+
+    private final ReactiveRagService reactiveRagService;
+
+    /**
+     * RAG query endpoint
+     *
+     * POST /api/reactive/rag/query
+     * {
+     *   "query": "What are some good rock albums?",
+     *   "searchMode": "hybrid"
+     * }
+     *
+     * @param request Query request
+     * @return RAG response with generated answer and sources
+     */
+    @PostMapping("/query")
+    public Mono<RagResponse> ragQuery(@RequestBody QueryRequest request) {
+        String searchMode = validate(request);
+
+        log.info("Reactive RAG query request: query='{}', mode='{}', maxResults='{}'",
+            request.getQuery(), searchMode, request.getMaxResults());
+
+        return reactiveRagService.generateResponse(request.getQuery(), searchMode, request.getMaxResults())
+            .doOnNext(response -> log.info(
+                "Reactive RAG query completed: retrievalTime={}ms, generationTime={}ms, totalTime={}ms",
+                response.getRetrievalTimeMs(), response.getGenerationTimeMs(), response.getTotalTimeMs()));
+    }
+
+    /**
+     * Streaming RAG query endpoint (Server-Sent Events)
+     *
+     * POST /api/reactive/rag/stream
+     * {
+     *   "query": "Recommend me some jazz albums",
+     *   "searchMode": "hybrid"
+     * }
+     *
+     * Emits a "sources" event with the retrieved documents, one "chunk" event per
+     * generated text fragment and a final "rag-response" event with the full answer
+     *
+     * @param request Query request
+     * @return Stream of server-sent events
+     */
+    @PostMapping(value = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<Object>> streamRag(@RequestBody QueryRequest request) {
+        String searchMode = validate(request);
+
+        log.info("Reactive RAG stream request: query='{}', mode='{}', maxResults='{}'",
+            request.getQuery(), searchMode, request.getMaxResults());
+
+        long startTime = System.currentTimeMillis();
+
+        return reactiveRagService.retrieveDocuments(request.getQuery(), searchMode, request.getMaxResults())
+            .flatMapMany(documents -> {
+                long retrievalTime = System.currentTimeMillis() - startTime;
+                long generationStart = System.currentTimeMillis();
+                StringBuilder answer = new StringBuilder();
+
+                Flux<ServerSentEvent<Object>> sources = Flux.just(event("sources", documents));
+
+                Flux<ServerSentEvent<Object>> chunks = reactiveRagService
+                    .streamAnswer(request.getQuery(), documents)
+                    .doOnNext(answer::append)
+                    .map(chunk -> event("chunk", chunk));
+
+                Mono<ServerSentEvent<Object>> done = Mono.fromSupplier(() -> event("rag-response",
+                    RagResponse.builder()
+                        .query(request.getQuery())
+                        .answer(answer.toString())
+                        .sources(documents)
+                        .retrievalTimeMs(retrievalTime)
+                        .generationTimeMs(System.currentTimeMillis() - generationStart)
+                        .totalTimeMs(System.currentTimeMillis() - startTime)
+                        .build()));
+
+                return Flux.concat(sources, chunks, done);
+            })
+            .doOnComplete(() -> log.info("Reactive RAG stream completed"));
+    }
+
+    /**
+     * Validate the request and resolve the search mode
+     */
+    private String validate(QueryRequest request) {
+        if (request.getQuery() == null || request.getQuery().trim().isEmpty()) {
+            throw new IllegalArgumentException("Query cannot be empty");
+        }
+
+        String searchMode = request.getSearchMode() != null ?
+            request.getSearchMode() : "hybrid";
+
+        if (!searchMode.matches("(?i)(text|semantic|hybrid)")) {
+            throw new IllegalArgumentException(
+                "Invalid search mode: " + searchMode + ". Must be 'text', 'semantic', or 'hybrid'");
+        }
+
+        if (request.getMaxResults() == null || request.getMaxResults() <= 0) {
+            request.setMaxResults(3);
+        }
+
+        return searchMode;
+    }
+
+    private static ServerSentEvent<Object> event(String name, Object data) {
+        return ServerSentEvent.builder(data).event(name).build();
+    }
+}
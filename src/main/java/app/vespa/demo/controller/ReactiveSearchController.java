@@ -0,0 +1,79 @@
+package app.vespa.demo.controller;
+
+import app.vespa.demo.model.QueryRequest;
+import app.vespa.demo.model.SearchResponse;
+import app.vespa.demo.service.ReactiveVespaClient;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Profile;
+import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Mono;
+
+/**
+ * Reactive equivalent of {@link SearchController}
+ * Only registered with the "reactive" profile, so both stacks can be benchmarked side by side
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/reactive/search")
+@Profile("reactive")
+@RequiredArgsConstructor
+public class ReactiveSearchController {
+
+    private final ReactiveVespaClient reactiveVespaClient;
+
+    /**
+     * Search endpoint
+     *
+     * POST /api/reactive/search
+     * {
+     *   "query": "rock music",
+     *   "maxResults": 5,
+     *   "searchMode": "hybrid"
+     * }
+     *
+     * @param request Query request
+     * @return Search response with matching documents
+     */
+    @PostMapping
+    public Mono<SearchResponse> search(@RequestBody QueryRequest request) {
+        // Validate request
+        if (request.getQuery() == null || request.getQuery().trim().isEmpty()) {
+            throw new IllegalArgumentException("Query cannot be empty");
+        }
+
+        log.info("Reactive search request: query='{}', mode='{}', maxResults={}",
+            request.getQuery(), request.getSearchMode(), request.getMaxResults());
+
+        long startTime = System.currentTimeMillis();
+
+        // Set defaults
+        String searchMode = request.getSearchMode() != null ?
+            request.getSearchMode() : "hybrid";
+        int maxResults = request.getMaxResults() != null ?
+            request.getMaxResults() : 5;
+
+        // Validate search mode
+        if (!searchMode.matches("(?i)(text|semantic|hybrid)")) {
+            throw new IllegalArgumentException(
+                "Invalid search mode: " + searchMode + ". Must be 'text', 'semantic', or 'hybrid'");
+        }
+
+        // Validate max results
+        if (maxResults < 1 || maxResults > 100) {
+            throw new IllegalArgumentException(
+                "maxResults must be between 1 and 100, got: " + maxResults);
+        }
+
+        return reactiveVespaClient.search(searchMode, request.getQuery(), maxResults)
+            .map(results -> SearchResponse.builder()
+                .query(request.getQuery())
+                .results(results)
+                .totalHits(results.size())
+                .searchTimeMs(System.currentTimeMillis() - startTime)
+                .searchMode(searchMode)
+                .build())
+            .doOnNext(response -> log.info("Reactive search completed: found {} results in {}ms",
+                response.getTotalHits(), response.getSearchTimeMs()));
+    }
+}
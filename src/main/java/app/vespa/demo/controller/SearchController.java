@@ -1,15 +1,22 @@
 package app.vespa.demo.controller;
 
+import app.vespa.demo.config.RagConfig;
 import app.vespa.demo.model.MusicDocument;
 import app.vespa.demo.model.QueryRequest;
 import app.vespa.demo.model.SearchResponse;
+import app.vespa.demo.service.SuggestService;
+import app.vespa.demo.service.TrafficRecorder;
+import app.vespa.demo.service.VespaQuery;
+import app.vespa.demo.service.VespaQueryTemplate;
 import app.vespa.demo.service.VespaService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.List;
+import java.util.Optional;
 
 /**
  * REST controller for search operations
@@ -18,10 +25,14 @@ import java.util.List;
 @Slf4j
 @RestController
 @RequestMapping("/api/search")
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 @RequiredArgsConstructor
 public class SearchController {
 
     private final VespaService vespaService;
+    private final RagConfig ragConfig;
+    private final TrafficRecorder trafficRecorder;
+    private final SuggestService suggestService;
 
     /**
      * Search endpoint
@@ -70,12 +81,50 @@ public class SearchController {
                 "maxResults must be between 1 and 100, got: " + maxResults);
         }
 
+        // Validate rank profile
+        if (request.getRankProfile() != null && !request.getRankProfile().matches("[A-Za-z0-9_-]+")) {
+            throw new IllegalArgumentException("Invalid rank profile: " + request.getRankProfile());
+        }
+
+        // Validate targetHits
+        if (request.getTargetHits() != null && (request.getTargetHits() < 1 || request.getTargetHits() > 10000)) {
+            throw new IllegalArgumentException(
+                "targetHits must be between 1 and 10000, got: " + request.getTargetHits());
+        }
+
+        // Validate precomputed embedding
+        int dimension = ragConfig.getEmbedding().getDimension();
+        if (request.getQueryEmbedding() != null && request.getQueryEmbedding().length != dimension) {
+            throw new IllegalArgumentException(
+                "queryEmbedding must have " + dimension + " values, got: " + request.getQueryEmbedding().length);
+        }
+
+        // Validate user profile, whose labels end up in the query(user_profile) tensor literal
+        if (request.getUserProfile() != null) {
+            request.getUserProfile().forEach(VespaQueryTemplate::checkProfileEntry);
+        }
+
+        // A plain hybrid search for a completion the suggest endpoint prefetched is answered from its hits
+        boolean plain = "hybrid".equalsIgnoreCase(searchMode) && request.getRankProfile() == null
+            && request.getTargetHits() == null && request.getQueryEmbedding() == null
+            && request.getUserProfile() == null && !Boolean.TRUE.equals(request.getProfile());
+        Optional<List<MusicDocument>> prefetched = plain ?
+            suggestService.prefetched(request.getQuery(), maxResults) : Optional.empty();
+
         // Execute search based on mode
-        List<MusicDocument> results = switch (searchMode.toLowerCase()) {
-            case "text" -> vespaService.textSearch(request.getQuery(), maxResults);
-            case "semantic" -> vespaService.semanticSearch(request.getQuery(), maxResults);
-            default -> vespaService.hybridSearch(request.getQuery(), maxResults);
-        };
+        VespaService.SearchResult result = prefetched.isPresent() ?
+            new VespaService.SearchResult(prefetched.get(), null) :
+            vespaService.searchWithProfile(VespaQuery.builder()
+                .searchMode(searchMode)
+                .query(request.getQuery())
+                .hits(maxResults)
+                .rankProfile(request.getRankProfile())
+                .targetHits(request.getTargetHits())
+                .queryEmbedding(request.getQueryEmbedding())
+                .userProfile(request.getUserProfile())
+                .profile(Boolean.TRUE.equals(request.getProfile()))
+                .build());
+        List<MusicDocument> results = result.documents();
 
         SearchResponse response = SearchResponse.builder()
             .query(request.getQuery())
@@ -83,11 +132,15 @@ public class SearchController {
             .totalHits(results.size())
             .searchTimeMs(System.currentTimeMillis() - startTime)
             .searchMode(searchMode)
+            // Sampled profiles feed metrics only
+            .profile(Boolean.TRUE.equals(request.getProfile()) ? result.profile() : null)
             .build();
 
         log.info("Search completed: found {} results in {}ms",
             results.size(), response.getSearchTimeMs());
 
+        trafficRecorder.recordSearch(request, response);
+
         return ResponseEntity.ok(response);
     }
 
@@ -0,0 +1,58 @@
+package app.vespa.demo.controller;
+
+import app.vespa.demo.config.SuggestConfig;
+import app.vespa.demo.model.SuggestResponse;
+import app.vespa.demo.model.Suggestion;
+import app.vespa.demo.service.SuggestService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+/**
+ * REST controller for search-as-you-type suggestions
+ * Answers from memory, without calling Vespa
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/suggest")
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@RequiredArgsConstructor
+public class SuggestController {
+
+    private final SuggestService suggestService;
+    private final SuggestConfig suggestConfig;
+
+    /**
+     * Suggest endpoint
+     *
+     * GET /api/suggest?q=pink&limit=5
+     *
+     * @param query Typed prefix
+     * @param limit Maximum number of suggestions (optional)
+     * @return Artist and album names completing the prefix
+     */
+    @GetMapping
+    public ResponseEntity<SuggestResponse> suggest(@RequestParam("q") String query,
+                                                   @RequestParam(value = "limit", required = false) Integer limit) {
+        int maxSuggestions = suggestConfig.getMaxSuggestions();
+        int numSuggestions = limit != null ? limit : maxSuggestions;
+
+        if (numSuggestions < 1 || numSuggestions > maxSuggestions) {
+            throw new IllegalArgumentException(
+                "limit must be between 1 and " + maxSuggestions + ", got: " + numSuggestions);
+        }
+
+        long startTime = System.nanoTime();
+        List<Suggestion> suggestions = suggestService.suggest(query, numSuggestions);
+
+        return ResponseEntity.ok(SuggestResponse.builder()
+            .query(query)
+            .suggestions(suggestions)
+            .suggestTimeMicros((System.nanoTime() - startTime) / 1000)
+            .build());
+    }
+}
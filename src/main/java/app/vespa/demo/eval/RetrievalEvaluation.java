@@ -0,0 +1,360 @@
+package app.vespa.demo.eval;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures retrieval quality against latency for search modes, rank profiles and hit counts
+ *
+ * Every labeled query is sent to the application's /api/search once per configuration:
+ * each variant (search mode and rank profile) at each hit count and, for semantic and
+ * hybrid search, each targetHits. Per configuration it reports recall@k, nDCG@k and MRR
+ * over the returned hits, and the client-side p50/p99 latency. Configurations that no other
+ * configuration beats on both nDCG and p99 latency are marked as Pareto-optimal.
+ *
+ * The labeled query set is JSONL, one query per line with the ids of its relevant documents
+ * from dataset/documents.jsonl, either as a list or with graded relevance:
+ * <pre>
+ *   {"query": "heavy metal", "relevant": ["2", "24"]}
+ *   {"query": "modal jazz", "relevant": {"6": 2, "17": 1}, "userProfile": {"jazz": 1.0}}
+ * </pre>
+ * Run it against an application connected to a fed Vespa:
+ * <pre>
+ *   gradle evaluate --args="dataset/eval-queries.jsonl [--target http://localhost:8081]
+ *                           [--variants text,semantic,hybrid,rank_albums] [--hits 5,10]
+ *                           [--target-hits 10,50,100] [--repeat 3] [--output evaluation.json]"
+ * </pre>
+ * A variant is a search mode, optionally with a rank profile as mode:profile
+ * (e.g. hybrid:hybrid_diverse); rank_albums is short for text:rank_albums.
+ * Queries run one at a time, so latencies are not inflated by queuing.
+ */
+public final class RetrievalEvaluation {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+        .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+        .enable(SerializationFeature.INDENT_OUTPUT);
+
+    /**
+     * A labeled query: relevance grade per document id
+     */
+    record LabeledQuery(String query, Map<String, Double> relevant, JsonNode userProfile) {
+    }
+
+    /**
+     * A search mode with an optional rank profile
+     */
+    record Variant(String name, String searchMode, String rankProfile) {
+
+        static Variant parse(String spec) {
+            if (spec.equals("rank_albums")) {
+                return new Variant(spec, "text", "rank_albums");
+            }
+            int colon = spec.indexOf(':');
+            return colon < 0 ?
+                new Variant(spec, spec, null) :
+                new Variant(spec, spec.substring(0, colon), spec.substring(colon + 1));
+        }
+
+        boolean usesNearestNeighbor() {
+            return !searchMode.equals("text");
+        }
+    }
+
+    /**
+     * Aggregated quality and latency of one configuration
+     */
+    record Result(String variant, int hits, Integer targetHits, int queries, int errors,
+                  double recall, double ndcg, double mrr, double p50Ms, double p99Ms, boolean pareto) {
+
+        Result withPareto(boolean pareto) {
+            return new Result(variant, hits, targetHits, queries, errors, recall, ndcg, mrr, p50Ms, p99Ms, pareto);
+        }
+    }
+
+    private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+    private final String target;
+    private final int repeat;
+
+    private RetrievalEvaluation(String target, int repeat) {
+        this.target = target;
+        this.repeat = repeat;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: RetrievalEvaluation <labeled queries> [--target URL] [--variants V,...]"
+                + " [--hits N,...] [--target-hits N,...] [--repeat N] [--output FILE]");
+            System.exit(2);
+        }
+
+        Path source = Path.of(args[0]);
+        String target = "http://localhost:8081";
+        List<String> variants = List.of("text", "semantic", "hybrid", "rank_albums");
+        int[] hitCounts = { 5, 10 };
+        int[] targetHitCounts = { 10, 50, 100 };
+        int repeat = 3;
+        Path output = null;
+
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--target" -> target = args[++i];
+                case "--variants" -> variants = List.of(args[++i].split(","));
+                case "--hits" -> hitCounts = parseInts(args[++i]);
+                case "--target-hits" -> targetHitCounts = parseInts(args[++i]);
+                case "--repeat" -> repeat = Integer.parseInt(args[++i]);
+                case "--output" -> output = Path.of(args[++i]);
+                default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        List<LabeledQuery> queries = load(source);
+        System.out.printf("Loaded %d labeled queries from %s%n", queries.size(), source);
+
+        RetrievalEvaluation evaluation = new RetrievalEvaluation(target, Math.max(1, repeat));
+        List<Result> results = new ArrayList<>();
+        for (String spec : variants) {
+            Variant variant = Variant.parse(spec);
+            for (int hits : hitCounts) {
+                if (!variant.usesNearestNeighbor()) {
+                    results.add(evaluation.evaluate(queries, variant, hits, null));
+                    continue;
+                }
+                for (int targetHits : targetHitCounts) {
+                    results.add(evaluation.evaluate(queries, variant, hits, targetHits));
+                }
+            }
+        }
+
+        results = markPareto(results);
+        print(results);
+
+        if (output != null) {
+            MAPPER.writeValue(output.toFile(), results);
+            System.out.printf("%nWrote %s%n", output);
+        }
+    }
+
+    private static int[] parseInts(String values) {
+        return Arrays.stream(values.split(",")).mapToInt(value -> Integer.parseInt(value.trim())).toArray();
+    }
+
+    /**
+     * Read the labeled queries, skipping queries without relevant documents
+     */
+    static List<LabeledQuery> load(Path source) throws IOException {
+        List<LabeledQuery> queries = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(source)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                JsonNode node = MAPPER.readTree(line);
+                Map<String, Double> relevant = new LinkedHashMap<>();
+                JsonNode labels = node.path("relevant");
+                if (labels.isArray()) {
+                    labels.forEach(id -> relevant.put(shortId(id.asText()), 1.0));
+                } else {
+                    for (Map.Entry<String, JsonNode> label : labels.properties()) {
+                        relevant.put(shortId(label.getKey()), label.getValue().asDouble());
+                    }
+                }
+                relevant.values().removeIf(grade -> grade <= 0);
+                if (relevant.isEmpty()) {
+                    System.err.printf("Skipping query without relevant documents: %s%n", node.path("query").asText());
+                    continue;
+                }
+                queries.add(new LabeledQuery(node.path("query").asText(), relevant,
+                    node.hasNonNull("userProfile") ? node.get("userProfile") : null));
+            }
+        }
+        return queries;
+    }
+
+    /**
+     * Local part of a document id, so "id:music:music::7" and "7" compare equal
+     */
+    static String shortId(String id) {
+        int separator = id.lastIndexOf("::");
+        return separator < 0 ? id : id.substring(separator + 2);
+    }
+
+    /**
+     * Run every query in one configuration; quality is taken from the first run of each query,
+     * latency from all runs
+     */
+    private Result evaluate(List<LabeledQuery> queries, Variant variant, int hits, Integer targetHits)
+        throws InterruptedException {
+        // One untimed pass, so the first configuration does not pay for cold caches
+        for (LabeledQuery query : queries) {
+            search(query, variant, hits, targetHits);
+        }
+
+        double recall = 0;
+        double ndcg = 0;
+        double mrr = 0;
+        int errors = 0;
+        long[] latencies = new long[queries.size() * repeat];
+        int samples = 0;
+
+        for (LabeledQuery query : queries) {
+            List<String> ranked = null;
+            for (int run = 0; run < repeat; run++) {
+                long start = System.nanoTime();
+                List<String> ids = search(query, variant, hits, targetHits);
+                latencies[samples++] = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+                if (ranked == null) {
+                    ranked = ids;
+                }
+            }
+            if (ranked == null) {
+                errors++;
+                ranked = List.of();
+            }
+            recall += recall(ranked, query.relevant());
+            ndcg += ndcg(ranked, query.relevant(), hits);
+            mrr += reciprocalRank(ranked, query.relevant());
+        }
+
+        long[] sorted = Arrays.copyOf(latencies, samples);
+        Arrays.sort(sorted);
+        int n = queries.size();
+        Result result = new Result(variant.name(), hits, targetHits, n, errors,
+            recall / n, ndcg / n, mrr / n, percentile(sorted, 0.50), percentile(sorted, 0.99), false);
+        System.out.printf("  %-24s hits=%-4d targetHits=%-5s nDCG=%.3f p99=%.1fms%n", variant.name(), hits,
+            targetHits != null ? targetHits : "-", result.ndcg(), result.p99Ms());
+        return result;
+    }
+
+    /**
+     * Ids of the returned hits in rank order, null if the request failed
+     */
+    private List<String> search(LabeledQuery query, Variant variant, int hits, Integer targetHits)
+        throws InterruptedException {
+        ObjectNode request = MAPPER.createObjectNode()
+            .put("query", query.query())
+            .put("searchMode", variant.searchMode())
+            .put("maxResults", hits);
+        if (variant.rankProfile() != null) {
+            request.put("rankProfile", variant.rankProfile());
+        }
+        if (targetHits != null) {
+            request.put("targetHits", targetHits);
+        }
+        if (query.userProfile() != null) {
+            request.set("userProfile", query.userProfile());
+        }
+
+        try {
+            HttpResponse<String> response = client.send(HttpRequest.newBuilder()
+                    .uri(URI.create(target + "/api/search"))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(MAPPER.writeValueAsString(request)))
+                    .build(),
+                HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                return null;
+            }
+            List<String> ids = new ArrayList<>();
+            MAPPER.readTree(response.body()).path("results").forEach(hit -> ids.add(shortId(hit.path("id").asText())));
+            return ids;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Share of the relevant documents that were returned
+     */
+    static double recall(List<String> ranked, Map<String, Double> relevant) {
+        long found = ranked.stream().filter(relevant::containsKey).distinct().count();
+        return (double) found / relevant.size();
+    }
+
+    /**
+     * Normalized discounted cumulative gain at k, with gain 2^grade - 1
+     */
+    static double ndcg(List<String> ranked, Map<String, Double> relevant, int k) {
+        double dcg = 0;
+        for (int i = 0; i < Math.min(k, ranked.size()); i++) {
+            Double grade = relevant.get(ranked.get(i));
+            if (grade != null) {
+                dcg += (Math.pow(2, grade) - 1) / log2(i + 2);
+            }
+        }
+
+        double[] ideal = relevant.values().stream().mapToDouble(Double::doubleValue).sorted().toArray();
+        double idcg = 0;
+        for (int i = 0; i < Math.min(k, ideal.length); i++) {
+            idcg += (Math.pow(2, ideal[ideal.length - 1 - i]) - 1) / log2(i + 2);
+        }
+        return idcg > 0 ? dcg / idcg : 0;
+    }
+
+    /**
+     * 1 / rank of the first relevant hit, 0 if none was returned
+     */
+    static double reciprocalRank(List<String> ranked, Map<String, Double> relevant) {
+        for (int i = 0; i < ranked.size(); i++) {
+            if (relevant.containsKey(ranked.get(i))) {
+                return 1.0 / (i + 1);
+            }
+        }
+        return 0;
+    }
+
+    private static double log2(double x) {
+        return Math.log(x) / Math.log(2);
+    }
+
+    private static double percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1)] / 1000.0;
+    }
+
+    /**
+     * Mark the configurations no other configuration beats on nDCG and p99 latency at once
+     */
+    static List<Result> markPareto(List<Result> results) {
+        List<Result> marked = new ArrayList<>(results.size());
+        for (Result result : results) {
+            boolean dominated = results.stream().anyMatch(other ->
+                other.ndcg() >= result.ndcg() && other.p99Ms() <= result.p99Ms()
+                    && (other.ndcg() > result.ndcg() || other.p99Ms() < result.p99Ms()));
+            marked.add(result.withPareto(!dominated && result.errors() < result.queries()));
+        }
+        return marked;
+    }
+
+    private static void print(List<Result> results) {
+        System.out.printf("%n%-24s %5s %10s %9s %7s %7s %9s %9s %6s  %s%n",
+            "variant", "hits", "targetHits", "recall@k", "nDCG@k", "MRR", "p50 ms", "p99 ms", "errors", "pareto");
+        for (Result result : results) {
+            System.out.printf("%-24s %5d %10s %9.3f %7.3f %7.3f %9.1f %9.1f %6d  %s%n",
+                result.variant(), result.hits(), result.targetHits() != null ? result.targetHits() : "-",
+                result.recall(), result.ndcg(), result.mrr(), result.p50Ms(), result.p99Ms(), result.errors(),
+                result.pareto() ? "*" : "");
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package app.vespa.demo.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Response to one question of a multi-turn RAG conversation
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ConversationResponse {
+
+    /**
+     * Conversation id, to send follow-up questions to
+     */
+    private String conversationId;
+
+    /**
+     * Question as asked
+     */
+    private String query;
+
+    /**
+     * Standalone query the albums were retrieved with; absent when the question was
+     * answered from the albums already in the conversation
+     */
+    private String searchQuery;
+
+    /**
+     * Generated answer from LLM
+     */
+    private String answer;
+
+    /**
+     * Documents retrieved for this question
+     */
+    private List<MusicDocument> sources;
+
+    /**
+     * Number of sources not already in the conversation, the only ones added to the prompt
+     */
+    private Integer newSources;
+
+    /**
+     * Time spent rewriting the question and retrieving documents (ms)
+     */
+    private Long retrievalTimeMs;
+
+    /**
+     * Time spent generating answer (ms)
+     */
+    private Long generationTimeMs;
+
+    /**
+     * Total time for the turn (ms)
+     */
+    private Long totalTimeMs;
+}
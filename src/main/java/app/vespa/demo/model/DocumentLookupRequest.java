@@ -0,0 +1,23 @@
+package app.vespa.demo.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Request object for multi-get of documents by id
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class DocumentLookupRequest {
+
+    /**
+     * Document ids, either full ("id:music:music::7") or local ("7")
+     */
+    private List<String> ids;
+}
@@ -0,0 +1,28 @@
+package app.vespa.demo.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Response object for multi-get of documents by id
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class DocumentLookupResponse {
+
+    /**
+     * Documents found, in request order
+     */
+    private List<MusicDocument> documents;
+
+    /**
+     * Requested ids without a document
+     */
+    private List<String> missing;
+}
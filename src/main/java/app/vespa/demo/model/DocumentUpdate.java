@@ -0,0 +1,42 @@
+package app.vespa.demo.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Map;
+
+/**
+ * Partial update of a document's attribute fields
+ * Only attributes are updatable, so Vespa applies the update without re-embedding the text
+ */
+@Data
+@Builder(toBuilder = true)
+@NoArgsConstructor
+@AllArgsConstructor
+public class DocumentUpdate {
+
+    /**
+     * Document id, either in full ("id:music:music::1") or the user-specified part ("1")
+     */
+    private String id;
+
+    /**
+     * New release year
+     * Optional
+     */
+    private Integer year;
+
+    /**
+     * New category scores, replacing all existing ones
+     * Optional
+     */
+    private Map<String, Float> categoryScores;
+
+    /**
+     * Category scores to add or replace, other categories are kept
+     * Optional
+     */
+    private Map<String, Float> categoryScoreUpdates;
+}
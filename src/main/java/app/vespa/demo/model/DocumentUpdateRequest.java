@@ -0,0 +1,23 @@
+package app.vespa.demo.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Request object for batched document updates
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class DocumentUpdateRequest {
+
+    /**
+     * Updates in the order they were made; later updates of a document win
+     */
+    private List<DocumentUpdate> updates;
+}
@@ -0,0 +1,26 @@
+package app.vespa.demo.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Response object for batched document updates
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class DocumentUpdateResponse {
+
+    /**
+     * Number of updates accepted into the buffer
+     */
+    private Integer accepted;
+
+    /**
+     * Number of documents with updates waiting to be sent to Vespa
+     */
+    private Integer pendingDocuments;
+}
@@ -1,11 +1,14 @@
 package app.vespa.demo.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -13,7 +16,7 @@ import java.util.Map;
  * Corresponds to the 'music' schema in Vespa.
  */
 @Data
-@Builder
+@Builder(toBuilder = true)
 @NoArgsConstructor
 @AllArgsConstructor
 public class MusicDocument {
@@ -55,4 +58,25 @@ public class MusicDocument {
      * Not stored in Vespa, computed at query time
      */
     private Double relevance;
+
+    /**
+     * Chunks of the text most similar to the query, in text order, selected by Vespa
+     * Only present in semantic and hybrid search results
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private List<String> passages;
+
+    /**
+     * Document-level embedding (mean of the chunk embeddings)
+     * Only fetched for diversity reranking, never serialized
+     */
+    @JsonIgnore
+    private float[] embedding;
+
+    /**
+     * Rank and summary features computed for this hit
+     * Only present in profiled searches
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Map<String, Double> rankFeatures;
 }
@@ -0,0 +1,36 @@
+package app.vespa.demo.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Map;
+
+/**
+ * Where Vespa spent the time of one query, parsed from its trace
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class QueryProfile {
+
+    /**
+     * Wall time per query phase in milliseconds, in execution order
+     * Container phases: "query", "summary_fetch", "search"; content node phases:
+     * "query_setup", "global_filter", "match_first_phase", "second_phase", "summary", "other"
+     */
+    private Map<String, Double> phaseTimesMs;
+
+    /**
+     * Self time per profiled matching or ranking node in milliseconds, most expensive first
+     * Keys are the profiling stage and node name, e.g. "first_phase:bm25(text)"
+     */
+    private Map<String, Double> rankingCostMs;
+
+    /**
+     * Trace level the query ran with
+     */
+    private Integer traceLevel;
+}
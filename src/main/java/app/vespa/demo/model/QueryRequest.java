@@ -5,6 +5,8 @@ import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
+import java.util.Map;
+
 /**
  * Request object for search and RAG queries
  */
@@ -36,4 +38,29 @@ public class QueryRequest {
      * Optional, will use default from searchMode if not specified
      */
     private String rankProfile;
+
+    /**
+     * Candidates the nearestNeighbor operator keeps in semantic and hybrid search
+     * Optional, defaults to maxResults (semantic) or twice maxResults (hybrid)
+     */
+    private Integer targetHits;
+
+    /**
+     * Precomputed query embedding (must match the configured embedding dimension)
+     * Optional, replaces Vespa's embed() of the query text in semantic and hybrid search
+     */
+    private float[] queryEmbedding;
+
+    /**
+     * User profile as category name → weight, bound to query(user_profile)
+     * Optional, used by the rank_albums rank profile
+     */
+    private Map<String, Float> userProfile;
+
+    /**
+     * Return Vespa's per-phase timing breakdown, ranking costs and rank features of each hit
+     * Optional, profiled queries are slower
+     * Default: false
+     */
+    private Boolean profile;
 }
@@ -0,0 +1,72 @@
+package app.vespa.demo.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * State and progress of a bulk RAG job
+ */
+@Data
+@Builder(toBuilder = true)
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class RagJob {
+
+    public enum Status {
+        QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED
+    }
+
+    /**
+     * Job id
+     */
+    private String id;
+
+    /**
+     * Current status
+     */
+    private Status status;
+
+    /**
+     * Number of questions in the job
+     */
+    private Integer total;
+
+    /**
+     * Questions answered so far
+     */
+    private Integer completed;
+
+    /**
+     * Questions that could not be answered so far
+     */
+    private Integer failed;
+
+    /**
+     * Search mode for questions that do not set one
+     */
+    private String searchMode;
+
+    /**
+     * Documents retrieved per question, for questions that do not set it (optional)
+     */
+    private Integer maxResults;
+
+    /**
+     * Submission time (epoch ms)
+     */
+    private Long createdAt;
+
+    /**
+     * Completion, failure or cancellation time (epoch ms)
+     */
+    private Long finishedAt;
+
+    /**
+     * Why the job failed
+     */
+    private String error;
+}
@@ -0,0 +1,55 @@
+package app.vespa.demo.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * One line of a bulk RAG job's results
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class RagJobResult {
+
+    /**
+     * Zero-based position of the question among the job's non-blank input lines
+     */
+    private Integer index;
+
+    /**
+     * Question
+     */
+    private String query;
+
+    /**
+     * Generated answer, absent if the question failed
+     */
+    private String answer;
+
+    /**
+     * Source documents used for generation
+     */
+    private List<MusicDocument> sources;
+
+    /**
+     * Time spent retrieving documents (ms)
+     */
+    private Long retrievalTimeMs;
+
+    /**
+     * Time spent generating answer (ms)
+     */
+    private Long generationTimeMs;
+
+    /**
+     * Why the question failed
+     */
+    private String error;
+}
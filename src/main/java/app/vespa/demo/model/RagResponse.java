@@ -11,7 +11,7 @@ import java.util.List;
  * Response object for RAG (Retrieval Augmented Generation) queries
  */
 @Data
-@Builder
+@Builder(toBuilder = true)
 @NoArgsConstructor
 @AllArgsConstructor
 public class RagResponse {
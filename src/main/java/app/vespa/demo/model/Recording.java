@@ -0,0 +1,50 @@
+package app.vespa.demo.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One sampled request with the backend responses it produced
+ * Written as one JSONL line by the traffic recorder and read back by the replay tool
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class Recording {
+
+    /**
+     * Endpoint class ("search", "rag")
+     */
+    private String type;
+
+    /**
+     * When the request completed, epoch milliseconds
+     */
+    private Long timestamp;
+
+    /**
+     * Request as received
+     */
+    private QueryRequest request;
+
+    /**
+     * Documents Vespa returned
+     */
+    private List<MusicDocument> results;
+
+    /**
+     * Generated answer, RAG requests only
+     */
+    private String answer;
+
+    /**
+     * Stage durations in milliseconds, e.g. "retrieval", "generation", "total"
+     */
+    private Map<String, Long> timings;
+}
@@ -1,5 +1,6 @@
 package app.vespa.demo.model;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
@@ -40,4 +41,10 @@ public class SearchResponse {
      * Search mode used ("text", "semantic", "hybrid")
      */
     private String searchMode;
+
+    /**
+     * Vespa timing breakdown, only present when the request asked for profiling
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private QueryProfile profile;
 }
@@ -0,0 +1,33 @@
+package app.vespa.demo.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Response object for suggest requests
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class SuggestResponse {
+
+    /**
+     * Typed prefix
+     */
+    private String query;
+
+    /**
+     * Completions, best first
+     */
+    private List<Suggestion> suggestions;
+
+    /**
+     * Lookup time in microseconds
+     */
+    private Long suggestTimeMicros;
+}
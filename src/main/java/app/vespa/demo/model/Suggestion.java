@@ -0,0 +1,31 @@
+package app.vespa.demo.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * One completion of a typed prefix
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class Suggestion {
+
+    /**
+     * Suggested text, as it appears in the documents
+     */
+    private String text;
+
+    /**
+     * Field the text comes from ("artist", "album")
+     */
+    private String type;
+
+    /**
+     * Number of documents with this value
+     */
+    private Integer documentCount;
+}
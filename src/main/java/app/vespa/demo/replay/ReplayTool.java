@@ -0,0 +1,389 @@
+package app.vespa.demo.replay;
+
+import app.vespa.demo.model.MusicDocument;
+import app.vespa.demo.model.Recording;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Replays recorded traffic against a running application, with stubbed Vespa and Gemini
+ *
+ * The stubs answer every query and prompt with the recorded Vespa hits and Gemini answer,
+ * after the recorded backend latency, so runs are repeatable and cost nothing. Start the
+ * application against them:
+ * <pre>
+ *   VESPA_ENDPOINT=http://localhost:18080 \
+ *   GEMINI_MODEL_URL=http://localhost:18080/v1beta/models/stub \
+ *   WARMUP_QUERY_LOG= gradle bootRun
+ * </pre>
+ * and run the tool:
+ * <pre>
+ *   gradle replay --args="recordings [--target http://localhost:8081] [--stub-port 18080]
+ *                         [--concurrency 16] [--speed 1.0] [--no-backend-latency]"
+ * </pre>
+ * A speed of 1.0 keeps the recorded request pacing, 2.0 doubles it, 0 sends as fast as the
+ * concurrency allows.
+ */
+public final class ReplayTool {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+        .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private static final String QUESTION_PREFIX = "User Question: ";
+    private static final int STREAM_CHUNKS = 8;
+    private static final String EMBEDDING_INPUT = "input.query(query_embedding)";
+
+    private final Map<String, Recording> byQuery = new HashMap<>();
+    private final boolean backendLatency;
+
+    private ReplayTool(List<Recording> recordings, boolean backendLatency) {
+        this.backendLatency = backendLatency;
+        for (Recording recording : recordings) {
+            byQuery.put(recording.getRequest().getQuery().trim(), recording);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: ReplayTool <recording file or directory> [--target URL] [--stub-port N]"
+                + " [--concurrency N] [--speed X] [--no-backend-latency]");
+            System.exit(2);
+        }
+
+        Path source = Path.of(args[0]);
+        String target = "http://localhost:8081";
+        int stubPort = 18080;
+        int concurrency = 16;
+        double speed = 1.0;
+        boolean backendLatency = true;
+
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--target" -> target = args[++i];
+                case "--stub-port" -> stubPort = Integer.parseInt(args[++i]);
+                case "--concurrency" -> concurrency = Integer.parseInt(args[++i]);
+                case "--speed" -> speed = Double.parseDouble(args[++i]);
+                case "--no-backend-latency" -> backendLatency = false;
+                default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        List<Recording> recordings = load(source);
+        System.out.printf("Loaded %d recordings from %s%n", recordings.size(), source);
+
+        ReplayTool tool = new ReplayTool(recordings, backendLatency);
+        HttpServer stubs = tool.startStubs(stubPort);
+        System.out.printf("Stub Vespa and Gemini listening on http://localhost:%d%n", stubPort);
+
+        try {
+            tool.drive(recordings, target, concurrency, speed);
+        } finally {
+            stubs.stop(0);
+        }
+    }
+
+    /**
+     * Read all recordings, oldest first
+     */
+    static List<Recording> load(Path source) throws IOException {
+        List<Path> files;
+        if (Files.isDirectory(source)) {
+            try (Stream<Path> listing = Files.list(source)) {
+                files = listing.filter(path -> path.toString().endsWith(".jsonl.gz")).sorted().toList();
+            }
+        } else {
+            files = List.of(source);
+        }
+
+        List<Recording> recordings = new ArrayList<>();
+        for (Path file : files) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isBlank()) {
+                        recordings.add(MAPPER.readValue(line, Recording.class));
+                    }
+                }
+            } catch (IOException e) {
+                // The file being written may end mid-record
+                System.err.printf("Stopped reading %s: %s%n", file, e.getMessage());
+            }
+        }
+        recordings.sort(Comparator.comparing(Recording::getTimestamp));
+        return recordings;
+    }
+
+    /**
+     * Send the recorded requests to the application and print latency percentiles
+     */
+    private void drive(List<Recording> recordings, String target, int concurrency, double speed)
+        throws InterruptedException {
+        HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        Map<String, Queue<Long>> latencies = Map.of(
+            "search", new ConcurrentLinkedQueue<>(), "rag", new ConcurrentLinkedQueue<>());
+        AtomicInteger errors = new AtomicInteger();
+
+        long firstTimestamp = recordings.isEmpty() ? 0 : recordings.get(0).getTimestamp();
+        long start = System.nanoTime();
+
+        for (Recording recording : recordings) {
+            if (speed > 0) {
+                long due = start + TimeUnit.MILLISECONDS.toNanos(
+                    (long) ((recording.getTimestamp() - firstTimestamp) / speed));
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            }
+
+            executor.execute(() -> {
+                String path = "rag".equals(recording.getType()) ? "/api/rag/query" : "/api/search";
+                long sent = System.nanoTime();
+                try {
+                    HttpResponse<Void> response = client.send(HttpRequest.newBuilder()
+                            .uri(URI.create(target + path))
+                            .header("Content-Type", "application/json")
+                            .POST(HttpRequest.BodyPublishers.ofString(MAPPER.writeValueAsString(recording.getRequest())))
+                            .build(),
+                        HttpResponse.BodyHandlers.discarding());
+                    if (response.statusCode() != 200) {
+                        errors.incrementAndGet();
+                    }
+                    latencies.get(recording.getType()).add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sent));
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%nReplayed %d requests in %.1fs (%.1f req/s), %d errors%n",
+            recordings.size(), seconds, recordings.size() / seconds, errors.get());
+        latencies.forEach((type, samples) -> {
+            if (samples.isEmpty()) {
+                return;
+            }
+            long[] sorted = samples.stream().mapToLong(Long::longValue).sorted().toArray();
+            System.out.printf("%-6s n=%-6d p50=%7.1fms p90=%7.1fms p99=%7.1fms max=%7.1fms%n", type, sorted.length,
+                percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99), sorted[sorted.length - 1] / 1000.0);
+        });
+    }
+
+    private static double percentile(long[] sorted, double quantile) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1)] / 1000.0;
+    }
+
+    private HttpServer startStubs(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/state/v1/health", exchange ->
+            respond(exchange, 200, "application/json", "{\"status\": {\"code\": \"up\"}}"));
+        server.createContext("/search/", this::handleVespa);
+        server.createContext("/", this::handleGemini);
+        server.start();
+        return server;
+    }
+
+    /**
+     * Answer a Vespa query with the hits recorded for the same query text
+     * Semantic queries carry the text only inside embed(...) of the query embedding input
+     */
+    private void handleVespa(HttpExchange exchange) throws IOException {
+        String query;
+        String embedding;
+        if ("POST".equals(exchange.getRequestMethod())) {
+            JsonNode body = MAPPER.readTree(exchange.getRequestBody());
+            query = body.path("query").asText();
+            embedding = body.path(EMBEDDING_INPUT).asText();
+        } else {
+            query = queryParameter(exchange.getRequestURI().getRawQuery(), "query");
+            embedding = queryParameter(exchange.getRequestURI().getRawQuery(), EMBEDDING_INPUT);
+        }
+        if (query.isEmpty()) {
+            query = embeddedText(embedding);
+        }
+
+        Recording recording = byQuery.get(query.trim());
+        List<MusicDocument> hits = recording != null && recording.getResults() != null ?
+            recording.getResults() : List.of();
+        pause(recording, "rag".equals(recording != null ? recording.getType() : null) ? "retrieval" : "total");
+
+        ObjectNode root = MAPPER.createObjectNode();
+        ObjectNode result = root.putObject("root");
+        result.putObject("fields").put("totalCount", hits.size());
+        ArrayNode children = result.putArray("children");
+        for (MusicDocument hit : hits) {
+            ObjectNode child = children.addObject()
+                .put("id", hit.getId())
+                .put("relevance", hit.getRelevance() != null ? hit.getRelevance() : 0.0);
+            ObjectNode fields = child.putObject("fields")
+                .put("artist", hit.getArtist())
+                .put("album", hit.getAlbum())
+                .put("year", hit.getYear())
+                .put("text", hit.getText());
+            if (hit.getCategoryScores() != null) {
+                ObjectNode scores = fields.putObject("category_scores");
+                hit.getCategoryScores().forEach(scores::put);
+            }
+            if (hit.getPassages() != null) {
+                ArrayNode passages = fields.putArray("passages");
+                hit.getPassages().forEach(passages::add);
+            }
+        }
+        respond(exchange, 200, "application/json", root.toString());
+    }
+
+    /**
+     * Answer a Gemini generateContent or streamGenerateContent call with the recorded answer
+     * to the question in the prompt; cache creation is refused so prompts stay inline
+     */
+    private void handleGemini(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        if (path.endsWith("/cachedContents")) {
+            respond(exchange, 400, "application/json", "{\"error\": {\"message\": \"not supported by stub\"}}");
+            return;
+        }
+        if (!path.contains(":generateContent") && !path.contains(":streamGenerateContent")) {
+            respond(exchange, 404, "text/plain", "not found");
+            return;
+        }
+
+        JsonNode body = MAPPER.readTree(exchange.getRequestBody());
+        String prompt = body.path("contents").path(0).path("parts").path(0).path("text").asText();
+        Recording recording = byQuery.get(question(prompt));
+        String answer = recording != null && recording.getAnswer() != null ? recording.getAnswer() : "Stub answer.";
+
+        if (!path.contains(":streamGenerateContent")) {
+            pause(recording, "generation");
+            respond(exchange, 200, "application/json", candidate(answer));
+            return;
+        }
+
+        // Spread the recorded generation time over the chunks
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            int chunkLength = Math.max(1, (answer.length() + STREAM_CHUNKS - 1) / STREAM_CHUNKS);
+            for (int offset = 0; offset < answer.length(); offset += chunkLength) {
+                pause(recording, "generation", STREAM_CHUNKS);
+                String chunk = answer.substring(offset, Math.min(answer.length(), offset + chunkLength));
+                out.write(("data: " + candidate(chunk) + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+        }
+    }
+
+    private static String candidate(String text) {
+        ObjectNode root = MAPPER.createObjectNode();
+        root.putArray("candidates").addObject()
+            .putObject("content")
+            .putArray("parts").addObject().put("text", text);
+        return root.toString();
+    }
+
+    private static String question(String prompt) {
+        for (String line : prompt.split("\n")) {
+            if (line.startsWith(QUESTION_PREFIX)) {
+                return line.substring(QUESTION_PREFIX.length()).trim();
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Text of an embed(...) input, without quotes; empty for precomputed embeddings
+     */
+    static String embeddedText(String input) {
+        String value = input.trim();
+        if (!value.startsWith("embed(") || !value.endsWith(")")) {
+            return "";
+        }
+        value = value.substring("embed(".length(), value.length() - 1).trim();
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            value = value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    private static String queryParameter(String rawQuery, String name) {
+        if (rawQuery != null) {
+            for (String pair : rawQuery.split("&")) {
+                if (pair.startsWith(name + "=")) {
+                    return URLDecoder.decode(pair.substring(name.length() + 1), StandardCharsets.UTF_8);
+                }
+            }
+        }
+        return "";
+    }
+
+    private void pause(Recording recording, String stage) {
+        pause(recording, stage, 1);
+    }
+
+    /**
+     * Sleep for a share of the recorded stage duration
+     */
+    private void pause(Recording recording, String stage, int parts) {
+        if (!backendLatency || recording == null || recording.getTimings() == null) {
+            return;
+        }
+        Long millis = recording.getTimings().get(stage);
+        if (millis == null || millis <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.MICROSECONDS.sleep(millis * 1000 / parts);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
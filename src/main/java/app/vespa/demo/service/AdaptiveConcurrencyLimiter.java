@@ -0,0 +1,149 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.AdmissionConfig;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrency limiter whose limit adapts to observed latency
+ *
+ * Gradient algorithm: a fast and a slow moving average of request latency are tracked.
+ * While the fast average stays close to the slow one the limit grows by a small queue
+ * allowance; once latency rises above the tolerated ratio the limit shrinks in proportion,
+ * and failed (dropped) requests back the limit off multiplicatively.
+ * Requests over the limit are rejected immediately instead of queued.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    private static final double SHORT_RTT_ALPHA = 0.1;
+    private static final double LONG_RTT_ALPHA = 0.01;
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final double smoothing;
+    private final double backoffRatio;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private volatile double limit;
+    private double shortRttNanos;
+    private double longRttNanos;
+
+    public AdaptiveConcurrencyLimiter(String name, AdmissionConfig.LimitConfig config) {
+        this.name = name;
+        this.minLimit = config.getMinLimit();
+        this.maxLimit = config.getMaxLimit();
+        this.tolerance = config.getTolerance();
+        this.smoothing = config.getSmoothing();
+        this.backoffRatio = config.getBackoffRatio();
+        this.limit = config.getInitialLimit();
+    }
+
+    /**
+     * Try to admit a request
+     *
+     * @return Permit to release when the request completes, or null if over the limit
+     */
+    public Permit tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) limit) {
+                rejected.incrementAndGet();
+                return null;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return new Permit(System.nanoTime());
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    private synchronized void onSample(long rttNanos, int inFlightAtStart, boolean dropped) {
+        if (dropped) {
+            limit = Math.max(minLimit, limit * backoffRatio);
+            return;
+        }
+
+        if (longRttNanos == 0) {
+            shortRttNanos = rttNanos;
+            longRttNanos = rttNanos;
+            return;
+        }
+
+        shortRttNanos += SHORT_RTT_ALPHA * (rttNanos - shortRttNanos);
+        longRttNanos += LONG_RTT_ALPHA * (rttNanos - longRttNanos);
+
+        // Let the baseline follow a lasting drop in latency instead of waiting for the slow average
+        if (longRttNanos / shortRttNanos > 2) {
+            longRttNanos *= 0.95;
+        }
+
+        // An underused limit says nothing about capacity, so don't grow it
+        if (inFlightAtStart < limit / 2) {
+            return;
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, tolerance * longRttNanos / shortRttNanos));
+        double queueSize = Math.sqrt(limit);
+        double newLimit = limit * gradient + queueSize;
+
+        limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - smoothing) + newLimit * smoothing));
+    }
+
+    /**
+     * An admitted request
+     * Exactly one of {@link #release()} or {@link #releaseDropped()} takes effect
+     */
+    public final class Permit {
+
+        private final long startNanos;
+        private final int inFlightAtStart;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(long startNanos) {
+            this.startNanos = startNanos;
+            this.inFlightAtStart = inFlight.get();
+        }
+
+        /**
+         * Release after the request completed, feeding its latency into the limit
+         */
+        public void release() {
+            release(false);
+        }
+
+        /**
+         * Release after the request failed or timed out, backing the limit off
+         */
+        public void releaseDropped() {
+            release(true);
+        }
+
+        private void release(boolean dropped) {
+            if (released.compareAndSet(false, true)) {
+                inFlight.decrementAndGet();
+                onSample(System.nanoTime() - startNanos, inFlightAtStart, dropped);
+            }
+        }
+    }
+}
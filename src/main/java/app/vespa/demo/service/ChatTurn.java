@@ -0,0 +1,10 @@
+package app.vespa.demo.service;
+
+/**
+ * One earlier exchange of a conversation, sent to the LLM as history
+ *
+ * @param prompt The user prompt as it was sent, including its context
+ * @param answer The generated answer
+ */
+public record ChatTurn(String prompt, String answer) {
+}
@@ -0,0 +1,81 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.AdmissionConfig;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Holds one adaptive concurrency limiter per endpoint class ("search", "rag") and per
+ * downstream ("vespa", "gemini", "openai"), and publishes their limit, in-flight and rejected counts
+ */
+@Slf4j
+@Service
+public class ConcurrencyLimiterRegistry {
+
+    private static final Runnable NO_OP = () -> { };
+
+    private final AdmissionConfig admissionConfig;
+    private final Map<String, AdaptiveConcurrencyLimiter> limiters = new HashMap<>();
+
+    public ConcurrencyLimiterRegistry(AdmissionConfig admissionConfig, MeterRegistry meterRegistry) {
+        this.admissionConfig = admissionConfig;
+
+        admissionConfig.getLimits().forEach((name, config) -> {
+            AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(name, config);
+            limiters.put(name, limiter);
+
+            Gauge.builder("admission.limit", limiter, AdaptiveConcurrencyLimiter::getLimit)
+                .tag("limiter", name)
+                .register(meterRegistry);
+            Gauge.builder("admission.inflight", limiter, AdaptiveConcurrencyLimiter::getInFlight)
+                .tag("limiter", name)
+                .register(meterRegistry);
+            FunctionCounter.builder("admission.rejected", limiter, AdaptiveConcurrencyLimiter::getRejected)
+                .tag("limiter", name)
+                .register(meterRegistry);
+        });
+    }
+
+    /**
+     * Admit a request through the named limiter
+     *
+     * @param name Limiter name
+     * @return Permit to release when the request completes; a no-op permit if admission
+     *         control is disabled or no limiter is configured under that name
+     * @throws OverloadedException if the limit is reached
+     */
+    public AdmissionPermit acquire(String name) {
+        AdaptiveConcurrencyLimiter limiter = limiters.get(name);
+        if (!Boolean.TRUE.equals(admissionConfig.getEnabled()) || limiter == null) {
+            return new AdmissionPermit(NO_OP, NO_OP);
+        }
+
+        AdaptiveConcurrencyLimiter.Permit permit = limiter.tryAcquire();
+        if (permit == null) {
+            log.warn("Shedding request: limiter '{}' at limit {} ({} in flight)",
+                name, limiter.getLimit(), limiter.getInFlight());
+            throw new OverloadedException(name, admissionConfig.getRetryAfterSeconds());
+        }
+        return new AdmissionPermit(permit::release, permit::releaseDropped);
+    }
+
+    /**
+     * Admitted request, released with its outcome
+     */
+    public record AdmissionPermit(Runnable onSuccess, Runnable onDropped) {
+
+        public void release() {
+            onSuccess.run();
+        }
+
+        public void releaseDropped() {
+            onDropped.run();
+        }
+    }
+}
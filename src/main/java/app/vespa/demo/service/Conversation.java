@@ -0,0 +1,111 @@
+package app.vespa.demo.service;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * State of one conversation: the turns sent to the LLM so far and the albums they introduced
+ *
+ * Each album is added to the prompt of the turn that first retrieved it and numbered once for
+ * the whole conversation; later turns only refer to it by number. Beyond the turn limit the
+ * oldest turn is forgotten together with its albums, which are sent again if retrieved again.
+ * Callers serialize turns of a conversation by locking it.
+ */
+final class Conversation {
+
+    /**
+     * One answered turn
+     *
+     * @param question Question as asked
+     * @param searchQuery Query the albums were retrieved with, null if retrieval was skipped
+     * @param prompt Prompt sent to the LLM, with the albums new to the conversation
+     * @param answer Generated answer
+     * @param documentIds Ids of the albums the prompt introduced, in citation order
+     */
+    record Turn(String question, String searchQuery, String prompt, String answer, List<String> documentIds) {
+
+        long estimatedBytes() {
+            long chars = question.length() + prompt.length() + answer.length()
+                + (searchQuery != null ? searchQuery.length() : 0);
+            return 2 * chars + 64L * documentIds.size() + 128;
+        }
+    }
+
+    private final String id;
+    private final Deque<Turn> turns = new ArrayDeque<>();
+    // Album id -> citation number, for the albums introduced by the kept turns
+    private final Map<String, Integer> documentNumbers = new HashMap<>();
+    private int nextNumber = 1;
+    private volatile long estimatedBytes = 256;
+
+    // Maintained by ConversationStore under its lock
+    long lastAccessNanos;
+    long accountedBytes;
+
+    Conversation(String id) {
+        this.id = id;
+    }
+
+    String id() {
+        return id;
+    }
+
+    boolean isEmpty() {
+        return turns.isEmpty();
+    }
+
+    /**
+     * Kept turns, oldest first
+     */
+    List<Turn> turns() {
+        return List.copyOf(turns);
+    }
+
+    /**
+     * Citation number of an album already in the conversation, null if it is not
+     */
+    Integer documentNumber(String documentId) {
+        return documentNumbers.get(documentId);
+    }
+
+    boolean hasDocuments() {
+        return !documentNumbers.isEmpty();
+    }
+
+    /**
+     * Citation number the next album added to the conversation gets
+     */
+    int nextDocumentNumber() {
+        return nextNumber;
+    }
+
+    /**
+     * Record an answered turn, forgetting the oldest turns beyond maxTurns
+     */
+    void addTurn(Turn turn, int maxTurns) {
+        for (String documentId : turn.documentIds()) {
+            documentNumbers.put(documentId, nextNumber++);
+        }
+        turns.addLast(turn);
+
+        while (turns.size() > Math.max(1, maxTurns)) {
+            turns.removeFirst().documentIds().forEach(documentNumbers::remove);
+        }
+
+        long bytes = 256 + 96L * documentNumbers.size();
+        for (Turn kept : turns) {
+            bytes += kept.estimatedBytes();
+        }
+        estimatedBytes = bytes;
+    }
+
+    /**
+     * Rough heap footprint, for the store's memory bound
+     */
+    long estimatedBytes() {
+        return estimatedBytes;
+    }
+}
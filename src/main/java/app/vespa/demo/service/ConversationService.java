@@ -0,0 +1,259 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.RagConfig;
+import app.vespa.demo.model.ConversationResponse;
+import app.vespa.demo.model.MusicDocument;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * Multi-turn RAG: answers follow-up questions in the context of the conversation so far
+ *
+ * A follow-up like "what about their earlier albums?" is a poor search query on its own, so
+ * it is first rewritten by the LLM into a standalone query from the recent turns; the LLM may
+ * also decide that the albums already discussed suffice, which skips retrieval. The conversation
+ * is sent to the LLM as history, and each album appears in it once: the prompt of a turn only
+ * adds the albums new to the conversation and refers to the others by their citation number.
+ * Follow-up prompts therefore grow by the delta only, and the unchanged prefix of earlier turns
+ * can be served from the provider's prompt cache.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class ConversationService {
+
+    /**
+     * Rewriter answer meaning no new retrieval is needed
+     */
+    static final String NO_RETRIEVAL = "NONE";
+
+    static final String REWRITE_INSTRUCTION = """
+        You rewrite follow-up questions of a conversation about music albums into standalone search queries.
+        Replace references such as "they", "that album" or "their earlier work" with the artists, albums
+        and genres they refer to. Answer with the search query only, without quotes or explanation.
+        If the question can be answered from the albums already discussed without searching, answer NONE.
+        """;
+
+    // Recent turns shown to the rewriter, and how much of each answer
+    private static final int REWRITE_TURNS = 3;
+    private static final int REWRITE_ANSWER_CHARS = 500;
+
+    private final RagService ragService;
+    private final LlmRouter llmRouter;
+    private final ConversationStore conversationStore;
+    private final RagConfig ragConfig;
+    private final ObservationRegistry observationRegistry;
+
+    /**
+     * Ask the first question of a new conversation
+     *
+     * @param question User's question
+     * @param searchMode Search mode ("text", "semantic", "hybrid")
+     * @param maxResults Number of documents to retrieve (optional)
+     * @return Answer, with the id of the new conversation
+     */
+    public ConversationResponse start(String question, String searchMode, Integer maxResults) {
+        Conversation conversation = conversationStore.create();
+        log.info("Conversation {} started", conversation.id());
+        return ask(conversation, question, searchMode, maxResults);
+    }
+
+    /**
+     * Ask a follow-up question
+     *
+     * @param conversationId Id from an earlier response
+     * @param question User's question
+     * @param searchMode Search mode ("text", "semantic", "hybrid")
+     * @param maxResults Number of documents to retrieve (optional)
+     * @return Answer, empty if the conversation does not exist or has expired
+     */
+    public Optional<ConversationResponse> ask(String conversationId, String question, String searchMode,
+                                              Integer maxResults) {
+        return conversationStore.get(conversationId)
+            .map(conversation -> ask(conversation, question, searchMode, maxResults));
+    }
+
+    /**
+     * End a conversation
+     *
+     * @return Whether the conversation existed
+     */
+    public boolean end(String conversationId) {
+        return conversationStore.remove(conversationId);
+    }
+
+    private ConversationResponse ask(Conversation conversation, String question, String searchMode,
+                                     Integer maxResults) {
+        // Turns of one conversation build on each other, so they run one at a time
+        synchronized (conversation) {
+            long startTime = System.currentTimeMillis();
+
+            String searchQuery = conversation.isEmpty() ? question : rewrite(conversation, question, searchMode);
+            List<MusicDocument> documents = searchQuery != null ?
+                ragService.retrieve(searchQuery, searchMode, maxResults) : List.of();
+            long retrievalTime = System.currentTimeMillis() - startTime;
+
+            List<MusicDocument> newDocuments = new ArrayList<>();
+            List<Integer> reused = new ArrayList<>();
+            for (MusicDocument document : documents) {
+                Integer number = conversation.documentNumber(document.getId());
+                if (number != null) {
+                    reused.add(number);
+                } else {
+                    newDocuments.add(document);
+                }
+            }
+            log.debug("Conversation {}: search query '{}', {} new and {} known documents",
+                conversation.id(), searchQuery, newDocuments.size(), reused.size());
+
+            ConversationResponse.ConversationResponseBuilder response = ConversationResponse.builder()
+                .conversationId(conversation.id())
+                .query(question)
+                .searchQuery(searchQuery)
+                .sources(documents)
+                .newSources(newDocuments.size())
+                .retrievalTimeMs(retrievalTime);
+
+            if (newDocuments.isEmpty() && !conversation.hasDocuments()) {
+                return response
+                    .answer(RagService.NO_RESULTS_ANSWER)
+                    .generationTimeMs(0L)
+                    .totalTimeMs(System.currentTimeMillis() - startTime)
+                    .build();
+            }
+
+            String context = newDocuments.isEmpty() ?
+                null : ragService.buildContext(newDocuments, conversation.nextDocumentNumber());
+            String prompt = buildPrompt(question, context, reused);
+            List<ChatTurn> history = conversation.turns().stream()
+                .map(turn -> new ChatTurn(turn.prompt(), turn.answer()))
+                .toList();
+
+            long generationStart = System.currentTimeMillis();
+            String answer;
+            try {
+                answer = Observation.createNotStarted("rag.generation", observationRegistry)
+                    .lowCardinalityKeyValue("search.mode", searchMode.toLowerCase())
+                    .observe(() -> llmRouter.generateText(ragService.buildSystemInstruction(), history, prompt));
+
+                // Failed turns are not recorded, so their albums are offered again next time
+                conversation.addTurn(new Conversation.Turn(question, searchQuery, prompt, answer,
+                    newDocuments.stream().map(MusicDocument::getId).toList()),
+                    ragConfig.getConversations().getMaxTurns());
+                conversationStore.update(conversation);
+
+            } catch (OverloadedException e) {
+                throw e;
+            } catch (Exception e) {
+                log.error("Error generating conversation response with LLM", e);
+                answer = RagService.GENERATION_ERROR_ANSWER;
+            }
+            long generationTime = System.currentTimeMillis() - generationStart;
+
+            return response
+                .answer(answer)
+                .generationTimeMs(generationTime)
+                .totalTimeMs(System.currentTimeMillis() - startTime)
+                .build();
+        }
+    }
+
+    /**
+     * Rewrite a follow-up question into a standalone search query
+     * When rewriting is disabled or fails, the previous search query is prepended instead,
+     * which keeps the names it mentioned
+     *
+     * @return Search query, null if the albums already in the conversation suffice
+     */
+    private String rewrite(Conversation conversation, String question, String searchMode) {
+        List<Conversation.Turn> turns = conversation.turns();
+        Conversation.Turn last = turns.get(turns.size() - 1);
+        String fallback = last.searchQuery() != null ? last.searchQuery() + " " + question : question;
+
+        if (!Boolean.TRUE.equals(ragConfig.getConversations().getRewriteQueries())) {
+            return fallback;
+        }
+
+        List<Conversation.Turn> recent = turns.subList(Math.max(0, turns.size() - REWRITE_TURNS), turns.size());
+        try {
+            String rewritten = Observation.createNotStarted("rag.rewrite", observationRegistry)
+                .lowCardinalityKeyValue("search.mode", searchMode.toLowerCase())
+                .observe(() -> llmRouter.generateText(null, buildRewritePrompt(recent, question)));
+            return parseRewrite(rewritten, question, conversation.hasDocuments());
+        } catch (RuntimeException e) {
+            log.warn("Error rewriting follow-up question, searching with the previous query: {}", e.getMessage());
+            return fallback;
+        }
+    }
+
+    /**
+     * Rewriting instructions, recent questions and answers, and the question to rewrite
+     * The instructions are part of the prompt rather than a system instruction, which would
+     * displace the answering instruction from the Gemini context cache
+     */
+    String buildRewritePrompt(List<Conversation.Turn> turns, String question) {
+        String conversation = turns.stream()
+            .map(turn -> "User: " + turn.question() + "\nAssistant: " + truncate(turn.answer()))
+            .collect(Collectors.joining("\n\n"));
+
+        return String.format("""
+            %s
+            Conversation:
+            %s
+
+            Follow-up question: %s
+            """, REWRITE_INSTRUCTION, conversation, question);
+    }
+
+    /**
+     * First line of the rewriter's answer, unquoted; the question itself if the answer is empty
+     *
+     * @param canSkip Whether the conversation has albums to answer from without retrieval
+     * @return Search query, null to skip retrieval
+     */
+    static String parseRewrite(String rewritten, String question, boolean canSkip) {
+        String query = rewritten == null ? "" : rewritten.strip().lines().findFirst().orElse("").strip();
+        if (query.length() >= 2 && query.startsWith("\"") && query.endsWith("\"")) {
+            query = query.substring(1, query.length() - 1).strip();
+        }
+        if (query.equalsIgnoreCase(NO_RETRIEVAL) || query.equalsIgnoreCase(NO_RETRIEVAL + ".")) {
+            return canSkip ? null : question;
+        }
+        return query.isEmpty() ? question : query;
+    }
+
+    private static String truncate(String answer) {
+        return answer.length() <= REWRITE_ANSWER_CHARS ? answer : answer.substring(0, REWRITE_ANSWER_CHARS) + "...";
+    }
+
+    /**
+     * Per-turn prompt: the albums new to the conversation, references to the ones
+     * discussed before that matched again, and the question
+     *
+     * @param question User's question
+     * @param context Context of the new albums, null if there are none
+     * @param reused Citation numbers of albums already in the conversation
+     * @return Per-turn prompt
+     */
+    String buildPrompt(String question, String context, List<Integer> reused) {
+        StringBuilder prompt = new StringBuilder();
+        if (context != null) {
+            prompt.append("Context:\n").append(context).append("\n");
+        }
+        if (!reused.isEmpty()) {
+            prompt.append("Albums from earlier in the conversation that are relevant again: ")
+                .append(reused.stream().map(number -> "[" + number + "]").collect(Collectors.joining(", ")))
+                .append("\n\n");
+        }
+        prompt.append("User Question: ").append(question).append("\n");
+        return prompt.toString();
+    }
+}
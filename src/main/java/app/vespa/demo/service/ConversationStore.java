@@ -0,0 +1,171 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.RagConfig;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Bounded in-memory store of RAG conversations
+ *
+ * Conversations are kept in least recently used order. Those idle for longer than the TTL
+ * are dropped on the next access to the store, and the least recently used are dropped while
+ * there are more than the maximum number or their estimated memory exceeds the cap. The
+ * conversation being updated is never dropped to make room for itself.
+ */
+@Slf4j
+@Service
+public class ConversationStore {
+
+    private final RagConfig.ConversationConfig config;
+    private final Map<String, Conversation> conversations = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+
+    private final Counter expired;
+    private final Counter evicted;
+    private final MeterRegistry meterRegistry;
+
+    public ConversationStore(RagConfig ragConfig, MeterRegistry meterRegistry) {
+        this.config = ragConfig.getConversations();
+        this.expired = meterRegistry.counter("rag.conversations.dropped", "reason", "expired");
+        this.evicted = meterRegistry.counter("rag.conversations.dropped", "reason", "capacity");
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    void registerGauges() {
+        Gauge.builder("rag.conversations.active", this, ConversationStore::size)
+            .register(meterRegistry);
+        Gauge.builder("rag.conversations.memory", this, ConversationStore::memoryBytes)
+            .baseUnit("bytes")
+            .register(meterRegistry);
+    }
+
+    /**
+     * Start a new conversation
+     */
+    Conversation create() {
+        Conversation conversation = new Conversation(UUID.randomUUID().toString());
+        synchronized (conversations) {
+            dropExpired();
+            conversation.lastAccessNanos = System.nanoTime();
+            conversation.accountedBytes = conversation.estimatedBytes();
+            memoryBytes += conversation.accountedBytes;
+            conversations.put(conversation.id(), conversation);
+            dropOverCapacity(conversation);
+        }
+        return conversation;
+    }
+
+    /**
+     * Look up a conversation, marking it as used
+     *
+     * @param id Conversation id
+     * @return The conversation, empty if it never existed or was dropped
+     */
+    Optional<Conversation> get(String id) {
+        synchronized (conversations) {
+            dropExpired();
+            Conversation conversation = conversations.get(id);
+            if (conversation != null) {
+                conversation.lastAccessNanos = System.nanoTime();
+            }
+            return Optional.ofNullable(conversation);
+        }
+    }
+
+    /**
+     * Account for a conversation that grew by a turn, dropping others if over capacity
+     * A conversation dropped while its turn ran is not brought back.
+     */
+    void update(Conversation conversation) {
+        synchronized (conversations) {
+            if (conversations.get(conversation.id()) != conversation) {
+                return;
+            }
+            conversation.lastAccessNanos = System.nanoTime();
+            long bytes = conversation.estimatedBytes();
+            memoryBytes += bytes - conversation.accountedBytes;
+            conversation.accountedBytes = bytes;
+            dropOverCapacity(conversation);
+        }
+    }
+
+    /**
+     * End a conversation
+     *
+     * @param id Conversation id
+     * @return Whether the conversation existed
+     */
+    public boolean remove(String id) {
+        synchronized (conversations) {
+            Conversation conversation = conversations.remove(id);
+            if (conversation == null) {
+                return false;
+            }
+            memoryBytes -= conversation.accountedBytes;
+            return true;
+        }
+    }
+
+    /**
+     * Number of conversations kept
+     */
+    public int size() {
+        synchronized (conversations) {
+            return conversations.size();
+        }
+    }
+
+    /**
+     * Estimated memory of all conversations kept
+     */
+    public long memoryBytes() {
+        synchronized (conversations) {
+            return memoryBytes;
+        }
+    }
+
+    /**
+     * Drop idle conversations; in access order they are all at the head
+     */
+    private void dropExpired() {
+        long ttlNanos = Duration.ofMillis(config.getSessionTtlMs()).toNanos();
+        long now = System.nanoTime();
+        Iterator<Conversation> iterator = conversations.values().iterator();
+        while (iterator.hasNext()) {
+            Conversation conversation = iterator.next();
+            if (now - conversation.lastAccessNanos <= ttlNanos) {
+                break;
+            }
+            iterator.remove();
+            memoryBytes -= conversation.accountedBytes;
+            expired.increment();
+        }
+    }
+
+    private void dropOverCapacity(Conversation keep) {
+        Iterator<Conversation> iterator = conversations.values().iterator();
+        while ((conversations.size() > config.getMaxSessions() || memoryBytes > config.getMaxMemoryBytes())
+            && iterator.hasNext()) {
+            Conversation conversation = iterator.next();
+            if (conversation == keep) {
+                continue;
+            }
+            iterator.remove();
+            memoryBytes -= conversation.accountedBytes;
+            evicted.increment();
+            log.debug("Dropped conversation {} to stay within the store limits", conversation.id());
+        }
+    }
+}
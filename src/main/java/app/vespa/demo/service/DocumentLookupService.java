@@ -0,0 +1,340 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.VespaConfig;
+import app.vespa.demo.model.DocumentUpdate;
+import app.vespa.demo.model.MusicDocument;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Looks up documents by id through Vespa's /document/v1 API, with a cache of hot documents
+ *
+ * Concurrent lookups of the same id share one Vespa request, and the ids of a multi-get
+ * that miss the cache are fetched in parallel over the client's pooled connections, since
+ * /document/v1 has no multi-get. Found documents are cached in a size-bounded LRU cache;
+ * entries are dropped when an update of the document has been applied and expire after
+ * a TTL, which bounds staleness after feeds that bypass the update API. A fetch that overlaps
+ * an invalidation does not populate the cache, so it cannot bring back the old version.
+ * While Vespa is unavailable, lookups are answered from the fallback index.
+ */
+@Slf4j
+@Service
+public class DocumentLookupService implements DocumentUpdateListener {
+
+    /**
+     * Fields returned by lookups; the chunk embeddings are left out
+     */
+    private static final String FIELD_SET = "album,artist,year,text,category_scores";
+
+    private final VespaConfig vespaConfig;
+    private final VespaConfig.LookupConfig lookupConfig;
+    private final ObjectMapper objectMapper;
+    private final VespaEndpointSelector endpointSelector;
+    private final FallbackSearchIndex fallbackIndex;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final MeterRegistry meterRegistry;
+
+    private final HttpClient httpClient = HttpClient.newBuilder()
+        .connectTimeout(Duration.ofSeconds(5))
+        .build();
+
+    private final Map<String, CachedDocument> cache;
+    private final Map<String, CompletableFuture<Optional<MusicDocument>>> inFlight = new ConcurrentHashMap<>();
+    // Bumped on every invalidation; fetches that saw another value do not populate the cache
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private record CachedDocument(MusicDocument document, long expiresAtNanos) {
+    }
+
+    /**
+     * Outcome of a fetch; documents from the fallback index are not cached
+     */
+    private record Fetched(Optional<MusicDocument> document, boolean fromVespa) {
+    }
+
+    public DocumentLookupService(VespaConfig vespaConfig, ObjectMapper objectMapper,
+                                 VespaEndpointSelector endpointSelector, FallbackSearchIndex fallbackIndex,
+                                 MeterRegistry meterRegistry) {
+        this.vespaConfig = vespaConfig;
+        this.lookupConfig = vespaConfig.getLookup();
+        this.objectMapper = objectMapper;
+        this.endpointSelector = endpointSelector;
+        this.fallbackIndex = fallbackIndex;
+
+        int cacheSize = lookupConfig.getCacheSize();
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedDocument> eldest) {
+                return size() > cacheSize;
+            }
+        };
+
+        this.hits = meterRegistry.counter("documents.lookup", "result", "hit");
+        this.misses = meterRegistry.counter("documents.lookup", "result", "miss");
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    void registerGauges() {
+        Gauge.builder("documents.lookup.cache.size", this, DocumentLookupService::cacheSize)
+            .register(meterRegistry);
+    }
+
+    /**
+     * Look up one document
+     *
+     * @param id Full or local document id
+     * @return The document, empty if there is none with this id
+     */
+    public Optional<MusicDocument> get(String id) {
+        return getAll(List.of(id)).get(0);
+    }
+
+    /**
+     * Look up several documents at once
+     *
+     * @param ids Full or local document ids
+     * @return One entry per requested id, in request order, empty where there is no document
+     * @throws IllegalArgumentException if there are too many ids
+     */
+    public List<Optional<MusicDocument>> getAll(List<String> ids) {
+        if (ids.size() > lookupConfig.getMaxIds()) {
+            throw new IllegalArgumentException(
+                "At most " + lookupConfig.getMaxIds() + " ids per request, got: " + ids.size());
+        }
+
+        Map<String, CompletableFuture<Optional<MusicDocument>>> lookups = new HashMap<>();
+        for (String id : ids) {
+            lookups.computeIfAbsent(fullId(id), this::lookup);
+        }
+
+        try {
+            CompletableFuture.allOf(lookups.values().toArray(CompletableFuture[]::new)).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+
+        List<Optional<MusicDocument>> documents = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            documents.add(lookups.get(fullId(id)).join());
+        }
+        return documents;
+    }
+
+    /**
+     * Number of cached documents
+     */
+    public int cacheSize() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * Drop a document from the cache once an update of it has been applied
+     */
+    @Override
+    public void documentUpdated(DocumentUpdate update) {
+        invalidate(update.getId());
+    }
+
+    /**
+     * Drop a document from the cache
+     *
+     * @param id Full document id
+     */
+    public void invalidate(String id) {
+        invalidations.incrementAndGet();
+        synchronized (cache) {
+            cache.remove(id);
+        }
+    }
+
+    private CompletableFuture<Optional<MusicDocument>> lookup(String id) {
+        CachedDocument cached;
+        synchronized (cache) {
+            cached = cache.get(id);
+        }
+        if (cached != null && cached.expiresAtNanos() - System.nanoTime() > 0) {
+            hits.increment();
+            return CompletableFuture.completedFuture(Optional.of(cached.document()));
+        }
+
+        misses.increment();
+        CompletableFuture<Optional<MusicDocument>> fetch = new CompletableFuture<>();
+        CompletableFuture<Optional<MusicDocument>> shared = inFlight.putIfAbsent(id, fetch);
+        if (shared != null) {
+            return shared;
+        }
+
+        long generation = invalidations.get();
+        fetch(id).whenComplete((fetched, error) -> {
+            inFlight.remove(id, fetch);
+            if (error != null) {
+                fetch.completeExceptionally(error);
+                return;
+            }
+            if (fetched.fromVespa() && fetched.document().isPresent() && invalidations.get() == generation) {
+                cache(id, fetched.document().get());
+            }
+            fetch.complete(fetched.document());
+        });
+        return fetch;
+    }
+
+    private void cache(String id, MusicDocument document) {
+        if (lookupConfig.getCacheSize() <= 0) {
+            return;
+        }
+        long expiresAt = System.nanoTime() + Duration.ofMillis(lookupConfig.getCacheTtlMs()).toNanos();
+        synchronized (cache) {
+            cache.put(id, new CachedDocument(document, expiresAt));
+        }
+    }
+
+    /**
+     * GET the document from Vespa, or from the fallback index if Vespa is unavailable
+     */
+    private CompletableFuture<Fetched> fetch(String id) {
+        VespaEndpointSelector.Endpoint endpoint = endpointSelector.select();
+        long start = System.nanoTime();
+
+        HttpRequest request = HttpRequest.newBuilder()
+            .uri(documentUri(endpoint.getUrl(), id))
+            .timeout(Duration.ofMillis(vespaConfig.getTimeoutMs()))
+            .GET()
+            .build();
+
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+            .handle((response, error) -> {
+                boolean success = error == null && response.statusCode() < 500;
+                endpoint.complete(start, success);
+
+                if (!success) {
+                    log.warn("Document lookup of {} failed: {}", id,
+                        error != null ? error.getMessage() : "status " + response.statusCode());
+                    return new Fetched(fallback(id), false);
+                }
+                if (response.statusCode() == 404) {
+                    return new Fetched(Optional.empty(), true);
+                }
+                if (response.statusCode() != 200) {
+                    throw new CompletionException(new IllegalStateException(
+                        "Document lookup of " + id + " failed with status " + response.statusCode()));
+                }
+                return new Fetched(parseDocument(response.body()), true);
+            });
+    }
+
+    private Optional<MusicDocument> fallback(String id) {
+        if (!fallbackIndex.isEnabled()) {
+            throw new CompletionException(new OverloadedException("vespa", 1));
+        }
+        return fallbackIndex.get(id);
+    }
+
+    /**
+     * /document/v1/{namespace}/{document type}/docid/{local id}
+     */
+    private URI documentUri(String endpoint, String id) {
+        String[] parts = id.split(":", 5);
+        return URI.create(endpoint + "/document/v1/" + encode(parts[1]) + "/" + encode(parts[2])
+            + "/docid/" + encode(parts[4])
+            + "?fieldSet=" + encode(parts[2] + ":" + FIELD_SET)
+            + "&format.tensors=short-value");
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
+    /**
+     * Convert a /document/v1 GET response
+     */
+    Optional<MusicDocument> parseDocument(String body) {
+        try {
+            JsonNode root = objectMapper.readTree(body);
+            JsonNode fields = root.path("fields");
+
+            MusicDocument document = MusicDocument.builder()
+                .id(root.path("id").asText())
+                .artist(fields.path("artist").asText())
+                .album(fields.path("album").asText())
+                .year(fields.path("year").asInt())
+                .text(fields.path("text").asText())
+                .build();
+
+            // Short form is {"pop": 1.0, ...}; older Vespa versions may still send cells
+            JsonNode scores = fields.path("category_scores");
+            if (scores.has("cells")) {
+                scores = scores.get("cells");
+            }
+            if (scores.isObject()) {
+                Map<String, Float> categoryScores = new HashMap<>();
+                JsonNode values = scores;
+                values.fieldNames().forEachRemaining(key ->
+                    categoryScores.put(key, (float) values.get(key).asDouble()));
+                document.setCategoryScores(categoryScores);
+            } else if (scores.isArray()) {
+                Map<String, Float> categoryScores = new HashMap<>();
+                for (JsonNode cell : scores) {
+                    categoryScores.put(cell.path("address").path("cat").asText(), (float) cell.path("value").asDouble());
+                }
+                document.setCategoryScores(categoryScores);
+            }
+
+            return Optional.of(document);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Expand a local id to a full document id of the configured schema
+     *
+     * @throws IllegalArgumentException if the id is empty or not a valid document id
+     */
+    String fullId(String id) {
+        if (id == null || id.isBlank()) {
+            throw new IllegalArgumentException("Document id cannot be empty");
+        }
+        String fullId = id.startsWith("id:") ?
+            id : "id:" + vespaConfig.getSchema() + ":" + vespaConfig.getSchema() + "::" + id;
+        // id:<namespace>:<document type>:<key/value pairs>:<local id>
+        String[] parts = fullId.split(":", 5);
+        if (parts.length < 5 || parts[1].isEmpty() || parts[2].isEmpty() || parts[4].isEmpty()) {
+            throw new IllegalArgumentException("Invalid document id: " + id);
+        }
+        return fullId;
+    }
+}
@@ -0,0 +1,789 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.model.MusicDocument;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+/**
+ * Compact, memory-mapped on-disk format for cached documents, their text index and embeddings
+ *
+ * Documents stay in the page cache instead of on the heap: fields are read through
+ * flyweight {@link Cursor}s and a {@link MusicDocument} is only materialized on request.
+ * The inverted index of the text fields is stored alongside, so terms are looked up and
+ * their postings scored in place. Embeddings can be scored in place without copying them out.
+ *
+ * Layout (little-endian):
+ * <pre>
+ *   header      magic, version, document/category counts, dimension, embedding format,
+ *               section offsets (128 bytes)
+ *   categories  (arena offset, length) of each category name
+ *   fields      first term, term count and total length in tokens of each indexed field
+ *   records     one fixed-width record per document: id, artist, album and text as
+ *               (arena offset, length), year, flags, the length in tokens of each indexed
+ *               field, then one float score per category (NaN when the document has no score)
+ *   arena       UTF-8 bytes of all strings; no string crosses a mapping chunk
+ *   ids         document ordinals sorted by id, for lookups by id
+ *   terms       (arena offset, length), document frequency and first posting of each term,
+ *               sorted by UTF-8 bytes within each field
+ *   postings    (ordinal, term frequency) pairs, by term and ascending ordinal
+ *   embeddings  document count x dimension matrix of float32 or bfloat16 values
+ * </pre>
+ *
+ * Sections are mapped in chunks of at most {@link #MAX_CHUNK_BYTES} holding whole entries,
+ * since one mapping is limited to 2 GB; offsets are 64-bit throughout.
+ */
+public final class DocumentSnapshot {
+
+    private static final int MAGIC = 0x3153444D; // "MDS1"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 128;
+
+    /**
+     * Indexed text fields, in the order artist, album, text
+     */
+    public static final int FIELD_COUNT = 3;
+
+    private static final int STRING_REF_BYTES = 12;
+    private static final int FIELD_BYTES = 24;
+    private static final int RECORD_FIXED_BYTES = 4 * STRING_REF_BYTES + 8 + 4 * FIELD_COUNT;
+    private static final int TERM_BYTES = 24;
+    private static final int POSTING_BYTES = 8;
+
+    private static final int FLAG_HAS_YEAR = 1;
+    private static final int FLAG_HAS_EMBEDDING = 2;
+
+    private static final long MAX_CHUNK_BYTES = 1L << 30;
+
+    /**
+     * Storage type of the embedding matrix
+     */
+    public enum EmbeddingFormat {
+        FLOAT32(4), BFLOAT16(2);
+
+        private final int bytes;
+
+        EmbeddingFormat(int bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    private final int documentCount;
+    private final int dimension;
+    private final EmbeddingFormat format;
+    private final String[] categories;
+    private final int recordBytes;
+
+    private final long[] firstTerms = new long[FIELD_COUNT];
+    private final long[] termCounts = new long[FIELD_COUNT];
+    private final long[] totalLengths = new long[FIELD_COUNT];
+
+    private final Region records;
+    private final Region arena;
+    private final Region ids;
+    private final Region terms;
+    private final Region postings;
+    private final Region embeddings;
+
+    private DocumentSnapshot(FileChannel channel) throws IOException {
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            throw new IOException("Not a document snapshot, or unsupported version");
+        }
+
+        this.documentCount = header.getInt(8);
+        int categoryCount = header.getInt(12);
+        this.dimension = header.getInt(16);
+        this.format = EmbeddingFormat.values()[header.getInt(20)];
+        long categoriesOffset = header.getLong(24);
+        long fieldsOffset = header.getLong(32);
+        long recordsOffset = header.getLong(40);
+        long arenaOffset = header.getLong(48);
+        long arenaLength = header.getLong(56);
+        long idsOffset = header.getLong(64);
+        long termsOffset = header.getLong(72);
+        long postingsOffset = header.getLong(80);
+        long postingCount = header.getLong(88);
+        long embeddingsOffset = header.getLong(96);
+
+        this.recordBytes = RECORD_FIXED_BYTES + 4 * categoryCount;
+        this.records = new Region(channel, recordsOffset, (long) documentCount * recordBytes, recordBytes);
+        this.arena = new Region(channel, arenaOffset, arenaLength, 1);
+        this.ids = new Region(channel, idsOffset, 4L * documentCount, 4);
+
+        Region fields = new Region(channel, fieldsOffset, FIELD_BYTES * FIELD_COUNT, FIELD_BYTES);
+        long termCount = 0;
+        for (int field = 0; field < FIELD_COUNT; field++) {
+            firstTerms[field] = fields.getLong(FIELD_BYTES * field);
+            termCounts[field] = fields.getLong(FIELD_BYTES * field + 8);
+            totalLengths[field] = fields.getLong(FIELD_BYTES * field + 16);
+            termCount += termCounts[field];
+        }
+        this.terms = new Region(channel, termsOffset, termCount * TERM_BYTES, TERM_BYTES);
+        this.postings = new Region(channel, postingsOffset, postingCount * POSTING_BYTES, POSTING_BYTES);
+
+        Region categoryTable = new Region(channel, categoriesOffset, (long) STRING_REF_BYTES * categoryCount,
+            STRING_REF_BYTES);
+        this.categories = new String[categoryCount];
+        for (int i = 0; i < categoryCount; i++) {
+            categories[i] = string(categoryTable, (long) STRING_REF_BYTES * i);
+        }
+
+        int rowBytes = dimension * format.bytes;
+        this.embeddings = new Region(channel, embeddingsOffset, (long) documentCount * rowBytes, rowBytes);
+    }
+
+    /**
+     * Map a snapshot file
+     * The mapping stays valid after the file is replaced by a newer snapshot, or deleted
+     *
+     * @param path Snapshot file
+     * @return Opened snapshot
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    public static DocumentSnapshot open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new DocumentSnapshot(channel);
+        }
+    }
+
+    /**
+     * Write a snapshot, atomically replacing any existing file
+     *
+     * @param path Snapshot file
+     * @param documents Documents to store, with distinct ids
+     * @param embeddings Embeddings by document position, null entries for documents without one
+     * @param dimension Embedding dimension, 0 to store no embeddings
+     * @param format Storage type of the embedding matrix
+     * @param tokenizer Splits artist, album and text into the indexed terms
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Path path, List<MusicDocument> documents, List<float[]> embeddings,
+                             int dimension, EmbeddingFormat format,
+                             Function<String, List<String>> tokenizer) throws IOException {
+        TreeSet<String> categoryNames = new TreeSet<>();
+        for (MusicDocument document : documents) {
+            if (document.getCategoryScores() != null) {
+                categoryNames.addAll(document.getCategoryScores().keySet());
+            }
+        }
+        String[] categories = categoryNames.toArray(String[]::new);
+        Map<String, Integer> categoryIndexes = new HashMap<>();
+        for (int i = 0; i < categories.length; i++) {
+            categoryIndexes.put(categories[i], i);
+        }
+
+        // The inverted index is built on the heap once, while writing
+        List<Map<String, PostingList>> fieldPostings = new ArrayList<>();
+        int[] fieldLengths = new int[documents.size() * FIELD_COUNT];
+        long[] totalLengths = new long[FIELD_COUNT];
+        for (int field = 0; field < FIELD_COUNT; field++) {
+            fieldPostings.add(new HashMap<>());
+        }
+        for (int ordinal = 0; ordinal < documents.size(); ordinal++) {
+            MusicDocument document = documents.get(ordinal);
+            String[] values = { document.getArtist(), document.getAlbum(), document.getText() };
+            for (int field = 0; field < FIELD_COUNT; field++) {
+                List<String> tokens = tokenizer.apply(values[field]);
+                Map<String, Integer> frequencies = new HashMap<>();
+                for (String token : tokens) {
+                    frequencies.merge(token, 1, Integer::sum);
+                }
+                for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+                    fieldPostings.get(field).computeIfAbsent(entry.getKey(), term -> new PostingList())
+                        .add(ordinal, entry.getValue());
+                }
+                fieldLengths[ordinal * FIELD_COUNT + field] = tokens.size();
+                totalLengths[field] += tokens.size();
+            }
+        }
+
+        int recordBytes = RECORD_FIXED_BYTES + 4 * categories.length;
+        long categoriesOffset = HEADER_BYTES;
+        long fieldsOffset = categoriesOffset + (long) STRING_REF_BYTES * categories.length;
+        long recordsOffset = align(fieldsOffset + FIELD_BYTES * FIELD_COUNT, 8);
+        long arenaOffset = recordsOffset + (long) documents.size() * recordBytes;
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            SectionWriter arena = new SectionWriter(channel, arenaOffset);
+
+            SectionWriter records = new SectionWriter(channel, recordsOffset);
+            for (int ordinal = 0; ordinal < documents.size(); ordinal++) {
+                MusicDocument document = documents.get(ordinal);
+                arena.putString(records, document.getId());
+                arena.putString(records, document.getArtist());
+                arena.putString(records, document.getAlbum());
+                arena.putString(records, document.getText());
+                records.putInt(document.getYear() != null ? document.getYear() : 0);
+
+                int flags = 0;
+                if (document.getYear() != null) flags |= FLAG_HAS_YEAR;
+                if (dimension > 0 && embeddings.get(ordinal) != null) flags |= FLAG_HAS_EMBEDDING;
+                records.putInt(flags);
+
+                for (int field = 0; field < FIELD_COUNT; field++) {
+                    records.putInt(fieldLengths[ordinal * FIELD_COUNT + field]);
+                }
+
+                float[] scores = new float[categories.length];
+                Arrays.fill(scores, Float.NaN);
+                if (document.getCategoryScores() != null) {
+                    document.getCategoryScores().forEach((name, score) -> scores[categoryIndexes.get(name)] = score);
+                }
+                for (float score : scores) {
+                    records.putFloat(score);
+                }
+            }
+            records.flush();
+
+            SectionWriter categoryTable = new SectionWriter(channel, categoriesOffset);
+            for (String category : categories) {
+                arena.putString(categoryTable, category);
+            }
+            categoryTable.flush();
+
+            // Term strings go to the arena now; their table entries are written after it
+            List<List<byte[]>> sortedTerms = new ArrayList<>();
+            List<long[]> termOffsets = new ArrayList<>();
+            for (int field = 0; field < FIELD_COUNT; field++) {
+                List<byte[]> termBytes = new ArrayList<>();
+                for (String term : fieldPostings.get(field).keySet()) {
+                    termBytes.add(term.getBytes(StandardCharsets.UTF_8));
+                }
+                termBytes.sort(Arrays::compareUnsigned);
+
+                long[] offsets = new long[termBytes.size()];
+                for (int i = 0; i < termBytes.size(); i++) {
+                    offsets[i] = arena.putBytes(termBytes.get(i));
+                }
+                sortedTerms.add(termBytes);
+                termOffsets.add(offsets);
+            }
+            arena.flush();
+            long arenaLength = arena.written();
+
+            long idsOffset = align(arenaOffset + arenaLength, 8);
+            SectionWriter idIndex = new SectionWriter(channel, idsOffset);
+            byte[][] idBytes = new byte[documents.size()][];
+            for (int ordinal = 0; ordinal < documents.size(); ordinal++) {
+                idBytes[ordinal] = documents.get(ordinal).getId().getBytes(StandardCharsets.UTF_8);
+            }
+            Integer[] byId = new Integer[documents.size()];
+            Arrays.setAll(byId, ordinal -> ordinal);
+            Arrays.sort(byId, (a, b) -> Arrays.compareUnsigned(idBytes[a], idBytes[b]));
+            for (int ordinal : byId) {
+                idIndex.putInt(ordinal);
+            }
+            idIndex.flush();
+
+            long termCount = sortedTerms.stream().mapToLong(List::size).sum();
+            long termsOffset = idsOffset + 4L * documents.size();
+            long postingsOffset = termsOffset + termCount * TERM_BYTES;
+
+            SectionWriter termTable = new SectionWriter(channel, termsOffset);
+            SectionWriter postingTable = new SectionWriter(channel, postingsOffset);
+            SectionWriter fieldTable = new SectionWriter(channel, fieldsOffset);
+            long postingCount = 0;
+            long firstTerm = 0;
+            for (int field = 0; field < FIELD_COUNT; field++) {
+                List<byte[]> termBytes = sortedTerms.get(field);
+                for (int i = 0; i < termBytes.size(); i++) {
+                    PostingList list = fieldPostings.get(field).get(new String(termBytes.get(i), StandardCharsets.UTF_8));
+                    termTable.putLong(termOffsets.get(field)[i]).putInt(termBytes.get(i).length)
+                        .putInt(list.size).putLong(postingCount);
+                    for (int p = 0; p < list.size; p++) {
+                        postingTable.putInt(list.entries[2 * p]).putInt(list.entries[2 * p + 1]);
+                    }
+                    postingCount += list.size;
+                }
+                fieldTable.putLong(firstTerm).putLong(termBytes.size()).putLong(totalLengths[field]);
+                firstTerm += termBytes.size();
+            }
+            termTable.flush();
+            postingTable.flush();
+            fieldTable.flush();
+
+            long embeddingsOffset = align(postingsOffset + postingCount * POSTING_BYTES, 64);
+            if (dimension > 0) {
+                SectionWriter matrix = new SectionWriter(channel, embeddingsOffset);
+                for (int ordinal = 0; ordinal < documents.size(); ordinal++) {
+                    float[] embedding = embeddings.get(ordinal);
+                    for (int d = 0; d < dimension; d++) {
+                        float value = embedding != null ? embedding[d] : 0f;
+                        if (format == EmbeddingFormat.BFLOAT16) {
+                            matrix.putShort(toBfloat16(value));
+                        } else {
+                            matrix.putFloat(value);
+                        }
+                    }
+                }
+                matrix.flush();
+            }
+
+            SectionWriter header = new SectionWriter(channel, 0);
+            header.putInt(MAGIC)
+                .putInt(VERSION)
+                .putInt(documents.size())
+                .putInt(categories.length)
+                .putInt(dimension)
+                .putInt(format.ordinal())
+                .putLong(categoriesOffset)
+                .putLong(fieldsOffset)
+                .putLong(recordsOffset)
+                .putLong(arenaOffset)
+                .putLong(arenaLength)
+                .putLong(idsOffset)
+                .putLong(termsOffset)
+                .putLong(postingsOffset)
+                .putLong(postingCount)
+                .putLong(embeddingsOffset);
+            header.flush();
+
+            channel.force(true);
+        }
+
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public int size() {
+        return documentCount;
+    }
+
+    public int dimension() {
+        return dimension;
+    }
+
+    /**
+     * Create a flyweight cursor, positioned with {@link Cursor#moveTo(int)}
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Materialize the document at an ordinal
+     */
+    public MusicDocument document(int ordinal) {
+        return cursor().moveTo(ordinal).toDocument();
+    }
+
+    /**
+     * Find the ordinal of a document by binary search over the id index
+     *
+     * @param id Full document id
+     * @return Ordinal, or -1 if the snapshot has no such document
+     */
+    public int ordinal(String id) {
+        byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = documentCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int ordinal = ids.getInt(4L * middle);
+            int comparison = compare(records, (long) ordinal * recordBytes, key);
+            if (comparison == 0) {
+                return ordinal;
+            }
+            if (comparison < 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Total length in tokens of an indexed field over all documents
+     *
+     * @param field Field index, see {@link #FIELD_COUNT}
+     */
+    public long totalLength(int field) {
+        return totalLengths[field];
+    }
+
+    /**
+     * Find the postings of a term by binary search over the field's term table
+     *
+     * @param field Field index, see {@link #FIELD_COUNT}
+     * @param term Term as produced by the tokenizer the snapshot was written with
+     * @return Postings read in place, null if no document contains the term
+     */
+    public Postings postings(int field, String term) {
+        byte[] key = term.getBytes(StandardCharsets.UTF_8);
+        long low = firstTerms[field];
+        long high = low + termCounts[field] - 1;
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+            long entry = middle * TERM_BYTES;
+            int comparison = compare(terms, entry, key);
+            if (comparison == 0) {
+                return new Postings(terms.getLong(entry + 16), terms.getInt(entry + 12));
+            }
+            if (comparison < 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return null;
+    }
+
+    public boolean hasEmbedding(int ordinal) {
+        return (records.getInt((long) ordinal * recordBytes + 4 * STRING_REF_BYTES + 4) & FLAG_HAS_EMBEDDING) != 0;
+    }
+
+    /**
+     * Copy the embedding at an ordinal onto the heap
+     */
+    public float[] embedding(int ordinal) {
+        long row = (long) ordinal * dimension * format.bytes;
+        ByteBuffer chunk = embeddings.chunk(row);
+        int base = embeddings.index(row);
+
+        float[] embedding = new float[dimension];
+        for (int d = 0; d < dimension; d++) {
+            embedding[d] = value(chunk, base, d);
+        }
+        return embedding;
+    }
+
+    /**
+     * Dot product of the embedding at an ordinal with a vector, read in place
+     */
+    public double dot(int ordinal, float[] vector) {
+        long row = (long) ordinal * dimension * format.bytes;
+        ByteBuffer chunk = embeddings.chunk(row);
+        int base = embeddings.index(row);
+
+        double dot = 0;
+        for (int d = 0; d < dimension; d++) {
+            dot += value(chunk, base, d) * vector[d];
+        }
+        return dot;
+    }
+
+    private float value(ByteBuffer chunk, int base, int d) {
+        return format == EmbeddingFormat.BFLOAT16 ?
+            Float.intBitsToFloat(chunk.getShort(base + 2 * d) << 16) :
+            chunk.getFloat(base + 4 * d);
+    }
+
+    /**
+     * Read the string referenced at a position of a region
+     */
+    private String string(Region region, long reference) {
+        int length = region.getInt(reference + 8);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        arena.get(region.getLong(reference), bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compare the string referenced at a position of a region with a key, by unsigned UTF-8 bytes
+     */
+    private int compare(Region region, long reference, byte[] key) {
+        long offset = region.getLong(reference);
+        int length = region.getInt(reference + 8);
+        ByteBuffer chunk = arena.chunk(offset);
+        int base = arena.index(offset);
+
+        for (int i = 0; i < Math.min(length, key.length); i++) {
+            int comparison = Byte.compareUnsigned(chunk.get(base + i), key[i]);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return Integer.compare(length, key.length);
+    }
+
+    /**
+     * Flyweight view of one record; reads fields straight from the mapped file
+     */
+    public final class Cursor {
+
+        private long base;
+
+        public Cursor moveTo(int ordinal) {
+            this.base = (long) ordinal * recordBytes;
+            return this;
+        }
+
+        public String id() {
+            return string(records, base);
+        }
+
+        public String artist() {
+            return string(records, base + STRING_REF_BYTES);
+        }
+
+        public String album() {
+            return string(records, base + 2 * STRING_REF_BYTES);
+        }
+
+        public String text() {
+            return string(records, base + 3 * STRING_REF_BYTES);
+        }
+
+        public Integer year() {
+            long year = base + 4 * STRING_REF_BYTES;
+            return (records.getInt(year + 4) & FLAG_HAS_YEAR) != 0 ? records.getInt(year) : null;
+        }
+
+        /**
+         * Length in tokens of an indexed field of this document
+         *
+         * @param field Field index, see {@link #FIELD_COUNT}
+         */
+        public int fieldLength(int field) {
+            return records.getInt(base + 4 * STRING_REF_BYTES + 8 + 4 * field);
+        }
+
+        public MusicDocument toDocument() {
+            Map<String, Float> categoryScores = new HashMap<>();
+            for (int i = 0; i < categories.length; i++) {
+                float score = records.getFloat(base + RECORD_FIXED_BYTES + 4 * i);
+                if (!Float.isNaN(score)) {
+                    categoryScores.put(categories[i], score);
+                }
+            }
+
+            return MusicDocument.builder()
+                .id(id())
+                .artist(artist())
+                .album(album())
+                .year(year())
+                .text(text())
+                .categoryScores(categoryScores.isEmpty() ? null : categoryScores)
+                .build();
+        }
+    }
+
+    /**
+     * Postings of one term, read in place
+     */
+    public final class Postings {
+
+        private final long first;
+        private final int size;
+
+        private Postings(long first, int size) {
+            this.first = first;
+            this.size = size;
+        }
+
+        /**
+         * Number of documents containing the term
+         */
+        public int size() {
+            return size;
+        }
+
+        public int ordinal(int i) {
+            return postings.getInt((first + i) * POSTING_BYTES);
+        }
+
+        public int frequency(int i) {
+            return postings.getInt((first + i) * POSTING_BYTES + 4);
+        }
+    }
+
+    private static long align(long offset, int alignment) {
+        return (offset + alignment - 1) / alignment * alignment;
+    }
+
+    /**
+     * Round a float to bfloat16 (round to nearest even)
+     */
+    private static short toBfloat16(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        bits += 0x7FFF + ((bits >>> 16) & 1);
+        return (short) (bits >>> 16);
+    }
+
+    /**
+     * A file section mapped in chunks of whole entries
+     * Values are read by 64-bit position; an entry never crosses a chunk
+     */
+    private static final class Region {
+
+        private final ByteBuffer[] chunks;
+        private final long chunkBytes;
+
+        Region(FileChannel channel, long offset, long length, int entryBytes) throws IOException {
+            this.chunkBytes = entryBytes == 0 ? MAX_CHUNK_BYTES : MAX_CHUNK_BYTES / entryBytes * entryBytes;
+            this.chunks = new ByteBuffer[(int) ((length + chunkBytes - 1) / chunkBytes)];
+            for (int chunk = 0; chunk < chunks.length; chunk++) {
+                long start = chunk * chunkBytes;
+                chunks[chunk] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start,
+                    Math.min(chunkBytes, length - start)).order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+
+        ByteBuffer chunk(long position) {
+            return chunks[(int) (position / chunkBytes)];
+        }
+
+        int index(long position) {
+            return (int) (position % chunkBytes);
+        }
+
+        int getInt(long position) {
+            return chunk(position).getInt(index(position));
+        }
+
+        long getLong(long position) {
+            return chunk(position).getLong(index(position));
+        }
+
+        float getFloat(long position) {
+            return chunk(position).getFloat(index(position));
+        }
+
+        void get(long position, byte[] bytes) {
+            chunk(position).get(index(position), bytes);
+        }
+    }
+
+    /**
+     * Buffered sequential writer of one section, starting at a file position
+     * As the arena writer it also appends strings, moving them to the next chunk rather than
+     * letting them cross one
+     */
+    private static final class SectionWriter {
+
+        private final FileChannel channel;
+        private final long start;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        private long flushed;
+
+        SectionWriter(FileChannel channel, long start) {
+            this.channel = channel;
+            this.start = start;
+        }
+
+        SectionWriter putInt(int value) throws IOException {
+            ensure(4).putInt(value);
+            return this;
+        }
+
+        SectionWriter putLong(long value) throws IOException {
+            ensure(8).putLong(value);
+            return this;
+        }
+
+        SectionWriter putFloat(float value) throws IOException {
+            ensure(4).putFloat(value);
+            return this;
+        }
+
+        SectionWriter putShort(short value) throws IOException {
+            ensure(2).putShort(value);
+            return this;
+        }
+
+        /**
+         * Append a string and write its (offset, length) reference to another section
+         */
+        void putString(SectionWriter references, String value) throws IOException {
+            if (value == null) {
+                references.putLong(0).putInt(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            references.putLong(putBytes(bytes)).putInt(bytes.length);
+        }
+
+        /**
+         * Append bytes that must not cross a chunk
+         *
+         * @return Offset of the bytes within the section
+         */
+        long putBytes(byte[] bytes) throws IOException {
+            if (bytes.length > MAX_CHUNK_BYTES) {
+                throw new IOException("String of " + bytes.length + " bytes exceeds the snapshot chunk size");
+            }
+            long offset = written();
+            long chunkEnd = (offset / MAX_CHUNK_BYTES + 1) * MAX_CHUNK_BYTES;
+            if (offset + bytes.length > chunkEnd) {
+                flush();
+                flushed = chunkEnd;
+                offset = chunkEnd;
+            }
+
+            if (bytes.length > buffer.capacity()) {
+                flush();
+                ByteBuffer direct = ByteBuffer.wrap(bytes);
+                while (direct.hasRemaining()) {
+                    flushed += channel.write(direct, start + flushed);
+                }
+            } else {
+                ensure(bytes.length).put(bytes);
+            }
+            return offset;
+        }
+
+        /**
+         * Bytes written to the section so far, including buffered ones
+         */
+        long written() {
+            return flushed + buffer.position();
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                flushed += channel.write(buffer, start + flushed);
+            }
+            buffer.clear();
+        }
+
+        private ByteBuffer ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+            return buffer;
+        }
+    }
+
+    /**
+     * Growable (ordinal, frequency) pairs of one term, used while writing
+     */
+    private static final class PostingList {
+
+        private int[] entries = new int[4];
+        private int size;
+
+        void add(int ordinal, int frequency) {
+            if (2 * size == entries.length) {
+                entries = Arrays.copyOf(entries, 2 * entries.length);
+            }
+            entries[2 * size] = ordinal;
+            entries[2 * size + 1] = frequency;
+            size++;
+        }
+    }
+}
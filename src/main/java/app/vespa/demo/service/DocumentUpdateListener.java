@@ -0,0 +1,18 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.model.DocumentUpdate;
+
+/**
+ * Notified of document updates once Vespa has applied them
+ * Used to keep in-memory copies of documents in step with the index
+ */
+public interface DocumentUpdateListener {
+
+    /**
+     * Called once per successfully applied update, in order per document
+     * Called from feed client threads, implementations must not block for long
+     *
+     * @param update Applied update, with the full document id
+     */
+    void documentUpdated(DocumentUpdate update);
+}
@@ -0,0 +1,319 @@
+package app.vespa.demo.service;
+
+import ai.vespa.feed.client.DocumentId;
+import ai.vespa.feed.client.FeedClient;
+import ai.vespa.feed.client.FeedClientBuilder;
+import ai.vespa.feed.client.OperationParameters;
+import app.vespa.demo.config.VespaConfig;
+import app.vespa.demo.model.DocumentUpdate;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers partial updates of document attributes and sends them to Vespa in batches
+ *
+ * Updates of the same document are merged while buffered, last write wins per field
+ * (and per category for cell updates), so a document re-scored many times between flushes
+ * costs one Vespa operation. Only attribute fields are updated, which Vespa applies in place
+ * without running the indexing pipeline, and so without re-embedding the text.
+ *
+ * A single thread flushes and waits for each batch to complete before taking the next,
+ * so at most one operation per document is in flight and updates reach Vespa in order.
+ * A failed update goes back into the buffer beneath any newer update of the same document
+ * and is retried with the next batch, until it has failed max-attempts times.
+ * Applied updates are passed on to every {@link DocumentUpdateListener}.
+ */
+@Slf4j
+@Service
+public class DocumentUpdateService {
+
+    private final VespaConfig vespaConfig;
+    private final VespaConfig.UpdateConfig updateConfig;
+    private final ObjectMapper objectMapper;
+    private final List<DocumentUpdateListener> listeners;
+
+    private final Counter coalesced;
+    private final Counter sent;
+    private final Counter failed;
+    private final MeterRegistry meterRegistry;
+
+    private final Object lock = new Object();
+    private Map<String, DocumentUpdate> pending = new LinkedHashMap<>();
+    private final Map<String, Integer> failedAttempts = new HashMap<>();
+
+    private FeedClient feedClient;
+    private ScheduledExecutorService flusher;
+
+    public DocumentUpdateService(VespaConfig vespaConfig, ObjectMapper objectMapper,
+                                 List<DocumentUpdateListener> listeners, MeterRegistry meterRegistry) {
+        this.vespaConfig = vespaConfig;
+        this.updateConfig = vespaConfig.getUpdates();
+        this.objectMapper = objectMapper;
+        this.listeners = listeners;
+
+        this.meterRegistry = meterRegistry;
+        this.coalesced = meterRegistry.counter("documents.update.coalesced");
+        this.sent = meterRegistry.counter("documents.update.sent");
+        this.failed = meterRegistry.counter("documents.update.failed");
+    }
+
+    @PostConstruct
+    void start() {
+        Gauge.builder("documents.update.pending", this, DocumentUpdateService::pendingDocuments)
+            .register(meterRegistry);
+
+        List<String> urls = vespaConfig.getEndpoints() != null && !vespaConfig.getEndpoints().isEmpty() ?
+            vespaConfig.getEndpoints() : List.of(vespaConfig.getEndpoint());
+
+        feedClient = FeedClientBuilder.create(urls.stream().map(URI::create).toList())
+            .setConnectionsPerEndpoint(updateConfig.getConnections())
+            .setMaxStreamPerConnection(updateConfig.getMaxStreamsPerConnection())
+            .build();
+
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "document-update-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, updateConfig.getFlushIntervalMs(),
+            updateConfig.getFlushIntervalMs(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send what is still buffered, then close the feed client
+     */
+    @PreDestroy
+    void stop() throws InterruptedException {
+        flusher.shutdown();
+        flusher.awaitTermination(updateConfig.getTimeoutMs(), TimeUnit.MILLISECONDS);
+        flush();
+        feedClient.close();
+    }
+
+    /**
+     * Add updates to the buffer
+     *
+     * @param updates Updates in the order they were made
+     * @return Number of documents with pending updates after adding these
+     * @throws IllegalArgumentException if an update has no id or changes nothing
+     * @throws OverloadedException if the buffer is full
+     */
+    public int submit(List<DocumentUpdate> updates) {
+        List<DocumentUpdate> normalized = new ArrayList<>(updates.size());
+        for (DocumentUpdate update : updates) {
+            normalized.add(validate(update));
+        }
+
+        int pendingDocuments;
+        synchronized (lock) {
+            long added = normalized.stream()
+                .map(DocumentUpdate::getId)
+                .filter(id -> !pending.containsKey(id))
+                .distinct()
+                .count();
+            if (pending.size() + added > updateConfig.getMaxPendingDocuments()) {
+                throw new OverloadedException("updates", 1);
+            }
+            for (DocumentUpdate update : normalized) {
+                DocumentUpdate previous = pending.get(update.getId());
+                if (previous != null) {
+                    coalesced.increment();
+                }
+                pending.put(update.getId(), previous != null ? merge(previous, update) : update);
+            }
+            pendingDocuments = pending.size();
+        }
+
+        if (pendingDocuments >= updateConfig.getMaxBatchSize()) {
+            flusher.execute(this::flushQuietly);
+        }
+        return pendingDocuments;
+    }
+
+    /**
+     * Number of documents with updates waiting to be sent
+     */
+    public int pendingDocuments() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Check an update and expand its id to a full document id
+     */
+    private DocumentUpdate validate(DocumentUpdate update) {
+        if (update.getId() == null || update.getId().isBlank()) {
+            throw new IllegalArgumentException("Update without document id");
+        }
+        if (update.getYear() == null && update.getCategoryScores() == null && update.getCategoryScoreUpdates() == null) {
+            throw new IllegalArgumentException("Update of '" + update.getId() + "' changes nothing");
+        }
+        if (update.getCategoryScores() != null && update.getCategoryScoreUpdates() != null) {
+            throw new IllegalArgumentException(
+                "Update of '" + update.getId() + "' sets both categoryScores and categoryScoreUpdates");
+        }
+
+        String id = update.getId().startsWith("id:") ?
+            update.getId() : "id:" + vespaConfig.getSchema() + ":" + vespaConfig.getSchema() + "::" + update.getId();
+        return update.toBuilder().id(id).build();
+    }
+
+    /**
+     * Fold a newer update into a buffered one
+     * Fields set in the newer update win; cell updates land in a buffered full assignment
+     * if there is one, since that assignment is what Vespa will see
+     */
+    static DocumentUpdate merge(DocumentUpdate older, DocumentUpdate newer) {
+        DocumentUpdate.DocumentUpdateBuilder merged = older.toBuilder();
+
+        if (newer.getYear() != null) {
+            merged.year(newer.getYear());
+        }
+
+        if (newer.getCategoryScores() != null) {
+            merged.categoryScores(new HashMap<>(newer.getCategoryScores()))
+                .categoryScoreUpdates(null);
+        } else if (newer.getCategoryScoreUpdates() != null) {
+            if (older.getCategoryScores() != null) {
+                Map<String, Float> scores = new HashMap<>(older.getCategoryScores());
+                scores.putAll(newer.getCategoryScoreUpdates());
+                merged.categoryScores(scores);
+            } else {
+                Map<String, Float> cells = older.getCategoryScoreUpdates() != null ?
+                    new HashMap<>(older.getCategoryScoreUpdates()) : new HashMap<>();
+                cells.putAll(newer.getCategoryScoreUpdates());
+                merged.categoryScoreUpdates(cells);
+            }
+        }
+
+        return merged.build();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.error("Error flushing document updates", e);
+        }
+    }
+
+    /**
+     * Send all buffered updates and wait for them to complete
+     * Only ever runs on the flusher thread, or after it has stopped
+     */
+    void flush() {
+        Map<String, DocumentUpdate> batch = drain();
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        log.debug("Sending {} document updates", batch.size());
+        OperationParameters parameters = OperationParameters.empty()
+            .timeout(Duration.ofMillis(updateConfig.getTimeoutMs()));
+
+        List<CompletableFuture<?>> operations = new ArrayList<>(batch.size());
+        for (DocumentUpdate update : batch.values()) {
+            operations.add(feedClient.update(DocumentId.of(update.getId()), toJson(update), parameters)
+                .whenComplete((result, error) -> completed(update, error)));
+        }
+
+        CompletableFuture.allOf(operations.toArray(CompletableFuture[]::new))
+            .exceptionally(error -> null)
+            .join();
+    }
+
+    /**
+     * Take all buffered updates, leaving the buffer empty
+     */
+    Map<String, DocumentUpdate> drain() {
+        synchronized (lock) {
+            Map<String, DocumentUpdate> batch = pending;
+            pending = new LinkedHashMap<>();
+            return batch;
+        }
+    }
+
+    /**
+     * Account for a finished update; a failed one is buffered again unless it has failed too often
+     *
+     * @param update The update that was sent
+     * @param error Why it failed, null if it was applied
+     */
+    void completed(DocumentUpdate update, Throwable error) {
+        if (error == null) {
+            synchronized (lock) {
+                failedAttempts.remove(update.getId());
+            }
+            sent.increment();
+            notifyListeners(update);
+            return;
+        }
+
+        failed.increment();
+        synchronized (lock) {
+            int attempts = failedAttempts.merge(update.getId(), 1, Integer::sum);
+            if (attempts >= updateConfig.getMaxAttempts()) {
+                failedAttempts.remove(update.getId());
+                log.error("Update of {} failed {} times, dropping it: {}", update.getId(), attempts, error.getMessage());
+                return;
+            }
+            // Anything buffered since was submitted later, so it wins over the failed update
+            DocumentUpdate newer = pending.remove(update.getId());
+            pending.put(update.getId(), newer != null ? merge(update, newer) : update);
+        }
+        log.warn("Update of {} failed, retrying with the next batch: {}", update.getId(), error.getMessage());
+    }
+
+    private void notifyListeners(DocumentUpdate update) {
+        for (DocumentUpdateListener listener : listeners) {
+            try {
+                listener.documentUpdated(update);
+            } catch (RuntimeException e) {
+                log.error("Document update listener failed for {}", update.getId(), e);
+            }
+        }
+    }
+
+    /**
+     * Render an update in the document JSON format
+     * Full score maps are assigned, single scores added as cells (which replaces existing cells)
+     */
+    String toJson(DocumentUpdate update) {
+        ObjectNode root = objectMapper.createObjectNode();
+        ObjectNode fields = root.putObject("fields");
+
+        if (update.getYear() != null) {
+            fields.putObject("year").put("assign", update.getYear());
+        }
+
+        if (update.getCategoryScores() != null) {
+            ObjectNode cells = fields.putObject("category_scores").putObject("assign").putObject("cells");
+            update.getCategoryScores().forEach(cells::put);
+        } else if (update.getCategoryScoreUpdates() != null) {
+            ObjectNode cells = fields.putObject("category_scores").putObject("add").putObject("cells");
+            update.getCategoryScoreUpdates().forEach(cells::put);
+        }
+
+        return root.toString();
+    }
+}
@@ -0,0 +1,530 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.VespaConfig;
+import app.vespa.demo.model.DocumentUpdate;
+import app.vespa.demo.model.MusicDocument;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
+
+/**
+ * In-process search index used while Vespa is unreachable
+ *
+ * Built from the same JSONL feed format as dataset/documents.jsonl. Holds a BM25 inverted
+ * index over artist, album and text, and a flat (exact) vector index over whatever
+ * embeddings have been cached for the documents. Embeddings are cached from the
+ * doc_embedding summary feature of successful semantic and hybrid Vespa queries, so the
+ * vector index fills as such queries are served. Without a local embedder, queries are
+ * ranked by vector only if they carry a precomputed embedding, or Vespa has embedded the
+ * same query text before (the query(query_embedding) summary feature, cached by text);
+ * other semantic queries are answered with BM25. Results are degraded compared to Vespa,
+ * but not empty.
+ *
+ * Documents, their inverted index and embeddings are served from a memory-mapped
+ * {@link DocumentSnapshot}, written once from the corpus and mapped on every restart.
+ * Nothing per document stays on the heap: postings, field lengths and documents are read
+ * in place and documents are only materialized for returned hits. Attribute updates
+ * applied to Vespa are mirrored on the heap, and written back with cached embeddings at
+ * shutdown.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class FallbackSearchIndex implements DocumentUpdateListener {
+
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private static final Pattern TOKEN_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    /**
+     * Field weights, in the order artist, album, text
+     * The hybrid weights mirror the first-phase expression of the 'hybrid' rank profile
+     */
+    private static final double[] TEXT_WEIGHTS = { 1.0, 1.0, 1.0 };
+    private static final double[] HYBRID_WEIGHTS = { 0.2, 0.3, 0.5 };
+    private static final double HYBRID_CLOSENESS_WEIGHT = 10.0;
+
+    private final VespaConfig vespaConfig;
+    private final ObjectMapper objectMapper;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Mapped snapshot holding the documents, their text index and stored embeddings
+     * Null until loaded, in which case the index is empty
+     */
+    private DocumentSnapshot snapshot;
+
+    /**
+     * Heap copies of documents changed by attribute updates, by ordinal
+     */
+    private final Map<Integer, MusicDocument> updatedDocuments = new HashMap<>();
+
+    /**
+     * Unit-length embeddings cached since the snapshot was written, by ordinal
+     * Only held for documents without an embedding in the snapshot
+     */
+    private final Map<Integer, float[]> cachedEmbeddings = new HashMap<>();
+
+    /**
+     * Unit-length query embeddings computed by Vespa, by query text, least recently used first
+     */
+    private final Map<String, float[]> queryEmbeddings = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, float[]> eldest) {
+            return size() > vespaConfig.getFallback().getQueryEmbeddingCacheSize();
+        }
+    };
+
+    /**
+     * Map the snapshot, or build it from the corpus if the snapshot is missing or older, at startup
+     * Without a configured snapshot path the index is built into a temporary file
+     */
+    @PostConstruct
+    void load() {
+        if (!isEnabled()) {
+            return;
+        }
+
+        Path corpus = Path.of(vespaConfig.getFallback().getCorpusPath());
+        Path snapshotPath = snapshotPath();
+        if (snapshotPath != null && isCurrent(snapshotPath, corpus)) {
+            long start = System.currentTimeMillis();
+            try {
+                DocumentSnapshot opened = DocumentSnapshot.open(snapshotPath);
+                setSnapshot(opened);
+                log.info("Mapped {} documents from fallback snapshot {} in {}ms",
+                    opened.size(), snapshotPath, System.currentTimeMillis() - start);
+                return;
+            } catch (IOException e) {
+                log.warn("Error mapping fallback snapshot {}, rebuilding from corpus", snapshotPath, e);
+            }
+        }
+
+        if (!Files.isReadable(corpus)) {
+            log.warn("Fallback corpus {} not found, fallback index starts empty", corpus);
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        // Later puts of the same id replace earlier ones
+        Map<String, MusicDocument> corpusDocuments = new LinkedHashMap<>();
+        try {
+            FeedReader.read(corpus, objectMapper, document -> corpusDocuments.put(document.getId(), document));
+        } catch (IOException e) {
+            log.error("Error loading fallback corpus {}", corpus, e);
+            return;
+        }
+
+        try {
+            Path path = snapshotPath != null ? snapshotPath : Files.createTempFile("fallback", ".snapshot");
+            writeSnapshot(path, new ArrayList<>(corpusDocuments.values()),
+                Collections.nCopies(corpusDocuments.size(), null));
+            setSnapshot(DocumentSnapshot.open(path));
+            if (snapshotPath == null) {
+                // The mapping outlives the file
+                Files.delete(path);
+            }
+            log.info("Indexed {} documents from {} into fallback snapshot {} in {}ms",
+                corpusDocuments.size(), corpus, path, System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            log.error("Error building fallback snapshot from {}", corpus, e);
+        }
+    }
+
+    /**
+     * Write the documents updated and embeddings cached since the snapshot was mapped,
+     * together with the unchanged documents, so they survive a restart
+     * Runs at shutdown; does nothing if nothing changed
+     */
+    @PreDestroy
+    public void saveSnapshot() {
+        Path path = snapshotPath();
+        if (!isEnabled() || path == null) {
+            return;
+        }
+
+        List<MusicDocument> documents = new ArrayList<>();
+        List<float[]> embeddings = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            if (snapshot == null || (updatedDocuments.isEmpty() && cachedEmbeddings.isEmpty())) {
+                return;
+            }
+            for (int ordinal = 0; ordinal < snapshot.size(); ordinal++) {
+                documents.add(documentAt(ordinal));
+                embeddings.add(embeddingAt(ordinal));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        long start = System.currentTimeMillis();
+        try {
+            writeSnapshot(path, documents, embeddings);
+            log.info("Wrote {} documents to fallback snapshot {} in {}ms",
+                documents.size(), path, System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            log.error("Error writing fallback snapshot {}", path, e);
+        }
+    }
+
+    private void writeSnapshot(Path path, List<MusicDocument> documents, List<float[]> embeddings)
+        throws IOException {
+        int dimension = embeddings.stream()
+            .filter(Objects::nonNull)
+            .mapToInt(embedding -> embedding.length)
+            .findFirst()
+            .orElse(0);
+        List<float[]> stored = embeddings.stream()
+            .map(embedding -> embedding != null && embedding.length == dimension ? embedding : null)
+            .toList();
+
+        DocumentSnapshot.write(path, documents, stored, dimension,
+            DocumentSnapshot.EmbeddingFormat.valueOf(
+                vespaConfig.getFallback().getSnapshotEmbeddingFormat().toUpperCase(Locale.ROOT)),
+            FallbackSearchIndex::tokenize);
+    }
+
+    private void setSnapshot(DocumentSnapshot opened) {
+        lock.writeLock().lock();
+        try {
+            snapshot = opened;
+            updatedDocuments.clear();
+            cachedEmbeddings.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Whether the fallback index is enabled
+     */
+    public boolean isEnabled() {
+        return vespaConfig.getFallback() != null && Boolean.TRUE.equals(vespaConfig.getFallback().getEnabled());
+    }
+
+    /**
+     * Number of indexed documents
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return snapshot != null ? snapshot.size() : 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Pass the artist and album of every indexed document, read in place
+     * Attribute updates do not change them, so updated documents need no special case
+     *
+     * @param consumer Receives artist and album, either may be null
+     */
+    public void forEachName(BiConsumer<String, String> consumer) {
+        lock.readLock().lock();
+        try {
+            if (snapshot == null) {
+                return;
+            }
+            DocumentSnapshot.Cursor cursor = snapshot.cursor();
+            for (int ordinal = 0; ordinal < snapshot.size(); ordinal++) {
+                cursor.moveTo(ordinal);
+                consumer.accept(cursor.artist(), cursor.album());
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Look up a document by id
+     *
+     * @param id Full document id
+     * @return A copy of the document, empty if it is not indexed
+     */
+    public Optional<MusicDocument> get(String id) {
+        lock.readLock().lock();
+        try {
+            int ordinal = ordinal(id);
+            return ordinal >= 0 ? Optional.of(documentAt(ordinal).toBuilder().build()) : Optional.empty();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Cache the embeddings that Vespa returned with its hits, for vector ranking
+     * Documents keep the first embedding cached for them, since their text does not change
+     *
+     * @param hits Hits of a successful query; those without an embedding are skipped
+     */
+    public void cacheEmbeddings(List<MusicDocument> hits) {
+        if (!isEnabled() || hits.stream().noneMatch(hit -> hit.getEmbedding() != null)) {
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            for (MusicDocument hit : hits) {
+                int ordinal = hit.getEmbedding() != null ? ordinal(hit.getId()) : -1;
+                if (ordinal >= 0 && embeddingAt(ordinal) == null) {
+                    cachedEmbeddings.put(ordinal, normalize(hit.getEmbedding()));
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Cache the embedding Vespa computed for a query text, to rank fallback searches of the
+     * same text by vector
+     *
+     * @param text Query text
+     * @param embedding Query embedding, skipped if null
+     */
+    public void cacheQueryEmbedding(String text, float[] embedding) {
+        if (!isEnabled() || text == null || embedding == null) {
+            return;
+        }
+        synchronized (queryEmbeddings) {
+            queryEmbeddings.put(text, normalize(embedding));
+        }
+    }
+
+    /**
+     * Apply an attribute update that Vespa has applied
+     * The updated document moves to the heap; its indexed text is unchanged
+     *
+     * @param update Applied update
+     */
+    @Override
+    public void documentUpdated(DocumentUpdate update) {
+        lock.writeLock().lock();
+        try {
+            int ordinal = ordinal(update.getId());
+            if (ordinal < 0) {
+                return;
+            }
+
+            MusicDocument document = documentAt(ordinal).toBuilder().build();
+
+            if (update.getYear() != null) {
+                document.setYear(update.getYear());
+            }
+            if (update.getCategoryScores() != null) {
+                document.setCategoryScores(new HashMap<>(update.getCategoryScores()));
+            } else if (update.getCategoryScoreUpdates() != null) {
+                Map<String, Float> scores = document.getCategoryScores() != null ?
+                    new HashMap<>(document.getCategoryScores()) : new HashMap<>();
+                scores.putAll(update.getCategoryScoreUpdates());
+                document.setCategoryScores(scores);
+            }
+
+            updatedDocuments.put(ordinal, document);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Search the local index, approximating the Vespa rank profile of the search mode
+     *
+     * @param query Query to execute
+     * @return Matching documents ordered by relevance
+     */
+    public List<MusicDocument> search(VespaQuery query) {
+        String mode = query.getSearchMode().toLowerCase(Locale.ROOT);
+        float[] queryEmbedding = "text".equals(mode) ? null : query.getQueryEmbedding() != null ?
+            normalize(query.getQueryEmbedding()) : cachedQueryEmbedding(query.getQuery());
+        double[] weights = "hybrid".equals(mode) ? HYBRID_WEIGHTS : TEXT_WEIGHTS;
+        boolean textMatching = !"semantic".equals(mode) || queryEmbedding == null;
+
+        lock.readLock().lock();
+        try {
+            if (snapshot == null) {
+                return List.of();
+            }
+            Map<Integer, Double> scores = new HashMap<>();
+
+            if (textMatching) {
+                List<String> terms = new ArrayList<>(new LinkedHashSet<>(tokenize(query.getQuery())));
+                for (int field = 0; field < DocumentSnapshot.FIELD_COUNT; field++) {
+                    scoreField(field, terms, weights[field], scores);
+                }
+            }
+
+            if (queryEmbedding != null) {
+                double weight = "semantic".equals(mode) ? 1.0 : HYBRID_CLOSENESS_WEIGHT;
+                // Cached embeddings are only held for documents without one in the snapshot
+                cachedEmbeddings.forEach((ordinal, embedding) -> {
+                    if (embedding.length == queryEmbedding.length) {
+                        scores.merge(ordinal, weight * closeness(dot(queryEmbedding, embedding)), Double::sum);
+                    }
+                });
+                if (snapshot.dimension() == queryEmbedding.length) {
+                    for (int ordinal = 0; ordinal < snapshot.size(); ordinal++) {
+                        if (snapshot.hasEmbedding(ordinal)) {
+                            scores.merge(ordinal, weight * closeness(snapshot.dot(ordinal, queryEmbedding)),
+                                Double::sum);
+                        }
+                    }
+                }
+            }
+
+            return topHits(scores, query.getHits());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Add the BM25 scores of one field, reading postings and field lengths from the snapshot
+     */
+    private void scoreField(int field, List<String> terms, double weight, Map<Integer, Double> scores) {
+        int documentCount = snapshot.size();
+        if (documentCount == 0) {
+            return;
+        }
+        double averageLength = Math.max(1.0, (double) snapshot.totalLength(field) / documentCount);
+        DocumentSnapshot.Cursor cursor = snapshot.cursor();
+
+        for (String term : terms) {
+            DocumentSnapshot.Postings postings = snapshot.postings(field, term);
+            if (postings == null) {
+                continue;
+            }
+            int documentFrequency = postings.size();
+            double idf = Math.log(1 + (documentCount - documentFrequency + 0.5) / (documentFrequency + 0.5));
+
+            for (int i = 0; i < documentFrequency; i++) {
+                int ordinal = postings.ordinal(i);
+                int tf = postings.frequency(i);
+                double norm = K1 * (1 - B + B * cursor.moveTo(ordinal).fieldLength(field) / averageLength);
+                scores.merge(ordinal, weight * idf * tf * (K1 + 1) / (tf + norm), Double::sum);
+            }
+        }
+    }
+
+    private List<MusicDocument> topHits(Map<Integer, Double> scores, int hits) {
+        PriorityQueue<Map.Entry<Integer, Double>> top = new PriorityQueue<>(Map.Entry.comparingByValue());
+        for (Map.Entry<Integer, Double> entry : scores.entrySet()) {
+            top.add(entry);
+            if (top.size() > hits) {
+                top.poll();
+            }
+        }
+
+        List<MusicDocument> results = new ArrayList<>(top.size());
+        while (!top.isEmpty()) {
+            Map.Entry<Integer, Double> entry = top.poll();
+            results.add(documentAt(entry.getKey()).toBuilder().relevance(entry.getValue()).build());
+        }
+        Collections.reverse(results);
+        return results;
+    }
+
+    private float[] cachedQueryEmbedding(String text) {
+        if (text == null) {
+            return null;
+        }
+        synchronized (queryEmbeddings) {
+            return queryEmbeddings.get(text);
+        }
+    }
+
+    private int ordinal(String id) {
+        return snapshot != null ? snapshot.ordinal(id) : -1;
+    }
+
+    private MusicDocument documentAt(int ordinal) {
+        MusicDocument document = updatedDocuments.get(ordinal);
+        return document != null ? document : snapshot.document(ordinal);
+    }
+
+    private float[] embeddingAt(int ordinal) {
+        float[] embedding = cachedEmbeddings.get(ordinal);
+        if (embedding == null && snapshot.hasEmbedding(ordinal)) {
+            embedding = snapshot.embedding(ordinal);
+        }
+        return embedding;
+    }
+
+    private Path snapshotPath() {
+        String path = vespaConfig.getFallback().getSnapshotPath();
+        return path == null || path.isBlank() ? null : Path.of(path);
+    }
+
+    /**
+     * Whether the snapshot exists and is at least as new as the corpus
+     */
+    private static boolean isCurrent(Path snapshotPath, Path corpus) {
+        try {
+            return Files.isReadable(snapshotPath) && (!Files.isReadable(corpus) ||
+                Files.getLastModifiedTime(snapshotPath).compareTo(Files.getLastModifiedTime(corpus)) >= 0);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    static List<String> tokenize(String value) {
+        if (value == null || value.isEmpty()) {
+            return List.of();
+        }
+        List<String> tokens = new ArrayList<>();
+        for (String token : TOKEN_SEPARATOR.split(value.toLowerCase(Locale.ROOT))) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    private static float[] normalize(float[] vector) {
+        double norm = 0;
+        for (float v : vector) {
+            norm += v * v;
+        }
+        norm = Math.sqrt(norm);
+
+        float[] normalized = new float[vector.length];
+        if (norm > 0) {
+            for (int i = 0; i < vector.length; i++) {
+                normalized[i] = (float) (vector[i] / norm);
+            }
+        }
+        return normalized;
+    }
+
+    private static double dot(float[] a, float[] b) {
+        double dot = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+        }
+        return dot;
+    }
+
+    /**
+     * Vespa's closeness for the angular distance metric: 1 / (1 + angle)
+     * Takes the dot product of two unit-length vectors
+     */
+    private static double closeness(double dot) {
+        double angle = Math.acos(Math.max(-1.0, Math.min(1.0, dot)));
+        return 1.0 / (1.0 + angle);
+    }
+}
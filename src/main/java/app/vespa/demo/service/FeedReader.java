@@ -0,0 +1,80 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.model.MusicDocument;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Reads documents from files in the Vespa JSONL feed format, like dataset/documents.jsonl
+ */
+final class FeedReader {
+
+    private FeedReader() {
+    }
+
+    /**
+     * Read every put operation of a feed file
+     *
+     * @param path Feed file
+     * @param objectMapper Mapper to parse with
+     * @param consumer Receives the documents in file order
+     * @throws IOException if the file cannot be read or parsed
+     */
+    static void read(Path path, ObjectMapper objectMapper, Consumer<MusicDocument> consumer) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) {
+                    MusicDocument document = parseFeedLine(objectMapper, line);
+                    if (document != null) {
+                        consumer.accept(document);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Parse one line of the Vespa JSONL feed format
+     *
+     * @param objectMapper Mapper to parse with
+     * @param line Feed line, e.g. {"put": "id:music:music::1", "fields": {...}}
+     * @return Parsed document, or null for non-put operations
+     */
+    static MusicDocument parseFeedLine(ObjectMapper objectMapper, String line) throws IOException {
+        JsonNode operation = objectMapper.readTree(line);
+        if (!operation.has("put")) {
+            return null;
+        }
+
+        JsonNode fields = operation.path("fields");
+        Map<String, Float> categoryScores = null;
+        if (fields.has("category_scores")) {
+            categoryScores = new HashMap<>();
+            JsonNode scores = fields.get("category_scores");
+            for (Iterator<String> names = scores.fieldNames(); names.hasNext(); ) {
+                String name = names.next();
+                categoryScores.put(name, (float) scores.get(name).asDouble());
+            }
+        }
+
+        return MusicDocument.builder()
+            .id(operation.get("put").asText())
+            .artist(fields.path("artist").asText())
+            .album(fields.path("album").asText())
+            .year(fields.path("year").asInt())
+            .text(fields.path("text").asText())
+            .categoryScores(categoryScores)
+            .build();
+    }
+}
@@ -1,112 +1,286 @@
 package app.vespa.demo.service;
 
+import app.vespa.demo.config.LlmConfig;
+import app.vespa.demo.config.RagConfig;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Custom client for Google AI Gemini API
- * Uses the generative language API with API key authentication
+ * Uses the generative language API with API key authentication; the system instruction
+ * is referenced through {@link GeminiContextCache} instead of being resent when possible
  */
 @Slf4j
 @Service
-public class GeminiApiClient {
-
-    private static final String GEMINI_API_URL = "https://generativelanguage.googleapis.com/v1/models/gemini-2.5-flash:generateContent";
-
-    @Value("${GEMINI_API_KEY:}")
-    private String apiKey;
+public class GeminiApiClient implements LlmClient {
 
+    private final LlmConfig.GeminiConfig geminiConfig;
+    private final LlmConfig llmConfig;
+    private final RagConfig ragConfig;
     private final ObjectMapper objectMapper;
+    private final ConcurrencyLimiterRegistry limiterRegistry;
+    private final GeminiContextCache contextCache;
     private final HttpClient httpClient;
 
-    public GeminiApiClient(ObjectMapper objectMapper) {
+    public GeminiApiClient(LlmConfig llmConfig, RagConfig ragConfig, ObjectMapper objectMapper,
+                           ConcurrencyLimiterRegistry limiterRegistry, GeminiContextCache contextCache) {
+        this.geminiConfig = llmConfig.getGemini();
+        this.llmConfig = llmConfig;
+        this.ragConfig = ragConfig;
         this.objectMapper = objectMapper;
+        this.limiterRegistry = limiterRegistry;
+        this.contextCache = contextCache;
         this.httpClient = HttpClient.newBuilder()
             .connectTimeout(Duration.ofSeconds(10))
             .build();
     }
 
+    @Override
+    public String name() {
+        return "gemini";
+    }
+
     /**
      * Generate text using Gemini API
      *
+     * @param systemInstruction Static instructions, sent through the context cache when possible (optional)
+     * @param history Earlier exchanges, sent as alternating user and model contents
      * @param prompt The prompt to send to Gemini
      * @return Generated text response
+     * @throws LlmException if the call fails
+     * @throws OverloadedException if the Gemini concurrency limit is reached
      */
-    public String generateText(String prompt) {
+    @Override
+    public String generateText(String systemInstruction, List<ChatTurn> history, String prompt) {
+        ConcurrencyLimiterRegistry.AdmissionPermit permit = limiterRegistry.acquire("gemini");
+        boolean dropped = false;
+
         try {
             log.debug("Calling Gemini API with prompt length: {}", prompt.length());
 
-            // Build request body
-            String requestBody = buildRequestBody(prompt);
-
-            // Build HTTP request
-            String url = GEMINI_API_URL + "?key=" + apiKey;
-            HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(url))
-                .timeout(Duration.ofSeconds(30))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-                .build();
-
-            // Send request
-            HttpResponse<String> response = httpClient.send(request,
+            String cachedContent = contextCache.handleFor(systemInstruction);
+            HttpResponse<String> response = httpClient.send(
+                buildRequest(generateContentUri(),
+                    buildRequestBody(systemInstruction, history, prompt, cachedContent), false),
                 HttpResponse.BodyHandlers.ofString());
 
+            if (cachedContent != null && isCacheRejection(response.statusCode(), response.body())) {
+                contextCache.invalidate(cachedContent);
+                response = httpClient.send(
+                    buildRequest(generateContentUri(),
+                        buildRequestBody(systemInstruction, history, prompt, null), false),
+                    HttpResponse.BodyHandlers.ofString());
+            }
+
             if (response.statusCode() != 200) {
                 log.error("Gemini API error: status={}, body={}",
                     response.statusCode(), response.body());
-                return "Error calling Gemini API: " + response.statusCode();
+                dropped = response.statusCode() == 429 || response.statusCode() >= 500;
+                throw new LlmException(name(), "Error calling Gemini API: " + response.statusCode());
             }
 
             // Parse response
             return parseResponse(response.body());
 
-        } catch (Exception e) {
+        } catch (IOException | InterruptedException e) {
             log.error("Error calling Gemini API", e);
-            return "Error generating response: " + e.getMessage();
+            // Interrupted calls were cancelled (e.g. they lost a race), not failed
+            dropped = !(e instanceof InterruptedException);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new LlmException(name(), "Error generating response: " + e.getMessage(), e);
+        } finally {
+            release(permit, dropped);
         }
     }
 
     /**
-     * Build JSON request body for Gemini API
+     * Generate text using Gemini API, handing each chunk to the consumer as it arrives
+     *
+     * @param systemInstruction Static instructions, sent through the context cache when possible (optional)
+     * @param history Earlier exchanges, sent as alternating user and model contents
+     * @param prompt The prompt to send to Gemini
+     * @param onChunk Receives text chunks in generation order
+     * @return Full generated text response
+     * @throws LlmException if the call fails
+     * @throws OverloadedException if the Gemini concurrency limit is reached
      */
-    private String buildRequestBody(String prompt) {
+    @Override
+    public String streamText(String systemInstruction, List<ChatTurn> history, String prompt,
+                             Consumer<String> onChunk) {
+        ConcurrencyLimiterRegistry.AdmissionPermit permit = limiterRegistry.acquire("gemini");
+        boolean dropped = false;
+
         try {
-            // Gemini API request format
-            String json = String.format("""
-                {
-                  "contents": [{
-                    "parts": [{
-                      "text": "%s"
-                    }]
-                  }],
-                  "generationConfig": {
-                    "temperature": 0.7,
-                    "maxOutputTokens": 2048
-                  }
+            log.debug("Streaming from Gemini API with prompt length: {}", prompt.length());
+
+            String cachedContent = contextCache.handleFor(systemInstruction);
+            HttpResponse<Stream<String>> response = httpClient.send(
+                buildRequest(streamGenerateContentUri(),
+                    buildRequestBody(systemInstruction, history, prompt, cachedContent), true),
+                HttpResponse.BodyHandlers.ofLines());
+
+            // The error body tells a rejected cache entry apart from other errors
+            String errorBody = null;
+            if (cachedContent != null && response.statusCode() != 200) {
+                try (Stream<String> lines = response.body()) {
+                    errorBody = lines.collect(Collectors.joining("\n"));
                 }
-                """, escapeJson(prompt));
+                if (isCacheRejection(response.statusCode(), errorBody)) {
+                    contextCache.invalidate(cachedContent);
+                    errorBody = null;
+                    response = httpClient.send(
+                        buildRequest(streamGenerateContentUri(),
+                            buildRequestBody(systemInstruction, history, prompt, null), true),
+                        HttpResponse.BodyHandlers.ofLines());
+                }
+            }
 
-            return json;
-        } catch (Exception e) {
-            log.error("Error building request body", e);
-            return "{}";
+            try (Stream<String> lines = response.body()) {
+                if (response.statusCode() != 200) {
+                    log.error("Gemini API error: status={}, body={}",
+                        response.statusCode(), errorBody != null ? errorBody : lines.collect(Collectors.joining("\n")));
+                    dropped = response.statusCode() == 429 || response.statusCode() >= 500;
+                    throw new LlmException(name(), "Error calling Gemini API: " + response.statusCode());
+                }
+
+                // Server-sent events: each "data:" line carries one GenerateContentResponse
+                StringBuilder text = new StringBuilder();
+                lines.filter(line -> line.startsWith("data:"))
+                    .map(line -> parseChunk(line.substring(5).trim()))
+                    .filter(chunk -> !chunk.isEmpty())
+                    .forEach(chunk -> {
+                        text.append(chunk);
+                        onChunk.accept(chunk);
+                    });
+
+                log.debug("Gemini streamed response length: {} chars", text.length());
+                return text.toString();
+            }
+
+        } catch (IOException | InterruptedException e) {
+            log.error("Error streaming from Gemini API", e);
+            // Interrupted calls were cancelled (e.g. they lost a race), not failed
+            dropped = !(e instanceof InterruptedException);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new LlmException(name(), "Error generating response: " + e.getMessage(), e);
+        } finally {
+            release(permit, dropped);
+        }
+    }
+
+    private HttpRequest buildRequest(URI uri, String body, boolean stream) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
+            .uri(uri)
+            .timeout(Duration.ofMillis(llmConfig.getTimeoutMs()))
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(body));
+
+        if (stream) {
+            builder.header("Accept", "text/event-stream");
+        }
+        return builder.build();
+    }
+
+    /**
+     * Whether Gemini rejected a request because its referenced cache entry expired or was deleted
+     * Gemini answers those with 400, 403 or 404 and an error message naming the cached content,
+     * e.g. "CachedContent not found (or permission denied)"; other errors with these statuses,
+     * such as an invalid request or an unknown model, are not retried
+     *
+     * @param statusCode Response status
+     * @param body Error response body
+     */
+    static boolean isCacheRejection(int statusCode, String body) {
+        return (statusCode == 400 || statusCode == 403 || statusCode == 404)
+            && body != null && body.toLowerCase(Locale.ROOT).contains("cachedcontent");
+    }
+
+    private void release(ConcurrencyLimiterRegistry.AdmissionPermit permit, boolean dropped) {
+        if (dropped) {
+            permit.releaseDropped();
+        } else {
+            permit.release();
         }
     }
 
+    /**
+     * URI of the blocking generateContent method
+     */
+    URI generateContentUri() {
+        return URI.create(geminiConfig.getModelUrl() + ":generateContent?key=" + apiKey());
+    }
+
+    /**
+     * URI of the streamGenerateContent method, answering as server-sent events
+     */
+    URI streamGenerateContentUri() {
+        return URI.create(geminiConfig.getModelUrl() + ":streamGenerateContent?alt=sse&key=" + apiKey());
+    }
+
+    private String apiKey() {
+        return geminiConfig.getApiKey() != null ? geminiConfig.getApiKey() : "";
+    }
+
+    /**
+     * Build JSON request body for Gemini API
+     * Sampling parameters come from 'rag.generation'
+     *
+     * @param systemInstruction Static instructions (optional)
+     * @param history Earlier exchanges of the conversation, oldest first
+     * @param prompt Per-request prompt
+     * @param cachedContent Cache entry holding the system instruction, null to send it inline
+     */
+    String buildRequestBody(String systemInstruction, List<ChatTurn> history, String prompt, String cachedContent) {
+        ObjectNode body = objectMapper.createObjectNode();
+        ArrayNode contents = body.putArray("contents");
+        for (ChatTurn turn : history) {
+            addContent(contents, "user", turn.prompt());
+            addContent(contents, "model", turn.answer());
+        }
+        addContent(contents, "user", prompt);
+
+        if (cachedContent != null) {
+            body.put("cachedContent", cachedContent);
+        } else if (systemInstruction != null) {
+            body.putObject("systemInstruction").putArray("parts").addObject().put("text", systemInstruction);
+        }
+
+        body.putObject("generationConfig")
+            .put("temperature", ragConfig.getGeneration().getTemperature())
+            .put("maxOutputTokens", ragConfig.getGeneration().getMaxOutputTokens());
+        return body.toString();
+    }
+
+    private static void addContent(ArrayNode contents, String role, String text) {
+        contents.addObject()
+            .put("role", role)
+            .putArray("parts").addObject().put("text", text);
+    }
+
     /**
      * Parse Gemini API response
      */
-    private String parseResponse(String responseBody) {
+    String parseResponse(String responseBody) {
         try {
             JsonNode root = objectMapper.readTree(responseBody);
 
@@ -138,14 +312,23 @@ public class GeminiApiClient {
     }
 
     /**
-     * Escape JSON special characters
+     * Parse one chunk of a streamed Gemini response
+     * Chunks without text (e.g. the final one carrying only finishReason) yield an empty string
      */
-    private String escapeJson(String text) {
-        return text
-            .replace("\\", "\\\\")
-            .replace("\"", "\\\"")
-            .replace("\n", "\\n")
-            .replace("\r", "\\r")
-            .replace("\t", "\\t");
+    String parseChunk(String chunkBody) {
+        try {
+            JsonNode parts = objectMapper.readTree(chunkBody)
+                .path("candidates").path(0).path("content").path("parts");
+
+            StringBuilder text = new StringBuilder();
+            for (JsonNode part : parts) {
+                text.append(part.path("text").asText());
+            }
+            return text.toString();
+
+        } catch (Exception e) {
+            log.error("Error parsing Gemini response chunk", e);
+            return "";
+        }
     }
 }
@@ -0,0 +1,327 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.LlmConfig;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Manages a Gemini cachedContents handle for the static system instruction
+ *
+ * The first request with a system instruction schedules creation of a cache entry for it;
+ * until that succeeds, requests send the instruction inline. Once created, the handle is
+ * refreshed shortly before it expires. When a request arrives with a different instruction
+ * (e.g. the system prompt was reconfigured) a new entry is created and the old one deleted.
+ * Gemini rejects entries below a minimum token count, so instructions estimated below it
+ * are never cached and always sent inline. Other failed creations are retried only after
+ * a back-off, sending the instruction inline meanwhile.
+ */
+@Slf4j
+@Service
+public class GeminiContextCache {
+
+    private static final Duration RETRY_BACKOFF = Duration.ofMinutes(10);
+
+    private final LlmConfig llmConfig;
+    private final LlmConfig.ContextCacheConfig cacheConfig;
+    private final ObjectMapper objectMapper;
+
+    private final HttpClient httpClient = HttpClient.newBuilder()
+        .connectTimeout(Duration.ofSeconds(10))
+        .build();
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Current cache entry, null until one is created
+     */
+    private volatile Handle handle;
+
+    /**
+     * Whether a creation is in flight, guarded by this
+     */
+    private boolean creating;
+
+    /**
+     * Hash of the instruction the last failed creation was for, and when it failed
+     */
+    private volatile String failedHash;
+    private volatile Instant failedAt;
+
+    /**
+     * Hash of the last instruction found too small to cache, so that is logged once
+     */
+    private volatile String tooSmallHash;
+
+    /**
+     * A created cache entry
+     *
+     * @param name Resource name, e.g. cachedContents/abc123
+     * @param hash Hash of the cached system instruction and model
+     * @param expireTime When Gemini drops the entry
+     */
+    record Handle(String name, String hash, Instant expireTime) {
+    }
+
+    public GeminiContextCache(LlmConfig llmConfig, ObjectMapper objectMapper) {
+        this.llmConfig = llmConfig;
+        this.cacheConfig = llmConfig.getGemini().getContextCache();
+        this.objectMapper = objectMapper;
+    }
+
+    @PostConstruct
+    void start() {
+        if (!isEnabled()) {
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gemini-context-cache");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long checkSeconds = Math.max(1, cacheConfig.getRefreshMarginSeconds() / 2);
+        scheduler.scheduleWithFixedDelay(this::refreshIfExpiring, checkSeconds, checkSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    void stop() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+
+        Handle current = handle;
+        if (current != null) {
+            delete(current);
+        }
+    }
+
+    public boolean isEnabled() {
+        return cacheConfig != null && Boolean.TRUE.equals(cacheConfig.getEnabled());
+    }
+
+    /**
+     * Cache entry to reference instead of sending the instruction inline
+     *
+     * @param systemInstruction System instruction of the request
+     * @return Resource name of a live entry for exactly this instruction, or null to send it inline
+     */
+    public String handleFor(String systemInstruction) {
+        if (!isEnabled() || systemInstruction == null) {
+            return null;
+        }
+
+        String hash = hash(systemInstruction);
+        if (estimateTokens(systemInstruction) < cacheConfig.getMinTokens()) {
+            if (!hash.equals(tooSmallHash)) {
+                tooSmallHash = hash;
+                log.info("System instruction of about {} tokens is below the {} token minimum of Gemini "
+                    + "context caching, sending it inline", estimateTokens(systemInstruction), cacheConfig.getMinTokens());
+            }
+            return null;
+        }
+
+        Handle current = handle;
+        if (current != null && current.hash().equals(hash) && Instant.now().isBefore(current.expireTime())) {
+            return current.name();
+        }
+
+        scheduleCreate(systemInstruction, hash);
+        return null;
+    }
+
+    /**
+     * Forget an entry that Gemini no longer accepts, so requests go back to inline instructions
+     *
+     * @param name Resource name of the rejected entry
+     */
+    public void invalidate(String name) {
+        Handle current = handle;
+        if (current != null && current.name().equals(name)) {
+            log.warn("Gemini context cache {} was rejected, sending system instruction inline", name);
+            handle = null;
+        }
+    }
+
+    private synchronized void scheduleCreate(String systemInstruction, String hash) {
+        if (creating || (hash.equals(failedHash) && Instant.now().isBefore(failedAt.plus(RETRY_BACKOFF)))) {
+            return;
+        }
+
+        creating = true;
+        scheduler.execute(() -> {
+            try {
+                create(systemInstruction, hash);
+            } finally {
+                synchronized (this) {
+                    creating = false;
+                }
+            }
+        });
+    }
+
+    private void create(String systemInstruction, String hash) {
+        ObjectNode body = objectMapper.createObjectNode()
+            .put("model", modelName())
+            .put("ttl", cacheConfig.getTtlSeconds() + "s");
+        body.putObject("systemInstruction").putArray("parts").addObject().put("text", systemInstruction);
+
+        try {
+            HttpResponse<String> response = httpClient.send(HttpRequest.newBuilder()
+                    .uri(URI.create(apiBaseUrl() + "/cachedContents?key=" + apiKey()))
+                    .timeout(Duration.ofMillis(llmConfig.getTimeoutMs()))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+                    .build(),
+                HttpResponse.BodyHandlers.ofString());
+
+            if (response.statusCode() != 200) {
+                log.warn("Could not create Gemini context cache, sending system instruction inline: status={}, body={}",
+                    response.statusCode(), response.body());
+                failed(hash);
+                return;
+            }
+
+            Handle created = parseHandle(response.body(), hash);
+            Handle previous = handle;
+            handle = created;
+            log.info("Created Gemini context cache {} expiring at {}", created.name(), created.expireTime());
+
+            if (previous != null && !previous.name().equals(created.name())) {
+                delete(previous);
+            }
+        } catch (IOException | InterruptedException e) {
+            log.warn("Error creating Gemini context cache", e);
+            failed(hash);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void failed(String hash) {
+        failedAt = Instant.now();
+        failedHash = hash;
+    }
+
+    /**
+     * Extend the entry's TTL once it is within the refresh margin of expiring
+     */
+    void refreshIfExpiring() {
+        Handle current = handle;
+        if (current == null ||
+            Instant.now().isBefore(current.expireTime().minusSeconds(cacheConfig.getRefreshMarginSeconds()))) {
+            return;
+        }
+
+        try {
+            HttpResponse<String> response = httpClient.send(HttpRequest.newBuilder()
+                    .uri(URI.create(apiBaseUrl() + "/" + current.name() + "?updateMask=ttl&key=" + apiKey()))
+                    .timeout(Duration.ofMillis(llmConfig.getTimeoutMs()))
+                    .header("Content-Type", "application/json")
+                    .method("PATCH", HttpRequest.BodyPublishers.ofString(
+                        "{\"ttl\": \"" + cacheConfig.getTtlSeconds() + "s\"}"))
+                    .build(),
+                HttpResponse.BodyHandlers.ofString());
+
+            if (response.statusCode() != 200) {
+                // Expired or deleted; the next request recreates it
+                log.warn("Could not refresh Gemini context cache {}: status={}", current.name(), response.statusCode());
+                invalidate(current.name());
+                return;
+            }
+
+            handle = parseHandle(response.body(), current.hash());
+            log.debug("Refreshed Gemini context cache {} until {}", current.name(), handle.expireTime());
+        } catch (IOException e) {
+            log.warn("Error refreshing Gemini context cache {}", current.name(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void delete(Handle stale) {
+        try {
+            httpClient.send(HttpRequest.newBuilder()
+                    .uri(URI.create(apiBaseUrl() + "/" + stale.name() + "?key=" + apiKey()))
+                    .timeout(Duration.ofMillis(llmConfig.getTimeoutMs()))
+                    .DELETE()
+                    .build(),
+                HttpResponse.BodyHandlers.discarding());
+            log.debug("Deleted Gemini context cache {}", stale.name());
+        } catch (IOException e) {
+            // Gemini expires it on its own
+            log.debug("Could not delete Gemini context cache {}", stale.name(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Handle parseHandle(String responseBody, String hash) throws IOException {
+        JsonNode root = objectMapper.readTree(responseBody);
+        return new Handle(root.path("name").asText(), hash, Instant.parse(root.path("expireTime").asText()));
+    }
+
+    /**
+     * API root the model URL lives under, e.g. https://generativelanguage.googleapis.com/v1beta
+     */
+    private String apiBaseUrl() {
+        String modelUrl = llmConfig.getGemini().getModelUrl();
+        return modelUrl.substring(0, modelUrl.lastIndexOf("/models/"));
+    }
+
+    /**
+     * Model resource name, e.g. models/gemini-2.5-flash
+     */
+    private String modelName() {
+        String modelUrl = llmConfig.getGemini().getModelUrl();
+        return modelUrl.substring(modelUrl.lastIndexOf("/models/") + 1);
+    }
+
+    private String apiKey() {
+        String apiKey = llmConfig.getGemini().getApiKey();
+        return apiKey != null ? apiKey : "";
+    }
+
+    /**
+     * Rough token count of English text, about 4 characters per token
+     */
+    private static int estimateTokens(String text) {
+        return text.length() / 4;
+    }
+
+    /**
+     * Identity of a cache entry: the instruction and the model it was created for
+     */
+    private String hash(String systemInstruction) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(modelName().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(systemInstruction.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
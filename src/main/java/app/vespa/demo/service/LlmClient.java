@@ -0,0 +1,69 @@
+package app.vespa.demo.service;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Text generation backend used by the RAG pipeline
+ * Implementations throw {@link LlmException} when generation fails, so callers can tell
+ * a failed call from an answer and try another backend
+ */
+public interface LlmClient {
+
+    /**
+     * Provider name, as referenced by 'llm.providers'
+     */
+    String name();
+
+    /**
+     * Generate text for a prompt
+     *
+     * @param systemInstruction Static instructions shared by all requests (optional)
+     * @param prompt The per-request prompt
+     * @return Generated text response
+     * @throws LlmException if the call fails
+     * @throws OverloadedException if the provider's concurrency limit is reached
+     */
+    default String generateText(String systemInstruction, String prompt) {
+        return generateText(systemInstruction, List.of(), prompt);
+    }
+
+    /**
+     * Generate the next answer of a conversation
+     *
+     * @param systemInstruction Static instructions shared by all requests (optional)
+     * @param history Earlier exchanges, oldest first
+     * @param prompt The prompt of the new turn
+     * @return Generated text response
+     * @throws LlmException if the call fails
+     * @throws OverloadedException if the provider's concurrency limit is reached
+     */
+    String generateText(String systemInstruction, List<ChatTurn> history, String prompt);
+
+    /**
+     * Generate text for a prompt, handing each chunk to the consumer as it arrives
+     *
+     * @param systemInstruction Static instructions shared by all requests (optional)
+     * @param prompt The per-request prompt
+     * @param onChunk Receives text chunks in generation order
+     * @return Full generated text response
+     * @throws LlmException if the call fails
+     * @throws OverloadedException if the provider's concurrency limit is reached
+     */
+    default String streamText(String systemInstruction, String prompt, Consumer<String> onChunk) {
+        return streamText(systemInstruction, List.of(), prompt, onChunk);
+    }
+
+    /**
+     * Generate the next answer of a conversation, handing each chunk to the consumer as it arrives
+     *
+     * @param systemInstruction Static instructions shared by all requests (optional)
+     * @param history Earlier exchanges, oldest first
+     * @param prompt The prompt of the new turn
+     * @param onChunk Receives text chunks in generation order
+     * @return Full generated text response
+     * @throws LlmException if the call fails
+     * @throws OverloadedException if the provider's concurrency limit is reached
+     */
+    String streamText(String systemInstruction, List<ChatTurn> history, String prompt, Consumer<String> onChunk);
+}
@@ -0,0 +1,25 @@
+package app.vespa.demo.service;
+
+import lombok.Getter;
+
+/**
+ * Thrown when an LLM provider call fails
+ */
+@Getter
+public class LlmException extends RuntimeException {
+
+    /**
+     * Name of the provider that failed
+     */
+    private final String provider;
+
+    public LlmException(String provider, String message) {
+        super(message);
+        this.provider = provider;
+    }
+
+    public LlmException(String provider, String message, Throwable cause) {
+        super(message, cause);
+        this.provider = provider;
+    }
+}
@@ -0,0 +1,200 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.LlmConfig;
+import io.micrometer.context.ContextExecutorService;
+import io.micrometer.context.ContextSnapshotFactory;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Routes generation requests to the configured LLM provider
+ *
+ * In race mode each request goes to the first two configured providers at once and the
+ * first successful answer wins; the other call is cancelled. When streaming, the provider
+ * that delivers the first chunk wins and only its chunks reach the caller. This trades
+ * doubled provider cost for lower tail latency during provider slowdowns.
+ *
+ * Every provider call is observed as an llm.call span tagged with the provider; racing
+ * calls run with the caller's trace context, so both appear under the same request.
+ */
+@Slf4j
+@Service
+public class LlmRouter {
+
+    private final LlmConfig llmConfig;
+    private final Map<String, LlmClient> clients;
+    private final ObservationRegistry observationRegistry;
+    private final ExecutorService executor;
+
+    public LlmRouter(LlmConfig llmConfig, List<LlmClient> clients, ObservationRegistry observationRegistry) {
+        this.llmConfig = llmConfig;
+        this.observationRegistry = observationRegistry;
+        this.clients = clients.stream().collect(Collectors.toMap(LlmClient::name, Function.identity()));
+
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(0, llmConfig.getMaxRaceCalls(),
+            60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "llm-race-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        this.executor = ContextExecutorService.wrap(pool, ContextSnapshotFactory.builder().build());
+
+        for (String provider : llmConfig.getProviders()) {
+            if (!this.clients.containsKey(provider)) {
+                throw new IllegalStateException("Unknown LLM provider '" + provider + "', available: "
+                    + this.clients.keySet());
+            }
+        }
+    }
+
+    @PreDestroy
+    void stop() {
+        // Racing calls are bounded by the LLM timeout, interrupting them aborts their exchanges
+        executor.shutdownNow();
+    }
+
+    /**
+     * Generate text with the primary provider, or race the first two
+     *
+     * @param systemInstruction Static instructions shared by all requests (optional)
+     * @param prompt The per-request prompt
+     * @return Generated text response
+     * @throws LlmException if all providers fail
+     * @throws OverloadedException if the provider's concurrency limit is reached
+     */
+    public String generateText(String systemInstruction, String prompt) {
+        return generateText(systemInstruction, List.of(), prompt);
+    }
+
+    /**
+     * Generate the next answer of a conversation with the primary provider, or race the first two
+     *
+     * @param systemInstruction Static instructions shared by all requests (optional)
+     * @param history Earlier exchanges, oldest first
+     * @param prompt The prompt of the new turn
+     * @return Generated text response
+     * @throws LlmException if all providers fail
+     * @throws OverloadedException if the provider's concurrency limit is reached, or too many races run
+     */
+    public String generateText(String systemInstruction, List<ChatTurn> history, String prompt) {
+        if (!racing()) {
+            LlmClient client = primary();
+            return observe(client).observe(() -> client.generateText(systemInstruction, history, prompt));
+        }
+
+        return race(racers().stream()
+            .<Callable<String>>map(client -> () ->
+                observe(client).observe(() -> client.generateText(systemInstruction, history, prompt)))
+            .toList());
+    }
+
+    /**
+     * Stream text from the primary provider, or race the first two
+     *
+     * @param systemInstruction Static instructions shared by all requests (optional)
+     * @param prompt The per-request prompt
+     * @param onChunk Receives text chunks in generation order
+     * @return Full generated text response
+     * @throws LlmException if all providers fail
+     * @throws OverloadedException if the provider's concurrency limit is reached
+     */
+    public String streamText(String systemInstruction, String prompt, Consumer<String> onChunk) {
+        return streamText(systemInstruction, List.of(), prompt, onChunk);
+    }
+
+    /**
+     * Stream the next answer of a conversation from the primary provider, or race the first two
+     *
+     * @param systemInstruction Static instructions shared by all requests (optional)
+     * @param history Earlier exchanges, oldest first
+     * @param prompt The prompt of the new turn
+     * @param onChunk Receives text chunks in generation order
+     * @return Full generated text response
+     * @throws LlmException if all providers fail
+     * @throws OverloadedException if the provider's concurrency limit is reached, or too many races run
+     */
+    public String streamText(String systemInstruction, List<ChatTurn> history, String prompt,
+                             Consumer<String> onChunk) {
+        if (!racing()) {
+            LlmClient client = primary();
+            return observe(client).observe(() -> client.streamText(systemInstruction, history, prompt, onChunk));
+        }
+
+        // The first provider to produce a chunk claims the stream, the others abort on theirs
+        AtomicReference<LlmClient> winner = new AtomicReference<>();
+        return race(racers().stream()
+            .<Callable<String>>map(client -> () -> observe(client).observe(() ->
+                client.streamText(systemInstruction, history, prompt, chunk -> {
+                    if (winner.compareAndSet(null, client)) {
+                        log.debug("LLM provider '{}' won the race", client.name());
+                    }
+                    if (winner.get() != client) {
+                        throw new CancellationException("Lost race to " + winner.get().name());
+                    }
+                    onChunk.accept(chunk);
+                })))
+            .toList());
+    }
+
+    private Observation observe(LlmClient client) {
+        return Observation.createNotStarted("llm.call", observationRegistry)
+            .contextualName("llm " + client.name())
+            .lowCardinalityKeyValue("provider", client.name());
+    }
+
+    private boolean racing() {
+        return Boolean.TRUE.equals(llmConfig.getRace()) && llmConfig.getProviders().size() > 1;
+    }
+
+    private LlmClient primary() {
+        return clients.get(llmConfig.getProviders().get(0));
+    }
+
+    private List<LlmClient> racers() {
+        return llmConfig.getProviders().subList(0, 2).stream().map(clients::get).toList();
+    }
+
+    /**
+     * Run the calls concurrently and return the first successful result
+     * The remaining calls are interrupted, which aborts their HTTP exchanges
+     */
+    private String race(List<Callable<String>> calls) {
+        try {
+            return executor.invokeAny(calls, llmConfig.getTimeoutMs(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            throw new OverloadedException("llm-race", 1);
+        } catch (ExecutionException e) {
+            // Every provider failed; surface the last failure
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new LlmException("race", "All LLM providers failed", e.getCause());
+        } catch (TimeoutException e) {
+            throw new LlmException("race", "No LLM provider answered within " + llmConfig.getTimeoutMs() + "ms", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LlmException("race", "Interrupted while waiting for LLM providers", e);
+        }
+    }
+}
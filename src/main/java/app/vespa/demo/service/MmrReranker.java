@@ -0,0 +1,163 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.model.MusicDocument;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Maximal Marginal Relevance selection of a diverse subset of search hits
+ *
+ * Hits are picked one at a time by λ · relevance − (1 − λ) · (similarity to the closest hit
+ * already picked). Relevance is min-max normalized over the candidates, since Vespa scores
+ * are unbounded. Similarity mixes the cosine of the document embeddings with the token
+ * overlap of the artist names, so albums by the same artist are penalized even when their
+ * descriptions differ. Candidates whose embeddings make them more similar than the cut-off to
+ * a picked hit are only picked once no other candidate is left, so the result is never smaller
+ * than requested; artist overlap alone never makes a near-duplicate.
+ */
+final class MmrReranker {
+
+    private MmrReranker() {
+    }
+
+    /**
+     * Select up to count diverse hits
+     *
+     * @param candidates Hits in relevance order, with embeddings if available
+     * @param count Maximum number of hits to select
+     * @param lambda Weight of relevance against novelty, 1 for plain relevance order
+     * @param artistWeight Weight of artist overlap in the similarity, the rest goes to the embeddings
+     * @param maxSimilarity Candidates with embeddings at least this similar to a selected hit are picked last,
+     *                      1 to disable
+     * @return Selected hits in selection order
+     */
+    static List<MusicDocument> select(List<MusicDocument> candidates, int count, double lambda,
+                                      double artistWeight, double maxSimilarity) {
+        int n = candidates.size();
+        if (n == 0 || count <= 0) {
+            return List.of();
+        }
+
+        double[] relevance = normalizedRelevance(candidates);
+        List<Set<String>> artists = candidates.stream().map(MmrReranker::artistTokens).toList();
+
+        // Highest similarity of each candidate to any selected hit so far
+        double[] closest = new double[n];
+        boolean[] nearDuplicate = new boolean[n];
+        boolean[] done = new boolean[n];
+        List<MusicDocument> selected = new ArrayList<>(Math.min(count, n));
+
+        while (selected.size() < count) {
+            int best = -1;
+            double bestScore = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < n; i++) {
+                if (done[i]) {
+                    continue;
+                }
+                // Near-duplicates rank below every other candidate, ordered by their MMR score
+                double score = lambda * relevance[i] - (1 - lambda) * closest[i] - (nearDuplicate[i] ? 2 : 0);
+                if (score > bestScore) {
+                    bestScore = score;
+                    best = i;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+
+            done[best] = true;
+            selected.add(candidates.get(best));
+
+            for (int i = 0; i < n; i++) {
+                if (done[i]) {
+                    continue;
+                }
+                double similarity = similarity(candidates.get(best), candidates.get(i),
+                    artists.get(best), artists.get(i), artistWeight);
+                if (maxSimilarity < 1 && similarity >= maxSimilarity
+                    && hasEmbeddings(candidates.get(best), candidates.get(i))) {
+                    nearDuplicate[i] = true;
+                }
+                closest[i] = Math.max(closest[i], similarity);
+            }
+        }
+
+        return selected;
+    }
+
+    private static double[] normalizedRelevance(List<MusicDocument> candidates) {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (MusicDocument candidate : candidates) {
+            double relevance = candidate.getRelevance() != null ? candidate.getRelevance() : 0;
+            min = Math.min(min, relevance);
+            max = Math.max(max, relevance);
+        }
+
+        double[] normalized = new double[candidates.size()];
+        for (int i = 0; i < normalized.length; i++) {
+            double relevance = candidates.get(i).getRelevance() != null ? candidates.get(i).getRelevance() : 0;
+            normalized[i] = max > min ? (relevance - min) / (max - min) : 1;
+        }
+        return normalized;
+    }
+
+    /**
+     * Similarity of two hits in [0, 1]; without embeddings only the artists are compared
+     */
+    static double similarity(MusicDocument a, MusicDocument b, Set<String> artistsA, Set<String> artistsB,
+                             double artistWeight) {
+        double artistOverlap = jaccard(artistsA, artistsB);
+        if (!hasEmbeddings(a, b)) {
+            return artistOverlap;
+        }
+        double cosine = Math.max(0, cosine(a.getEmbedding(), b.getEmbedding()));
+        return artistWeight * artistOverlap + (1 - artistWeight) * cosine;
+    }
+
+    private static boolean hasEmbeddings(MusicDocument a, MusicDocument b) {
+        return a.getEmbedding() != null && b.getEmbedding() != null
+            && a.getEmbedding().length == b.getEmbedding().length;
+    }
+
+    private static Set<String> artistTokens(MusicDocument document) {
+        Set<String> tokens = new HashSet<>();
+        if (document.getArtist() != null) {
+            for (String token : document.getArtist().toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+                if (!token.isEmpty()) {
+                    tokens.add(token);
+                }
+            }
+        }
+        return tokens;
+    }
+
+    private static double jaccard(Set<String> a, Set<String> b) {
+        if (a.isEmpty() || b.isEmpty()) {
+            return 0;
+        }
+        int common = 0;
+        for (String token : a) {
+            if (b.contains(token)) {
+                common++;
+            }
+        }
+        return (double) common / (a.size() + b.size() - common);
+    }
+
+    private static double cosine(float[] a, float[] b) {
+        double dot = 0;
+        double normA = 0;
+        double normB = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+        }
+        return normA > 0 && normB > 0 ? dot / Math.sqrt(normA * normB) : 0;
+    }
+}
@@ -0,0 +1,249 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.LlmConfig;
+import app.vespa.demo.config.RagConfig;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Client for OpenAI-compatible chat completions APIs
+ * Works with OpenAI itself and with self-hosted servers exposing the same API,
+ * which also makes it easy to run against a local stub
+ */
+@Slf4j
+@Service
+public class OpenAiCompatibleClient implements LlmClient {
+
+    private final LlmConfig.OpenAiConfig openAiConfig;
+    private final LlmConfig llmConfig;
+    private final RagConfig ragConfig;
+    private final ObjectMapper objectMapper;
+    private final ConcurrencyLimiterRegistry limiterRegistry;
+    private final HttpClient httpClient;
+
+    public OpenAiCompatibleClient(LlmConfig llmConfig, RagConfig ragConfig, ObjectMapper objectMapper,
+                                  ConcurrencyLimiterRegistry limiterRegistry) {
+        this.openAiConfig = llmConfig.getOpenai();
+        this.llmConfig = llmConfig;
+        this.ragConfig = ragConfig;
+        this.objectMapper = objectMapper;
+        this.limiterRegistry = limiterRegistry;
+        this.httpClient = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+    }
+
+    @Override
+    public String name() {
+        return "openai";
+    }
+
+    /**
+     * Generate text using the chat completions API
+     *
+     * @param systemInstruction Sent as the system message (optional)
+     * @param history Earlier exchanges, sent as alternating user and assistant messages
+     * @param prompt The prompt to send, as the user message
+     * @return Generated text response
+     * @throws LlmException if the call fails
+     * @throws OverloadedException if the provider's concurrency limit is reached
+     */
+    @Override
+    public String generateText(String systemInstruction, List<ChatTurn> history, String prompt) {
+        ConcurrencyLimiterRegistry.AdmissionPermit permit = limiterRegistry.acquire(name());
+        boolean dropped = false;
+
+        try {
+            log.debug("Calling chat completions API with prompt length: {}", prompt.length());
+
+            HttpResponse<String> response = httpClient.send(buildRequest(systemInstruction, history, prompt, false),
+                HttpResponse.BodyHandlers.ofString());
+
+            if (response.statusCode() != 200) {
+                log.error("Chat completions API error: status={}, body={}",
+                    response.statusCode(), response.body());
+                dropped = response.statusCode() == 429 || response.statusCode() >= 500;
+                throw new LlmException(name(), "Error calling chat completions API: " + response.statusCode());
+            }
+
+            return parseResponse(response.body());
+
+        } catch (IOException | InterruptedException e) {
+            log.error("Error calling chat completions API", e);
+            // Interrupted calls were cancelled (e.g. they lost a race), not failed
+            dropped = !(e instanceof InterruptedException);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new LlmException(name(), "Error generating response: " + e.getMessage(), e);
+        } finally {
+            release(permit, dropped);
+        }
+    }
+
+    /**
+     * Generate text using the chat completions API, handing each chunk to the consumer as it arrives
+     *
+     * @param systemInstruction Sent as the system message (optional)
+     * @param history Earlier exchanges, sent as alternating user and assistant messages
+     * @param prompt The prompt to send, as the user message
+     * @param onChunk Receives text chunks in generation order
+     * @return Full generated text response
+     * @throws LlmException if the call fails
+     * @throws OverloadedException if the provider's concurrency limit is reached
+     */
+    @Override
+    public String streamText(String systemInstruction, List<ChatTurn> history, String prompt,
+                             Consumer<String> onChunk) {
+        ConcurrencyLimiterRegistry.AdmissionPermit permit = limiterRegistry.acquire(name());
+        boolean dropped = false;
+
+        try {
+            log.debug("Streaming from chat completions API with prompt length: {}", prompt.length());
+
+            HttpResponse<Stream<String>> response = httpClient.send(buildRequest(systemInstruction, history, prompt, true),
+                HttpResponse.BodyHandlers.ofLines());
+
+            try (Stream<String> lines = response.body()) {
+                if (response.statusCode() != 200) {
+                    log.error("Chat completions API error: status={}, body={}",
+                        response.statusCode(), lines.collect(Collectors.joining("\n")));
+                    dropped = response.statusCode() == 429 || response.statusCode() >= 500;
+                    throw new LlmException(name(), "Error calling chat completions API: " + response.statusCode());
+                }
+
+                // Server-sent events: each "data:" line carries one chunk, "[DONE]" ends the stream
+                StringBuilder text = new StringBuilder();
+                lines.filter(line -> line.startsWith("data:"))
+                    .map(line -> line.substring(5).trim())
+                    .takeWhile(data -> !"[DONE]".equals(data))
+                    .map(this::parseChunk)
+                    .filter(chunk -> !chunk.isEmpty())
+                    .forEach(chunk -> {
+                        text.append(chunk);
+                        onChunk.accept(chunk);
+                    });
+
+                log.debug("Chat completions streamed response length: {} chars", text.length());
+                return text.toString();
+            }
+
+        } catch (IOException | InterruptedException e) {
+            log.error("Error streaming from chat completions API", e);
+            // Interrupted calls were cancelled (e.g. they lost a race), not failed
+            dropped = !(e instanceof InterruptedException);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new LlmException(name(), "Error generating response: " + e.getMessage(), e);
+        } finally {
+            release(permit, dropped);
+        }
+    }
+
+    private void release(ConcurrencyLimiterRegistry.AdmissionPermit permit, boolean dropped) {
+        if (dropped) {
+            permit.releaseDropped();
+        } else {
+            permit.release();
+        }
+    }
+
+    private HttpRequest buildRequest(String systemInstruction, List<ChatTurn> history, String prompt,
+                                     boolean stream) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
+            .uri(URI.create(openAiConfig.getBaseUrl() + "/chat/completions"))
+            .timeout(Duration.ofMillis(llmConfig.getTimeoutMs()))
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(buildRequestBody(systemInstruction, history, prompt, stream)));
+
+        if (stream) {
+            builder.header("Accept", "text/event-stream");
+        }
+        if (openAiConfig.getApiKey() != null && !openAiConfig.getApiKey().isBlank()) {
+            builder.header("Authorization", "Bearer " + openAiConfig.getApiKey());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Build JSON request body for the chat completions API
+     * Sampling parameters come from 'rag.generation'
+     */
+    String buildRequestBody(String systemInstruction, List<ChatTurn> history, String prompt, boolean stream) {
+        ObjectNode body = objectMapper.createObjectNode()
+            .put("model", openAiConfig.getModel())
+            .put("temperature", ragConfig.getGeneration().getTemperature())
+            .put("max_tokens", ragConfig.getGeneration().getMaxOutputTokens())
+            .put("stream", stream);
+
+        ArrayNode messages = body.putArray("messages");
+        if (systemInstruction != null) {
+            messages.addObject()
+                .put("role", "system")
+                .put("content", systemInstruction);
+        }
+        for (ChatTurn turn : history) {
+            messages.addObject()
+                .put("role", "user")
+                .put("content", turn.prompt());
+            messages.addObject()
+                .put("role", "assistant")
+                .put("content", turn.answer());
+        }
+        messages.addObject()
+            .put("role", "user")
+            .put("content", prompt);
+        return body.toString();
+    }
+
+    /**
+     * Parse a chat completions response: choices[0].message.content
+     */
+    String parseResponse(String responseBody) {
+        try {
+            JsonNode choices = objectMapper.readTree(responseBody).path("choices");
+            if (choices.isEmpty()) {
+                log.warn("No choices in chat completions response");
+                return "No response generated";
+            }
+
+            String text = choices.get(0).path("message").path("content").asText();
+            log.debug("Chat completions response length: {} chars", text.length());
+            return text;
+
+        } catch (Exception e) {
+            log.error("Error parsing chat completions response", e);
+            return "Error parsing response";
+        }
+    }
+
+    /**
+     * Parse one streamed chunk: choices[0].delta.content
+     * Chunks without content (role announcement, finish_reason) yield an empty string
+     */
+    String parseChunk(String chunkBody) {
+        try {
+            return objectMapper.readTree(chunkBody)
+                .path("choices").path(0).path("delta").path("content").asText("");
+        } catch (Exception e) {
+            log.error("Error parsing chat completions response chunk", e);
+            return "";
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package app.vespa.demo.service;
+
+import lombok.Getter;
+
+/**
+ * Thrown when a request is shed because a concurrency limit is reached
+ * Mapped to 503 Service Unavailable with a Retry-After header
+ */
+@Getter
+public class OverloadedException extends RuntimeException {
+
+    /**
+     * Name of the limiter that rejected the request
+     */
+    private final String limiter;
+
+    /**
+     * Suggested client back-off in seconds
+     */
+    private final int retryAfterSeconds;
+
+    public OverloadedException(String limiter, int retryAfterSeconds) {
+        super("Too many concurrent requests for '" + limiter + "', retry later");
+        this.limiter = limiter;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+}
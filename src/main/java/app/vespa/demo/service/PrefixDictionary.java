@@ -0,0 +1,180 @@
+package app.vespa.demo.service;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable prefix lookup structure for suggestions
+ *
+ * Every entry is indexed under each of its word starts ("pink floyd" also under "floyd"),
+ * as a sorted array of normalized keys. A prefix is resolved with a binary search and a
+ * scan of the matching key range. Very short prefixes would match large ranges, so their
+ * best completions are precomputed at build time.
+ */
+final class PrefixDictionary {
+
+    private static final int PRECOMPUTED_PREFIX_LENGTH = 2;
+
+    /**
+     * Longest key range scanned per lookup, to bound the cost of unusual prefixes
+     */
+    private static final int MAX_SCAN = 10_000;
+
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+    private static final Pattern NON_WORD = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    /**
+     * Entry to build the dictionary from
+     */
+    record Entry(String text, String type, int weight) {
+    }
+
+    private final Entry[] entries;
+    private final String[] keys;
+    private final int[] keyEntries;
+    private final Map<String, int[]> precomputed;
+    private final int maxResults;
+
+    private PrefixDictionary(Entry[] entries, String[] keys, int[] keyEntries,
+                             Map<String, int[]> precomputed, int maxResults) {
+        this.entries = entries;
+        this.keys = keys;
+        this.keyEntries = keyEntries;
+        this.precomputed = precomputed;
+        this.maxResults = maxResults;
+    }
+
+    static PrefixDictionary empty() {
+        return build(List.of(), 0);
+    }
+
+    /**
+     * Build a dictionary
+     *
+     * @param input Entries; higher weights rank first
+     * @param maxResults Most results any lookup will ask for
+     */
+    static PrefixDictionary build(List<Entry> input, int maxResults) {
+        // Best entries first, so ranges can be ranked by entry index alone
+        Entry[] entries = input.stream()
+            .sorted(Comparator.comparingInt(Entry::weight).reversed().thenComparing(Entry::text))
+            .toArray(Entry[]::new);
+
+        List<String> keyList = new ArrayList<>();
+        List<Integer> entryList = new ArrayList<>();
+        for (int i = 0; i < entries.length; i++) {
+            String normalized = normalize(entries[i].text());
+            if (normalized.isEmpty()) {
+                continue;
+            }
+            int start = 0;
+            while (true) {
+                keyList.add(normalized.substring(start));
+                entryList.add(i);
+                int space = normalized.indexOf(' ', start);
+                if (space < 0) {
+                    break;
+                }
+                start = space + 1;
+            }
+        }
+
+        Integer[] order = new Integer[keyList.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing(keyList::get));
+
+        String[] keys = new String[order.length];
+        int[] keyEntries = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            keys[i] = keyList.get(order[i]);
+            keyEntries[i] = entryList.get(order[i]);
+        }
+
+        // Top entries per short prefix; entry order is rank order
+        Map<String, Set<Integer>> candidates = new HashMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            for (int length = 1; length <= PRECOMPUTED_PREFIX_LENGTH && length <= keys[i].length(); length++) {
+                candidates.computeIfAbsent(keys[i].substring(0, length), p -> new LinkedHashSet<>()).add(keyEntries[i]);
+            }
+        }
+        Map<String, int[]> precomputed = new HashMap<>();
+        candidates.forEach((prefix, matches) -> precomputed.put(prefix,
+            matches.stream().mapToInt(Integer::intValue).sorted().limit(maxResults).toArray()));
+
+        return new PrefixDictionary(entries, keys, keyEntries, precomputed, maxResults);
+    }
+
+    /**
+     * Best entries having a word that starts with the prefix
+     *
+     * @param prefix Typed text
+     * @param limit Maximum number of entries, capped at the build-time maximum
+     * @return Matching entries, best first
+     */
+    List<Entry> lookup(String prefix, int limit) {
+        String normalized = normalize(prefix);
+        int max = Math.min(limit, maxResults);
+        if (normalized.isEmpty() || max <= 0) {
+            return List.of();
+        }
+
+        int[] matches;
+        if (normalized.length() <= PRECOMPUTED_PREFIX_LENGTH) {
+            matches = precomputed.getOrDefault(normalized, new int[0]);
+        } else {
+            int from = lowerBound(normalized);
+            int to = from;
+            while (to < keys.length && to - from < MAX_SCAN && keys[to].startsWith(normalized)) {
+                to++;
+            }
+            matches = Arrays.stream(keyEntries, from, to).distinct().sorted().toArray();
+        }
+
+        List<Entry> results = new ArrayList<>(Math.min(max, matches.length));
+        for (int i = 0; i < matches.length && results.size() < max; i++) {
+            results.add(entries[matches[i]]);
+        }
+        return results;
+    }
+
+    int size() {
+        return entries.length;
+    }
+
+    private int lowerBound(String prefix) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid].compareTo(prefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Lowercase, strip diacritics and collapse punctuation to single spaces ("Björk" → "bjork")
+     */
+    static String normalize(String value) {
+        if (value == null) {
+            return "";
+        }
+        String decomposed = Normalizer.normalize(value, Normalizer.Form.NFKD);
+        String stripped = DIACRITICS.matcher(decomposed).replaceAll("");
+        return NON_WORD.matcher(stripped.toLowerCase(Locale.ROOT)).replaceAll(" ").trim();
+    }
+}
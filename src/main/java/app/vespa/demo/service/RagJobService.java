@@ -0,0 +1,609 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.RagConfig;
+import app.vespa.demo.model.MusicDocument;
+import app.vespa.demo.model.QueryRequest;
+import app.vespa.demo.model.RagJob;
+import app.vespa.demo.model.RagJobResult;
+import app.vespa.demo.model.RagResponse;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Runs RAG over uploaded question sets in the background
+ *
+ * Each job lives in its own directory: the questions as uploaded (blank lines dropped),
+ * the results as JSONL and the job state. Retrieval and generation run on separate pools,
+ * so Vespa queries for upcoming questions overlap with the slower LLM calls, and the
+ * generation pool caps how much LLM capacity a job takes from interactive requests.
+ * At most max-in-flight questions are between reading and writing, so memory does not
+ * grow with the job size.
+ *
+ * Results are appended and flushed as they complete (in completion order, each with the
+ * index of its question), which makes the results file the checkpoint: a job interrupted
+ * by a restart resumes with the questions that have no result line yet.
+ * Jobs run one at a time, in submission order.
+ */
+@Slf4j
+@Service
+public class RagJobService {
+
+    private static final String QUESTIONS_FILE = "questions.jsonl";
+    private static final String RESULTS_FILE = "results.jsonl";
+    private static final String STATE_FILE = "job.json";
+    private static final long RETRY_BACKOFF_MS = 1000;
+
+    private final RagService ragService;
+    private final RagConfig.JobsConfig jobsConfig;
+    private final ObjectMapper objectMapper;
+    private final Path directory;
+
+    private final Counter answered;
+    private final Counter failed;
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private ExecutorService runner;
+    private volatile boolean stopping;
+
+    /**
+     * Live state of a job; counters are kept apart from the persisted state so progress
+     * does not have to be written to disk
+     */
+    private static class Job {
+        volatile RagJob state;
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        volatile boolean cancelled;
+
+        Job(RagJob state) {
+            this.state = state;
+            // A job loaded from disk shows its last saved progress until the run recounts it
+            completed.set(state.getCompleted() != null ? state.getCompleted() : 0);
+            failed.set(state.getFailed() != null ? state.getFailed() : 0);
+        }
+
+        RagJob snapshot() {
+            return state.toBuilder().completed(completed.get()).failed(failed.get()).build();
+        }
+    }
+
+    public RagJobService(RagService ragService, RagConfig ragConfig, ObjectMapper objectMapper,
+                         MeterRegistry meterRegistry) {
+        this.ragService = ragService;
+        this.jobsConfig = ragConfig.getJobs();
+        this.objectMapper = objectMapper;
+        this.directory = Path.of(jobsConfig.getDirectory());
+
+        this.answered = meterRegistry.counter("rag.jobs.questions", "outcome", "answered");
+        this.failed = meterRegistry.counter("rag.jobs.questions", "outcome", "failed");
+    }
+
+    /**
+     * Load the jobs on disk and queue the unfinished ones again
+     */
+    @PostConstruct
+    void start() throws IOException {
+        runner = Executors.newSingleThreadExecutor(daemon("rag-job-runner"));
+
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+
+        List<Job> unfinished;
+        try (Stream<Path> listing = Files.list(directory)) {
+            unfinished = listing
+                .map(path -> path.resolve(STATE_FILE))
+                .filter(Files::isReadable)
+                .map(this::load)
+                .flatMap(Optional::stream)
+                .sorted(Comparator.comparing(job -> job.state.getCreatedAt()))
+                .filter(job -> job.state.getStatus() == RagJob.Status.QUEUED
+                    || job.state.getStatus() == RagJob.Status.RUNNING)
+                .toList();
+        }
+
+        for (Job job : unfinished) {
+            log.info("Resuming RAG job {}", job.state.getId());
+            runner.execute(() -> run(job));
+        }
+    }
+
+    /**
+     * Stop taking questions; questions still in flight get a short grace period and are
+     * otherwise answered again when the job resumes
+     */
+    @PreDestroy
+    void stop() throws InterruptedException {
+        stopping = true;
+        runner.shutdown();
+        if (!runner.awaitTermination(30, TimeUnit.SECONDS)) {
+            runner.shutdownNow();
+        }
+    }
+
+    /**
+     * Store a question set and queue a job for it
+     *
+     * @param questions JSONL, one {@link QueryRequest} per line
+     * @param searchMode Search mode for questions that do not set one
+     * @param maxResults Documents retrieved per question, for questions that do not set it (optional)
+     * @return The queued job
+     * @throws IllegalArgumentException if there are no questions
+     * @throws IOException if the questions cannot be stored
+     */
+    public RagJob submit(InputStream questions, String searchMode, Integer maxResults) throws IOException {
+        String id = UUID.randomUUID().toString();
+        Path jobDirectory = directory.resolve(id);
+        Files.createDirectories(jobDirectory);
+
+        int total = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(questions, StandardCharsets.UTF_8));
+             BufferedWriter writer = Files.newBufferedWriter(jobDirectory.resolve(QUESTIONS_FILE))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                writer.write(line);
+                writer.newLine();
+                total++;
+            }
+        } catch (IOException e) {
+            deleteQuietly(jobDirectory);
+            throw e;
+        }
+
+        if (total == 0) {
+            deleteQuietly(jobDirectory);
+            throw new IllegalArgumentException("Question set is empty");
+        }
+
+        Job job = new Job(RagJob.builder()
+            .id(id)
+            .status(RagJob.Status.QUEUED)
+            .total(total)
+            .searchMode(searchMode != null ? searchMode : "hybrid")
+            .maxResults(maxResults)
+            .createdAt(System.currentTimeMillis())
+            .build());
+        persist(job);
+        jobs.put(id, job);
+        runner.execute(() -> run(job));
+
+        log.info("Queued RAG job {} with {} questions", id, total);
+        return job.snapshot();
+    }
+
+    /**
+     * Current state of a job
+     */
+    public Optional<RagJob> getJob(String id) {
+        return Optional.ofNullable(jobs.get(id)).map(Job::snapshot);
+    }
+
+    /**
+     * All known jobs, newest first
+     */
+    public List<RagJob> listJobs() {
+        return jobs.values().stream()
+            .map(Job::snapshot)
+            .sorted(Comparator.comparing(RagJob::getCreatedAt).reversed())
+            .toList();
+    }
+
+    /**
+     * Copy the results written so far, complete lines only; all results once the job has completed
+     *
+     * @param id Job id
+     * @param out Receives JSONL in completion order
+     * @throws IOException if reading the results or writing them out fails
+     */
+    public void copyResults(String id, OutputStream out) throws IOException {
+        Path file = directory.resolve(id).resolve(RESULTS_FILE);
+        if (!jobs.containsKey(id) || !Files.exists(file)) {
+            return;
+        }
+
+        // The job may be appending; stop at the size seen now, and hold back a torn last line
+        long remaining = Files.size(file);
+        ByteArrayOutputStream partial = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while (remaining > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
+                remaining -= read;
+                int lineStart = 0;
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        partial.writeTo(out);
+                        partial.reset();
+                        out.write(buffer, lineStart, i + 1 - lineStart);
+                        lineStart = i + 1;
+                    }
+                }
+                partial.write(buffer, lineStart, read - lineStart);
+            }
+        }
+    }
+
+    /**
+     * Stop a queued or running job; results written so far are kept
+     *
+     * @return The job's state, empty if there is no such job
+     */
+    public Optional<RagJob> cancel(String id) {
+        Job job = jobs.get(id);
+        if (job == null) {
+            return Optional.empty();
+        }
+        synchronized (job) {
+            job.cancelled = true;
+            if (job.state.getStatus() == RagJob.Status.QUEUED) {
+                finish(job, RagJob.Status.CANCELLED, null);
+            }
+        }
+        return Optional.of(job.snapshot());
+    }
+
+    private void run(Job job) {
+        synchronized (job) {
+            if (job.cancelled || stopping) {
+                return;
+            }
+            job.state = job.state.toBuilder().status(RagJob.Status.RUNNING).build();
+            persist(job);
+        }
+
+        try {
+            new JobRun(job).process();
+            if (!stopping) {
+                finish(job, job.cancelled ? RagJob.Status.CANCELLED : RagJob.Status.COMPLETED, null);
+            }
+        } catch (InterruptedException e) {
+            // Shutting down; the job stays RUNNING on disk and resumes on the next start
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("RAG job {} failed", job.state.getId(), e);
+            finish(job, RagJob.Status.FAILED, e.getMessage());
+        }
+    }
+
+    private void finish(Job job, RagJob.Status status, String error) {
+        synchronized (job) {
+            job.state = job.state.toBuilder()
+                .status(status)
+                .finishedAt(System.currentTimeMillis())
+                .error(error)
+                .build();
+            persist(job);
+        }
+        log.info("RAG job {} {}: {} answered, {} failed", job.state.getId(), status.name().toLowerCase(),
+            job.completed.get(), job.failed.get());
+    }
+
+    /**
+     * One execution of a job, from the first unanswered question to the end of the question set
+     */
+    private class JobRun {
+
+        private final Job job;
+        private final Path jobDirectory;
+        private final Semaphore inFlight = new Semaphore(jobsConfig.getMaxInFlight());
+        private OutputStream results;
+        private ExecutorService generation;
+
+        JobRun(Job job) {
+            this.job = job;
+            this.jobDirectory = directory.resolve(job.state.getId());
+        }
+
+        void process() throws IOException, InterruptedException {
+            Path resultsFile = jobDirectory.resolve(RESULTS_FILE);
+            BitSet done = recover(resultsFile);
+
+            ExecutorService retrieval = Executors.newFixedThreadPool(jobsConfig.getRetrievalConcurrency(),
+                daemon("rag-job-retrieval"));
+            generation = Executors.newFixedThreadPool(jobsConfig.getGenerationConcurrency(),
+                daemon("rag-job-generation"));
+
+            try (BufferedReader questions = Files.newBufferedReader(jobDirectory.resolve(QUESTIONS_FILE));
+                 OutputStream out = new BufferedOutputStream(Files.newOutputStream(resultsFile,
+                     StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+                results = out;
+
+                String line;
+                int index = -1;
+                while (!job.cancelled && !stopping && (line = questions.readLine()) != null) {
+                    index++;
+                    if (done.get(index)) {
+                        continue;
+                    }
+                    inFlight.acquire();
+                    int questionIndex = index;
+                    String question = line;
+                    retrieval.execute(() -> retrieve(questionIndex, question));
+                }
+
+                // Wait for the questions still in flight
+                inFlight.acquire(jobsConfig.getMaxInFlight());
+            } finally {
+                retrieval.shutdownNow();
+                generation.shutdownNow();
+            }
+        }
+
+        /**
+         * Collect the questions answered in an earlier run
+         * A result line torn by a crash is cut off, so its question is answered again
+         */
+        private BitSet recover(Path resultsFile) throws IOException {
+            // The results file is the record of what was done; recount from it
+            job.completed.set(0);
+            job.failed.set(0);
+            BitSet done = new BitSet();
+            if (!Files.exists(resultsFile)) {
+                return done;
+            }
+
+            truncateAfterLastNewline(resultsFile);
+            try (BufferedReader reader = Files.newBufferedReader(resultsFile)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    JsonNode result = objectMapper.readTree(line);
+                    done.set(result.path("index").asInt());
+                    if (result.hasNonNull("error")) {
+                        job.failed.incrementAndGet();
+                    } else {
+                        job.completed.incrementAndGet();
+                    }
+                }
+            }
+
+            if (!done.isEmpty()) {
+                log.info("RAG job {} resumes after {} of {} questions", job.state.getId(),
+                    done.cardinality(), job.state.getTotal());
+            }
+            return done;
+        }
+
+        private void retrieve(int index, String line) {
+            try {
+                QueryRequest question;
+                try {
+                    question = objectMapper.readValue(line, QueryRequest.class);
+                } catch (JsonProcessingException e) {
+                    complete(failure(index, null, "Invalid question: " + e.getOriginalMessage()));
+                    return;
+                }
+                if (question.getQuery() == null || question.getQuery().isBlank()) {
+                    complete(failure(index, null, "Query cannot be empty"));
+                    return;
+                }
+
+                String searchMode = question.getSearchMode() != null ?
+                    question.getSearchMode() : job.state.getSearchMode();
+                Integer maxResults = question.getMaxResults() != null ?
+                    question.getMaxResults() : job.state.getMaxResults();
+
+                long start = System.currentTimeMillis();
+                List<MusicDocument> documents = withRetries(() ->
+                    ragService.retrieve(question.getQuery(), searchMode, maxResults));
+                long retrievalTime = System.currentTimeMillis() - start;
+
+                generation.execute(() -> generate(index, question.getQuery(), searchMode, documents, retrievalTime));
+            } catch (RuntimeException e) {
+                if (abandoned(e)) {
+                    inFlight.release();
+                    return;
+                }
+                complete(failure(index, null, "Retrieval failed: " + e.getMessage()));
+            }
+        }
+
+        private void generate(int index, String query, String searchMode, List<MusicDocument> documents,
+                              long retrievalTime) {
+            try {
+                RagResponse response = withRetries(() -> {
+                    RagResponse generated = ragService.generate(query, searchMode, documents, retrievalTime);
+                    if (RagService.GENERATION_ERROR_ANSWER.equals(generated.getAnswer())) {
+                        throw new IllegalStateException("LLM returned no answer");
+                    }
+                    return generated;
+                });
+                complete(RagJobResult.builder()
+                    .index(index)
+                    .query(query)
+                    .answer(response.getAnswer())
+                    .sources(response.getSources())
+                    .retrievalTimeMs(response.getRetrievalTimeMs())
+                    .generationTimeMs(response.getGenerationTimeMs())
+                    .build());
+            } catch (RuntimeException e) {
+                if (abandoned(e)) {
+                    inFlight.release();
+                    return;
+                }
+                complete(failure(index, query, "Generation failed: " + e.getMessage()));
+            }
+        }
+
+        /**
+         * Call a pipeline stage, backing off when it is overloaded or fails
+         */
+        private <T> T withRetries(Supplier<T> stage) {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    return stage.get();
+                } catch (RuntimeException e) {
+                    if (attempt >= jobsConfig.getMaxAttempts() || job.cancelled || stopping) {
+                        throw e;
+                    }
+                    long backoff = e instanceof OverloadedException overloaded ?
+                        TimeUnit.SECONDS.toMillis(overloaded.getRetryAfterSeconds()) : RETRY_BACKOFF_MS;
+                    try {
+                        Thread.sleep(backoff * attempt);
+                    } catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt();
+                        throw e;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Whether a question failed because the service is shutting down
+         * No result is written for it, so it is answered again when the job resumes
+         */
+        private boolean abandoned(RuntimeException e) {
+            if (stopping || Thread.currentThread().isInterrupted()) {
+                return true;
+            }
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof InterruptedException || cause instanceof InterruptedIOException
+                    || cause instanceof ClosedByInterruptException) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private RagJobResult failure(int index, String query, String error) {
+            return RagJobResult.builder().index(index).query(query).error(error).build();
+        }
+
+        /**
+         * Append a result and count it; the line is flushed so it survives a restart
+         */
+        private void complete(RagJobResult result) {
+            try {
+                byte[] line = objectMapper.writeValueAsBytes(result);
+                synchronized (this) {
+                    results.write(line);
+                    results.write('\n');
+                    results.flush();
+                }
+                if (result.getError() != null) {
+                    job.failed.incrementAndGet();
+                    failed.increment();
+                } else {
+                    job.completed.incrementAndGet();
+                    answered.increment();
+                }
+            } catch (IOException e) {
+                // Not counted, so the question is answered again when the job resumes
+                log.error("Error writing result {} of RAG job {}", result.getIndex(), job.state.getId(), e);
+            } finally {
+                inFlight.release();
+            }
+        }
+    }
+
+    /**
+     * Cut a file after its last newline
+     */
+    static void truncateAfterLastNewline(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            long end = channel.size();
+            while (end > 0) {
+                long start = Math.max(0, end - buffer.capacity());
+                buffer.clear().limit((int) (end - start));
+                channel.read(buffer, start);
+                for (int i = buffer.position() - 1; i >= 0; i--) {
+                    if (buffer.get(i) == '\n') {
+                        channel.truncate(start + i + 1);
+                        return;
+                    }
+                }
+                end = start;
+            }
+            channel.truncate(0);
+        }
+    }
+
+    private Optional<Job> load(Path stateFile) {
+        try {
+            Job job = new Job(objectMapper.readValue(stateFile.toFile(), RagJob.class));
+            jobs.put(job.state.getId(), job);
+            return Optional.of(job);
+        } catch (IOException e) {
+            log.error("Error loading RAG job state {}", stateFile, e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Write the job state, replacing the previous state atomically
+     */
+    private void persist(Job job) {
+        Path jobDirectory = directory.resolve(job.state.getId());
+        Path temporary = jobDirectory.resolve(STATE_FILE + ".tmp");
+        try {
+            objectMapper.writeValue(temporary.toFile(), job.snapshot());
+            Files.move(temporary, jobDirectory.resolve(STATE_FILE),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Error saving state of RAG job {}", job.state.getId(), e);
+        }
+    }
+
+    private static void deleteQuietly(Path jobDirectory) {
+        try (Stream<Path> files = Files.list(jobDirectory)) {
+            for (Path file : files.toList()) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(jobDirectory);
+        } catch (IOException e) {
+            log.warn("Error deleting {}", jobDirectory, e);
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
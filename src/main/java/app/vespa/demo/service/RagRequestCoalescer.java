@@ -0,0 +1,226 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.RagConfig;
+import app.vespa.demo.model.RagResponse;
+import io.micrometer.context.ContextExecutorService;
+import io.micrometer.context.ContextSnapshotFactory;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Single-flight deduplication of concurrent identical RAG questions
+ *
+ * Requests with the same normalized query, search mode and retrieval count share one
+ * pipeline execution while it is in flight. Streaming subscribers that join late first
+ * receive the chunks produced so far, then follow the live generation at their own pace.
+ * Completed executions are forgotten immediately, this is not a response cache.
+ *
+ * Shared executions run on a bounded pool; when it is full new questions are rejected
+ * with 503 instead of queueing behind it.
+ */
+@Slf4j
+@Service
+public class RagRequestCoalescer {
+
+    private final RagService ragService;
+    private final RagConfig ragConfig;
+
+    private final Map<Key, SharedExecution> inFlight = new ConcurrentHashMap<>();
+    // Shared executions are traced under the request that started them
+    private final ExecutorService executor;
+
+    public RagRequestCoalescer(RagService ragService, RagConfig ragConfig) {
+        this.ragService = ragService;
+        this.ragConfig = ragConfig;
+
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(0, ragConfig.getMaxBackgroundExecutions(),
+            60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "rag-shared-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        this.executor = ContextExecutorService.wrap(pool, ContextSnapshotFactory.builder().build());
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Run the RAG pipeline, or join an identical execution already in flight
+     * Blocks until the answer is complete
+     *
+     * @param userQuery User's question
+     * @param searchMode Search mode ("text", "semantic", "hybrid")
+     * @param maxResults Number of documents to retrieve (optional)
+     * @param onChunk Receives answer text chunks in generation order, from the beginning (optional)
+     * @return RAG response with generated answer and source documents
+     */
+    public RagResponse generateResponse(String userQuery, String searchMode, Integer maxResults,
+                                        Consumer<String> onChunk) {
+        if (!Boolean.TRUE.equals(ragConfig.getCoalesceRequests())) {
+            return onChunk != null ?
+                ragService.generateResponse(userQuery, searchMode, maxResults, onChunk) :
+                ragService.generateResponse(userQuery, searchMode, maxResults);
+        }
+
+        int numToRetrieve = ragService.resolveRetrievalCount(maxResults);
+        Key key = Key.of(userQuery, searchMode, numToRetrieve);
+
+        SharedExecution execution = new SharedExecution();
+        SharedExecution existing = inFlight.putIfAbsent(key, execution);
+
+        if (existing != null) {
+            log.debug("Joining in-flight RAG execution: query='{}'", userQuery);
+            RagResponse response = existing.follow(onChunk, ragConfig.getCoalesceWaitMs());
+            return response.toBuilder().query(userQuery).build();
+        }
+
+        // Run on the coalescer's own pool so a slow or disconnected first caller
+        // cannot stall the execution that other callers are sharing
+        try {
+            executor.execute(() -> {
+                try {
+                    execution.complete(ragService.generateResponse(
+                        userQuery, searchMode, numToRetrieve, execution::append));
+                } catch (Throwable e) {
+                    // Followers must always be woken, whatever went wrong
+                    log.error("Shared RAG execution failed", e);
+                    execution.fail(e);
+                    if (e instanceof Error error) {
+                        throw error;
+                    }
+                } finally {
+                    inFlight.remove(key, execution);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Callers that joined in the meantime are turned away as well
+            OverloadedException overloaded = new OverloadedException("rag-shared", 1);
+            execution.fail(overloaded);
+            inFlight.remove(key, execution);
+            throw overloaded;
+        }
+
+        return execution.follow(onChunk, ragConfig.getCoalesceWaitMs());
+    }
+
+    /**
+     * Normalize a query so trivially different spellings share an execution
+     */
+    private static String normalize(String query) {
+        return query.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Identity of an execution that identical questions share
+     */
+    record Key(String query, String searchMode, int maxResults) {
+
+        static Key of(String query, String searchMode, int maxResults) {
+            return new Key(normalize(query), searchMode.toLowerCase(Locale.ROOT), maxResults);
+        }
+    }
+
+    /**
+     * One pipeline execution shared by all of its subscribers
+     * Chunks are kept until completion so late subscribers can replay them
+     */
+    private static final class SharedExecution {
+
+        private final List<String> chunks = new ArrayList<>();
+        private RagResponse response;
+        private Throwable failure;
+        private boolean done;
+
+        synchronized void append(String chunk) {
+            chunks.add(chunk);
+            notifyAll();
+        }
+
+        synchronized void complete(RagResponse response) {
+            this.response = response;
+            this.done = true;
+            notifyAll();
+        }
+
+        synchronized void fail(Throwable failure) {
+            this.failure = failure;
+            this.done = true;
+            notifyAll();
+        }
+
+        /**
+         * Deliver all chunks, past and future, then return the final response
+         * Chunks are delivered outside the lock so a slow subscriber only delays itself
+         *
+         * @param onChunk Receives the chunks (optional)
+         * @param maxWaitMs Longest wait for the next chunk or the completion
+         * @throws IllegalStateException if the execution makes no progress within maxWaitMs
+         */
+        RagResponse follow(Consumer<String> onChunk, long maxWaitMs) {
+            int next = 0;
+
+            while (true) {
+                List<String> batch;
+                boolean finished;
+
+                synchronized (this) {
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+                    while (next == chunks.size() && !done) {
+                        long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                        if (remainingMs <= 0) {
+                            throw new IllegalStateException(
+                                "No progress on shared RAG execution within " + maxWaitMs + "ms");
+                        }
+                        try {
+                            wait(remainingMs);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IllegalStateException("Interrupted while waiting for RAG response", e);
+                        }
+                    }
+                    batch = new ArrayList<>(chunks.subList(next, chunks.size()));
+                    next = chunks.size();
+                    finished = done;
+                }
+
+                if (onChunk != null) {
+                    batch.forEach(onChunk);
+                }
+
+                // No chunks are appended after completion, so the batch above was the last one
+                if (finished) {
+                    synchronized (this) {
+                        if (failure instanceof RuntimeException runtimeFailure) {
+                            throw runtimeFailure;
+                        }
+                        if (failure != null) {
+                            throw new IllegalStateException("Shared RAG execution failed", failure);
+                        }
+                        return response;
+                    }
+                }
+            }
+        }
+    }
+}
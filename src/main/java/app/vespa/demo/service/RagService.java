@@ -3,24 +3,39 @@ package app.vespa.demo.service;
 import app.vespa.demo.config.RagConfig;
 import app.vespa.demo.model.MusicDocument;
 import app.vespa.demo.model.RagResponse;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
 
 /**
  * Service for RAG (Retrieval Augmented Generation) pipeline
- * Orchestrates document retrieval from Vespa and answer generation with Gemini LLM
+ * Orchestrates document retrieval from Vespa and answer generation with the configured LLM
+ * Each stage is observed (rag.retrieval, rag.context, rag.generation), so sampled requests
+ * show up as one trace with a span per stage
  */
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class RagService {
 
+    static final String NO_RESULTS_ANSWER =
+        "I couldn't find any relevant albums in the database to answer your question.";
+
+    static final String GENERATION_ERROR_ANSWER =
+        "I encountered an error while generating a response. Please try again.";
+
     private final VespaService vespaService;
+    private final DocumentLookupService documentLookupService;
     private final RagConfig ragConfig;
-    private final GeminiApiClient geminiApiClient;
+    private final LlmRouter llmRouter;
+    private final ObservationRegistry observationRegistry;
 
     /**
      * Main RAG pipeline: Retrieve relevant documents → Generate answer
@@ -31,35 +46,92 @@ public class RagService {
      * @return RAG response with generated answer and source documents
      */
     public RagResponse generateResponse(String userQuery, String searchMode, Integer maxResults) {
-        log.info("RAG pipeline started: query='{}', searchMode='{}'", userQuery, searchMode);
+        return runPipeline(userQuery, searchMode, maxResults, null);
+    }
 
-        long startTime = System.currentTimeMillis();
+    /**
+     * RAG pipeline that streams the generated answer while it is produced
+     *
+     * @param userQuery User's question
+     * @param searchMode Search mode ("text", "semantic", "hybrid")
+     * @param maxResults Number of documents to retrieve (optional)
+     * @param onChunk Receives answer text chunks in generation order
+     * @return RAG response with the complete answer and source documents
+     */
+    public RagResponse generateResponse(String userQuery, String searchMode, Integer maxResults,
+                                        Consumer<String> onChunk) {
+        return runPipeline(userQuery, searchMode, maxResults, onChunk);
+    }
+
+    private RagResponse runPipeline(String userQuery, String searchMode, Integer maxResults,
+                                    Consumer<String> onChunk) {
+        log.info("RAG pipeline started: query='{}', searchMode='{}'", userQuery, searchMode);
 
         // Step 1: Retrieve relevant documents from Vespa
         long retrievalStart = System.currentTimeMillis();
-        List<MusicDocument> documents = retrieveDocuments(userQuery, searchMode, maxResults);
+        List<MusicDocument> documents = retrieve(userQuery, searchMode, maxResults);
         long retrievalTime = System.currentTimeMillis() - retrievalStart;
 
-        log.debug("Retrieved {} documents in {}ms", documents.size(), retrievalTime);
+        // Steps 2 and 3: Build context and generate the answer
+        return answer(userQuery, searchMode, documents, retrievalTime, onChunk);
+    }
+
+    /**
+     * Retrieval stage of the pipeline on its own, for callers that schedule
+     * retrieval and generation separately
+     *
+     * @param userQuery User's question
+     * @param searchMode Search mode ("text", "semantic", "hybrid")
+     * @param maxResults Number of documents to retrieve (optional)
+     * @return Documents to answer from
+     */
+    public List<MusicDocument> retrieve(String userQuery, String searchMode, Integer maxResults) {
+        List<MusicDocument> documents = stage("rag.retrieval", searchMode)
+            .observe(() -> retrieveDocuments(userQuery, searchMode, maxResults));
+        log.debug("Retrieved {} documents", documents.size());
+        return documents;
+    }
+
+    /**
+     * Generation stage of the pipeline on its own, from documents retrieved earlier
+     *
+     * @param userQuery User's question
+     * @param searchMode Search mode the documents were retrieved with
+     * @param documents Documents from {@link #retrieve}
+     * @param retrievalTimeMs Time the retrieval took, reported in the response
+     * @return RAG response with generated answer and source documents
+     */
+    public RagResponse generate(String userQuery, String searchMode, List<MusicDocument> documents,
+                                long retrievalTimeMs) {
+        return answer(userQuery, searchMode, documents, retrievalTimeMs, null);
+    }
+
+    private RagResponse answer(String userQuery, String searchMode, List<MusicDocument> documents,
+                               long retrievalTime, Consumer<String> onChunk) {
+        long startTime = System.currentTimeMillis();
 
         // Handle no results case
         if (documents.isEmpty()) {
+            if (onChunk != null) {
+                onChunk.accept(NO_RESULTS_ANSWER);
+            }
             return RagResponse.builder()
                 .query(userQuery)
-                .answer("I couldn't find any relevant albums in the database to answer your question.")
+                .answer(NO_RESULTS_ANSWER)
                 .sources(List.of())
                 .retrievalTimeMs(retrievalTime)
                 .generationTimeMs(0L)
-                .totalTimeMs(System.currentTimeMillis() - startTime)
+                .totalTimeMs(retrievalTime + System.currentTimeMillis() - startTime)
                 .build();
         }
 
-        // Step 2: Build context from retrieved documents
-        String context = buildContext(documents);
+        // Build context from retrieved documents
+        String context = stage("rag.context", searchMode).observe(() -> buildContext(documents));
 
-        // Step 3: Generate response using Gemini
+        // Generate response using the LLM
         long generationStart = System.currentTimeMillis();
-        String answer = generateWithGemini(userQuery, context);
+        String answer = stage("rag.generation", searchMode)
+            .observe(() -> generateAnswer(userQuery, context, onChunk));
         long generationTime = System.currentTimeMillis() - generationStart;
 
         log.debug("Generated answer in {}ms", generationTime);
@@ -70,10 +142,18 @@ public class RagService {
             .sources(documents)
             .retrievalTimeMs(retrievalTime)
             .generationTimeMs(generationTime)
-            .totalTimeMs(System.currentTimeMillis() - startTime)
+            .totalTimeMs(retrievalTime + System.currentTimeMillis() - startTime)
             .build();
     }
 
+    /**
+     * Observation of one pipeline stage, a child of the current request's observation
+     */
+    private Observation stage(String name, String searchMode) {
+        return Observation.createNotStarted(name, observationRegistry)
+            .lowCardinalityKeyValue("search.mode", searchMode.toLowerCase());
+    }
+
     /**
      * Retrieve documents from Vespa using specified search mode
      *
@@ -83,18 +163,165 @@ public class RagService {
      * @return List of retrieved documents
      */
     private List<MusicDocument> retrieveDocuments(String query, String searchMode, Integer maxResults) {
-        int numToRetrieve = (maxResults != null && maxResults > 0) ?
-            maxResults : ragConfig.getMaxRetrievalResults();
+        Retrieval retrieval = planRetrieval(query, searchMode, maxResults);
+        return fetchText(select(retrieval, vespaService.search(retrieval.query())));
+    }
+
+    /**
+     * Vespa query of the retrieval stage, and the number of documents to pick from its hits
+     *
+     * @param query Query fetching the candidates
+     * @param documents Number of documents wanted
+     */
+    public record Retrieval(VespaQuery query, int documents) { }
+
+    /**
+     * Plan the retrieval of documents for a question
+     * With adaptive depth or diversity enabled, more candidates are fetched than documents
+     * wanted: with the minimal summary for adaptive depth, with the *_diverse rank profiles
+     * for diversity
+     *
+     * @param query Search query
+     * @param searchMode Search mode ("text", "semantic", "hybrid")
+     * @param maxResults Number of documents to retrieve (optional)
+     * @return Query to send, to be passed on to {@link #select} with its hits
+     */
+    public Retrieval planRetrieval(String query, String searchMode, Integer maxResults) {
+        int numToRetrieve = resolveRetrievalCount(maxResults);
+        String mode = normalizeMode(searchMode);
+        if (!mode.equals(searchMode.toLowerCase())) {
+            log.warn("Unknown search mode '{}', defaulting to hybrid", searchMode);
+        }
+
+        boolean adaptive = Boolean.TRUE.equals(ragConfig.getAdaptiveDepth().getEnabled());
+        RagConfig.DiversityConfig diversity = ragConfig.getDiversity();
+        boolean diverse = Boolean.TRUE.equals(diversity.getEnabled());
 
-        return switch (searchMode.toLowerCase()) {
-            case "text" -> vespaService.textSearch(query, numToRetrieve);
-            case "semantic" -> vespaService.semanticSearch(query, numToRetrieve);
-            case "hybrid" -> vespaService.hybridSearch(query, numToRetrieve);
-            default -> {
-                log.warn("Unknown search mode '{}', defaulting to hybrid", searchMode);
-                yield vespaService.hybridSearch(query, numToRetrieve);
+        int multiplier = 1;
+        if (adaptive) {
+            multiplier = Math.max(multiplier, ragConfig.getAdaptiveDepth().getCandidateMultiplier());
+        }
+        if (diverse) {
+            multiplier = Math.max(multiplier, diversity.getCandidateMultiplier());
+        }
+
+        VespaQuery.VespaQueryBuilder builder = VespaQuery.builder()
+            .searchMode(mode)
+            .query(query)
+            .hits(numToRetrieve * multiplier)
+            .rankProfile(diverse ? mode + "_diverse" : null);
+        if (adaptive) {
+            builder.summary("minimal");
+        }
+        return new Retrieval(builder.build(), numToRetrieve);
+    }
+
+    /**
+     * Pick the documents to answer from among the hits of a planned retrieval
+     * With adaptive depth, the candidates are cut where relevance drops off, so questions with
+     * one clearly matching album get a short prompt. With diversity, a diverse subset is
+     * picked by MMR, from the candidates that survive the cut: near-duplicates (e.g. several
+     * albums by the same artist with similar descriptions) would add prompt tokens without
+     * adding information. Does not block; hits without text still need {@link #fetchText}.
+     *
+     * @param retrieval Retrieval the hits were fetched for
+     * @param candidates Hits of the retrieval query
+     * @return Up to the wanted number of documents, in prompt order
+     */
+    public List<MusicDocument> select(Retrieval retrieval, List<MusicDocument> candidates) {
+        RagConfig.AdaptiveDepthConfig adaptiveDepth = ragConfig.getAdaptiveDepth();
+        List<MusicDocument> kept = candidates;
+        if (Boolean.TRUE.equals(adaptiveDepth.getEnabled())) {
+            kept = RelevanceCutoff.cut(candidates, adaptiveDepth.getMinRelativeScore(),
+                adaptiveDepth.getMinRelativeGap(), adaptiveDepth.getMinResults());
+            log.debug("Kept {} of {} candidates above the relevance cut-off", kept.size(), candidates.size());
+        }
+
+        RagConfig.DiversityConfig diversity = ragConfig.getDiversity();
+        if (Boolean.TRUE.equals(diversity.getEnabled())) {
+            List<MusicDocument> selected = MmrReranker.select(kept, retrieval.documents(),
+                diversity.getLambda(), diversity.getArtistWeight(), diversity.getMaxSimilarity());
+            log.debug("Selected {} diverse documents from {} candidates", selected.size(), kept.size());
+            return selected;
+        }
+
+        return kept.subList(0, Math.min(retrieval.documents(), kept.size()));
+    }
+
+    /**
+     * Fill in the text of documents retrieved with the minimal summary that have no passages
+     * Documents with passages or text, e.g. from the fallback index, are kept as they are;
+     * documents removed since the search are dropped. Blocks on the document lookup if any
+     * document lacks both, see {@link #needsText}.
+     *
+     * @param hits Documents in prompt order
+     * @return Documents with text, in the same order
+     */
+    public List<MusicDocument> fetchText(List<MusicDocument> hits) {
+        List<MusicDocument> withoutText = hits.stream()
+            .filter(hit -> !hasContext(hit))
+            .toList();
+        if (withoutText.isEmpty()) {
+            return hits;
+        }
+
+        List<Optional<MusicDocument>> fetched;
+        try {
+            fetched = documentLookupService.getAll(withoutText.stream().map(MusicDocument::getId).toList());
+        } catch (RuntimeException e) {
+            log.warn("Error fetching document text, answering from titles only: {}", e.getMessage());
+            return hits;
+        }
+
+        List<MusicDocument> documents = new ArrayList<>(hits.size());
+        int next = 0;
+        for (MusicDocument hit : hits) {
+            if (hasContext(hit)) {
+                documents.add(hit);
+                continue;
+            }
+            Optional<MusicDocument> document = fetched.get(next++);
+            if (document.isEmpty()) {
+                log.info("Dropping hit {} from the prompt, the document no longer exists", hit.getId());
+                continue;
             }
-        };
+            documents.add(hit.toBuilder()
+                .text(document.get().getText())
+                .categoryScores(document.get().getCategoryScores())
+                .build());
+        }
+        return documents;
+    }
+
+    /**
+     * Whether any document has neither passages nor text, so {@link #fetchText} has to look it up
+     */
+    public boolean needsText(List<MusicDocument> documents) {
+        return !documents.stream().allMatch(RagService::hasContext);
+    }
+
+    private static boolean hasContext(MusicDocument hit) {
+        return (hit.getPassages() != null && !hit.getPassages().isEmpty())
+            || (hit.getText() != null && !hit.getText().isEmpty());
+    }
+
+    /**
+     * Search mode in lower case, unknown modes as hybrid
+     */
+    private static String normalizeMode(String searchMode) {
+        String mode = searchMode.toLowerCase();
+        return mode.equals("text") || mode.equals("semantic") ? mode : "hybrid";
+    }
+
+    /**
+     * Resolve how many documents to retrieve, falling back to the configured default
+     *
+     * @param maxResults Requested number of documents (optional)
+     * @return Number of documents to retrieve
+     */
+    int resolveRetrievalCount(Integer maxResults) {
+        return (maxResults != null && maxResults > 0) ?
+            maxResults : ragConfig.getMaxRetrievalResults();
     }
 
     /**
@@ -103,54 +330,100 @@ public class RagService {
      * @param documents List of music documents
      * @return Formatted context string
      */
-    private String buildContext(List<MusicDocument> documents) {
+    String buildContext(List<MusicDocument> documents) {
+        return buildContext(documents, 1);
+    }
+
+    /**
+     * Build context string from retrieved documents, numbering them from firstNumber
+     * Conversations continue the numbering of earlier turns, so citations stay unambiguous
+     *
+     * @param documents List of music documents
+     * @param firstNumber Citation number of the first document
+     * @return Formatted context string
+     */
+    String buildContext(List<MusicDocument> documents, int firstNumber) {
         StringBuilder context = new StringBuilder();
         context.append("Here are the relevant albums from the database:\n\n");
 
         for (int i = 0; i < documents.size(); i++) {
             MusicDocument doc = documents.get(i);
-            context.append(String.format("[%d] Album: %s\n", i + 1, doc.getAlbum()));
+            context.append(String.format("[%d] Album: %s\n", firstNumber + i, doc.getAlbum()));
             context.append(String.format("    Artist: %s\n", doc.getArtist()));
             context.append(String.format("    Year: %d\n", doc.getYear()));
-            context.append(String.format("    Description: %s\n\n", doc.getText()));
+            if (doc.getPassages() != null && !doc.getPassages().isEmpty()) {
+                // Only the passages matching the question, to keep long descriptions out of the prompt
+                context.append(String.format("    Passages: %s\n\n", String.join(" [...] ", doc.getPassages())));
+            } else {
+                context.append(String.format("    Description: %s\n\n", doc.getText()));
+            }
         }
 
         return context.toString();
     }
 
     /**
-     * Generate answer using Gemini LLM with retrieved context
+     * Generate answer using the LLM with retrieved context
      *
      * @param userQuery User's question
      * @param context Context from retrieved documents
+     * @param onChunk Receives answer chunks if streaming, null otherwise
      * @return Generated answer
      */
-    private String generateWithGemini(String userQuery, String context) {
+    private String generateAnswer(String userQuery, String context, Consumer<String> onChunk) {
         try {
-            String systemPrompt = ragConfig.getGeneration().getSystemPrompt();
-
-            // Combine system prompt, context, and user query
-            String fullPrompt = String.format("""
-                %s
-
-                Context:
-                %s
+            String systemInstruction = buildSystemInstruction();
+            String prompt = buildPrompt(userQuery, context);
 
-                User Question: %s
-
-                Please provide a helpful answer based on the context above.
-                Cite specific albums and artists in your response.
-                """, systemPrompt, context, userQuery);
-
-            // Call custom Gemini API client
-            String response = geminiApiClient.generateText(fullPrompt);
+            String response = onChunk != null ?
+                llmRouter.streamText(systemInstruction, prompt, onChunk) :
+                llmRouter.generateText(systemInstruction, prompt);
 
             log.debug("Generated response length: {} chars", response.length());
             return response;
 
+        } catch (OverloadedException e) {
+            // Shed requests surface as 503 instead of an apologetic answer
+            throw e;
         } catch (Exception e) {
-            log.error("Error generating response with Gemini", e);
-            return "I encountered an error while generating a response. Please try again.";
+            log.error("Error generating response with LLM", e);
+            if (onChunk != null) {
+                onChunk.accept(GENERATION_ERROR_ANSWER);
+            }
+            return GENERATION_ERROR_ANSWER;
         }
     }
+
+    /**
+     * Static instructions shared by every request: the system prompt and answer format
+     * Kept apart from the per-request prompt so providers can cache it
+     *
+     * @return System instruction
+     */
+    String buildSystemInstruction() {
+        String systemPrompt = ragConfig.getGeneration().getSystemPrompt();
+
+        return String.format("""
+            %s
+
+            Please provide a helpful answer based on the context given with each question.
+            Cite specific albums and artists in your response.
+            """, systemPrompt);
+    }
+
+    /**
+     * Combine context and user query into the per-request LLM prompt
+     *
+     * @param userQuery User's question
+     * @param context Context from retrieved documents
+     * @return Per-request prompt
+     */
+    String buildPrompt(String userQuery, String context) {
+        return String.format("""
+            Context:
+            %s
+
+            User Question: %s
+            """, context, userQuery);
+    }
 }
@@ -0,0 +1,154 @@
+package app.vespa.demo.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Non-blocking Gemini client used by the reactive profile
+ * Request bodies and response parsing are shared with {@link GeminiApiClient}, and so is
+ * its contract: calls take a "gemini" permit, fail with {@link LlmException}, and are sent
+ * once more with the instruction inline if Gemini rejects the referenced cache entry
+ */
+@Slf4j
+@Service
+@Profile("reactive")
+public class ReactiveGeminiClient {
+
+    private static final Duration GENERATION_TIMEOUT = Duration.ofSeconds(30);
+
+    private static final ParameterizedTypeReference<ServerSentEvent<String>> SSE_TYPE =
+        new ParameterizedTypeReference<>() { };
+
+    private final GeminiApiClient geminiApiClient;
+    private final ConcurrencyLimiterRegistry limiterRegistry;
+    private final GeminiContextCache contextCache;
+    private final WebClient webClient;
+
+    public ReactiveGeminiClient(GeminiApiClient geminiApiClient, ConcurrencyLimiterRegistry limiterRegistry,
+                                GeminiContextCache contextCache, WebClient.Builder webClientBuilder) {
+        this.geminiApiClient = geminiApiClient;
+        this.limiterRegistry = limiterRegistry;
+        this.contextCache = contextCache;
+        this.webClient = webClientBuilder.clone().build();
+    }
+
+    /**
+     * Generate text using Gemini API
+     *
+     * @param systemInstruction Static instructions, sent through the context cache when possible
+     * @param prompt The prompt to send to Gemini
+     * @return Generated text response; fails with {@link LlmException} if the call fails, or
+     *     {@link OverloadedException} if the Gemini concurrency limit is reached
+     */
+    public Mono<String> generateText(String systemInstruction, String prompt) {
+        return admitted(withCacheRetry(systemInstruction, cachedContent -> {
+            log.debug("Calling Gemini API with prompt length: {}", prompt.length());
+            return webClient.post()
+                .uri(geminiApiClient.generateContentUri())
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(geminiApiClient.buildRequestBody(systemInstruction, List.of(), prompt, cachedContent))
+                .retrieve()
+                .bodyToMono(String.class)
+                .flux();
+        }))
+            .map(geminiApiClient::parseResponse)
+            .singleOrEmpty();
+    }
+
+    /**
+     * Stream generated text from Gemini as it is produced
+     * Demand from the subscriber is propagated to the HTTP connection, so a slow
+     * SSE client throttles reads from Gemini instead of buffering chunks
+     *
+     * @param systemInstruction Static instructions, sent through the context cache when possible
+     * @param prompt The prompt to send to Gemini
+     * @return Text chunks in generation order; fails with {@link LlmException} if the call fails,
+     *     or {@link OverloadedException} if the Gemini concurrency limit is reached
+     */
+    public Flux<String> streamText(String systemInstruction, String prompt) {
+        return admitted(withCacheRetry(systemInstruction, cachedContent -> {
+            log.debug("Streaming from Gemini API with prompt length: {}", prompt.length());
+            return webClient.post()
+                .uri(geminiApiClient.streamGenerateContentUri())
+                .contentType(MediaType.APPLICATION_JSON)
+                .accept(MediaType.TEXT_EVENT_STREAM)
+                .bodyValue(geminiApiClient.buildRequestBody(systemInstruction, List.of(), prompt, cachedContent))
+                .retrieve()
+                .bodyToFlux(SSE_TYPE)
+                .mapNotNull(ServerSentEvent::data);
+        }))
+            .map(geminiApiClient::parseChunk)
+            .filter(chunk -> !chunk.isEmpty());
+    }
+
+    /**
+     * Send a call referencing the cached system instruction, and once more with the
+     * instruction inline if Gemini rejects the cache entry
+     * The rejection comes with the response status, before any data, so nothing is emitted twice
+     */
+    private Flux<String> withCacheRetry(String systemInstruction, Function<String, Flux<String>> call) {
+        return Flux.defer(() -> {
+            String cachedContent = contextCache.handleFor(systemInstruction);
+            if (cachedContent == null) {
+                return call.apply(null);
+            }
+            return call.apply(cachedContent)
+                .onErrorResume(ReactiveGeminiClient::isCacheRejection, e -> {
+                    contextCache.invalidate(cachedContent);
+                    return call.apply(null);
+                });
+        });
+    }
+
+    private static boolean isCacheRejection(Throwable e) {
+        return e instanceof WebClientResponseException response
+            && GeminiApiClient.isCacheRejection(response.getStatusCode().value(), response.getResponseBodyAsString());
+    }
+
+    /**
+     * Run a call under a "gemini" permit, mapping its failures to {@link LlmException}
+     * Rate limiting, server errors and timeouts count as dropped; cancelled calls do not
+     */
+    private Flux<String> admitted(Flux<String> call) {
+        return Flux.defer(() -> {
+            ConcurrencyLimiterRegistry.AdmissionPermit permit = limiterRegistry.acquire("gemini");
+            AtomicBoolean dropped = new AtomicBoolean();
+
+            return call
+                .timeout(GENERATION_TIMEOUT)
+                .onErrorMap(e -> {
+                    if (e instanceof WebClientResponseException response) {
+                        log.error("Gemini API error: status={}, body={}",
+                            response.getStatusCode().value(), response.getResponseBodyAsString());
+                        dropped.set(response.getStatusCode().value() == 429 || response.getStatusCode().is5xxServerError());
+                        return new LlmException(geminiApiClient.name(),
+                            "Error calling Gemini API: " + response.getStatusCode().value());
+                    }
+                    log.error("Error calling Gemini API", e);
+                    dropped.set(true);
+                    return new LlmException(geminiApiClient.name(), "Error generating response: " + e.getMessage(), e);
+                })
+                .doFinally(signal -> {
+                    if (dropped.get() && signal == SignalType.ON_ERROR) {
+                        permit.releaseDropped();
+                    } else {
+                        permit.release();
+                    }
+                });
+        });
+    }
+}
@@ -0,0 +1,150 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.RagConfig;
+import app.vespa.demo.model.MusicDocument;
+import app.vespa.demo.model.RagResponse;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reactive variant of the RAG pipeline
+ * Reuses retrieval planning and selection (adaptive depth, diversity), prompt and context
+ * building from {@link RagService}, but never blocks a thread while waiting on Vespa or Gemini.
+ * Looking up the text of hits that have none blocks, and runs on the bounded elastic scheduler.
+ *
+ * Like {@link RagRequestCoalescer}, concurrent identical questions share one execution
+ * while it is in flight; a streamed answer is generated per request.
+ */
+@Slf4j
+@Service
+@Profile("reactive")
+@RequiredArgsConstructor
+public class ReactiveRagService {
+
+    private final RagService ragService;
+    private final RagConfig ragConfig;
+    private final ReactiveVespaClient reactiveVespaClient;
+    private final ReactiveGeminiClient reactiveGeminiClient;
+
+    private final Map<RagRequestCoalescer.Key, Mono<RagResponse>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Main RAG pipeline: Retrieve relevant documents → Generate answer
+     *
+     * @param userQuery User's question
+     * @param searchMode Search mode ("text", "semantic", "hybrid")
+     * @param maxResults Number of documents to retrieve (optional)
+     * @return RAG response with generated answer and source documents
+     */
+    public Mono<RagResponse> generateResponse(String userQuery, String searchMode, Integer maxResults) {
+        if (!Boolean.TRUE.equals(ragConfig.getCoalesceRequests())) {
+            return runPipeline(userQuery, searchMode, maxResults);
+        }
+
+        int numToRetrieve = ragService.resolveRetrievalCount(maxResults);
+        RagRequestCoalescer.Key key = RagRequestCoalescer.Key.of(userQuery, searchMode, numToRetrieve);
+
+        return Mono.defer(() -> {
+            // The shared execution cannot be cancelled by any one subscriber leaving
+            AtomicReference<Mono<RagResponse>> created = new AtomicReference<>();
+            Mono<RagResponse> shared = inFlight.computeIfAbsent(key, k -> {
+                Mono<RagResponse> execution = runPipeline(userQuery, searchMode, numToRetrieve)
+                    .doFinally(signal -> inFlight.remove(k, created.get()))
+                    .share();
+                created.set(execution);
+                return execution;
+            });
+            if (shared != created.get()) {
+                log.debug("Joining in-flight reactive RAG execution: query='{}'", userQuery);
+            }
+            return shared.map(response -> response.toBuilder().query(userQuery).build());
+        });
+    }
+
+    private Mono<RagResponse> runPipeline(String userQuery, String searchMode, Integer maxResults) {
+        log.info("Reactive RAG pipeline started: query='{}', searchMode='{}'", userQuery, searchMode);
+
+        long startTime = System.currentTimeMillis();
+
+        return retrieveDocuments(userQuery, searchMode, maxResults)
+            .flatMap(documents -> {
+                long retrievalTime = System.currentTimeMillis() - startTime;
+
+                if (documents.isEmpty()) {
+                    return Mono.just(buildResponse(userQuery, RagService.NO_RESULTS_ANSWER, documents,
+                        retrievalTime, 0L, startTime));
+                }
+
+                long generationStart = System.currentTimeMillis();
+                return reactiveGeminiClient.generateText(ragService.buildSystemInstruction(), buildPrompt(userQuery, documents))
+                    .onErrorResume(LlmException.class, e -> {
+                        log.error("Error generating response with LLM", e);
+                        return Mono.just(RagService.GENERATION_ERROR_ANSWER);
+                    })
+                    .map(answer -> buildResponse(userQuery, answer, documents, retrievalTime,
+                        System.currentTimeMillis() - generationStart, startTime));
+            });
+    }
+
+    /**
+     * Retrieve documents from Vespa using specified search mode, as {@link RagService#retrieve} does
+     *
+     * @param query Search query
+     * @param searchMode Search mode ("text", "semantic", "hybrid")
+     * @param maxResults Number of documents to retrieve (optional)
+     * @return Retrieved documents
+     */
+    public Mono<List<MusicDocument>> retrieveDocuments(String query, String searchMode, Integer maxResults) {
+        return Mono.defer(() -> {
+            RagService.Retrieval retrieval = ragService.planRetrieval(query, searchMode, maxResults);
+            return reactiveVespaClient.search(retrieval.query())
+                .map(candidates -> ragService.select(retrieval, candidates));
+        }).flatMap(documents -> ragService.needsText(documents) ?
+            Mono.fromCallable(() -> ragService.fetchText(documents)).subscribeOn(Schedulers.boundedElastic()) :
+            Mono.just(documents));
+    }
+
+    /**
+     * Stream the generated answer for already retrieved documents
+     *
+     * @param userQuery User's question
+     * @param documents Retrieved documents
+     * @return Answer text chunks in generation order
+     */
+    public Flux<String> streamAnswer(String userQuery, List<MusicDocument> documents) {
+        if (documents.isEmpty()) {
+            return Flux.just(RagService.NO_RESULTS_ANSWER);
+        }
+        return reactiveGeminiClient.streamText(ragService.buildSystemInstruction(), buildPrompt(userQuery, documents))
+            .onErrorResume(LlmException.class, e -> {
+                log.error("Error generating response with LLM", e);
+                return Flux.just(RagService.GENERATION_ERROR_ANSWER);
+            });
+    }
+
+    private String buildPrompt(String userQuery, List<MusicDocument> documents) {
+        return ragService.buildPrompt(userQuery, ragService.buildContext(documents));
+    }
+
+    private RagResponse buildResponse(String userQuery, String answer, List<MusicDocument> documents,
+                                      long retrievalTime, long generationTime, long startTime) {
+        return RagResponse.builder()
+            .query(userQuery)
+            .answer(answer)
+            .sources(documents)
+            .retrievalTimeMs(retrievalTime)
+            .generationTimeMs(generationTime)
+            .totalTimeMs(System.currentTimeMillis() - startTime)
+            .build();
+    }
+}
@@ -0,0 +1,161 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.VespaConfig;
+import app.vespa.demo.model.MusicDocument;
+import io.netty.channel.ChannelOption;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking Vespa client used by the reactive profile
+ * Shares query building and response parsing with {@link VespaService}, only the transport differs
+ * Queries count against the same "vespa" concurrency limit as blocking ones; the fallback index
+ * is searched on the bounded elastic scheduler, since it blocks
+ */
+@Slf4j
+@Service
+@Profile("reactive")
+public class ReactiveVespaClient {
+
+    private static final int MAX_RESPONSE_BYTES = 4 * 1024 * 1024;
+
+    private final VespaService vespaService;
+    private final VespaEndpointSelector endpointSelector;
+    private final ConcurrencyLimiterRegistry limiterRegistry;
+    private final WebClient webClient;
+
+    public ReactiveVespaClient(VespaService vespaService, VespaEndpointSelector endpointSelector,
+                               ConcurrencyLimiterRegistry limiterRegistry, VespaConfig vespaConfig,
+                               WebClient.Builder webClientBuilder) {
+        this.vespaService = vespaService;
+        this.endpointSelector = endpointSelector;
+        this.limiterRegistry = limiterRegistry;
+
+        ConnectionProvider connectionProvider = ConnectionProvider.builder("vespa")
+            .maxConnections(vespaConfig.getMaxConnections())
+            .build();
+
+        HttpClient httpClient = HttpClient.create(connectionProvider)
+            .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, vespaConfig.getConnectionTimeoutMs())
+            .responseTimeout(Duration.ofMillis(vespaConfig.getTimeoutMs()))
+            // Sends Accept-Encoding: gzip and decompresses responses
+            .compress(Boolean.TRUE.equals(vespaConfig.getCompressResponses()));
+
+        this.webClient = webClientBuilder.clone()
+            .clientConnector(new ReactorClientHttpConnector(httpClient))
+            .codecs(codecs -> codecs.defaultCodecs().maxInMemorySize(MAX_RESPONSE_BYTES))
+            .build();
+    }
+
+    /**
+     * Search Vespa using the given search mode
+     *
+     * @param searchMode Search mode ("text", "semantic", "hybrid")
+     * @param query The search query
+     * @param maxResults Maximum number of results to return
+     * @return Matching music documents, empty on failure; fails with {@link OverloadedException}
+     *     if the Vespa concurrency limit is reached
+     */
+    public Mono<List<MusicDocument>> search(String searchMode, String query, int maxResults) {
+        return search(VespaQuery.builder()
+            .searchMode(searchMode)
+            .query(query)
+            .hits(maxResults)
+            .build());
+    }
+
+    /**
+     * Search Vespa with full control over rank profile, summary and query tensors
+     *
+     * @param vespaQuery Query to execute
+     * @return Matching music documents, empty on failure; fails with {@link OverloadedException}
+     *     if the Vespa concurrency limit is reached
+     */
+    public Mono<List<MusicDocument>> search(VespaQuery vespaQuery) {
+        log.debug("Performing reactive {} search: query='{}', maxResults={}",
+            vespaQuery.getSearchMode(), vespaQuery.getQuery(), vespaQuery.getHits());
+
+        return Mono.defer(() -> exchange(vespaQuery))
+            .map(body -> vespaService.parseVespaResponse(body, vespaQuery))
+            .onErrorResume(e -> {
+                if (e instanceof OverloadedException) {
+                    return Mono.error(e);
+                }
+                log.error("Error executing Vespa query", e);
+                // Rejected queries stay rejected, only an unavailable Vespa falls back
+                if (isClientError(e)) {
+                    return Mono.just(Collections.emptyList());
+                }
+                return Mono.fromCallable(() -> vespaService.searchFallback(vespaQuery))
+                    .subscribeOn(Schedulers.boundedElastic());
+            });
+    }
+
+    /**
+     * Send the query to the selected endpoint under a "vespa" permit, and record the outcome
+     * at the endpoint and the limiter once the exchange ends
+     */
+    private Mono<String> exchange(VespaQuery query) {
+        ConcurrencyLimiterRegistry.AdmissionPermit permit = limiterRegistry.acquire("vespa");
+        VespaEndpointSelector.Endpoint endpoint = endpointSelector.select();
+        long start = System.nanoTime();
+        AtomicBoolean failed = new AtomicBoolean();
+
+        return send(endpoint.getUrl(), query)
+            .doOnError(e -> failed.set(!isClientError(e)))
+            .doFinally(signal -> {
+                endpoint.complete(start, !failed.get());
+                if (failed.get()) {
+                    permit.releaseDropped();
+                } else {
+                    permit.release();
+                }
+            });
+    }
+
+    private static boolean isClientError(Throwable e) {
+        return e instanceof WebClientResponseException response && response.getStatusCode().is4xxClientError();
+    }
+
+    /**
+     * Send the query with the configured query method
+     * The POST body is copied out of the pooled buffer since it is written asynchronously
+     */
+    private Mono<String> send(String endpoint, VespaQuery query) {
+        if (vespaService.usePost()) {
+            byte[] body;
+            try {
+                body = vespaService.buildSearchBody(query).copy();
+            } catch (IOException e) {
+                return Mono.error(e);
+            }
+
+            return webClient.post()
+                .uri(vespaService.searchEndpointUri(endpoint))
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(body)
+                .retrieve()
+                .bodyToMono(String.class);
+        }
+
+        return webClient.get()
+            .uri(vespaService.buildSearchUri(endpoint, query))
+            .retrieve()
+            .bodyToMono(String.class);
+    }
+}
@@ -0,0 +1,66 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.model.MusicDocument;
+
+import java.util.List;
+
+/**
+ * Cuts a ranked hit list where relevance drops off
+ *
+ * Hits scoring below a share of the top score are dropped, and of the rest only those before
+ * the largest drop between neighbouring scores are kept, if that drop is large enough. Both are
+ * relative to the top score, since Vespa scores have no fixed scale. Easy questions, where one
+ * or two hits stand out, end up with a short list; a flat score distribution keeps all hits.
+ */
+final class RelevanceCutoff {
+
+    private RelevanceCutoff() {
+    }
+
+    /**
+     * Cut a hit list
+     *
+     * @param ranked Hits in descending relevance order
+     * @param minRelativeScore Hits scoring below this share of the top score are dropped
+     * @param minRelativeGap Smallest drop between neighbouring scores, as a share of the top score, to cut at
+     * @param minHits Hits kept regardless of their scores
+     * @return Leading part of the hit list
+     */
+    static List<MusicDocument> cut(List<MusicDocument> ranked, double minRelativeScore, double minRelativeGap,
+                                   int minHits) {
+        if (ranked.size() <= minHits) {
+            return ranked;
+        }
+        double top = relevance(ranked.get(0));
+        if (top <= 0) {
+            return ranked;
+        }
+
+        int keep = ranked.size();
+        for (int i = minHits; i < ranked.size(); i++) {
+            if (relevance(ranked.get(i)) < minRelativeScore * top) {
+                keep = i;
+                break;
+            }
+        }
+
+        double largestGap = 0;
+        int gapAt = keep;
+        for (int i = Math.max(1, minHits); i < keep; i++) {
+            double gap = (relevance(ranked.get(i - 1)) - relevance(ranked.get(i))) / top;
+            if (gap > largestGap) {
+                largestGap = gap;
+                gapAt = i;
+            }
+        }
+        if (largestGap >= minRelativeGap) {
+            keep = gapAt;
+        }
+
+        return ranked.subList(0, keep);
+    }
+
+    private static double relevance(MusicDocument document) {
+        return document.getRelevance() != null ? document.getRelevance() : 0;
+    }
+}
@@ -0,0 +1,152 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.WarmupConfig;
+import app.vespa.demo.model.MusicDocument;
+import app.vespa.demo.model.QueryRequest;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replays the most frequent recorded queries before the application reports ready
+ *
+ * Runs the search, response parsing and prompt building paths so the JIT compiles them,
+ * and opens Vespa connections up front, before real traffic arrives. The LLM is not
+ * called. Spring Boot publishes readiness (ACCEPTING_TRAFFIC) only after all
+ * application runners have finished, so the readiness probe stays down until warm-up
+ * completes or its time budget runs out.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class StartupWarmup implements ApplicationRunner {
+
+    private final WarmupConfig warmupConfig;
+    private final ObjectMapper objectMapper;
+    private final VespaService vespaService;
+    private final RagService ragService;
+
+    /**
+     * A distinct recorded query
+     */
+    record RecordedQuery(String query, String searchMode, int maxResults) {
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!Boolean.TRUE.equals(warmupConfig.getEnabled()) || warmupConfig.getQueryLogPath() == null) {
+            return;
+        }
+
+        Path queryLog = Path.of(warmupConfig.getQueryLogPath());
+        if (!Files.isReadable(queryLog)) {
+            log.warn("Warm-up query log {} not found, skipping warm-up", queryLog);
+            return;
+        }
+
+        List<RecordedQuery> queries;
+        try {
+            queries = topQueries(queryLog, warmupConfig.getTopQueries());
+        } catch (IOException e) {
+            log.error("Error reading warm-up query log {}", queryLog, e);
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        long deadline = start + warmupConfig.getTimeBudgetMs();
+        AtomicInteger completed = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(warmupConfig.getConcurrency());
+        for (RecordedQuery query : queries) {
+            executor.execute(() -> {
+                if (System.currentTimeMillis() < deadline) {
+                    replay(query);
+                    completed.incrementAndGet();
+                }
+            });
+        }
+        executor.shutdown();
+
+        try {
+            if (!executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                log.warn("Warm-up time budget of {}ms exhausted", warmupConfig.getTimeBudgetMs());
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        log.info("Warm-up replayed {} of {} queries in {}ms",
+            completed.get(), queries.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Run one query through search and prompt building, ignoring failures
+     */
+    private void replay(RecordedQuery query) {
+        try {
+            List<MusicDocument> documents = vespaService.search(VespaQuery.builder()
+                .searchMode(query.searchMode())
+                .query(query.query())
+                .hits(query.maxResults())
+                .build());
+            ragService.buildSystemInstruction();
+            ragService.buildPrompt(query.query(), ragService.buildContext(documents));
+        } catch (RuntimeException e) {
+            log.debug("Warm-up query '{}' failed: {}", query.query(), e.getMessage());
+        }
+    }
+
+    /**
+     * Read the query log and rank distinct queries by frequency
+     *
+     * @param queryLog JSONL file of request bodies ({"query": ..., "searchMode": ..., "maxResults": ...})
+     * @param limit Number of queries to return
+     * @return Most frequent queries, most frequent first
+     */
+    List<RecordedQuery> topQueries(Path queryLog, int limit) throws IOException {
+        Map<RecordedQuery, Integer> counts = new HashMap<>();
+
+        try (BufferedReader reader = Files.newBufferedReader(queryLog, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                QueryRequest request = objectMapper.readValue(line, QueryRequest.class);
+                if (request.getQuery() == null || request.getQuery().isBlank()) {
+                    continue;
+                }
+
+                String searchMode = request.getSearchMode() != null ?
+                    request.getSearchMode().toLowerCase(Locale.ROOT) : "hybrid";
+                int maxResults = ragService.resolveRetrievalCount(request.getMaxResults());
+                counts.merge(new RecordedQuery(request.getQuery().trim(), searchMode, maxResults), 1, Integer::sum);
+            }
+        }
+
+        return counts.entrySet().stream()
+            .sorted(Map.Entry.<RecordedQuery, Integer>comparingByValue().reversed())
+            .limit(limit)
+            .map(Map.Entry::getKey)
+            .toList();
+    }
+}
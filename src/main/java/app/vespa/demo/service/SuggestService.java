@@ -0,0 +1,213 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.SuggestConfig;
+import app.vespa.demo.model.MusicDocument;
+import app.vespa.demo.model.Suggestion;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Search-as-you-type suggestions over artist and album names
+ *
+ * Answers from an in-memory {@link PrefixDictionary} without calling Vespa, so keystrokes
+ * do not turn into full searches. The names are read from the fallback index, which has
+ * already parsed the corpus; attribute updates never change them.
+ *
+ * Optionally prefetches a search for the top completion in the background and keeps its
+ * hits for a short while, so the search the user submits next is answered without Vespa.
+ * Prefetches are deduplicated and dropped when the prefetch queue is full, so they never
+ * compete with user searches for more than a couple of threads.
+ */
+@Slf4j
+@Service
+public class SuggestService {
+
+    /**
+     * Hits per prefetch, the default of the search endpoint
+     */
+    static final int PREFETCH_HITS = 5;
+
+    private static final int MAX_PREFETCHED = 1000;
+
+    private final SuggestConfig suggestConfig;
+    private final ObjectMapper objectMapper;
+    private final VespaService vespaService;
+    private final FallbackSearchIndex fallbackIndex;
+
+    private volatile PrefixDictionary dictionary = PrefixDictionary.empty();
+
+    private final Map<String, Long> recentPrefetches = new ConcurrentHashMap<>();
+
+    /**
+     * Hits of recent prefetches by query, least recently prefetched first
+     */
+    private final Map<String, Prefetched> prefetched = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Prefetched> eldest) {
+            return size() > MAX_PREFETCHED;
+        }
+    };
+
+    private final ThreadPoolExecutor prefetchExecutor;
+
+    public SuggestService(SuggestConfig suggestConfig, ObjectMapper objectMapper, VespaService vespaService,
+                          FallbackSearchIndex fallbackIndex) {
+        this.suggestConfig = suggestConfig;
+        this.objectMapper = objectMapper;
+        this.vespaService = vespaService;
+        this.fallbackIndex = fallbackIndex;
+
+        AtomicInteger count = new AtomicInteger();
+        this.prefetchExecutor = new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(16), runnable -> {
+                Thread thread = new Thread(runnable, "suggest-prefetch-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    /**
+     * Build the dictionary at startup, from the fallback index or else from the corpus
+     */
+    @PostConstruct
+    void load() {
+        long start = System.currentTimeMillis();
+        Map<String, Integer> artists = new LinkedHashMap<>();
+        Map<String, Integer> albums = new LinkedHashMap<>();
+
+        if (fallbackIndex.size() > 0) {
+            fallbackIndex.forEachName((artist, album) -> count(artists, albums, artist, album));
+        } else {
+            if (suggestConfig.getCorpusPath() == null) {
+                return;
+            }
+            Path corpus = Path.of(suggestConfig.getCorpusPath());
+            if (!Files.isReadable(corpus)) {
+                log.warn("Suggest corpus {} not found, suggestions are empty", corpus);
+                return;
+            }
+            try {
+                FeedReader.read(corpus, objectMapper,
+                    document -> count(artists, albums, document.getArtist(), document.getAlbum()));
+            } catch (IOException e) {
+                log.error("Error loading suggest corpus {}", corpus, e);
+                return;
+            }
+        }
+
+        List<PrefixDictionary.Entry> entries = new ArrayList<>(artists.size() + albums.size());
+        artists.forEach((artist, count) -> entries.add(new PrefixDictionary.Entry(artist, "artist", count)));
+        albums.forEach((album, count) -> entries.add(new PrefixDictionary.Entry(album, "album", count)));
+
+        dictionary = PrefixDictionary.build(entries, suggestConfig.getMaxSuggestions());
+        log.info("Built suggest dictionary with {} entries in {}ms",
+            dictionary.size(), System.currentTimeMillis() - start);
+    }
+
+    private static void count(Map<String, Integer> artists, Map<String, Integer> albums, String artist, String album) {
+        if (artist != null && !artist.isBlank()) {
+            artists.merge(artist, 1, Integer::sum);
+        }
+        if (album != null && !album.isBlank()) {
+            albums.merge(album, 1, Integer::sum);
+        }
+    }
+
+    @PreDestroy
+    void stop() {
+        prefetchExecutor.shutdownNow();
+    }
+
+    /**
+     * Complete a typed prefix
+     *
+     * @param prefix Typed text
+     * @param limit Maximum number of suggestions
+     * @return Suggestions, best first
+     */
+    public List<Suggestion> suggest(String prefix, int limit) {
+        List<Suggestion> suggestions = dictionary.lookup(prefix, limit).stream()
+            .map(entry -> Suggestion.builder()
+                .text(entry.text())
+                .type(entry.type())
+                .documentCount(entry.weight())
+                .build())
+            .toList();
+
+        if (Boolean.TRUE.equals(suggestConfig.getPrefetch()) && !suggestions.isEmpty()
+            && prefix.trim().length() >= suggestConfig.getPrefetchMinLength()) {
+            prefetch(suggestions.get(0).getText());
+        }
+        return suggestions;
+    }
+
+    /**
+     * Hits of a prefetched hybrid search for a query, if one finished within the prefetch TTL
+     *
+     * @param query Submitted query
+     * @param maxResults Number of hits wanted
+     * @return The best maxResults hits, empty if the query was not prefetched or more hits are wanted
+     */
+    public Optional<List<MusicDocument>> prefetched(String query, int maxResults) {
+        Prefetched entry;
+        synchronized (prefetched) {
+            entry = prefetched.get(query);
+        }
+        if (entry == null || System.currentTimeMillis() - entry.timestamp() >= suggestConfig.getPrefetchTtlMs()
+            || maxResults > PREFETCH_HITS) {
+            return Optional.empty();
+        }
+        return Optional.of(entry.documents().subList(0, Math.min(maxResults, entry.documents().size())));
+    }
+
+    /**
+     * Run the search the user is most likely to submit next, at most once per TTL
+     */
+    private void prefetch(String query) {
+        long now = System.currentTimeMillis();
+        Long last = recentPrefetches.get(query);
+        if (last != null && now - last < suggestConfig.getPrefetchTtlMs()) {
+            return;
+        }
+        if (recentPrefetches.size() > 10_000) {
+            recentPrefetches.clear();
+        }
+        recentPrefetches.put(query, now);
+
+        prefetchExecutor.execute(() -> {
+            try {
+                List<MusicDocument> documents = vespaService.hybridSearch(query, PREFETCH_HITS);
+                // An empty result is more likely a failure than a real answer, so it is not kept
+                if (!documents.isEmpty()) {
+                    synchronized (prefetched) {
+                        prefetched.remove(query);
+                        prefetched.put(query, new Prefetched(System.currentTimeMillis(), List.copyOf(documents)));
+                    }
+                }
+                log.debug("Prefetched search for suggestion '{}'", query);
+            } catch (RuntimeException e) {
+                // Shed by admission control or failed; prefetching is best effort
+                log.debug("Prefetch for '{}' skipped: {}", query, e.getMessage());
+            }
+        });
+    }
+
+    private record Prefetched(long timestamp, List<MusicDocument> documents) { }
+}
@@ -0,0 +1,240 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.RecorderConfig;
+import app.vespa.demo.model.QueryRequest;
+import app.vespa.demo.model.RagResponse;
+import app.vespa.demo.model.Recording;
+import app.vespa.demo.model.SearchResponse;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records a sample of search and RAG requests for replay benchmarking
+ *
+ * Request threads only decide whether to sample and hand the recording to a lock-free
+ * ring buffer; a dedicated writer thread serializes it to rotating gzip-compressed JSONL
+ * files. When the writer falls behind, recordings are dropped instead of blocking requests.
+ */
+@Slf4j
+@Service
+public class TrafficRecorder {
+
+    private static final DateTimeFormatter FILE_TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final RecorderConfig recorderConfig;
+    private final ObjectMapper objectMapper;
+    private final RingBuffer<Recording> buffer;
+
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private Thread writer;
+    private volatile boolean running;
+
+    private OutputStream out;
+    private long fileBytes;
+
+    public TrafficRecorder(RecorderConfig recorderConfig, ObjectMapper objectMapper, MeterRegistry meterRegistry) {
+        this.recorderConfig = recorderConfig;
+        this.objectMapper = objectMapper;
+        this.buffer = new RingBuffer<>(recorderConfig.getBufferSize());
+
+        FunctionCounter.builder("recorder.recorded", recorded, AtomicLong::get).register(meterRegistry);
+        FunctionCounter.builder("recorder.dropped", dropped, AtomicLong::get).register(meterRegistry);
+    }
+
+    @PostConstruct
+    void start() {
+        if (!isEnabled()) {
+            return;
+        }
+
+        running = true;
+        writer = new Thread(this::writeLoop, "traffic-recorder");
+        writer.setDaemon(true);
+        writer.start();
+        log.info("Recording {}% of requests to {}", recorderConfig.getSampleRate() * 100, recorderConfig.getDirectory());
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        if (writer == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writer);
+        writer.join(TimeUnit.SECONDS.toMillis(5));
+    }
+
+    public boolean isEnabled() {
+        return Boolean.TRUE.equals(recorderConfig.getEnabled());
+    }
+
+    /**
+     * Record a completed search, if sampled
+     */
+    public void recordSearch(QueryRequest request, SearchResponse response) {
+        if (!sample()) {
+            return;
+        }
+
+        offer(Recording.builder()
+            .type("search")
+            .timestamp(System.currentTimeMillis())
+            .request(request)
+            .results(response.getResults())
+            .timings(Map.of("total", response.getSearchTimeMs()))
+            .build());
+    }
+
+    /**
+     * Record a completed RAG request, if sampled
+     */
+    public void recordRag(QueryRequest request, RagResponse response) {
+        if (!sample()) {
+            return;
+        }
+
+        offer(Recording.builder()
+            .type("rag")
+            .timestamp(System.currentTimeMillis())
+            .request(request)
+            .results(response.getSources())
+            .answer(response.getAnswer())
+            .timings(Map.of(
+                "retrieval", response.getRetrievalTimeMs(),
+                "generation", response.getGenerationTimeMs(),
+                "total", response.getTotalTimeMs()))
+            .build());
+    }
+
+    private boolean sample() {
+        return running && ThreadLocalRandom.current().nextDouble() < recorderConfig.getSampleRate();
+    }
+
+    private void offer(Recording recording) {
+        if (buffer.offer(recording)) {
+            recorded.incrementAndGet();
+        } else {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drain the buffer until stopped, flushing at most once a second when idle
+     */
+    private void writeLoop() {
+        long lastFlush = System.nanoTime();
+        boolean dirty = false;
+
+        while (running) {
+            Recording recording = buffer.poll();
+            if (recording != null) {
+                write(recording);
+                dirty = true;
+                continue;
+            }
+
+            if (dirty && System.nanoTime() - lastFlush > FLUSH_INTERVAL_NANOS) {
+                flush();
+                dirty = false;
+                lastFlush = System.nanoTime();
+            }
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+
+        Recording recording;
+        while ((recording = buffer.poll()) != null) {
+            write(recording);
+        }
+        closeFile();
+    }
+
+    private void write(Recording recording) {
+        try {
+            byte[] line = objectMapper.writeValueAsBytes(recording);
+            if (out == null || fileBytes + line.length + 1 > recorderConfig.getMaxFileBytes()) {
+                rotate();
+            }
+            out.write(line);
+            out.write('\n');
+            fileBytes += line.length + 1;
+        } catch (IOException e) {
+            log.error("Error writing recording, dropping it", e);
+            dropped.incrementAndGet();
+            closeFile();
+        }
+    }
+
+    private void rotate() throws IOException {
+        closeFile();
+
+        Path directory = Path.of(recorderConfig.getDirectory());
+        Files.createDirectories(directory);
+        Path file = directory.resolve("recording-" + LocalDateTime.now().format(FILE_TIMESTAMP) + ".jsonl.gz");
+
+        out = new GZIPOutputStream(Files.newOutputStream(file), 64 * 1024, true);
+        fileBytes = 0;
+        log.debug("Recording to {}", file);
+
+        pruneOldFiles(directory);
+    }
+
+    private void pruneOldFiles(Path directory) throws IOException {
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(directory)) {
+            files = listing
+                .filter(path -> path.getFileName().toString().startsWith("recording-"))
+                .sorted()
+                .toList();
+        }
+        for (int i = 0; i < files.size() - recorderConfig.getMaxFiles(); i++) {
+            Files.deleteIfExists(files.get(i));
+        }
+    }
+
+    private void flush() {
+        try {
+            if (out != null) {
+                out.flush();
+            }
+        } catch (IOException e) {
+            log.error("Error flushing recordings", e);
+            closeFile();
+        }
+    }
+
+    private void closeFile() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            log.error("Error closing recording file", e);
+        }
+        out = null;
+    }
+}
@@ -0,0 +1,295 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.VespaConfig;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads queries over the configured Vespa container endpoints
+ *
+ * Selection is power-of-two-choices: two random available endpoints are compared and the
+ * one with the lower EWMA latency weighted by its in-flight requests wins. Endpoints are
+ * taken out of rotation when their /state/v1/health check fails, and ejected for a while
+ * after consecutive query failures, but never more than the configured share of endpoints
+ * at a time. If nothing is available, all endpoints are tried rather than failing outright.
+ */
+@Slf4j
+@Service
+public class VespaEndpointSelector {
+
+    /**
+     * Weight of the newest sample in the latency EWMA
+     */
+    private static final double LATENCY_SMOOTHING = 0.3;
+
+    private final VespaConfig.RoutingConfig routingConfig;
+    private final ObjectMapper objectMapper;
+    private final List<Endpoint> endpoints = new ArrayList<>();
+
+    private final HttpClient httpClient = HttpClient.newBuilder()
+        .connectTimeout(Duration.ofSeconds(2))
+        .build();
+
+    private ScheduledExecutorService healthChecker;
+
+    public VespaEndpointSelector(VespaConfig vespaConfig, ObjectMapper objectMapper, MeterRegistry meterRegistry) {
+        this.routingConfig = vespaConfig.getRouting() != null ? vespaConfig.getRouting() : new VespaConfig.RoutingConfig();
+        this.objectMapper = objectMapper;
+
+        List<String> urls = vespaConfig.getEndpoints() != null && !vespaConfig.getEndpoints().isEmpty() ?
+            vespaConfig.getEndpoints() : List.of(vespaConfig.getEndpoint());
+        for (String url : urls) {
+            Endpoint endpoint = new Endpoint(url.replaceAll("/+$", ""));
+            endpoints.add(endpoint);
+
+            Gauge.builder("vespa.endpoint.latency", endpoint, e -> e.getLatencyNanos() / 1_000_000.0)
+                .tag("endpoint", endpoint.getUrl())
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+            Gauge.builder("vespa.endpoint.inflight", endpoint, Endpoint::getInFlight)
+                .tag("endpoint", endpoint.getUrl())
+                .register(meterRegistry);
+            Gauge.builder("vespa.endpoint.available", endpoint, e -> e.isAvailable(System.nanoTime()) ? 1 : 0)
+                .tag("endpoint", endpoint.getUrl())
+                .register(meterRegistry);
+            FunctionCounter.builder("vespa.endpoint.requests", endpoint, Endpoint::getRequests)
+                .tag("endpoint", endpoint.getUrl())
+                .register(meterRegistry);
+            FunctionCounter.builder("vespa.endpoint.failures", endpoint, Endpoint::getFailures)
+                .tag("endpoint", endpoint.getUrl())
+                .register(meterRegistry);
+            FunctionCounter.builder("vespa.endpoint.ejections", endpoint, Endpoint::getEjections)
+                .tag("endpoint", endpoint.getUrl())
+                .register(meterRegistry);
+        }
+    }
+
+    /**
+     * Start active health checking
+     */
+    @PostConstruct
+    void start() {
+        if (routingConfig.getHealthCheckIntervalMs() <= 0) {
+            return;
+        }
+
+        healthChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "vespa-health-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        healthChecker.scheduleWithFixedDelay(this::checkHealth, 0,
+            routingConfig.getHealthCheckIntervalMs(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void stop() {
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+        }
+    }
+
+    /**
+     * Pick the endpoint for the next query
+     *
+     * @return Selected endpoint; pass it the outcome through {@link Endpoint#complete}
+     */
+    public Endpoint select() {
+        if (endpoints.size() == 1) {
+            return endpoints.get(0).start();
+        }
+
+        long now = System.nanoTime();
+        List<Endpoint> candidates = new ArrayList<>(endpoints.size());
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.isAvailable(now)) {
+                candidates.add(endpoint);
+            }
+        }
+        if (candidates.isEmpty()) {
+            candidates = endpoints;
+        }
+        if (candidates.size() == 1) {
+            return candidates.get(0).start();
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(candidates.size());
+        int second = random.nextInt(candidates.size() - 1);
+        if (second >= first) {
+            second++;
+        }
+
+        Endpoint a = candidates.get(first);
+        Endpoint b = candidates.get(second);
+        return (a.load() <= b.load() ? a : b).start();
+    }
+
+    /**
+     * All configured endpoints
+     */
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    void checkHealth() {
+        for (Endpoint endpoint : endpoints) {
+            boolean healthy;
+            try {
+                HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create(endpoint.getUrl() + "/state/v1/health"))
+                    .timeout(Duration.ofMillis(routingConfig.getHealthCheckTimeoutMs()))
+                    .GET()
+                    .build();
+                HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+                healthy = response.statusCode() == 200 &&
+                    "up".equals(objectMapper.readTree(response.body()).path("status").path("code").asText());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                healthy = false;
+            }
+
+            if (healthy != endpoint.healthy) {
+                log.warn("Vespa endpoint {} is now {}", endpoint.getUrl(), healthy ? "healthy" : "unhealthy");
+                endpoint.healthy = healthy;
+            }
+        }
+    }
+
+    /**
+     * Ejects an endpoint after too many consecutive failures, unless that would take more
+     * than the allowed share of endpoints out of rotation
+     */
+    private synchronized void maybeEject(Endpoint endpoint) {
+        if (endpoint.consecutiveFailures.get() < routingConfig.getConsecutiveFailures()) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        long ejected = endpoints.stream().filter(e -> e.ejectedUntil - now > 0).count();
+        if ((ejected + 1) * 100 > (long) routingConfig.getMaxEjectedPercent() * endpoints.size()) {
+            return;
+        }
+
+        endpoint.ejectedUntil = now + TimeUnit.MILLISECONDS.toNanos(routingConfig.getEjectionMs());
+        endpoint.consecutiveFailures.set(0);
+        endpoint.ejections.incrementAndGet();
+        log.warn("Ejecting Vespa endpoint {} for {}ms after consecutive failures",
+            endpoint.getUrl(), routingConfig.getEjectionMs());
+    }
+
+    /**
+     * One Vespa container endpoint and its load statistics
+     */
+    public final class Endpoint {
+
+        private final String url;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong ejections = new AtomicLong();
+
+        private double latencyNanos;
+        private volatile boolean healthy = true;
+        private volatile long ejectedUntil = System.nanoTime();
+
+        private Endpoint(String url) {
+            this.url = url;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public synchronized double getLatencyNanos() {
+            return latencyNanos;
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        public long getRequests() {
+            return requests.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        public long getEjections() {
+            return ejections.get();
+        }
+
+        boolean isAvailable(long now) {
+            return healthy && ejectedUntil - now <= 0;
+        }
+
+        /**
+         * Expected cost of sending one more request here
+         */
+        private double load() {
+            return getLatencyNanos() * (inFlight.get() + 1);
+        }
+
+        private Endpoint start() {
+            inFlight.incrementAndGet();
+            requests.incrementAndGet();
+            return this;
+        }
+
+        /**
+         * Record the outcome of a query sent to this endpoint
+         *
+         * @param startNanos {@link System#nanoTime()} when the query was sent
+         * @param success False on transport errors and 5xx responses
+         */
+        public void complete(long startNanos, boolean success) {
+            inFlight.decrementAndGet();
+            long latency = System.nanoTime() - startNanos;
+
+            synchronized (this) {
+                // A failure never makes the endpoint look faster: fast errors (refused
+                // connections, immediate 5xx) count as the current estimate, slow ones
+                // such as timeouts still raise it; without an estimate they are skipped
+                if (success && latencyNanos == 0) {
+                    latencyNanos = latency;
+                } else if (latencyNanos > 0) {
+                    double sample = success ? latency : Math.max(latency, latencyNanos);
+                    latencyNanos = LATENCY_SMOOTHING * sample + (1 - LATENCY_SMOOTHING) * latencyNanos;
+                }
+            }
+
+            if (success) {
+                consecutiveFailures.set(0);
+            } else {
+                failures.incrementAndGet();
+                consecutiveFailures.incrementAndGet();
+                maybeEject(this);
+            }
+        }
+    }
+}
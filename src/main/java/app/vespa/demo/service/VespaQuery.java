@@ -0,0 +1,70 @@
+package app.vespa.demo.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Map;
+
+/**
+ * A single query against the Vespa /search/ API
+ */
+@Data
+@Builder(toBuilder = true)
+@NoArgsConstructor
+@AllArgsConstructor
+public class VespaQuery {
+
+    /**
+     * Search mode: "text", "semantic", or "hybrid"
+     * Unknown modes are treated as hybrid
+     */
+    private String searchMode;
+
+    /**
+     * User query text
+     */
+    private String query;
+
+    /**
+     * Number of hits to return
+     */
+    private int hits;
+
+    /**
+     * Rank profile override
+     * Optional, the search mode's default profile is used if not specified
+     */
+    private String rankProfile;
+
+    /**
+     * nearestNeighbor targetHits override
+     * Optional, the search mode's multiple of hits is used if not specified
+     */
+    private Integer targetHits;
+
+    /**
+     * Precomputed query embedding
+     * Optional, replaces embed() of the query text in semantic and hybrid search
+     */
+    private float[] queryEmbedding;
+
+    /**
+     * User profile tensor (category → weight) for query(user_profile)
+     * Optional
+     */
+    private Map<String, Float> userProfile;
+
+    /**
+     * Document summary class (presentation.summary)
+     * Default: passages; the default summary of the schema also holds every chunk of the text
+     */
+    @Builder.Default
+    private String summary = "passages";
+
+    /**
+     * Whether to trace the query and list rank features, see {@link VespaTraceParser}
+     */
+    private boolean profile;
+}
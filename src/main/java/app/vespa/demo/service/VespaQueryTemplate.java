@@ -0,0 +1,441 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.VespaConfig;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Precompiled Vespa query for one query shape (search mode, rank profile and which
+ * optional tensors are present)
+ *
+ * The YQL, parameter names and constant values are encoded once when the template is
+ * compiled, both URL-encoded for GET queries and JSON-escaped for POST queries. Rendering
+ * a query only appends the variable parts (query text, hit counts, tensors) into per-thread
+ * buffers that are reused across requests.
+ */
+public final class VespaQueryTemplate {
+
+    /**
+     * Buffers that grew past this size (very long queries) are dropped instead of retained
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 16 * 1024;
+
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    // Labels of the cat{} dimension: category names only, nothing that needs quoting
+    private static final Pattern PROFILE_LABEL = Pattern.compile("[A-Za-z0-9_-]+");
+
+    /**
+     * Identifies a template: queries with the same shape differ only in their variable parts
+     */
+    record Shape(String searchMode, String rankProfile, boolean precomputedEmbedding, boolean userProfile,
+                 String summary, boolean profile) {
+
+        static Shape of(VespaQuery query) {
+            return new Shape(
+                query.getSearchMode().toLowerCase(),
+                query.getRankProfile(),
+                query.getQueryEmbedding() != null,
+                query.getUserProfile() != null,
+                query.getSummary(),
+                query.isProfile());
+        }
+    }
+
+    /**
+     * JSON request body in the calling thread's pooled buffer
+     * Only valid until the same thread renders its next query
+     */
+    record JsonBody(byte[] array, int length) {
+
+        byte[] copy() {
+            return Arrays.copyOf(array, length);
+        }
+    }
+
+    /**
+     * Variable parts of a query
+     */
+    private enum Slot { QUERY, HITS, TARGET_HITS, QUERY_EMBEDDING, USER_PROFILE }
+
+    /**
+     * GET form: pre-encoded literals (String) interleaved with variable parts (Slot)
+     */
+    private final Object[] urlParts;
+
+    /**
+     * POST form: one entry per query parameter
+     */
+    private final JsonParam[] jsonParams;
+
+    /**
+     * targetHits for nearestNeighbor as a multiple of the requested hits
+     */
+    private final int targetHitsFactor;
+
+    private VespaQueryTemplate(List<Param> params, int targetHitsFactor) {
+        this.targetHitsFactor = targetHitsFactor;
+        this.urlParts = compileUrlParts(params);
+        this.jsonParams = params.stream().map(JsonParam::new).toArray(JsonParam[]::new);
+    }
+
+    /**
+     * Compile the template for a query shape
+     * Unknown search modes compile to hybrid search
+     *
+     * @param shape Query shape
+     * @param schema Vespa schema name
+     * @param profiling Trace settings of profiled shapes
+     * @return Compiled template
+     */
+    static VespaQueryTemplate compile(Shape shape, String schema, VespaConfig.ProfilingConfig profiling) {
+        List<Param> params = new ArrayList<>();
+        String rankProfile = shape.rankProfile();
+        Object[] embedding = shape.precomputedEmbedding() ?
+            new Object[] { Slot.QUERY_EMBEDDING } : new Object[] { "embed(", Slot.QUERY, ")" };
+        int targetHitsFactor;
+
+        switch (shape.searchMode()) {
+            case "text" -> {
+                params.add(new Param("yql",
+                    "select * from " + schema + " where userQuery() limit ", Slot.HITS));
+                params.add(new Param("query", Slot.QUERY));
+                if (rankProfile != null) {
+                    params.add(new Param("ranking.profile", rankProfile));
+                }
+                targetHitsFactor = 0;
+            }
+            case "semantic" -> {
+                params.add(new Param("yql",
+                    "select * from " + schema + " where ({targetHits:", Slot.TARGET_HITS,
+                    "}nearestNeighbor(chunk_embeddings, query_embedding)) limit ", Slot.HITS));
+                params.add(new Param("ranking.profile", rankProfile != null ? rankProfile : "semantic"));
+                params.add(new Param("input.query(query_embedding)", embedding));
+                targetHitsFactor = 1;
+            }
+            default -> {
+                params.add(new Param("yql",
+                    "select * from " + schema + " where userQuery() or ({targetHits:", Slot.TARGET_HITS,
+                    "}nearestNeighbor(chunk_embeddings, query_embedding)) limit ", Slot.HITS));
+                params.add(new Param("query", Slot.QUERY));
+                params.add(new Param("ranking.profile", rankProfile != null ? rankProfile : "hybrid"));
+                params.add(new Param("input.query(query_embedding)", embedding));
+                targetHitsFactor = 2;
+            }
+        }
+
+        if (shape.userProfile()) {
+            params.add(new Param("input.query(user_profile)", Slot.USER_PROFILE));
+        }
+        params.add(new Param("hits", Slot.HITS));
+        if (shape.summary() != null) {
+            params.add(new Param("presentation.summary", shape.summary()));
+        }
+
+        if (shape.profile()) {
+            String depth = String.valueOf(profiling.getDepth());
+            params.add(new Param("trace.level", String.valueOf(profiling.getTraceLevel())));
+            params.add(new Param("trace.timestamps", "true"));
+            params.add(new Param("trace.profiling.matching.depth", depth));
+            params.add(new Param("trace.profiling.firstPhaseRanking.depth", depth));
+            params.add(new Param("trace.profiling.secondPhaseRanking.depth", depth));
+            params.add(new Param("ranking.listFeatures", "true"));
+            params.add(new Param("presentation.timing", "true"));
+        }
+
+        return new VespaQueryTemplate(params, targetHitsFactor);
+    }
+
+    /**
+     * Render the full /search/ URI for a GET query
+     *
+     * @param endpoint Vespa endpoint URL
+     * @param query Query to render
+     * @return Search URI
+     */
+    URI renderUri(String endpoint, VespaQuery query) {
+        Buffers buffers = acquireBuffers();
+        StringBuilder sb = buffers.url;
+        sb.setLength(0);
+        sb.append(endpoint).append("/search/?");
+
+        for (Object part : urlParts) {
+            if (part instanceof String literal) {
+                sb.append(literal);
+            } else {
+                switch ((Slot) part) {
+                    case QUERY -> appendEncoded(sb, query.getQuery());
+                    case HITS -> sb.append(query.getHits());
+                    case TARGET_HITS -> sb.append(targetHits(query));
+                    default -> {
+                        StringBuilder scratch = buffers.scratch;
+                        scratch.setLength(0);
+                        appendSlot(scratch, (Slot) part, query);
+                        appendEncoded(sb, scratch);
+                    }
+                }
+            }
+        }
+
+        return URI.create(sb.toString());
+    }
+
+    /**
+     * Render the JSON body for a POST query with a streaming generator
+     *
+     * @param jsonFactory Factory for the generator
+     * @param query Query to render
+     * @return Body in the calling thread's pooled buffer
+     * @throws IOException if the generator fails
+     */
+    JsonBody renderJson(JsonFactory jsonFactory, VespaQuery query) throws IOException {
+        Buffers buffers = acquireBuffers();
+        buffers.body.reset();
+
+        try (JsonGenerator generator = jsonFactory.createGenerator(buffers.body, JsonEncoding.UTF8)) {
+            generator.writeStartObject();
+            for (JsonParam param : jsonParams) {
+                generator.writeFieldName(param.name);
+                if (param.constant != null) {
+                    generator.writeString(param.constant);
+                } else if (param.parts.length == 1 && param.parts[0] == Slot.HITS) {
+                    generator.writeNumber(query.getHits());
+                } else {
+                    StringBuilder scratch = buffers.scratch;
+                    scratch.setLength(0);
+                    for (Object part : param.parts) {
+                        if (part instanceof String literal) {
+                            scratch.append(literal);
+                        } else {
+                            appendSlot(scratch, (Slot) part, query);
+                        }
+                    }
+                    generator.writeString(buffers.chars(scratch), 0, scratch.length());
+                }
+            }
+            generator.writeEndObject();
+        }
+
+        return new JsonBody(buffers.body.array(), buffers.body.size());
+    }
+
+    /**
+     * Get the calling thread's buffers, replacing them if a previous query grew them too large
+     */
+    private static Buffers acquireBuffers() {
+        Buffers buffers = BUFFERS.get();
+        if (buffers.oversized()) {
+            BUFFERS.remove();
+            buffers = BUFFERS.get();
+        }
+        return buffers;
+    }
+
+    /**
+     * Drop the calling thread's buffers, e.g. when a failed request may still reference them
+     */
+    static void releaseBuffers() {
+        BUFFERS.remove();
+    }
+
+    /**
+     * targetHits of the query, or the mode's multiple of its hits
+     */
+    private int targetHits(VespaQuery query) {
+        return query.getTargetHits() != null ? query.getTargetHits() : query.getHits() * targetHitsFactor;
+    }
+
+    /**
+     * Append the unencoded value of a slot
+     */
+    private void appendSlot(StringBuilder sb, Slot slot, VespaQuery query) {
+        switch (slot) {
+            case QUERY -> sb.append(query.getQuery());
+            case HITS -> sb.append(query.getHits());
+            case TARGET_HITS -> sb.append(targetHits(query));
+            case QUERY_EMBEDDING -> {
+                // Indexed tensor short form: [v0,v1,...]
+                float[] values = query.getQueryEmbedding();
+                sb.append('[');
+                for (int i = 0; i < values.length; i++) {
+                    if (i > 0) sb.append(',');
+                    sb.append(values[i]);
+                }
+                sb.append(']');
+            }
+            case USER_PROFILE -> {
+                // Mapped tensor short form: {label:value,...}
+                sb.append('{');
+                boolean first = true;
+                for (Map.Entry<String, Float> entry : query.getUserProfile().entrySet()) {
+                    checkProfileEntry(entry.getKey(), entry.getValue());
+                    if (!first) sb.append(',');
+                    first = false;
+                    sb.append('"').append(entry.getKey()).append("\":").append(entry.getValue());
+                }
+                sb.append('}');
+            }
+        }
+    }
+
+    /**
+     * Check a user profile entry before it is written into the tensor literal, where a label
+     * with quotes, braces or commas would break or extend the expression
+     *
+     * @throws IllegalArgumentException if the label is not a plain category name or the weight is not finite
+     */
+    public static void checkProfileEntry(String label, Float weight) {
+        if (label == null || !PROFILE_LABEL.matcher(label).matches()) {
+            throw new IllegalArgumentException("Invalid userProfile category: " + label);
+        }
+        if (weight == null || !Float.isFinite(weight)) {
+            throw new IllegalArgumentException("userProfile weight of '" + label + "' must be a finite number");
+        }
+    }
+
+    /**
+     * Append a value in application/x-www-form-urlencoded form, matching {@link URLEncoder}
+     * without allocating for the common ASCII case
+     */
+    static void appendEncoded(StringBuilder sb, CharSequence value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '.' || c == '-' || c == '*' || c == '_') {
+                sb.append(c);
+            } else if (c == ' ') {
+                sb.append('+');
+            } else if (c < 0x80) {
+                appendPercentEncoded(sb, (byte) c);
+            } else {
+                int end = Character.isHighSurrogate(c) && i + 1 < value.length() ? i + 2 : i + 1;
+                for (byte b : value.subSequence(i, end).toString().getBytes(StandardCharsets.UTF_8)) {
+                    appendPercentEncoded(sb, b);
+                }
+                i = end - 1;
+            }
+        }
+    }
+
+    private static void appendPercentEncoded(StringBuilder sb, byte b) {
+        sb.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+    }
+
+    /**
+     * Pre-encode the GET form, merging adjacent literals across parameters
+     */
+    private static Object[] compileUrlParts(List<Param> params) {
+        List<Object> parts = new ArrayList<>();
+        StringBuilder pending = new StringBuilder();
+
+        for (Param param : params) {
+            if (!parts.isEmpty() || pending.length() > 0) {
+                pending.append('&');
+            }
+            pending.append(URLEncoder.encode(param.name, StandardCharsets.UTF_8)).append('=');
+
+            for (Object part : param.parts) {
+                if (part instanceof String literal) {
+                    pending.append(URLEncoder.encode(literal, StandardCharsets.UTF_8));
+                } else {
+                    if (pending.length() > 0) {
+                        parts.add(pending.toString());
+                        pending.setLength(0);
+                    }
+                    parts.add(part);
+                }
+            }
+        }
+
+        if (pending.length() > 0) {
+            parts.add(pending.toString());
+        }
+        return parts.toArray();
+    }
+
+    /**
+     * A query parameter: raw literals (String) interleaved with variable parts (Slot)
+     */
+    private static final class Param {
+
+        private final String name;
+        private final Object[] parts;
+
+        Param(String name, Object... parts) {
+            this.name = name;
+            this.parts = parts;
+        }
+    }
+
+    /**
+     * A query parameter with its JSON field name, and value if constant, escaped up front
+     */
+    private static final class JsonParam {
+
+        private final SerializedString name;
+        private final SerializedString constant;
+        private final Object[] parts;
+
+        JsonParam(Param param) {
+            this.name = new SerializedString(param.name);
+            this.constant = param.parts.length == 1 && param.parts[0] instanceof String literal ?
+                new SerializedString(literal) : null;
+            this.parts = param.parts;
+        }
+    }
+
+    /**
+     * Per-thread buffers reused across queries
+     */
+    private static final class Buffers {
+
+        private final StringBuilder url = new StringBuilder(512);
+        private final StringBuilder scratch = new StringBuilder(256);
+        private final ExposedByteArrayOutputStream body = new ExposedByteArrayOutputStream(1024);
+        private char[] chars = new char[256];
+
+        char[] chars(StringBuilder sb) {
+            if (chars.length < sb.length()) {
+                chars = new char[Math.max(sb.length(), chars.length * 2)];
+            }
+            sb.getChars(0, sb.length(), chars, 0);
+            return chars;
+        }
+
+        boolean oversized() {
+            return url.capacity() > MAX_RETAINED_BUFFER_SIZE
+                || scratch.capacity() > MAX_RETAINED_BUFFER_SIZE
+                || chars.length > MAX_RETAINED_BUFFER_SIZE
+                || body.array().length > MAX_RETAINED_BUFFER_SIZE;
+        }
+    }
+
+    /**
+     * ByteArrayOutputStream whose backing array can be handed out without copying
+     */
+    private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+        ExposedByteArrayOutputStream(int size) {
+            super(size);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+}
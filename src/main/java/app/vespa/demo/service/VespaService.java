@@ -2,21 +2,32 @@ package app.vespa.demo.service;
 
 import app.vespa.demo.config.VespaConfig;
 import app.vespa.demo.model.MusicDocument;
+import app.vespa.demo.model.QueryProfile;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import io.micrometer.observation.transport.RequestReplySenderContext;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
-import java.net.URLEncoder;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Service for interacting with Vespa search engine
@@ -27,13 +38,22 @@ import java.util.*;
 @RequiredArgsConstructor
 public class VespaService {
 
+    private static final int MAX_CACHED_TEMPLATES = 64;
+
     private final VespaConfig vespaConfig;
     private final ObjectMapper objectMapper;
+    private final ConcurrencyLimiterRegistry limiterRegistry;
+    private final FallbackSearchIndex fallbackIndex;
+    private final VespaEndpointSelector endpointSelector;
+    private final ObservationRegistry observationRegistry;
+    private final MeterRegistry meterRegistry;
 
     private final HttpClient httpClient = HttpClient.newBuilder()
         .connectTimeout(Duration.ofSeconds(5))
         .build();
 
+    private final Map<VespaQueryTemplate.Shape, VespaQueryTemplate> templates = new ConcurrentHashMap<>();
+
     /**
      * Performs text-based search using BM25 ranking
      *
@@ -42,19 +62,7 @@ public class VespaService {
      * @return List of matching music documents
      */
     public List<MusicDocument> textSearch(String query, int maxResults) {
-        log.debug("Performing text search: query='{}', maxResults={}", query, maxResults);
-
-        String yql = String.format(
-            "select * from %s where userQuery() limit %d",
-            vespaConfig.getSchema(), maxResults
-        );
-
-        Map<String, String> params = new LinkedHashMap<>();
-        params.put("yql", yql);
-        params.put("query", query);
-        params.put("hits", String.valueOf(maxResults));
-
-        return executeQuery(params);
+        return search(VespaQuery.builder().searchMode("text").query(query).hits(maxResults).build());
     }
 
     /**
@@ -66,20 +74,7 @@ public class VespaService {
      * @return List of matching music documents
      */
     public List<MusicDocument> semanticSearch(String query, int maxResults) {
-        log.debug("Performing semantic search: query='{}', maxResults={}", query, maxResults);
-
-        String yql = String.format(
-            "select * from %s where ({targetHits:%d}nearestNeighbor(text_embedding, query_embedding)) limit %d",
-            vespaConfig.getSchema(), maxResults, maxResults
-        );
-
-        Map<String, String> params = new LinkedHashMap<>();
-        params.put("yql", yql);
-        params.put("ranking.profile", "semantic");
-        params.put("input.query(query_embedding)", "embed(" + query + ")");
-        params.put("hits", String.valueOf(maxResults));
-
-        return executeQuery(params);
+        return search(VespaQuery.builder().searchMode("semantic").query(query).hits(maxResults).build());
     }
 
     /**
@@ -90,103 +85,320 @@ public class VespaService {
      * @return List of matching music documents
      */
     public List<MusicDocument> hybridSearch(String query, int maxResults) {
-        log.debug("Performing hybrid search: query='{}', maxResults={}", query, maxResults);
+        return search(VespaQuery.builder().searchMode("hybrid").query(query).hits(maxResults).build());
+    }
 
-        String yql = String.format(
-            "select * from %s where userQuery() or ({targetHits:%d}nearestNeighbor(text_embedding, query_embedding)) limit %d",
-            vespaConfig.getSchema(), maxResults * 2, maxResults
-        );
+    /**
+     * Performs a search with full control over rank profile and query tensors
+     *
+     * @param query Query to execute
+     * @return List of matching music documents
+     */
+    public List<MusicDocument> search(VespaQuery query) {
+        return searchWithProfile(query).documents();
+    }
 
-        Map<String, String> params = new LinkedHashMap<>();
-        params.put("yql", yql);
-        params.put("query", query);
-        params.put("ranking.profile", "hybrid");
-        params.put("input.query(query_embedding)", "embed(" + query + ")");
-        params.put("hits", String.valueOf(maxResults));
+    /**
+     * Performs a search and returns Vespa's timing breakdown along with the hits
+     * A share of unprofiled queries ('vespa.profiling.sample-rate') is profiled as well, to
+     * feed the profiling metrics
+     *
+     * @param query Query to execute
+     * @return Matching documents, and the query profile if the query was profiled by Vespa
+     */
+    public SearchResult searchWithProfile(VespaQuery query) {
+        log.debug("Performing {} search: query='{}', hits={}, rankProfile={}",
+            query.getSearchMode(), query.getQuery(), query.getHits(), query.getRankProfile());
+
+        if (!query.isProfile() && sampleProfile()) {
+            query = query.toBuilder().profile(true).build();
+        }
+        return executeQuery(query);
+    }
 
-        return executeQuery(params);
+    private boolean sampleProfile() {
+        double sampleRate = vespaConfig.getProfiling().getSampleRate();
+        return sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    /**
+     * Whether queries are sent as POST JSON bodies rather than GET query strings
+     */
+    boolean usePost() {
+        return "POST".equalsIgnoreCase(vespaConfig.getQueryMethod());
     }
 
     /**
-     * Executes a Vespa query with the given parameters
+     * Builds the full /search/ URI of a GET query
      *
-     * @param params Query parameters
-     * @return List of music documents from search results
+     * @param endpoint Vespa endpoint URL
+     * @param query Query to render
+     * @return Search URI
      */
-    private List<MusicDocument> executeQuery(Map<String, String> params) {
-        try {
-            String queryString = buildQueryString(params);
-            String url = vespaConfig.getEndpoint() + "/search/?" + queryString;
+    URI buildSearchUri(String endpoint, VespaQuery query) {
+        return template(query).renderUri(endpoint, query);
+    }
 
-            log.debug("Executing Vespa query: {}", url);
+    /**
+     * Builds the JSON body of a POST query
+     * The returned body lives in the calling thread's pooled buffer
+     *
+     * @param query Query to render
+     * @return Request body
+     * @throws IOException if serialization fails
+     */
+    VespaQueryTemplate.JsonBody buildSearchBody(VespaQuery query) throws IOException {
+        return template(query).renderJson(objectMapper.getFactory(), query);
+    }
 
-            HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(url))
-                .timeout(Duration.ofMillis(vespaConfig.getTimeoutMs()))
-                .GET()
-                .build();
+    /**
+     * URI that POST queries are sent to
+     *
+     * @param endpoint Vespa endpoint URL
+     */
+    URI searchEndpointUri(String endpoint) {
+        return URI.create(endpoint + "/search/");
+    }
 
-            HttpResponse<String> response = httpClient.send(request,
-                HttpResponse.BodyHandlers.ofString());
+    /**
+     * Looks up or compiles the query template for the query's shape
+     * Past {@link #MAX_CACHED_TEMPLATES} templates are compiled per call instead of cached,
+     * so arbitrary client-supplied rank profile names cannot grow the cache without bound
+     */
+    private VespaQueryTemplate template(VespaQuery query) {
+        VespaQueryTemplate.Shape shape = VespaQueryTemplate.Shape.of(query);
 
-            if (response.statusCode() != 200) {
-                log.error("Vespa query failed with status {}: {}",
-                    response.statusCode(), response.body());
-                return Collections.emptyList();
-            }
+        VespaQueryTemplate template = templates.get(shape);
+        if (template != null) {
+            return template;
+        }
 
-            return parseVespaResponse(response.body());
+        template = VespaQueryTemplate.compile(shape, vespaConfig.getSchema(), vespaConfig.getProfiling());
+        if (templates.size() < MAX_CACHED_TEMPLATES) {
+            templates.putIfAbsent(shape, template);
+        }
+        return template;
+    }
+
+    /**
+     * Executes a Vespa query
+     * The call is observed as a client span whose W3C trace context is sent along as the
+     * traceparent header, so Vespa's own trace can be joined with ours
+     *
+     * @param query Query to execute
+     * @return Music documents from search results, with the query profile if requested
+     * @throws OverloadedException if the Vespa concurrency limit is reached
+     */
+    private SearchResult executeQuery(VespaQuery query) {
+        Optional<SearchResult> result = queryVespa(query);
+        if (result.isEmpty()) {
+            // Answered once the permit is released and the endpoint has its sample, so local
+            // search time counts against neither Vespa's limit nor its latency
+            return new SearchResult(searchFallback(query), null);
+        }
+
+        fallbackIndex.cacheEmbeddings(result.get().documents());
+        return result.get();
+    }
+
+    /**
+     * Sends a query to a Vespa endpoint under a "vespa" permit
+     *
+     * @param query Query to execute
+     * @return Search result, empty if Vespa is unavailable
+     */
+    // The scope is never referenced; it only has to stay open so the HTTP client sees the observation
+    @SuppressWarnings("try")
+    private Optional<SearchResult> queryVespa(VespaQuery query) {
+        ConcurrencyLimiterRegistry.AdmissionPermit permit = limiterRegistry.acquire("vespa");
+        VespaEndpointSelector.Endpoint endpoint = endpointSelector.select();
+        long start = System.nanoTime();
+        boolean dropped = false;
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder();
+        Observation observation = startObservation(builder, endpoint, query);
+
+        try (Observation.Scope scope = observation.openScope()) {
+            HttpRequest request = buildHttpRequest(builder, endpoint.getUrl(), query);
+
+            HttpResponse<InputStream> response = httpClient.send(request,
+                HttpResponse.BodyHandlers.ofInputStream());
+            observation.lowCardinalityKeyValue("status", String.valueOf(response.statusCode()));
+
+            try (InputStream body = decodedBody(response)) {
+                if (response.statusCode() != 200) {
+                    log.error("Vespa query failed with status {}: {}",
+                        response.statusCode(), new String(body.readAllBytes(), StandardCharsets.UTF_8));
+                    dropped = response.statusCode() >= 500;
+                    return dropped ? Optional.empty() : Optional.of(new SearchResult(Collections.emptyList(), null));
+                }
+
+                // Parsed while it streams in, decompressing on the fly
+                return Optional.of(Observation.createNotStarted("vespa.parse", observationRegistry)
+                    .observeChecked(() -> parseSearchResult(body, query)));
+            }
 
         } catch (IOException | InterruptedException e) {
             log.error("Error executing Vespa query", e);
+            observation.error(e);
+            dropped = true;
+            // An aborted exchange may still hold on to the pooled request body
+            VespaQueryTemplate.releaseBuffers();
             if (e instanceof InterruptedException) {
                 Thread.currentThread().interrupt();
             }
+            return Optional.empty();
+        } finally {
+            observation.stop();
+            endpoint.complete(start, !dropped);
+            if (dropped) {
+                permit.releaseDropped();
+            } else {
+                permit.release();
+            }
+        }
+    }
+
+    /**
+     * Starts the client observation of a query
+     * Trace context headers are written into the request builder when the observation starts
+     */
+    private Observation startObservation(HttpRequest.Builder builder, VespaEndpointSelector.Endpoint endpoint,
+                                         VespaQuery query) {
+        RequestReplySenderContext<HttpRequest.Builder, HttpResponse<String>> context =
+            new RequestReplySenderContext<>(HttpRequest.Builder::header);
+        context.setCarrier(builder);
+        context.setRemoteServiceName("vespa");
+        context.setRemoteServiceAddress(endpoint.getUrl());
+
+        return Observation.createNotStarted("vespa.query", () -> context, observationRegistry)
+            .contextualName("vespa " + query.getSearchMode())
+            .lowCardinalityKeyValue("search.mode", String.valueOf(query.getSearchMode()))
+            .start();
+    }
+
+    /**
+     * Answers a query from the local fallback index when Vespa is unavailable
+     *
+     * @param query Query that failed against Vespa
+     * @return Fallback results, empty if the fallback index is disabled
+     */
+    List<MusicDocument> searchFallback(VespaQuery query) {
+        if (!fallbackIndex.isEnabled()) {
             return Collections.emptyList();
         }
+
+        List<MusicDocument> results = fallbackIndex.search(query);
+        log.warn("Vespa unavailable, served {} results from local fallback index", results.size());
+        return results;
+    }
+
+    /**
+     * Builds the HTTP request for a query using the configured query method
+     * POST bodies are handed to the client straight from the pooled buffer; this is safe
+     * because the blocking send has consumed the body by the time it returns
+     */
+    private HttpRequest buildHttpRequest(HttpRequest.Builder builder, String endpoint, VespaQuery query)
+        throws IOException {
+        builder.timeout(Duration.ofMillis(vespaConfig.getTimeoutMs()));
+        if (Boolean.TRUE.equals(vespaConfig.getCompressResponses())) {
+            builder.header("Accept-Encoding", "gzip");
+        }
+
+        if (usePost()) {
+            VespaQueryTemplate.JsonBody body = buildSearchBody(query);
+            log.debug("Executing Vespa query: POST /search/ with {} byte body", body.length());
+            return builder.uri(searchEndpointUri(endpoint))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body.array(), 0, body.length()))
+                .build();
+        }
+
+        URI uri = buildSearchUri(endpoint, query);
+        log.debug("Executing Vespa query: {}", uri);
+        return builder.uri(uri).GET().build();
+    }
+
+    /**
+     * Response body, gunzipped if Vespa compressed it
+     */
+    private static InputStream decodedBody(HttpResponse<InputStream> response) throws IOException {
+        boolean gzip = response.headers().firstValue("Content-Encoding")
+            .map(encoding -> encoding.equalsIgnoreCase("gzip"))
+            .orElse(false);
+        return gzip ? new GZIPInputStream(response.body(), 8192) : response.body();
+    }
+
+    /**
+     * Parses a Vespa JSON response, with the query profile if the query was profiled
+     * Profiles are also recorded as metrics
+     *
+     * @param body Vespa response body
+     * @param query Query the response answers
+     * @return Parsed documents and profile
+     * @throws IOException if reading the body fails
+     */
+    SearchResult parseSearchResult(InputStream body, VespaQuery query) throws IOException {
+        JsonNode root;
+        try {
+            root = objectMapper.readTree(body);
+        } catch (JsonProcessingException e) {
+            log.error("Error parsing Vespa response", e);
+            return new SearchResult(Collections.emptyList(), null);
+        }
+
+        QueryProfile profile = null;
+        if (query.isProfile()) {
+            profile = VespaTraceParser.parse(root, vespaConfig.getProfiling().getTraceLevel());
+            recordProfile(query, profile);
+        }
+        // Keep the embedding Vespa computed for the query text, for fallback searches of the same text
+        if (query.getQueryEmbedding() == null) {
+            fallbackIndex.cacheQueryEmbedding(query.getQuery(), parseVector(
+                root.path("root").path("children").path(0).path("fields").path("summaryfeatures")
+                    .path("query(query_embedding)")));
+        }
+        return new SearchResult(parseHits(root), profile);
+    }
+
+    /**
+     * Records a query profile as vespa.query.phase and vespa.ranking.cost distributions
+     * Only profiled queries are recorded, so counts reflect the sample, not traffic
+     */
+    private void recordProfile(VespaQuery query, QueryProfile profile) {
+        String searchMode = query.getSearchMode().toLowerCase();
+
+        profile.getPhaseTimesMs().forEach((phase, millis) ->
+            DistributionSummary.builder("vespa.query.phase")
+                .baseUnit("milliseconds")
+                .tag("phase", phase)
+                .tag("search.mode", searchMode)
+                .register(meterRegistry)
+                .record(millis));
+
+        profile.getRankingCostMs().forEach((node, millis) ->
+            DistributionSummary.builder("vespa.ranking.cost")
+                .baseUnit("milliseconds")
+                .tag("node", node)
+                .tag("search.mode", searchMode)
+                .register(meterRegistry)
+                .record(millis));
     }
 
     /**
      * Parses Vespa JSON response into MusicDocument objects
+     * Embeddings in the response are kept for the fallback index, as for queries sent by this service
      *
      * @param jsonResponse Raw JSON response from Vespa
+     * @param query Query the response answers
      * @return List of parsed music documents
      */
-    private List<MusicDocument> parseVespaResponse(String jsonResponse) {
+    List<MusicDocument> parseVespaResponse(String jsonResponse, VespaQuery query) {
         try {
-            JsonNode root = objectMapper.readTree(jsonResponse);
-            JsonNode hits = root.path("root").path("children");
-
-            List<MusicDocument> documents = new ArrayList<>();
-
-            for (JsonNode hit : hits) {
-                JsonNode fields = hit.path("fields");
-
-                MusicDocument doc = MusicDocument.builder()
-                    .id(hit.path("id").asText())
-                    .artist(fields.path("artist").asText())
-                    .album(fields.path("album").asText())
-                    .year(fields.path("year").asInt())
-                    .text(fields.path("text").asText())
-                    .relevance(hit.path("relevance").asDouble())
-                    .build();
-
-                // Parse category_scores if present
-                if (fields.has("category_scores")) {
-                    Map<String, Float> categoryScores = new HashMap<>();
-                    JsonNode scores = fields.get("category_scores");
-                    scores.fieldNames().forEachRemaining(key ->
-                        categoryScores.put(key, (float) scores.get(key).asDouble())
-                    );
-                    doc.setCategoryScores(categoryScores);
-                }
-
-                documents.add(doc);
-            }
-
-            log.debug("Parsed {} documents from Vespa response", documents.size());
+            List<MusicDocument> documents = parseSearchResult(
+                new ByteArrayInputStream(jsonResponse.getBytes(StandardCharsets.UTF_8)), query).documents();
+            fallbackIndex.cacheEmbeddings(documents);
             return documents;
-
         } catch (Exception e) {
             log.error("Error parsing Vespa response", e);
             return Collections.emptyList();
@@ -194,19 +406,92 @@ public class VespaService {
     }
 
     /**
-     * Builds URL query string from parameters
+     * Converts the hits of a parsed Vespa response
+     */
+    private List<MusicDocument> parseHits(JsonNode root) {
+        JsonNode hits = root.path("root").path("children");
+
+        List<MusicDocument> documents = new ArrayList<>();
+
+        for (JsonNode hit : hits) {
+            JsonNode fields = hit.path("fields");
+
+            MusicDocument doc = MusicDocument.builder()
+                // Summaries other than the default carry the id as a field
+                .id(fields.has("documentid") ? fields.get("documentid").asText() : hit.path("id").asText())
+                .artist(fields.path("artist").asText())
+                .album(fields.path("album").asText())
+                .year(fields.path("year").asInt())
+                .text(fields.path("text").asText())
+                .relevance(hit.path("relevance").asDouble())
+                .build();
+
+            // Parse category_scores if present
+            if (fields.has("category_scores")) {
+                Map<String, Float> categoryScores = new HashMap<>();
+                JsonNode scores = fields.get("category_scores");
+                scores.fieldNames().forEachRemaining(key ->
+                    categoryScores.put(key, (float) scores.get(key).asDouble())
+                );
+                doc.setCategoryScores(categoryScores);
+            }
+
+            // Chunks selected by the best_chunks summary feature, absent in text searches
+            if (fields.has("passages") && !fields.get("passages").isEmpty()) {
+                List<String> passages = new ArrayList<>(fields.get("passages").size());
+                fields.get("passages").forEach(passage -> passages.add(passage.asText()));
+                doc.setPassages(passages);
+            }
+
+            // Returned by the semantic, hybrid and *_diverse rank profiles
+            doc.setEmbedding(parseVector(fields.path("summaryfeatures").path("doc_embedding")));
+
+            // Rank and summary features of profiled queries (ranking.listFeatures)
+            if (fields.has("rankfeatures") || fields.has("summaryfeatures")) {
+                Map<String, Double> rankFeatures = new TreeMap<>();
+                for (String name : List.of("rankfeatures", "summaryfeatures")) {
+                    JsonNode features = fields.path(name);
+                    features.fieldNames().forEachRemaining(key -> {
+                        if (features.get(key).isNumber()) {
+                            rankFeatures.put(key, features.get(key).asDouble());
+                        }
+                    });
+                }
+                doc.setRankFeatures(rankFeatures);
+            }
+
+            documents.add(doc);
+        }
+
+        log.debug("Parsed {} documents from Vespa response", documents.size());
+        return documents;
+    }
+
+    /**
+     * Reads an indexed tensor summary feature, rendered as {"values": [...]}, a bare array,
+     * or long form cells
      *
-     * @param params Query parameters
-     * @return URL-encoded query string
-     */
-    private String buildQueryString(Map<String, String> params) {
-        StringBuilder sb = new StringBuilder();
-        params.forEach((key, value) -> {
-            if (sb.length() > 0) sb.append("&");
-            sb.append(URLEncoder.encode(key, StandardCharsets.UTF_8))
-              .append("=")
-              .append(URLEncoder.encode(value, StandardCharsets.UTF_8));
-        });
-        return sb.toString();
+     * @return Vector, null if the feature is absent
+     */
+    static float[] parseVector(JsonNode tensor) {
+        JsonNode values = tensor.has("values") ? tensor.get("values") : tensor.has("cells") ? tensor.get("cells") : tensor;
+        if (!values.isArray() || values.isEmpty()) {
+            return null;
+        }
+
+        float[] vector = new float[values.size()];
+        for (int i = 0; i < vector.length; i++) {
+            JsonNode value = values.get(i);
+            vector[i] = (float) (value.isObject() ? value.path("value").asDouble() : value.asDouble());
+        }
+        return vector;
     }
+
+    /**
+     * Documents of a search, with Vespa's query profile if the query was profiled
+     *
+     * @param documents Matching documents
+     * @param profile Query profile, null unless profiled and answered by Vespa
+     */
+    public record SearchResult(List<MusicDocument> documents, QueryProfile profile) { }
 }
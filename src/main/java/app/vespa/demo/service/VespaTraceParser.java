@@ -0,0 +1,159 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.model.QueryProfile;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Turns the trace of a profiled Vespa query into a {@link QueryProfile}
+ *
+ * Three parts of the response are used:
+ * - "timing" (presentation.timing): container query, summary fetch and total search time
+ * - content node trace events (trace.timestamps): the gap between consecutive events is
+ *   charged to the phase of the earlier event, classified by keyword; matching threads and
+ *   nodes run in parallel, so each phase takes the maximum over event lists
+ * - "*_profiling" trees (trace.profiling.*.depth): self time per blueprint or rank
+ *   expression, summed over threads and nodes since that is CPU cost
+ */
+final class VespaTraceParser {
+
+    /**
+     * Most expensive ranking nodes kept per query
+     */
+    static final int MAX_RANKING_COSTS = 10;
+
+    private VespaTraceParser() {
+    }
+
+    /**
+     * Parse the profile of a query response
+     *
+     * @param root Parsed Vespa response
+     * @param traceLevel Trace level the query ran with
+     * @return Query profile, empty maps if the response carries no trace
+     */
+    static QueryProfile parse(JsonNode root, int traceLevel) {
+        Map<String, Double> phases = new LinkedHashMap<>();
+
+        JsonNode timing = root.path("timing");
+        putSeconds(phases, "query", timing.path("querytime"));
+        putSeconds(phases, "summary_fetch", timing.path("summaryfetchtime"));
+        putSeconds(phases, "search", timing.path("searchtime"));
+
+        Map<String, Double> costs = new HashMap<>();
+        walk(root.path("trace"), phases, costs);
+
+        Map<String, Double> topCosts = new LinkedHashMap<>();
+        costs.entrySet().stream()
+            .sorted(Map.Entry.<String, Double>comparingByValue().reversed())
+            .limit(MAX_RANKING_COSTS)
+            .forEach(entry -> topCosts.put(entry.getKey(), entry.getValue()));
+
+        return QueryProfile.builder()
+            .phaseTimesMs(phases)
+            .rankingCostMs(topCosts)
+            .traceLevel(traceLevel)
+            .build();
+    }
+
+    /**
+     * Visit every node of the trace tree, whose shape differs between container and
+     * content node parts
+     */
+    private static void walk(JsonNode node, Map<String, Double> phases, Map<String, Double> costs) {
+        if (node.isArray()) {
+            for (JsonNode child : node) {
+                walk(child, phases, costs);
+            }
+            return;
+        }
+        if (!node.isObject()) {
+            return;
+        }
+
+        JsonNode traces = node.path("traces");
+        if (traces.isArray()) {
+            addEventPhases(traces, phases);
+        }
+
+        node.properties().forEach(field -> {
+            if (field.getKey().endsWith("_profiling")) {
+                String stage = field.getKey().substring(0, field.getKey().length() - "_profiling".length());
+                addCosts(stage, field.getValue().path("roots"), costs);
+            } else if (field.getValue().isContainerNode()) {
+                walk(field.getValue(), phases, costs);
+            }
+        });
+    }
+
+    /**
+     * Charge the time between consecutive timestamped events to the earlier event's phase
+     */
+    private static void addEventPhases(JsonNode events, Map<String, Double> phases) {
+        Map<String, Double> local = new LinkedHashMap<>();
+        String phase = null;
+        double previous = Double.NaN;
+
+        for (JsonNode event : events) {
+            JsonNode timestamp = event.path("timestamp_ms");
+            if (!timestamp.isNumber()) {
+                continue;
+            }
+            double now = timestamp.asDouble();
+            if (phase != null && now >= previous) {
+                local.merge(phase, now - previous, Double::sum);
+            }
+            // Events wrapping per-thread traces are measured through those traces
+            phase = event.has("threads") ? null : classify(event.path("event").asText(event.path("tag").asText("")));
+            previous = now;
+        }
+
+        local.forEach((name, millis) -> phases.merge(name, millis, Math::max));
+    }
+
+    /**
+     * Map a content node trace event to a query phase
+     */
+    static String classify(String event) {
+        String text = event.toLowerCase(Locale.ROOT);
+        if (text.contains("query setup")) {
+            return "query_setup";
+        }
+        if (text.contains("global filter")) {
+            return "global_filter";
+        }
+        if (text.contains("second phase")) {
+            return "second_phase";
+        }
+        if (text.contains("match") || text.contains("first phase")) {
+            return "match_first_phase";
+        }
+        if (text.contains("summary") || text.contains("docsum")) {
+            return "summary";
+        }
+        return "other";
+    }
+
+    /**
+     * Sum self time per node name over a profiling tree
+     */
+    private static void addCosts(String stage, JsonNode nodes, Map<String, Double> costs) {
+        for (JsonNode node : nodes) {
+            JsonNode selfTime = node.path("self_time_ms");
+            if (selfTime.isNumber()) {
+                costs.merge(stage + ":" + node.path("name").asText(), selfTime.asDouble(), Double::sum);
+            }
+            addCosts(stage, node.path("children"), costs);
+        }
+    }
+
+    private static void putSeconds(Map<String, Double> phases, String name, JsonNode seconds) {
+        if (seconds.isNumber()) {
+            phases.put(name, seconds.asDouble() * 1000);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package app.vespa.demo.config;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ZstdCompressionFilterTests {
+
+	@Test
+	void acceptsZstdListedWithoutOrWithPositiveQuality() {
+		assertThat(ZstdCompressionFilter.acceptsZstd("zstd")).isTrue();
+		assertThat(ZstdCompressionFilter.acceptsZstd("gzip, deflate, br, zstd")).isTrue();
+		assertThat(ZstdCompressionFilter.acceptsZstd("gzip;q=1.0, ZSTD ; q=0.5")).isTrue();
+	}
+
+	@Test
+	void rejectsMissingOrRefusedZstd() {
+		assertThat(ZstdCompressionFilter.acceptsZstd(null)).isFalse();
+		assertThat(ZstdCompressionFilter.acceptsZstd("")).isFalse();
+		assertThat(ZstdCompressionFilter.acceptsZstd("gzip, br")).isFalse();
+		assertThat(ZstdCompressionFilter.acceptsZstd("zstd;q=0")).isFalse();
+		assertThat(ZstdCompressionFilter.acceptsZstd("zstd;q=0.0, gzip")).isFalse();
+		assertThat(ZstdCompressionFilter.acceptsZstd("zstd;q=high")).isFalse();
+		assertThat(ZstdCompressionFilter.acceptsZstd("zstdx, xzstd")).isFalse();
+	}
+}
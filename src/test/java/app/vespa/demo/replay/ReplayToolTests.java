@@ -0,0 +1,20 @@
+package app.vespa.demo.replay;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ReplayToolTests {
+
+	@Test
+	void semanticQueriesAreMatchedOnTheEmbeddedText() {
+		assertThat(ReplayTool.embeddedText("embed(albums about loss)")).isEqualTo("albums about loss");
+		assertThat(ReplayTool.embeddedText("embed(\"albums about loss\")")).isEqualTo("albums about loss");
+	}
+
+	@Test
+	void precomputedEmbeddingsHaveNoText() {
+		assertThat(ReplayTool.embeddedText("[0.1,0.2]")).isEmpty();
+		assertThat(ReplayTool.embeddedText("")).isEmpty();
+	}
+}
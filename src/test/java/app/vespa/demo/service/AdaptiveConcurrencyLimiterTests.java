@@ -0,0 +1,93 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.AdmissionConfig;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AdaptiveConcurrencyLimiterTests {
+
+	private static AdmissionConfig.LimitConfig config(int initial, int min, int max) {
+		AdmissionConfig.LimitConfig config = new AdmissionConfig.LimitConfig();
+		config.setInitialLimit(initial);
+		config.setMinLimit(min);
+		config.setMaxLimit(max);
+		return config;
+	}
+
+	@Test
+	void rejectsRequestsOverTheLimit() {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", config(2, 1, 10));
+
+		AdaptiveConcurrencyLimiter.Permit first = limiter.tryAcquire();
+		AdaptiveConcurrencyLimiter.Permit second = limiter.tryAcquire();
+
+		assertThat(first).isNotNull();
+		assertThat(second).isNotNull();
+		assertThat(limiter.tryAcquire()).isNull();
+		assertThat(limiter.getInFlight()).isEqualTo(2);
+		assertThat(limiter.getRejected()).isEqualTo(1);
+
+		first.release();
+		assertThat(limiter.getInFlight()).isEqualTo(1);
+		assertThat(limiter.tryAcquire()).isNotNull();
+	}
+
+	@Test
+	void releasingTwiceTakesEffectOnce() {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", config(4, 1, 10));
+
+		AdaptiveConcurrencyLimiter.Permit permit = limiter.tryAcquire();
+		limiter.tryAcquire();
+		permit.release();
+		permit.releaseDropped();
+
+		assertThat(limiter.getInFlight()).isEqualTo(1);
+		assertThat(limiter.getLimit()).isEqualTo(4);
+	}
+
+	@Test
+	void droppedRequestsBackTheLimitOffDownToTheMinimum() {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", config(10, 3, 20));
+
+		limiter.tryAcquire().releaseDropped();
+		assertThat(limiter.getLimit()).isEqualTo(9);
+
+		for (int i = 0; i < 50; i++) {
+			limiter.tryAcquire().releaseDropped();
+		}
+		assertThat(limiter.getLimit()).isEqualTo(3);
+	}
+
+	@Test
+	void stableLatencyAtFullUseGrowsTheLimitUpToTheMaximum() {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", config(4, 1, 8));
+		int highest = 0;
+
+		for (int round = 0; round < 200; round++) {
+			AdaptiveConcurrencyLimiter.Permit[] permits = new AdaptiveConcurrencyLimiter.Permit[limiter.getLimit()];
+			for (int i = 0; i < permits.length; i++) {
+				permits[i] = limiter.tryAcquire();
+			}
+			for (AdaptiveConcurrencyLimiter.Permit permit : permits) {
+				permit.release();
+			}
+			highest = Math.max(highest, limiter.getLimit());
+		}
+
+		// Latencies are measured, so a late outlier may take a step back off the maximum
+		assertThat(highest).isEqualTo(8);
+		assertThat(limiter.getLimit()).isBetween(5, 8);
+	}
+
+	@Test
+	void underusedLimitDoesNotGrow() {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", config(10, 1, 100));
+
+		for (int i = 0; i < 200; i++) {
+			limiter.tryAcquire().release();
+		}
+
+		assertThat(limiter.getLimit()).isEqualTo(10);
+	}
+}
@@ -0,0 +1,56 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.AdmissionConfig;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ConcurrencyLimiterRegistryTests {
+
+	private static AdmissionConfig config(boolean enabled) {
+		AdmissionConfig.LimitConfig limit = new AdmissionConfig.LimitConfig();
+		limit.setInitialLimit(1);
+		limit.setMinLimit(1);
+		limit.setMaxLimit(1);
+
+		AdmissionConfig config = new AdmissionConfig();
+		config.setEnabled(enabled);
+		config.setRetryAfterSeconds(3);
+		config.getLimits().put("search", limit);
+		return config;
+	}
+
+	@Test
+	void shedsRequestsOverTheLimit() {
+		MeterRegistry meterRegistry = new SimpleMeterRegistry();
+		ConcurrencyLimiterRegistry registry = new ConcurrencyLimiterRegistry(config(true), meterRegistry);
+
+		ConcurrencyLimiterRegistry.AdmissionPermit permit = registry.acquire("search");
+
+		assertThatThrownBy(() -> registry.acquire("search"))
+			.isInstanceOfSatisfying(OverloadedException.class, e -> {
+				assertThat(e.getLimiter()).isEqualTo("search");
+				assertThat(e.getRetryAfterSeconds()).isEqualTo(3);
+			});
+		assertThat(meterRegistry.get("admission.inflight").tag("limiter", "search").gauge().value()).isEqualTo(1);
+		assertThat(meterRegistry.get("admission.rejected").tag("limiter", "search").functionCounter().count())
+			.isEqualTo(1);
+
+		permit.release();
+		registry.acquire("search").releaseDropped();
+	}
+
+	@Test
+	void admitsEverythingWhenDisabledOrUnconfigured() {
+		ConcurrencyLimiterRegistry disabled = new ConcurrencyLimiterRegistry(config(false), new SimpleMeterRegistry());
+		disabled.acquire("search");
+		disabled.acquire("search");
+
+		ConcurrencyLimiterRegistry enabled = new ConcurrencyLimiterRegistry(config(true), new SimpleMeterRegistry());
+		enabled.acquire("vespa");
+		enabled.acquire("vespa");
+	}
+}
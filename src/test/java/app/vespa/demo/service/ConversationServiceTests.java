@@ -0,0 +1,33 @@
+package app.vespa.demo.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ConversationServiceTests {
+
+	private static final String QUESTION = "And the one before that?";
+
+	@Test
+	void keepsTheFirstLineUnquoted() {
+		assertThat(ConversationService.parseRewrite("  \"Coldplay albums before Parachutes\"  \nBecause...", QUESTION, true))
+			.isEqualTo("Coldplay albums before Parachutes");
+		assertThat(ConversationService.parseRewrite("Coldplay \"Parachutes\"", QUESTION, true))
+			.isEqualTo("Coldplay \"Parachutes\"");
+	}
+
+	@Test
+	void skipsRetrievalOnlyWhenTheConversationHasAlbums() {
+		assertThat(ConversationService.parseRewrite("NONE", QUESTION, true)).isNull();
+		assertThat(ConversationService.parseRewrite("none.", QUESTION, true)).isNull();
+		assertThat(ConversationService.parseRewrite("\"NONE\"", QUESTION, true)).isNull();
+		assertThat(ConversationService.parseRewrite("NONE", QUESTION, false)).isEqualTo(QUESTION);
+	}
+
+	@Test
+	void fallsBackToTheQuestion() {
+		assertThat(ConversationService.parseRewrite(null, QUESTION, true)).isEqualTo(QUESTION);
+		assertThat(ConversationService.parseRewrite("  \n ", QUESTION, true)).isEqualTo(QUESTION);
+		assertThat(ConversationService.parseRewrite("\"\"", QUESTION, true)).isEqualTo(QUESTION);
+	}
+}
@@ -0,0 +1,92 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.RagConfig;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ConversationStoreTests {
+
+	private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+	private ConversationStore store(int maxSessions, long maxMemoryBytes, long sessionTtlMs) {
+		RagConfig ragConfig = new RagConfig();
+		ragConfig.getConversations().setMaxSessions(maxSessions);
+		ragConfig.getConversations().setMaxMemoryBytes(maxMemoryBytes);
+		ragConfig.getConversations().setSessionTtlMs(sessionTtlMs);
+		return new ConversationStore(ragConfig, meterRegistry);
+	}
+
+	private static Conversation.Turn turn(int answerLength) {
+		return new Conversation.Turn("What is jazz?", "jazz", "prompt", "x".repeat(answerLength), List.of("id:1"));
+	}
+
+	private double dropped(String reason) {
+		return meterRegistry.counter("rag.conversations.dropped", "reason", reason).count();
+	}
+
+	@Test
+	void dropsTheLeastRecentlyUsedOverTheSessionLimit() {
+		ConversationStore store = store(2, Long.MAX_VALUE, 60_000);
+
+		Conversation first = store.create();
+		Conversation second = store.create();
+		store.get(first.id());
+		Conversation third = store.create();
+
+		assertThat(store.get(first.id())).isPresent();
+		assertThat(store.get(second.id())).isEmpty();
+		assertThat(store.get(third.id())).isPresent();
+		assertThat(dropped("capacity")).isEqualTo(1);
+	}
+
+	@Test
+	void dropsOthersWhenAConversationOutgrowsTheMemoryCap() {
+		ConversationStore store = store(100, 10_000, 60_000);
+
+		Conversation idle = store.create();
+		Conversation active = store.create();
+		active.addTurn(turn(6_000), 10);
+		store.update(active);
+
+		assertThat(store.get(idle.id())).isEmpty();
+		assertThat(store.get(active.id())).isPresent();
+		assertThat(store.memoryBytes()).isEqualTo(active.estimatedBytes());
+
+		// The conversation being updated is kept even alone over the cap
+		active.addTurn(turn(8_000), 10);
+		store.update(active);
+		assertThat(store.get(active.id())).isPresent();
+		assertThat(store.memoryBytes()).isEqualTo(active.estimatedBytes());
+	}
+
+	@Test
+	void dropsIdleConversations() throws InterruptedException {
+		ConversationStore store = store(100, Long.MAX_VALUE, 1);
+
+		Conversation conversation = store.create();
+		Thread.sleep(5);
+
+		assertThat(store.get(conversation.id())).isEmpty();
+		assertThat(store.memoryBytes()).isZero();
+		assertThat(dropped("expired")).isEqualTo(1);
+	}
+
+	@Test
+	void doesNotBringBackADroppedConversation() {
+		ConversationStore store = store(100, Long.MAX_VALUE, 60_000);
+
+		Conversation conversation = store.create();
+		assertThat(store.remove(conversation.id())).isTrue();
+		assertThat(store.remove(conversation.id())).isFalse();
+
+		conversation.addTurn(turn(10), 10);
+		store.update(conversation);
+		assertThat(store.size()).isZero();
+		assertThat(store.memoryBytes()).isZero();
+	}
+}
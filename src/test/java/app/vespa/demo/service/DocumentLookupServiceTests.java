@@ -0,0 +1,226 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.VespaConfig;
+import app.vespa.demo.model.DocumentUpdate;
+import app.vespa.demo.model.MusicDocument;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+
+class DocumentLookupServiceTests {
+
+	private static final String PATH_PREFIX = "/document/v1/music/music/docid/";
+
+	private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private final List<String> requests = new CopyOnWriteArrayList<>();
+
+	/**
+	 * When set, requests are held until the test releases them
+	 */
+	private final AtomicReference<CountDownLatch> gate = new AtomicReference<>();
+	private final CountDownLatch received = new CountDownLatch(1);
+
+	private HttpServer server;
+	private VespaConfig vespaConfig;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/document/v1/", exchange -> {
+			requests.add(exchange.getRequestURI().getRawPath() + "?" + exchange.getRequestURI().getRawQuery());
+			received.countDown();
+			CountDownLatch held = gate.get();
+			if (held != null) {
+				try {
+					held.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			String localId = exchange.getRequestURI().getPath().substring(PATH_PREFIX.length());
+			boolean missing = localId.startsWith("missing");
+			byte[] body = (missing ? "{}" : "{\"id\":\"id:music:music::" + localId + "\",\"fields\":{"
+				+ "\"album\":\"Album " + localId + "\",\"artist\":\"Miles Davis\",\"year\":1959,"
+				+ "\"category_scores\":{\"jazz\":0.9}}}").getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(missing ? 404 : 200, body.length);
+			exchange.getResponseBody().write(body);
+			exchange.close();
+		});
+		server.start();
+
+		VespaConfig.RoutingConfig routing = new VespaConfig.RoutingConfig();
+		routing.setHealthCheckIntervalMs(0);
+
+		vespaConfig = new VespaConfig();
+		vespaConfig.setEndpoint("http://localhost:" + server.getAddress().getPort());
+		vespaConfig.setSchema("music");
+		vespaConfig.setTimeoutMs(5000);
+		vespaConfig.setRouting(routing);
+	}
+
+	@AfterEach
+	void tearDown() {
+		CountDownLatch held = gate.get();
+		if (held != null) {
+			held.countDown();
+		}
+		server.stop(0);
+	}
+
+	private DocumentLookupService service(int cacheSize, long cacheTtlMs) {
+		vespaConfig.getLookup().setCacheSize(cacheSize);
+		vespaConfig.getLookup().setCacheTtlMs(cacheTtlMs);
+		return new DocumentLookupService(vespaConfig, new ObjectMapper(),
+			new VespaEndpointSelector(vespaConfig, new ObjectMapper(), meterRegistry),
+			mock(FallbackSearchIndex.class), meterRegistry);
+	}
+
+	private long requestsFor(String localId) {
+		return requests.stream().filter(request -> request.startsWith(PATH_PREFIX + localId + "?")).count();
+	}
+
+	@Test
+	void fetchesAndCachesDocuments() {
+		DocumentLookupService service = service(10, 60000);
+
+		MusicDocument document = service.get("1").orElseThrow();
+		assertThat(document.getId()).isEqualTo("id:music:music::1");
+		assertThat(document.getAlbum()).isEqualTo("Album 1");
+		assertThat(document.getCategoryScores()).containsEntry("jazz", 0.9f);
+
+		assertThat(service.get("id:music:music::1")).contains(document);
+		assertThat(requests).hasSize(1);
+		assertThat(meterRegistry.get("documents.lookup").tag("result", "hit").counter().count()).isEqualTo(1);
+		assertThat(meterRegistry.get("documents.lookup").tag("result", "miss").counter().count()).isEqualTo(1);
+	}
+
+	@Test
+	void multiGetKeepsRequestOrderAndFetchesEachIdOnce() {
+		DocumentLookupService service = service(10, 60000);
+
+		List<Optional<MusicDocument>> documents = service.getAll(List.of("2", "missing", "id:music:music::2", "1"));
+
+		assertThat(documents).extracting(document -> document.map(MusicDocument::getAlbum).orElse(null))
+			.containsExactly("Album 2", null, "Album 2", "Album 1");
+		assertThat(requests).hasSize(3);
+
+		// Missing documents are not cached
+		service.get("missing");
+		assertThat(requestsFor("missing")).isEqualTo(2);
+	}
+
+	@Test
+	void concurrentLookupsShareOneRequest() throws Exception {
+		DocumentLookupService service = service(10, 60000);
+		CountDownLatch release = new CountDownLatch(1);
+		gate.set(release);
+
+		CompletableFuture<Optional<MusicDocument>> first = CompletableFuture.supplyAsync(() -> service.get("1"));
+		assertThat(received.await(10, TimeUnit.SECONDS)).isTrue();
+		CompletableFuture<Optional<MusicDocument>> second = CompletableFuture.supplyAsync(() -> service.get("1"));
+		Thread.sleep(100);
+		release.countDown();
+
+		assertThat(first.get(10, TimeUnit.SECONDS)).isPresent();
+		assertThat(second.get(10, TimeUnit.SECONDS)).isEqualTo(first.get());
+		assertThat(requests).hasSize(1);
+	}
+
+	@Test
+	void evictsTheLeastRecentlyUsedDocument() {
+		DocumentLookupService service = service(2, 60000);
+
+		service.get("1");
+		service.get("2");
+		service.get("1");
+		service.get("3");
+		assertThat(service.cacheSize()).isEqualTo(2);
+
+		// 2 was used least recently
+		service.get("1");
+		assertThat(requestsFor("1")).isEqualTo(1);
+		service.get("2");
+		assertThat(requestsFor("2")).isEqualTo(2);
+	}
+
+	@Test
+	void cachedDocumentsExpire() throws Exception {
+		DocumentLookupService service = service(10, 50);
+
+		service.get("1");
+		Thread.sleep(100);
+		service.get("1");
+
+		assertThat(requestsFor("1")).isEqualTo(2);
+	}
+
+	@Test
+	void appliedUpdatesInvalidateTheDocument() {
+		DocumentLookupService service = service(10, 60000);
+
+		service.get("1");
+		service.documentUpdated(DocumentUpdate.builder().id("id:music:music::1").year(1960).build());
+		service.get("1");
+
+		assertThat(requestsFor("1")).isEqualTo(2);
+	}
+
+	@Test
+	void fetchOverlappingAnInvalidationIsNotCached() throws Exception {
+		DocumentLookupService service = service(10, 60000);
+		CountDownLatch release = new CountDownLatch(1);
+		gate.set(release);
+
+		CompletableFuture<Optional<MusicDocument>> lookup = CompletableFuture.supplyAsync(() -> service.get("1"));
+		assertThat(received.await(10, TimeUnit.SECONDS)).isTrue();
+		service.invalidate("id:music:music::1");
+		release.countDown();
+
+		assertThat(lookup.get(10, TimeUnit.SECONDS)).isPresent();
+		assertThat(service.cacheSize()).isZero();
+		service.get("1");
+		assertThat(requestsFor("1")).isEqualTo(2);
+	}
+
+	@Test
+	void expandsAndValidatesIds() {
+		DocumentLookupService service = service(10, 60000);
+
+		assertThat(service.fullId("1")).isEqualTo("id:music:music::1");
+		assertThat(service.fullId("id:other:music:g=a:x:y")).isEqualTo("id:other:music:g=a:x:y");
+		assertThatThrownBy(() -> service.fullId(" ")).isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> service.fullId("id:music:music::")).isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> service.fullId("id::music::1")).isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> service.getAll(List.of("1", "")))
+			.isInstanceOf(IllegalArgumentException.class);
+	}
+
+	@Test
+	void encodesTheLocalIdIntoTheDocumentPath() {
+		DocumentLookupService service = service(10, 60000);
+
+		service.get("Kind of Blue/1959");
+
+		assertThat(requests).containsExactly(PATH_PREFIX + "Kind%20of%20Blue%2F1959"
+			+ "?fieldSet=music%3Aalbum%2Cartist%2Cyear%2Ctext%2Ccategory_scores&format.tensors=short-value");
+	}
+}
@@ -0,0 +1,109 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.model.MusicDocument;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class DocumentSnapshotTests {
+
+	private static final List<MusicDocument> DOCUMENTS = List.of(
+		MusicDocument.builder().id("id:music:music::2").artist("Björk").album("Homogenic").year(1997)
+			.text("Strings and beats, beats and strings.").categoryScores(Map.of("pop", 0.5f, "electronic", 1f)).build(),
+		MusicDocument.builder().id("id:music:music::1").artist("Miles Davis").album("Kind of Blue").year(1959)
+			.text("Modal jazz.").build(),
+		MusicDocument.builder().id("id:music:music::3").artist(null).album("Untitled").text("").build());
+
+	private static final List<float[]> EMBEDDINGS = Arrays.asList(new float[] { 0.6f, 0.8f }, null, new float[] { 1f, 0f });
+
+	@TempDir
+	Path directory;
+
+	private DocumentSnapshot write(DocumentSnapshot.EmbeddingFormat format) throws IOException {
+		Path path = directory.resolve("fallback.snapshot");
+		DocumentSnapshot.write(path, DOCUMENTS, EMBEDDINGS, 2, format, FallbackSearchIndex::tokenize);
+		return DocumentSnapshot.open(path);
+	}
+
+	@Test
+	void readsBackTheDocuments() throws IOException {
+		DocumentSnapshot snapshot = write(DocumentSnapshot.EmbeddingFormat.FLOAT32);
+
+		assertThat(snapshot.size()).isEqualTo(3);
+		for (int ordinal = 0; ordinal < DOCUMENTS.size(); ordinal++) {
+			assertThat(snapshot.document(ordinal)).isEqualTo(DOCUMENTS.get(ordinal));
+		}
+		DocumentSnapshot.Cursor cursor = snapshot.cursor().moveTo(2);
+		assertThat(cursor.artist()).isNull();
+		assertThat(cursor.year()).isNull();
+	}
+
+	@Test
+	void findsDocumentsById() throws IOException {
+		DocumentSnapshot snapshot = write(DocumentSnapshot.EmbeddingFormat.FLOAT32);
+
+		assertThat(snapshot.ordinal("id:music:music::1")).isEqualTo(1);
+		assertThat(snapshot.ordinal("id:music:music::2")).isEqualTo(0);
+		assertThat(snapshot.ordinal("id:music:music::3")).isEqualTo(2);
+		assertThat(snapshot.ordinal("id:music:music::4")).isEqualTo(-1);
+	}
+
+	@Test
+	void storesTheTextIndex() throws IOException {
+		DocumentSnapshot snapshot = write(DocumentSnapshot.EmbeddingFormat.FLOAT32);
+		int text = 2;
+
+		DocumentSnapshot.Postings beats = snapshot.postings(text, "beats");
+		assertThat(beats.size()).isEqualTo(1);
+		assertThat(beats.ordinal(0)).isZero();
+		assertThat(beats.frequency(0)).isEqualTo(2);
+		assertThat(snapshot.postings(text, "jazz").ordinal(0)).isEqualTo(1);
+		assertThat(snapshot.postings(text, "homogenic")).isNull();
+		assertThat(snapshot.postings(1, "homogenic").ordinal(0)).isZero();
+
+		assertThat(snapshot.cursor().moveTo(0).fieldLength(text)).isEqualTo(6);
+		assertThat(snapshot.totalLength(text)).isEqualTo(8);
+		assertThat(snapshot.totalLength(0)).isEqualTo(3);
+	}
+
+	@Test
+	void storesEmbeddingsExactlyAsFloat32() throws IOException {
+		DocumentSnapshot snapshot = write(DocumentSnapshot.EmbeddingFormat.FLOAT32);
+
+		assertThat(snapshot.dimension()).isEqualTo(2);
+		assertThat(snapshot.hasEmbedding(0)).isTrue();
+		assertThat(snapshot.hasEmbedding(1)).isFalse();
+		assertThat(snapshot.embedding(0)).containsExactly(0.6f, 0.8f);
+		assertThat(snapshot.dot(2, new float[] { 0.5f, 2f })).isCloseTo(0.5, within(1e-9));
+	}
+
+	@Test
+	void storesEmbeddingsApproximatelyAsBfloat16() throws IOException {
+		DocumentSnapshot snapshot = write(DocumentSnapshot.EmbeddingFormat.BFLOAT16);
+
+		float[] embedding = snapshot.embedding(0);
+		assertThat(embedding[0]).isCloseTo(0.6f, within(0.005f));
+		assertThat(embedding[1]).isCloseTo(0.8f, within(0.005f));
+		assertThat(snapshot.dot(0, new float[] { 0.6f, 0.8f })).isCloseTo(1.0, within(0.01));
+	}
+
+	@Test
+	void mappingOutlivesTheReplacedFile() throws IOException {
+		DocumentSnapshot snapshot = write(DocumentSnapshot.EmbeddingFormat.FLOAT32);
+
+		DocumentSnapshot.write(directory.resolve("fallback.snapshot"), DOCUMENTS.subList(0, 1),
+			EMBEDDINGS.subList(0, 1), 2, DocumentSnapshot.EmbeddingFormat.FLOAT32, FallbackSearchIndex::tokenize);
+
+		assertThat(snapshot.size()).isEqualTo(3);
+		assertThat(snapshot.document(1)).isEqualTo(DOCUMENTS.get(1));
+		assertThat(DocumentSnapshot.open(directory.resolve("fallback.snapshot")).size()).isEqualTo(1);
+	}
+}
@@ -0,0 +1,124 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.VespaConfig;
+import app.vespa.demo.model.DocumentUpdate;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DocumentUpdateServiceTests {
+
+	private static final String ID = "id:music:music::a-head-full-of-dreams";
+
+	private final List<DocumentUpdate> applied = new ArrayList<>();
+
+	private DocumentUpdateService service(int maxPendingDocuments) {
+		VespaConfig vespaConfig = new VespaConfig();
+		vespaConfig.getUpdates().setMaxPendingDocuments(maxPendingDocuments);
+		return new DocumentUpdateService(vespaConfig, new ObjectMapper(), List.of(applied::add),
+			new SimpleMeterRegistry());
+	}
+
+	@Test
+	void newerFieldsWinAndUnsetFieldsAreKept() {
+		DocumentUpdate older = DocumentUpdate.builder().id(ID).year(2014).categoryScores(Map.of("pop", 0.5f)).build();
+		DocumentUpdate newer = DocumentUpdate.builder().id(ID).year(2015).build();
+
+		DocumentUpdate merged = DocumentUpdateService.merge(older, newer);
+
+		assertThat(merged.getYear()).isEqualTo(2015);
+		assertThat(merged.getCategoryScores()).containsExactly(Map.entry("pop", 0.5f));
+		assertThat(merged.getCategoryScoreUpdates()).isNull();
+	}
+
+	@Test
+	void fullAssignmentReplacesBufferedCellUpdates() {
+		DocumentUpdate older = DocumentUpdate.builder().id(ID).categoryScoreUpdates(Map.of("pop", 0.5f)).build();
+		DocumentUpdate newer = DocumentUpdate.builder().id(ID).categoryScores(Map.of("rock", 0.8f)).build();
+
+		DocumentUpdate merged = DocumentUpdateService.merge(older, newer);
+
+		assertThat(merged.getCategoryScores()).containsExactly(Map.entry("rock", 0.8f));
+		assertThat(merged.getCategoryScoreUpdates()).isNull();
+	}
+
+	@Test
+	void cellUpdatesLandInABufferedFullAssignment() {
+		DocumentUpdate older = DocumentUpdate.builder().id(ID)
+			.categoryScores(Map.of("pop", 0.5f, "rock", 0.2f)).build();
+		DocumentUpdate newer = DocumentUpdate.builder().id(ID).categoryScoreUpdates(Map.of("rock", 0.9f)).build();
+
+		DocumentUpdate merged = DocumentUpdateService.merge(older, newer);
+
+		assertThat(merged.getCategoryScores()).containsOnly(Map.entry("pop", 0.5f), Map.entry("rock", 0.9f));
+		assertThat(merged.getCategoryScoreUpdates()).isNull();
+	}
+
+	@Test
+	void cellUpdatesAccumulate() {
+		DocumentUpdate older = DocumentUpdate.builder().id(ID)
+			.categoryScoreUpdates(Map.of("pop", 0.5f, "rock", 0.2f)).build();
+		DocumentUpdate newer = DocumentUpdate.builder().id(ID).categoryScoreUpdates(Map.of("rock", 0.9f)).build();
+
+		DocumentUpdate merged = DocumentUpdateService.merge(older, newer);
+
+		assertThat(merged.getCategoryScoreUpdates()).containsOnly(Map.entry("pop", 0.5f), Map.entry("rock", 0.9f));
+		assertThat(merged.getCategoryScores()).isNull();
+		assertThat(older.getCategoryScoreUpdates()).containsEntry("rock", 0.2f);
+	}
+
+	@Test
+	void onlyNewDocumentsCountAgainstTheBuffer() {
+		DocumentUpdateService service = service(2);
+		service.submit(List.of(DocumentUpdate.builder().id("a").year(2000).build()));
+
+		assertThat(service.submit(List.of(
+			DocumentUpdate.builder().id("a").year(2001).build(),
+			DocumentUpdate.builder().id("b").year(2002).build(),
+			DocumentUpdate.builder().id("b").year(2003).build()))).isEqualTo(2);
+		assertThatThrownBy(() -> service.submit(List.of(DocumentUpdate.builder().id("c").year(2004).build())))
+			.isInstanceOf(OverloadedException.class);
+	}
+
+	@Test
+	void failedUpdateIsRetriedBeneathNewerOnes() {
+		DocumentUpdateService service = service(100);
+		DocumentUpdate sent = DocumentUpdate.builder().id(ID).year(2014).categoryScores(Map.of("pop", 0.5f)).build();
+		service.submit(List.of(DocumentUpdate.builder().id(ID).year(2015).build()));
+
+		service.completed(sent, new RuntimeException("timeout"));
+
+		assertThat(service.pendingDocuments()).isEqualTo(1);
+		service.completed(merged(service), null);
+		assertThat(applied).singleElement().satisfies(update -> {
+			assertThat(update.getYear()).isEqualTo(2015);
+			assertThat(update.getCategoryScores()).containsEntry("pop", 0.5f);
+		});
+	}
+
+	@Test
+	void updateIsDroppedAfterMaxAttempts() {
+		DocumentUpdateService service = service(100);
+		DocumentUpdate update = DocumentUpdate.builder().id(ID).year(2014).build();
+
+		for (int attempt = 1; attempt < 3; attempt++) {
+			service.completed(update, new RuntimeException("timeout"));
+			assertThat(service.drain()).containsKey(ID);
+		}
+		service.completed(update, new RuntimeException("timeout"));
+
+		assertThat(service.pendingDocuments()).isZero();
+		assertThat(applied).isEmpty();
+	}
+
+	private static DocumentUpdate merged(DocumentUpdateService service) {
+		return service.drain().get(ID);
+	}
+}
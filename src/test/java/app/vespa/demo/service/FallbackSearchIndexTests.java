@@ -0,0 +1,128 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.VespaConfig;
+import app.vespa.demo.model.DocumentUpdate;
+import app.vespa.demo.model.MusicDocument;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class FallbackSearchIndexTests {
+
+	private static final String CORPUS = """
+		{"put": "id:music:music::1", "fields": {"artist": "Miles Davis", "album": "Kind of Blue", "year": 1959, "text": "Modal jazz, cool jazz classic."}}
+		{"put": "id:music:music::2", "fields": {"artist": "Coldplay", "album": "Parachutes", "year": 2000, "text": "Gentle rock album."}}
+		{"put": "id:music:music::3", "fields": {"artist": "Jazz Messengers", "album": "Moanin", "year": 1958, "text": "Hard bop."}}
+		""";
+
+	@TempDir
+	Path directory;
+
+	private final VespaConfig vespaConfig = new VespaConfig();
+
+	@BeforeEach
+	void setUp() throws IOException {
+		Path corpus = directory.resolve("documents.jsonl");
+		Files.writeString(corpus, CORPUS);
+		VespaConfig.FallbackConfig fallback = new VespaConfig.FallbackConfig();
+		fallback.setEnabled(true);
+		fallback.setCorpusPath(corpus.toString());
+		fallback.setSnapshotPath(directory.resolve("fallback.snapshot").toString());
+		vespaConfig.setFallback(fallback);
+	}
+
+	private FallbackSearchIndex load() {
+		FallbackSearchIndex index = new FallbackSearchIndex(vespaConfig, new ObjectMapper());
+		index.load();
+		return index;
+	}
+
+	private static VespaQuery query(String mode, String text, float... embedding) {
+		return VespaQuery.builder().searchMode(mode).query(text).hits(10)
+			.queryEmbedding(embedding.length > 0 ? embedding : null).build();
+	}
+
+	/**
+	 * BM25 of one field with k1 = 1.2 and b = 0.75
+	 */
+	private static double bm25(int documentCount, int documentFrequency, int tf, int length, double averageLength) {
+		double idf = Math.log(1 + (documentCount - documentFrequency + 0.5) / (documentFrequency + 0.5));
+		double norm = 1.2 * (1 - 0.75 + 0.75 * length / averageLength);
+		return idf * tf * 2.2 / (tf + norm);
+	}
+
+	@Test
+	void ranksTextMatchesByBm25OverAllFields() {
+		List<MusicDocument> hits = load().search(query("text", "Jazz!"));
+
+		assertThat(hits).extracting(MusicDocument::getId).containsExactly("id:music:music::1", "id:music:music::3");
+		// "jazz" twice in a text of 5 terms (average 10 / 3), once in an artist of 2 terms (average 5 / 3)
+		assertThat(hits.get(0).getRelevance()).isCloseTo(bm25(3, 1, 2, 5, 10.0 / 3), within(1e-9));
+		assertThat(hits.get(1).getRelevance()).isCloseTo(bm25(3, 1, 1, 2, 5.0 / 3), within(1e-9));
+	}
+
+	@Test
+	void weightsFieldsInHybridSearch() {
+		List<MusicDocument> hits = load().search(query("hybrid", "jazz"));
+
+		assertThat(hits.get(0).getRelevance()).isCloseTo(0.5 * bm25(3, 1, 2, 5, 10.0 / 3), within(1e-9));
+		assertThat(hits.get(1).getRelevance()).isCloseTo(0.2 * bm25(3, 1, 1, 2, 5.0 / 3), within(1e-9));
+	}
+
+	@Test
+	void ranksByCachedEmbeddingsAndKeepsThemAcrossRestarts() {
+		FallbackSearchIndex index = load();
+		index.cacheEmbeddings(List.of(
+			MusicDocument.builder().id("id:music:music::2").embedding(new float[] { 2f, 0f }).build(),
+			MusicDocument.builder().id("id:music:music::3").embedding(new float[] { 0f, 1f }).build()));
+
+		List<MusicDocument> hits = index.search(query("semantic", "gentle", 1f, 0f));
+		assertThat(hits).extracting(MusicDocument::getId).containsExactly("id:music:music::2", "id:music:music::3");
+		assertThat(hits.get(0).getRelevance()).isCloseTo(1.0, within(1e-6));
+		assertThat(hits.get(1).getRelevance()).isCloseTo(1 / (1 + Math.PI / 2), within(1e-6));
+
+		index.saveSnapshot();
+		List<MusicDocument> reloaded = load().search(query("semantic", "gentle", 1f, 0f));
+		assertThat(reloaded).extracting(MusicDocument::getId).containsExactly("id:music:music::2", "id:music:music::3");
+		assertThat(reloaded.get(0).getRelevance()).isCloseTo(1.0, within(1e-3));
+	}
+
+	@Test
+	void ranksByTheQueryEmbeddingVespaComputedForTheSameText() {
+		FallbackSearchIndex index = load();
+		index.cacheEmbeddings(List.of(
+			MusicDocument.builder().id("id:music:music::2").embedding(new float[] { 1f, 0f }).build(),
+			MusicDocument.builder().id("id:music:music::3").embedding(new float[] { 0f, 1f }).build()));
+		index.cacheQueryEmbedding("soft songs", new float[] { 0f, 3f });
+
+		assertThat(index.search(query("semantic", "soft songs"))).extracting(MusicDocument::getId)
+			.containsExactly("id:music:music::3", "id:music:music::2");
+		// Never embedded by Vespa: nothing matches the text either
+		assertThat(index.search(query("semantic", "loud songs"))).isEmpty();
+	}
+
+	@Test
+	void mirrorsAttributeUpdatesAcrossRestarts() {
+		FallbackSearchIndex index = load();
+		index.documentUpdated(DocumentUpdate.builder().id("id:music:music::2").year(2001).build());
+		index.documentUpdated(DocumentUpdate.builder().id("id:music:music::9").year(2001).build());
+
+		assertThat(index.get("id:music:music::2")).get().extracting(MusicDocument::getYear).isEqualTo(2001);
+		assertThat(index.search(query("text", "rock")).get(0).getYear()).isEqualTo(2001);
+
+		index.saveSnapshot();
+		FallbackSearchIndex reloaded = load();
+		assertThat(reloaded.size()).isEqualTo(3);
+		assertThat(reloaded.get("id:music:music::2")).get().extracting(MusicDocument::getYear).isEqualTo(2001);
+		assertThat(reloaded.get("id:music:music::9")).isEmpty();
+	}
+}
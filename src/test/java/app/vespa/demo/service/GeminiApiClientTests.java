@@ -0,0 +1,145 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.LlmConfig;
+import app.vespa.demo.config.RagConfig;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class GeminiApiClientTests {
+
+	private static final String CACHE_REJECTION =
+		"{\"error\":{\"code\":404,\"message\":\"CachedContent not found (or permission denied)\"}}";
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final GeminiContextCache contextCache = mock(GeminiContextCache.class);
+	private final List<String> requestBodies = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Error sent for requests referencing a cache entry, or null to answer them
+	 */
+	private final AtomicReference<String> cachedContentError = new AtomicReference<>(CACHE_REJECTION);
+
+	private HttpServer server;
+	private GeminiApiClient client;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/v1beta/models/", exchange -> {
+			String requestBody = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+			requestBodies.add(requestBody);
+
+			String error = cachedContentError.get();
+			boolean rejected = error != null && requestBody.contains("\"cachedContent\"");
+			String candidate = "{\"candidates\":[{\"content\":{\"parts\":[{\"text\":\"Kind of Blue\"}]}}]}";
+			String body = rejected ? error
+				: exchange.getRequestURI().getPath().endsWith(":streamGenerateContent") ? "data: " + candidate + "\n\n"
+				: candidate;
+
+			byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(rejected ? (error.contains("404") ? 404 : 400) : 200, bytes.length);
+			exchange.getResponseBody().write(bytes);
+			exchange.close();
+		});
+		server.start();
+
+		LlmConfig llmConfig = new LlmConfig();
+		llmConfig.getGemini().setModelUrl("http://localhost:" + server.getAddress().getPort()
+			+ "/v1beta/models/stub-model");
+
+		RagConfig ragConfig = new RagConfig();
+		ragConfig.setGeneration(new RagConfig.GenerationConfig());
+
+		ConcurrencyLimiterRegistry limiterRegistry = mock(ConcurrencyLimiterRegistry.class);
+		when(limiterRegistry.acquire("gemini")).thenReturn(new ConcurrencyLimiterRegistry.AdmissionPermit(() -> { }, () -> { }));
+		when(contextCache.handleFor(anyString())).thenReturn("cachedContents/1");
+
+		client = new GeminiApiClient(llmConfig, ragConfig, objectMapper, limiterRegistry, contextCache);
+	}
+
+	@AfterEach
+	void tearDown() {
+		server.stop(0);
+	}
+
+	private JsonNode request(int index) throws Exception {
+		return objectMapper.readTree(requestBodies.get(index));
+	}
+
+	@Test
+	void rejectedCacheEntryIsRetriedInline() throws Exception {
+		assertThat(client.generateText("Be helpful", List.of(), "Which album?")).isEqualTo("Kind of Blue");
+
+		verify(contextCache).invalidate("cachedContents/1");
+		assertThat(requestBodies).hasSize(2);
+		assertThat(request(0).path("cachedContent").asText()).isEqualTo("cachedContents/1");
+		assertThat(request(0).has("systemInstruction")).isFalse();
+		assertThat(request(1).has("cachedContent")).isFalse();
+		assertThat(request(1).path("systemInstruction").path("parts").path(0).path("text").asText())
+			.isEqualTo("Be helpful");
+	}
+
+	@Test
+	void rejectedCacheEntryIsRetriedInlineWhenStreaming() throws Exception {
+		List<String> chunks = new ArrayList<>();
+
+		assertThat(client.streamText("Be helpful", List.of(), "Which album?", chunks::add)).isEqualTo("Kind of Blue");
+
+		verify(contextCache).invalidate("cachedContents/1");
+		assertThat(chunks).containsExactly("Kind of Blue");
+		assertThat(requestBodies).hasSize(2);
+		assertThat(request(1).has("systemInstruction")).isTrue();
+	}
+
+	@Test
+	void liveCacheEntryIsReferenced() throws Exception {
+		cachedContentError.set(null);
+
+		assertThat(client.generateText("Be helpful", List.of(), "Which album?")).isEqualTo("Kind of Blue");
+
+		verify(contextCache, never()).invalidate(anyString());
+		assertThat(requestBodies).hasSize(1);
+		assertThat(request(0).path("cachedContent").asText()).isEqualTo("cachedContents/1");
+	}
+
+	@Test
+	void otherClientErrorsAreNotRetried() {
+		cachedContentError.set("{\"error\":{\"code\":400,\"message\":\"Invalid JSON payload\"}}");
+
+		assertThatThrownBy(() -> client.generateText("Be helpful", List.of(), "Which album?"))
+			.isInstanceOf(LlmException.class);
+		assertThatThrownBy(() -> client.streamText("Be helpful", List.of(), "Which album?", chunk -> { }))
+			.isInstanceOf(LlmException.class);
+
+		verify(contextCache, never()).invalidate(anyString());
+		assertThat(requestBodies).hasSize(2);
+	}
+
+	@Test
+	void recognizesCacheRejections() {
+		assertThat(GeminiApiClient.isCacheRejection(404, CACHE_REJECTION)).isTrue();
+		assertThat(GeminiApiClient.isCacheRejection(403, "cachedContent permission denied")).isTrue();
+		assertThat(GeminiApiClient.isCacheRejection(400, "Invalid JSON payload")).isFalse();
+		assertThat(GeminiApiClient.isCacheRejection(500, CACHE_REJECTION)).isFalse();
+		assertThat(GeminiApiClient.isCacheRejection(404, null)).isFalse();
+	}
+}
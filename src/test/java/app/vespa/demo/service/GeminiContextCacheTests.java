@@ -0,0 +1,161 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.LlmConfig;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class GeminiContextCacheTests {
+
+	private static final String INSTRUCTION = "You are a music expert. ".repeat(4);
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final List<String> requests = new CopyOnWriteArrayList<>();
+	private final List<String> bodies = new CopyOnWriteArrayList<>();
+	private final AtomicInteger created = new AtomicInteger();
+	private final AtomicLong expirySeconds = new AtomicLong(3600);
+	private final AtomicInteger refreshStatus = new AtomicInteger(200);
+
+	private HttpServer server;
+	private GeminiContextCache cache;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/v1beta/cachedContents", exchange -> {
+			requests.add(exchange.getRequestMethod() + " " + exchange.getRequestURI());
+			bodies.add(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+
+			String name = "POST".equals(exchange.getRequestMethod()) ? "cachedContents/" + created.incrementAndGet()
+				: exchange.getRequestURI().getPath().substring("/v1beta/".length());
+			int status = "PATCH".equals(exchange.getRequestMethod()) ? refreshStatus.get() : 200;
+			byte[] body = ("{\"name\":\"" + name + "\",\"expireTime\":\""
+				+ Instant.now().plusSeconds(expirySeconds.get()) + "\"}").getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(status, body.length);
+			exchange.getResponseBody().write(body);
+			exchange.close();
+		});
+		server.start();
+
+		LlmConfig llmConfig = new LlmConfig();
+		llmConfig.setTimeoutMs(5000);
+		llmConfig.getGemini().setApiKey("secret");
+		llmConfig.getGemini().setModelUrl("http://localhost:" + server.getAddress().getPort()
+			+ "/v1beta/models/stub-model");
+		llmConfig.getGemini().getContextCache().setTtlSeconds(600L);
+		llmConfig.getGemini().getContextCache().setRefreshMarginSeconds(120L);
+		llmConfig.getGemini().getContextCache().setMinTokens(10);
+
+		cache = new GeminiContextCache(llmConfig, objectMapper);
+		cache.start();
+	}
+
+	@AfterEach
+	void tearDown() {
+		cache.stop();
+		server.stop(0);
+	}
+
+	/**
+	 * Wait for the background creation to make an entry available for the instruction
+	 */
+	private String awaitHandle(String instruction) throws InterruptedException {
+		long deadline = System.nanoTime() + 5_000_000_000L;
+		String handle;
+		while ((handle = cache.handleFor(instruction)) == null && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		return handle;
+	}
+
+	@Test
+	void createsAnEntryAndReferencesIt() throws Exception {
+		assertThat(cache.handleFor(INSTRUCTION)).isNull();
+		assertThat(awaitHandle(INSTRUCTION)).isEqualTo("cachedContents/1");
+		assertThat(cache.handleFor(INSTRUCTION)).isEqualTo("cachedContents/1");
+
+		assertThat(requests).containsExactly("POST /v1beta/cachedContents?key=secret");
+		JsonNode body = objectMapper.readTree(bodies.get(0));
+		assertThat(body.path("model").asText()).isEqualTo("models/stub-model");
+		assertThat(body.path("ttl").asText()).isEqualTo("600s");
+		assertThat(body.path("systemInstruction").path("parts").path(0).path("text").asText()).isEqualTo(INSTRUCTION);
+	}
+
+	@Test
+	void shortInstructionsAreSentInline() throws Exception {
+		assertThat(cache.handleFor("Be helpful")).isNull();
+		Thread.sleep(100);
+
+		assertThat(cache.handleFor("Be helpful")).isNull();
+		assertThat(requests).isEmpty();
+	}
+
+	@Test
+	void refreshesOnlyWithinTheMarginBeforeExpiry() throws Exception {
+		expirySeconds.set(60);
+		awaitHandle(INSTRUCTION);
+
+		expirySeconds.set(3600);
+		cache.refreshIfExpiring();
+		assertThat(requests).last().isEqualTo("PATCH /v1beta/cachedContents/1?updateMask=ttl&key=secret");
+		assertThat(objectMapper.readTree(bodies.get(1)).path("ttl").asText()).isEqualTo("600s");
+
+		// Now an hour away from expiry, well outside the margin
+		cache.refreshIfExpiring();
+		assertThat(requests).hasSize(2);
+		assertThat(cache.handleFor(INSTRUCTION)).isEqualTo("cachedContents/1");
+	}
+
+	@Test
+	void failedRefreshFallsBackToInlineUntilRecreated() throws Exception {
+		expirySeconds.set(60);
+		awaitHandle(INSTRUCTION);
+
+		refreshStatus.set(404);
+		cache.refreshIfExpiring();
+
+		assertThat(cache.handleFor(INSTRUCTION)).isNull();
+		assertThat(awaitHandle(INSTRUCTION)).isEqualTo("cachedContents/2");
+	}
+
+	@Test
+	void changedInstructionReplacesTheEntry() throws Exception {
+		awaitHandle(INSTRUCTION);
+		String changed = "You are a jazz expert. ".repeat(4);
+
+		assertThat(cache.handleFor(changed)).isNull();
+		assertThat(awaitHandle(changed)).isEqualTo("cachedContents/2");
+
+		// The old entry no longer matches and is deleted
+		assertThat(cache.handleFor(INSTRUCTION)).isNull();
+		long deadline = System.nanoTime() + 5_000_000_000L;
+		while (!requests.contains("DELETE /v1beta/cachedContents/1?key=secret") && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(requests).contains("DELETE /v1beta/cachedContents/1?key=secret");
+	}
+
+	@Test
+	void rejectedEntryIsForgotten() throws Exception {
+		awaitHandle(INSTRUCTION);
+
+		cache.invalidate("cachedContents/other");
+		assertThat(cache.handleFor(INSTRUCTION)).isEqualTo("cachedContents/1");
+
+		cache.invalidate("cachedContents/1");
+		assertThat(cache.handleFor(INSTRUCTION)).isNull();
+	}
+}
@@ -0,0 +1,171 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.LlmConfig;
+import io.micrometer.observation.ObservationRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class LlmRouterTests {
+
+	private LlmRouter router;
+
+	private LlmRouter router(int timeoutMs, LlmClient... clients) {
+		return router(true, timeoutMs, clients);
+	}
+
+	private LlmRouter router(boolean race, int timeoutMs, LlmClient... clients) {
+		LlmConfig config = new LlmConfig();
+		config.setProviders(List.of("gemini", "openai"));
+		config.setRace(race);
+		config.setTimeoutMs(timeoutMs);
+		router = new LlmRouter(config, List.of(clients), ObservationRegistry.NOOP);
+		return router;
+	}
+
+	@AfterEach
+	void tearDown() {
+		if (router != null) {
+			router.stop();
+		}
+	}
+
+	@Test
+	void firstAnswerWinsAndTheOtherCallIsCancelled() throws Exception {
+		StubClient slow = new StubClient("gemini", 10_000, "slow");
+		StubClient fast = new StubClient("openai", 10, "fast");
+
+		assertThat(router(5000, slow, fast).generateText("Be helpful", "Which album?")).isEqualTo("fast");
+		assertThat(slow.interrupted.await(5, TimeUnit.SECONDS)).isTrue();
+	}
+
+	@Test
+	void failureLosesToASlowerAnswer() {
+		StubClient failing = new StubClient("gemini", 0);
+		StubClient slower = new StubClient("openai", 100, "slower");
+
+		assertThat(router(5000, failing, slower).generateText("Be helpful", "Which album?")).isEqualTo("slower");
+	}
+
+	@Test
+	void failsWhenEveryProviderFails() {
+		LlmRouter router = router(5000, new StubClient("gemini", 0), new StubClient("openai", 20));
+
+		assertThatThrownBy(() -> router.generateText("Be helpful", "Which album?"))
+			.isInstanceOfSatisfying(LlmException.class, e -> assertThat(e.getProvider()).isIn("gemini", "openai"));
+	}
+
+	@Test
+	void failsWhenNoProviderAnswersInTime() throws Exception {
+		StubClient gemini = new StubClient("gemini", 10_000, "late");
+		StubClient openai = new StubClient("openai", 10_000, "late");
+		LlmRouter router = router(100, gemini, openai);
+
+		assertThatThrownBy(() -> router.generateText("Be helpful", "Which album?"))
+			.isInstanceOfSatisfying(LlmException.class, e -> {
+				assertThat(e.getProvider()).isEqualTo("race");
+				assertThat(e.getMessage()).contains("100ms");
+			});
+		assertThat(gemini.interrupted.await(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(openai.interrupted.await(5, TimeUnit.SECONDS)).isTrue();
+	}
+
+	@Test
+	void firstChunkClaimsTheStream() {
+		// The winner pauses after its first chunk, so the loser produces one in the meantime
+		StubClient winner = new StubClient("gemini", 300, "Kind ", "of Blue");
+		StubClient loser = new StubClient("openai", 100, "Blue ", "Train");
+		winner.firstChunkDelayMs = 0;
+		List<String> chunks = new CopyOnWriteArrayList<>();
+
+		assertThat(router(5000, winner, loser).streamText("Be helpful", "Which album?", chunks::add))
+			.isEqualTo("Kind of Blue");
+		assertThat(chunks).containsExactly("Kind ", "of Blue");
+		assertThat(loser.aborted).isTrue();
+	}
+
+	@Test
+	void onlyThePrimaryIsCalledWithoutRacing() {
+		StubClient gemini = new StubClient("gemini", 0, "primary");
+		StubClient openai = new StubClient("openai", 0, "secondary");
+
+		assertThat(router(false, 5000, gemini, openai).generateText("Be helpful", "Which album?")).isEqualTo("primary");
+		assertThat(openai.calls).isZero();
+	}
+
+	/**
+	 * Answers after a delay, or fails if it has no chunks
+	 * Streamed answers are sent one chunk per delay
+	 */
+	private static final class StubClient implements LlmClient {
+
+		private final String name;
+		private final long delayMs;
+		private final List<String> chunks;
+		private final CountDownLatch interrupted = new CountDownLatch(1);
+		private volatile long firstChunkDelayMs;
+		private volatile boolean aborted;
+		private volatile int calls;
+
+		StubClient(String name, long delayMs, String... chunks) {
+			this.name = name;
+			this.delayMs = delayMs;
+			this.firstChunkDelayMs = delayMs;
+			this.chunks = List.of(chunks);
+		}
+
+		@Override
+		public String name() {
+			return name;
+		}
+
+		@Override
+		public String generateText(String systemInstruction, List<ChatTurn> history, String prompt) {
+			calls++;
+			pause(delayMs);
+			if (chunks.isEmpty()) {
+				throw new LlmException(name, "Error calling " + name);
+			}
+			return String.join("", chunks);
+		}
+
+		@Override
+		public String streamText(String systemInstruction, List<ChatTurn> history, String prompt,
+								 Consumer<String> onChunk) {
+			calls++;
+			List<String> sent = new ArrayList<>();
+			for (String chunk : chunks) {
+				pause(sent.isEmpty() ? firstChunkDelayMs : delayMs);
+				try {
+					onChunk.accept(chunk);
+				} catch (RuntimeException e) {
+					aborted = true;
+					throw e;
+				}
+				sent.add(chunk);
+			}
+			if (chunks.isEmpty()) {
+				throw new LlmException(name, "Error calling " + name);
+			}
+			return String.join("", sent);
+		}
+
+		private void pause(long ms) {
+			try {
+				Thread.sleep(ms);
+			} catch (InterruptedException e) {
+				interrupted.countDown();
+				throw new LlmException(name, "Interrupted", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.model.MusicDocument;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
+
+class MmrRerankerTests {
+
+	private static MusicDocument hit(String id, String artist, double relevance, float... embedding) {
+		return MusicDocument.builder()
+			.id(id)
+			.artist(artist)
+			.relevance(relevance)
+			.embedding(embedding.length > 0 ? embedding : null)
+			.build();
+	}
+
+	private static List<String> ids(List<MusicDocument> documents) {
+		return documents.stream().map(MusicDocument::getId).toList();
+	}
+
+	@Test
+	void lambdaOneKeepsTheRelevanceOrder() {
+		List<MusicDocument> candidates = List.of(
+			hit("a", "Coldplay", 3, 1, 0),
+			hit("b", "Coldplay", 2, 1, 0),
+			hit("c", "Metallica", 1, 0, 1));
+
+		assertThat(ids(MmrReranker.select(candidates, 3, 1.0, 0.3, 1.0))).containsExactly("a", "b", "c");
+	}
+
+	@Test
+	void prefersADifferentHitOverASimilarOne() {
+		List<MusicDocument> candidates = List.of(
+			hit("a", "Coldplay", 3, 1, 0),
+			hit("b", "Coldplay", 2.9, 1, 0.1f),
+			hit("c", "Metallica", 2, 0, 1));
+
+		assertThat(ids(MmrReranker.select(candidates, 2, 0.5, 0.3, 1.0))).containsExactly("a", "c");
+	}
+
+	@Test
+	void picksNearDuplicatesLastInsteadOfDroppingThem() {
+		List<MusicDocument> candidates = List.of(
+			hit("a", "Coldplay", 3, 1, 0),
+			hit("b", "Coldplay", 2.9, 1, 0),
+			hit("c", "Metallica", 1, 0, 1));
+
+		assertThat(ids(MmrReranker.select(candidates, 3, 0.9, 0.3, 0.9))).containsExactly("a", "c", "b");
+	}
+
+	@Test
+	void artistOverlapAloneNeverMakesANearDuplicate() {
+		List<MusicDocument> candidates = List.of(
+			hit("a", "Coldplay", 3),
+			hit("b", "Coldplay", 2.9),
+			hit("c", "Metallica", 1));
+
+		// Same artist without embeddings: penalized by MMR, but still ahead of a far less relevant hit
+		assertThat(ids(MmrReranker.select(candidates, 3, 0.9, 0.3, 0.5))).containsExactly("a", "b", "c");
+	}
+
+	@Test
+	void similarityMixesArtistsAndEmbeddings() {
+		MusicDocument a = hit("a", "Pink Floyd", 1, 1, 0);
+		MusicDocument b = hit("b", "Floyd", 1, 0, 1);
+
+		assertThat(MmrReranker.similarity(a, b, Set.of("pink", "floyd"), Set.of("floyd"), 0.4))
+			.isCloseTo(0.4 * 0.5, offset(1e-9));
+		assertThat(MmrReranker.similarity(hit("a", "Pink Floyd", 1), hit("b", "Floyd", 1),
+			Set.of("pink", "floyd"), Set.of("floyd"), 0.4)).isEqualTo(0.5);
+	}
+
+	@Test
+	void handlesEmptyInput() {
+		assertThat(MmrReranker.select(List.of(), 3, 0.7, 0.3, 0.9)).isEmpty();
+		assertThat(MmrReranker.select(List.of(hit("a", "Coldplay", 1)), 0, 0.7, 0.3, 0.9)).isEmpty();
+	}
+}
@@ -0,0 +1,150 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.LlmConfig;
+import app.vespa.demo.config.RagConfig;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class OpenAiCompatibleClientTests {
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final List<String> releases = new CopyOnWriteArrayList<>();
+
+	private final AtomicInteger status = new AtomicInteger(200);
+	private final AtomicReference<String> responseBody = new AtomicReference<>();
+	private final AtomicReference<String> requestBody = new AtomicReference<>();
+	private final AtomicReference<String> authorization = new AtomicReference<>();
+
+	private HttpServer server;
+	private OpenAiCompatibleClient client;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/v1/chat/completions", exchange -> {
+			requestBody.set(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+			authorization.set(exchange.getRequestHeaders().getFirst("Authorization"));
+			byte[] body = responseBody.get().getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(status.get(), body.length);
+			exchange.getResponseBody().write(body);
+			exchange.close();
+		});
+		server.start();
+
+		LlmConfig llmConfig = new LlmConfig();
+		llmConfig.getOpenai().setBaseUrl("http://localhost:" + server.getAddress().getPort() + "/v1");
+		llmConfig.getOpenai().setApiKey("secret");
+		llmConfig.getOpenai().setModel("stub-model");
+
+		RagConfig ragConfig = new RagConfig();
+		RagConfig.GenerationConfig generation = new RagConfig.GenerationConfig();
+		generation.setTemperature(0.2);
+		ragConfig.setGeneration(generation);
+
+		ConcurrencyLimiterRegistry limiterRegistry = mock(ConcurrencyLimiterRegistry.class);
+		when(limiterRegistry.acquire("openai")).thenAnswer(call -> new ConcurrencyLimiterRegistry.AdmissionPermit(
+			() -> releases.add("released"), () -> releases.add("dropped")));
+
+		client = new OpenAiCompatibleClient(llmConfig, ragConfig, objectMapper, limiterRegistry);
+	}
+
+	@AfterEach
+	void tearDown() {
+		server.stop(0);
+	}
+
+	@Test
+	void sendsTheConversationAsChatMessages() throws Exception {
+		responseBody.set("{\"choices\":[{\"message\":{\"role\":\"assistant\",\"content\":\"Kind of Blue\"}}]}");
+
+		String answer = client.generateText("Be helpful", List.of(new ChatTurn("Jazz?", "Yes")), "Which album?");
+
+		assertThat(answer).isEqualTo("Kind of Blue");
+		assertThat(authorization.get()).isEqualTo("Bearer secret");
+		assertThat(releases).containsExactly("released");
+
+		JsonNode request = objectMapper.readTree(requestBody.get());
+		assertThat(request.path("model").asText()).isEqualTo("stub-model");
+		assertThat(request.path("temperature").asDouble()).isEqualTo(0.2);
+		assertThat(request.path("max_tokens").asInt()).isEqualTo(2048);
+		assertThat(request.path("stream").asBoolean()).isFalse();
+
+		List<String> messages = new ArrayList<>();
+		request.path("messages").forEach(message ->
+			messages.add(message.path("role").asText() + ": " + message.path("content").asText()));
+		assertThat(messages).containsExactly(
+			"system: Be helpful", "user: Jazz?", "assistant: Yes", "user: Which album?");
+	}
+
+	@Test
+	void streamsChunksUntilDone() throws Exception {
+		responseBody.set("""
+			data: {"choices":[{"delta":{"role":"assistant"}}]}
+
+			data: {"choices":[{"delta":{"content":"Kind "}}]}
+
+			data: {"choices":[{"delta":{"content":"of Blue"}}]}
+
+			data: [DONE]
+
+			data: {"choices":[{"delta":{"content":"ignored"}}]}
+			""");
+		List<String> chunks = new ArrayList<>();
+
+		String answer = client.streamText(null, List.of(), "Which album?", chunks::add);
+
+		assertThat(answer).isEqualTo("Kind of Blue");
+		assertThat(chunks).containsExactly("Kind ", "of Blue");
+		assertThat(objectMapper.readTree(requestBody.get()).path("stream").asBoolean()).isTrue();
+		assertThat(objectMapper.readTree(requestBody.get()).path("messages")).hasSize(1);
+		assertThat(releases).containsExactly("released");
+	}
+
+	@Test
+	void serverErrorsFailAndCountAsDropped() {
+		status.set(503);
+		responseBody.set("{\"error\":\"overloaded\"}");
+
+		assertThatThrownBy(() -> client.generateText(null, List.of(), "Which album?"))
+			.isInstanceOfSatisfying(LlmException.class, e -> assertThat(e.getMessage()).contains("503"));
+		assertThatThrownBy(() -> client.streamText(null, List.of(), "Which album?", chunk -> { }))
+			.isInstanceOf(LlmException.class);
+		assertThat(releases).containsExactly("dropped", "dropped");
+	}
+
+	@Test
+	void clientErrorsFailWithoutCountingAsDropped() {
+		status.set(400);
+		responseBody.set("{\"error\":\"bad request\"}");
+
+		assertThatThrownBy(() -> client.generateText(null, List.of(), "Which album?"))
+			.isInstanceOf(LlmException.class);
+		assertThat(releases).containsExactly("released");
+	}
+
+	@Test
+	void unparsableResponsesYieldAPlaceholder() {
+		responseBody.set("{\"choices\":[]}");
+		assertThat(client.generateText(null, List.of(), "Which album?")).isEqualTo("No response generated");
+
+		responseBody.set("not json");
+		assertThat(client.generateText(null, List.of(), "Which album?")).isEqualTo("Error parsing response");
+	}
+}
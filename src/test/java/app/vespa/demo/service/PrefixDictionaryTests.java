@@ -0,0 +1,56 @@
+package app.vespa.demo.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PrefixDictionaryTests {
+
+	private static final PrefixDictionary DICTIONARY = PrefixDictionary.build(List.of(
+		new PrefixDictionary.Entry("Pink Floyd", "artist", 15),
+		new PrefixDictionary.Entry("Björk", "artist", 9),
+		new PrefixDictionary.Entry("The Dark Side of the Moon", "album", 1),
+		new PrefixDictionary.Entry("Pinkerton", "album", 1),
+		new PrefixDictionary.Entry("Pink", "artist", 7),
+		new PrefixDictionary.Entry("!!!", "artist", 3)), 3);
+
+	private static List<String> lookup(String prefix, int limit) {
+		return DICTIONARY.lookup(prefix, limit).stream().map(PrefixDictionary.Entry::text).toList();
+	}
+
+	@Test
+	void ranksMatchesByWeight() {
+		assertThat(lookup("pink", 10)).containsExactly("Pink Floyd", "Pink", "Pinkerton");
+		assertThat(lookup("pi", 10)).containsExactly("Pink Floyd", "Pink", "Pinkerton");
+	}
+
+	@Test
+	void matchesEveryWordStart() {
+		assertThat(lookup("floy", 10)).containsExactly("Pink Floyd");
+		assertThat(lookup("moon", 10)).containsExactly("The Dark Side of the Moon");
+		assertThat(lookup("ark", 10)).isEmpty();
+	}
+
+	@Test
+	void ignoresCaseDiacriticsAndPunctuation() {
+		assertThat(lookup("BJO", 10)).containsExactly("Björk");
+		assertThat(lookup("dark-side", 10)).containsExactly("The Dark Side of the Moon");
+		assertThat(PrefixDictionary.normalize("  Guns N' Roses ")).isEqualTo("guns n roses");
+	}
+
+	@Test
+	void capsResultsAtTheLimitAndTheBuildMaximum() {
+		assertThat(lookup("pink", 1)).containsExactly("Pink Floyd");
+		assertThat(lookup("p", 10)).hasSize(3);
+	}
+
+	@Test
+	void skipsEntriesWithoutWordsAndEmptyPrefixes() {
+		assertThat(DICTIONARY.size()).isEqualTo(6);
+		assertThat(lookup("!!!", 10)).isEmpty();
+		assertThat(lookup("", 10)).isEmpty();
+		assertThat(PrefixDictionary.empty().lookup("pink", 10)).isEmpty();
+	}
+}
@@ -0,0 +1,77 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.RagConfig;
+import app.vespa.demo.model.RagJob;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+class RagJobServiceTests {
+
+	@TempDir
+	Path directory;
+
+	private String truncate(String content) throws IOException {
+		Path file = directory.resolve("results.jsonl");
+		Files.writeString(file, content);
+		RagJobService.truncateAfterLastNewline(file);
+		return Files.readString(file);
+	}
+
+	@Test
+	void cutsATornLastLine() throws IOException {
+		assertThat(truncate("{\"index\":0}\n{\"index\":1}\n{\"ind")).isEqualTo("{\"index\":0}\n{\"index\":1}\n");
+	}
+
+	@Test
+	void keepsCompleteLines() throws IOException {
+		assertThat(truncate("{\"index\":0}\n")).isEqualTo("{\"index\":0}\n");
+		assertThat(truncate("")).isEmpty();
+	}
+
+	@Test
+	void emptiesAFileWithoutNewline() throws IOException {
+		assertThat(truncate("{\"index\":0")).isEmpty();
+	}
+
+	@Test
+	void findsANewlineBeyondTheReadBuffer() throws IOException {
+		String complete = "{\"index\":0}\n";
+		assertThat(truncate(complete + "x".repeat(20_000))).isEqualTo(complete);
+	}
+
+	@Test
+	void finishedJobKeepsItsCountsAfterRestart() throws Exception {
+		ObjectMapper objectMapper = new ObjectMapper();
+		Path jobDirectory = Files.createDirectories(directory.resolve("done"));
+		objectMapper.writeValue(jobDirectory.resolve("job.json").toFile(), RagJob.builder()
+			.id("done")
+			.status(RagJob.Status.COMPLETED)
+			.total(6)
+			.completed(5)
+			.failed(1)
+			.createdAt(1L)
+			.build());
+
+		RagConfig ragConfig = new RagConfig();
+		ragConfig.getJobs().setDirectory(directory.toString());
+		RagJobService service = new RagJobService(mock(RagService.class), ragConfig, objectMapper,
+			new SimpleMeterRegistry());
+		service.start();
+		try {
+			RagJob job = service.getJob("done").orElseThrow();
+			assertThat(job.getCompleted()).isEqualTo(5);
+			assertThat(job.getFailed()).isEqualTo(1);
+		} finally {
+			service.stop();
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.RagConfig;
+import app.vespa.demo.model.RagResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RagRequestCoalescerTests {
+
+	private final RagService ragService = mock(RagService.class);
+	private final RagConfig ragConfig = new RagConfig();
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	private RagRequestCoalescer coalescer;
+
+	@BeforeEach
+	void setUp() {
+		ragConfig.setCoalesceRequests(true);
+		ragConfig.setMaxBackgroundExecutions(1);
+		ragConfig.setCoalesceWaitMs(10_000);
+		when(ragService.resolveRetrievalCount(any())).thenReturn(5);
+		coalescer = new RagRequestCoalescer(ragService, ragConfig);
+	}
+
+	@AfterEach
+	void tearDown() throws InterruptedException {
+		release.countDown();
+		coalescer.stop();
+	}
+
+	/**
+	 * Streams "Jazz " at once and "is music" once released
+	 */
+	@SuppressWarnings("unchecked")
+	private void answerOnRelease() {
+		when(ragService.generateResponse(anyString(), anyString(), any(), any(Consumer.class))).thenAnswer(call -> {
+			Consumer<String> onChunk = call.getArgument(3);
+			onChunk.accept("Jazz ");
+			release.await(10, TimeUnit.SECONDS);
+			onChunk.accept("is music");
+			return RagResponse.builder().query(call.getArgument(0)).answer("Jazz is music").build();
+		});
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void identicalQuestionsShareOneExecution() throws Exception {
+		answerOnRelease();
+
+		List<String> firstChunks = new CopyOnWriteArrayList<>();
+		CountDownLatch firstStarted = new CountDownLatch(1);
+		CompletableFuture<RagResponse> first = CompletableFuture.supplyAsync(() ->
+			coalescer.generateResponse("What is jazz?", "hybrid", null, chunk -> {
+				firstChunks.add(chunk);
+				firstStarted.countDown();
+			}));
+		assertThat(firstStarted.await(10, TimeUnit.SECONDS)).isTrue();
+
+		// Joins late and first receives the chunk streamed so far
+		List<String> secondChunks = new CopyOnWriteArrayList<>();
+		CountDownLatch secondReplayed = new CountDownLatch(1);
+		CompletableFuture<RagResponse> second = CompletableFuture.supplyAsync(() ->
+			coalescer.generateResponse("  what IS   jazz? ", "HYBRID", 5, chunk -> {
+				secondChunks.add(chunk);
+				secondReplayed.countDown();
+			}));
+		assertThat(secondReplayed.await(10, TimeUnit.SECONDS)).isTrue();
+		release.countDown();
+
+		assertThat(first.get(10, TimeUnit.SECONDS).getQuery()).isEqualTo("What is jazz?");
+		RagResponse joined = second.get(10, TimeUnit.SECONDS);
+		assertThat(joined.getQuery()).isEqualTo("  what IS   jazz? ");
+		assertThat(joined.getAnswer()).isEqualTo("Jazz is music");
+		assertThat(firstChunks).containsExactly("Jazz ", "is music");
+		assertThat(secondChunks).containsExactly("Jazz ", "is music");
+		verify(ragService, times(1)).generateResponse(anyString(), anyString(), any(), any(Consumer.class));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void failureReachesEveryCaller() {
+		when(ragService.generateResponse(anyString(), anyString(), any(), any(Consumer.class)))
+			.thenThrow(new IllegalArgumentException("bad question"));
+
+		assertThatThrownBy(() -> coalescer.generateResponse("What is jazz?", "hybrid", null, null))
+			.isInstanceOf(IllegalArgumentException.class)
+			.hasMessage("bad question");
+	}
+
+	@Test
+	void rejectsQuestionsWhenThePoolIsFull() throws Exception {
+		answerOnRelease();
+
+		CountDownLatch started = new CountDownLatch(1);
+		CompletableFuture<RagResponse> running = CompletableFuture.supplyAsync(() ->
+			coalescer.generateResponse("What is jazz?", "hybrid", null, chunk -> started.countDown()));
+		assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+
+		assertThatThrownBy(() -> coalescer.generateResponse("What is blues?", "hybrid", null, null))
+			.isInstanceOfSatisfying(OverloadedException.class,
+				e -> assertThat(e.getLimiter()).isEqualTo("rag-shared"));
+
+		release.countDown();
+		assertThat(running.get(10, TimeUnit.SECONDS).getAnswer()).isEqualTo("Jazz is music");
+	}
+
+	@Test
+	void callsThePipelineDirectlyWhenCoalescingIsOff() {
+		ragConfig.setCoalesceRequests(false);
+		RagResponse response = RagResponse.builder().answer("Jazz is music").build();
+		when(ragService.generateResponse("What is jazz?", "hybrid", null)).thenReturn(response);
+
+		assertThat(coalescer.generateResponse("What is jazz?", "hybrid", null, null)).isSameAs(response);
+		verify(ragService).generateResponse(eq("What is jazz?"), eq("hybrid"), eq(null));
+	}
+}
@@ -0,0 +1,96 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.RagConfig;
+import app.vespa.demo.model.MusicDocument;
+import app.vespa.demo.model.RagResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ReactiveRagServiceTests {
+
+	private static final MusicDocument DOCUMENT = MusicDocument.builder()
+		.id("id:music:music::1").album("Kind of Blue").text("Modal jazz.").build();
+
+	private final RagService ragService = mock(RagService.class);
+	private final RagConfig ragConfig = new RagConfig();
+	private final ReactiveVespaClient vespaClient = mock(ReactiveVespaClient.class);
+	private final ReactiveGeminiClient geminiClient = mock(ReactiveGeminiClient.class);
+	private final ReactiveRagService service = new ReactiveRagService(ragService, ragConfig, vespaClient, geminiClient);
+
+	private final VespaQuery query = VespaQuery.builder().searchMode("hybrid").query("jazz").hits(15).build();
+
+	@BeforeEach
+	void setUp() {
+		ragConfig.setCoalesceRequests(true);
+		when(ragService.resolveRetrievalCount(any())).thenReturn(5);
+		when(ragService.planRetrieval(anyString(), anyString(), any())).thenReturn(new RagService.Retrieval(query, 5));
+		when(ragService.select(any(), anyList())).thenAnswer(call -> call.getArgument(1));
+		when(ragService.buildSystemInstruction()).thenReturn("Be helpful");
+		when(ragService.buildContext(anyList())).thenReturn("context");
+		when(ragService.buildPrompt(anyString(), anyString())).thenReturn("prompt");
+		when(vespaClient.search(query)).thenReturn(Mono.just(List.of(DOCUMENT)));
+	}
+
+	@Test
+	void retrievesThroughThePlannedQueryAndSelection() {
+		when(ragService.needsText(anyList())).thenReturn(true);
+		MusicDocument withText = DOCUMENT.toBuilder().text("Fetched").build();
+		when(ragService.fetchText(anyList())).thenReturn(List.of(withText));
+
+		assertThat(service.retrieveDocuments("jazz", "hybrid", 5).block()).containsExactly(withText);
+		verify(ragService).select(new RagService.Retrieval(query, 5), List.of(DOCUMENT));
+	}
+
+	@Test
+	void identicalQuestionsShareOneExecution() {
+		Sinks.One<String> answer = Sinks.one();
+		when(geminiClient.generateText(anyString(), anyString())).thenReturn(answer.asMono());
+
+		CompletableFuture<RagResponse> first = service.generateResponse("Jazz?", "hybrid", 5).toFuture();
+		CompletableFuture<RagResponse> second = service.generateResponse(" jazz? ", "HYBRID", 5).toFuture();
+		answer.tryEmitValue("Kind of Blue");
+
+		assertThat(first.join().getAnswer()).isEqualTo("Kind of Blue");
+		assertThat(second.join().getQuery()).isEqualTo(" jazz? ");
+		verify(vespaClient, times(1)).search(query);
+
+		// Completed executions are forgotten
+		when(geminiClient.generateText(anyString(), anyString())).thenReturn(Mono.just("Again"));
+		assertThat(service.generateResponse("Jazz?", "hybrid", 5).block(Duration.ofSeconds(5)).getAnswer())
+			.isEqualTo("Again");
+		verify(vespaClient, times(2)).search(query);
+	}
+
+	@Test
+	void generationFailureBecomesTheErrorAnswer() {
+		when(geminiClient.generateText(anyString(), anyString()))
+			.thenReturn(Mono.error(new LlmException("gemini", "Error calling Gemini API: 500")));
+
+		assertThat(service.generateResponse("Jazz?", "hybrid", 5).block().getAnswer())
+			.isEqualTo(RagService.GENERATION_ERROR_ANSWER);
+	}
+
+	@Test
+	void overloadIsNotAnswered() {
+		when(geminiClient.generateText(anyString(), anyString()))
+			.thenReturn(Mono.error(new OverloadedException("gemini", 1)));
+
+		assertThat(service.generateResponse("Jazz?", "hybrid", 5).onErrorResume(OverloadedException.class,
+			e -> Mono.empty()).blockOptional()).isEmpty();
+	}
+}
@@ -0,0 +1,49 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.model.MusicDocument;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RelevanceCutoffTests {
+
+	private static List<MusicDocument> ranked(double... scores) {
+		return Arrays.stream(scores)
+			.mapToObj(score -> MusicDocument.builder().relevance(score).build())
+			.toList();
+	}
+
+	private static int kept(List<MusicDocument> ranked, double minRelativeScore, double minRelativeGap, int minHits) {
+		return RelevanceCutoff.cut(ranked, minRelativeScore, minRelativeGap, minHits).size();
+	}
+
+	@Test
+	void dropsHitsBelowTheRelativeScore() {
+		assertThat(kept(ranked(10, 9, 8, 4, 3), 0.5, 1.0, 1)).isEqualTo(3);
+	}
+
+	@Test
+	void cutsAtTheLargestGapIfLargeEnough() {
+		assertThat(kept(ranked(10, 9.5, 6, 5.8, 5.6), 0.5, 0.2, 1)).isEqualTo(2);
+		assertThat(kept(ranked(10, 9.5, 8, 7.8, 7.6), 0.5, 0.2, 1)).isEqualTo(5);
+	}
+
+	@Test
+	void keepsAFlatDistribution() {
+		assertThat(kept(ranked(10, 10, 10, 10), 0.5, 0.2, 1)).isEqualTo(4);
+	}
+
+	@Test
+	void keepsTheMinimumRegardlessOfScores() {
+		assertThat(kept(ranked(10, 1, 1), 0.5, 0.2, 2)).isEqualTo(2);
+		assertThat(kept(ranked(10, 1), 0.5, 0.2, 3)).isEqualTo(2);
+	}
+
+	@Test
+	void keepsEverythingWithoutAPositiveTopScore() {
+		assertThat(kept(ranked(0, -1, -5), 0.5, 0.2, 1)).isEqualTo(3);
+	}
+}
@@ -0,0 +1,89 @@
+package app.vespa.demo.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RingBufferTests {
+
+	@Test
+	void roundsCapacityUpToAPowerOfTwo() {
+		assertThat(new RingBuffer<String>(5).capacity()).isEqualTo(8);
+		assertThat(new RingBuffer<String>(8).capacity()).isEqualTo(8);
+		assertThat(new RingBuffer<String>(0).capacity()).isEqualTo(2);
+	}
+
+	@Test
+	void pollsInOfferOrderAndRejectsWhenFull() {
+		RingBuffer<Integer> buffer = new RingBuffer<>(4);
+
+		for (int i = 0; i < 4; i++) {
+			assertThat(buffer.offer(i)).isTrue();
+		}
+		assertThat(buffer.offer(4)).isFalse();
+
+		assertThat(buffer.poll()).isEqualTo(0);
+		assertThat(buffer.offer(4)).isTrue();
+		assertThat(buffer.poll()).isEqualTo(1);
+		assertThat(buffer.poll()).isEqualTo(2);
+		assertThat(buffer.poll()).isEqualTo(3);
+		assertThat(buffer.poll()).isEqualTo(4);
+		assertThat(buffer.poll()).isNull();
+	}
+
+	@Test
+	void keepsEveryElementOfConcurrentProducers() throws InterruptedException {
+		RingBuffer<Integer> buffer = new RingBuffer<>(64);
+		int producers = 4;
+		int perProducer = 10_000;
+		CountDownLatch start = new CountDownLatch(1);
+
+		List<Thread> threads = new ArrayList<>();
+		for (int p = 0; p < producers; p++) {
+			int first = p * perProducer;
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (int i = first; i < first + perProducer; i++) {
+					while (!buffer.offer(i)) {
+						Thread.onSpinWait();
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+
+		start.countDown();
+		Set<Integer> received = new HashSet<>();
+		int[] lastByProducer = new int[producers];
+		Arrays.fill(lastByProducer, -1);
+		while (received.size() < producers * perProducer) {
+			Integer element = buffer.poll();
+			if (element == null) {
+				Thread.onSpinWait();
+				continue;
+			}
+			assertThat(received.add(element)).isTrue();
+			// Elements of one producer arrive in the order they were offered
+			int producer = element / perProducer;
+			assertThat(element).isGreaterThan(lastByProducer[producer]);
+			lastByProducer[producer] = element;
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertThat(buffer.poll()).isNull();
+	}
+}
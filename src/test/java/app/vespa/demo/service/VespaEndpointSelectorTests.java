@@ -0,0 +1,155 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.VespaConfig;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class VespaEndpointSelectorTests {
+
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private static VespaEndpointSelector selector(int consecutiveFailures, int maxEjectedPercent, String... urls) {
+		VespaConfig.RoutingConfig routing = new VespaConfig.RoutingConfig();
+		routing.setHealthCheckIntervalMs(0);
+		routing.setHealthCheckTimeoutMs(1000);
+		routing.setConsecutiveFailures(consecutiveFailures);
+		routing.setEjectionMs(60000);
+		routing.setMaxEjectedPercent(maxEjectedPercent);
+
+		VespaConfig config = new VespaConfig();
+		config.setEndpoints(List.of(urls));
+		config.setRouting(routing);
+		return new VespaEndpointSelector(config, new ObjectMapper(), new SimpleMeterRegistry());
+	}
+
+	private static void complete(VespaEndpointSelector.Endpoint endpoint, long latencyNanos, boolean success) {
+		endpoint.complete(System.nanoTime() - latencyNanos, success);
+	}
+
+	@Test
+	void picksTheEndpointWithTheLowerWeightedLoad() {
+		VespaEndpointSelector selector = selector(5, 50, "http://a", "http://b");
+
+		// Unmeasured endpoints cost nothing, so the second pick goes to the other one
+		VespaEndpointSelector.Endpoint slow = selector.select();
+		complete(slow, 100 * MS, true);
+		VespaEndpointSelector.Endpoint fast = selector.select();
+		complete(fast, MS, true);
+		assertThat(fast).isNotSameAs(slow);
+
+		int slowPicks = 0;
+		for (int i = 0; i < 150; i++) {
+			if (selector.select() == slow) {
+				slowPicks++;
+			}
+		}
+
+		// The fast endpoint wins until about a hundred of its requests are in flight
+		assertThat(slowPicks).isBetween(1, 3);
+		assertThat(fast.getInFlight()).isEqualTo(150 - slowPicks);
+		assertThat(fast.getRequests()).isEqualTo(151 - slowPicks);
+	}
+
+	@Test
+	void latencyIsAnExponentiallyWeightedAverage() {
+		VespaEndpointSelector.Endpoint endpoint = selector(5, 50, "http://a").getEndpoints().get(0);
+
+		// Failures without an estimate are not samples
+		complete(endpoint, 0, false);
+		assertThat(endpoint.getLatencyNanos()).isZero();
+
+		complete(endpoint, 100 * MS, true);
+		assertThat(endpoint.getLatencyNanos()).isCloseTo(100 * MS, within(5.0 * MS));
+
+		complete(endpoint, 200 * MS, true);
+		assertThat(endpoint.getLatencyNanos()).isCloseTo(130 * MS, within(5.0 * MS));
+
+		// A fast failure keeps the estimate, a slow one raises it
+		complete(endpoint, 0, false);
+		assertThat(endpoint.getLatencyNanos()).isCloseTo(130 * MS, within(5.0 * MS));
+		complete(endpoint, 1130 * MS, false);
+		assertThat(endpoint.getLatencyNanos()).isCloseTo(430 * MS, within(5.0 * MS));
+	}
+
+	@Test
+	void healthChecksTakeEndpointsInAndOutOfRotation() throws Exception {
+		Set<String> down = ConcurrentHashMap.newKeySet();
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", exchange -> {
+			String node = exchange.getRequestURI().getPath().split("/")[1];
+			byte[] body = ("{\"status\":{\"code\":\"" + (down.contains(node) ? "down" : "up") + "\"}}")
+				.getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(200, body.length);
+			exchange.getResponseBody().write(body);
+			exchange.close();
+		});
+		server.start();
+
+		try {
+			String base = "http://localhost:" + server.getAddress().getPort();
+			VespaEndpointSelector selector = selector(5, 50, base + "/a/", base + "/b");
+			VespaEndpointSelector.Endpoint a = selector.getEndpoints().get(0);
+			VespaEndpointSelector.Endpoint b = selector.getEndpoints().get(1);
+			assertThat(a.getUrl()).isEqualTo(base + "/a");
+
+			down.add("a");
+			selector.checkHealth();
+			assertThat(a.isAvailable(System.nanoTime())).isFalse();
+			assertThat(b.isAvailable(System.nanoTime())).isTrue();
+			for (int i = 0; i < 10; i++) {
+				assertThat(selector.select()).isSameAs(b);
+			}
+
+			down.clear();
+			selector.checkHealth();
+			assertThat(a.isAvailable(System.nanoTime())).isTrue();
+
+			// An unreachable endpoint is unhealthy too
+			server.stop(0);
+			selector.checkHealth();
+			assertThat(a.isAvailable(System.nanoTime())).isFalse();
+			assertThat(b.isAvailable(System.nanoTime())).isFalse();
+
+			// With nothing available, every endpoint is still tried
+			assertThat(selector.select()).isIn(a, b);
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	void ejectsNoMoreThanTheAllowedShareOfEndpoints() {
+		VespaEndpointSelector selector = selector(2, 50, "http://a", "http://b", "http://c", "http://d");
+		List<VespaEndpointSelector.Endpoint> endpoints = selector.getEndpoints();
+
+		// A success in between resets the streak
+		complete(endpoints.get(0), MS, false);
+		complete(endpoints.get(0), MS, true);
+		complete(endpoints.get(0), MS, false);
+		assertThat(endpoints.get(0).getEjections()).isZero();
+
+		for (VespaEndpointSelector.Endpoint endpoint : endpoints.subList(0, 3)) {
+			complete(endpoint, MS, false);
+			complete(endpoint, MS, false);
+		}
+
+		long now = System.nanoTime();
+		assertThat(endpoints).extracting(VespaEndpointSelector.Endpoint::getEjections)
+			.containsExactly(1L, 1L, 0L, 0L);
+		assertThat(endpoints).extracting(endpoint -> endpoint.isAvailable(now))
+			.containsExactly(false, false, true, true);
+		assertThat(endpoints.get(2).getFailures()).isEqualTo(2);
+	}
+}
@@ -0,0 +1,109 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.config.VespaConfig;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class VespaQueryTemplateTests {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private static VespaQueryTemplate compile(VespaQuery query) {
+		return VespaQueryTemplate.compile(VespaQueryTemplate.Shape.of(query), "music", new VespaConfig.ProfilingConfig());
+	}
+
+	private static Map<String, String> parameters(URI uri) {
+		Map<String, String> parameters = new LinkedHashMap<>();
+		for (String pair : uri.getRawQuery().split("&")) {
+			String[] parts = pair.split("=", 2);
+			parameters.put(URLDecoder.decode(parts[0], StandardCharsets.UTF_8),
+				URLDecoder.decode(parts[1], StandardCharsets.UTF_8));
+		}
+		return parameters;
+	}
+
+	@Test
+	void encodesLikeUrlEncoder() {
+		for (String value : new String[] { "pink floyd", "a+b=c&d", "Björk", "日本語", "rock 🎸 & roll", "~!*'()" }) {
+			StringBuilder sb = new StringBuilder();
+			VespaQueryTemplate.appendEncoded(sb, value);
+			assertThat(sb.toString()).isEqualTo(URLEncoder.encode(value, StandardCharsets.UTF_8));
+		}
+	}
+
+	@Test
+	void rendersAHybridGetQuery() {
+		VespaQuery query = VespaQuery.builder().searchMode("hybrid").query("Björk & friends").hits(5).build();
+
+		Map<String, String> parameters = parameters(compile(query).renderUri("http://vespa:8080", query));
+
+		assertThat(parameters).containsEntry("yql",
+			"select * from music where userQuery() or ({targetHits:10}nearestNeighbor(chunk_embeddings, query_embedding)) limit 5");
+		assertThat(parameters).containsEntry("query", "Björk & friends");
+		assertThat(parameters).containsEntry("ranking.profile", "hybrid");
+		assertThat(parameters).containsEntry("input.query(query_embedding)", "embed(Björk & friends)");
+		assertThat(parameters).containsEntry("hits", "5");
+		assertThat(parameters).containsEntry("presentation.summary", "passages");
+	}
+
+	@Test
+	void rendersTheSameQueryAsJson() throws Exception {
+		VespaQuery query = VespaQuery.builder()
+			.searchMode("semantic")
+			.query("quiet \"folk\" albums")
+			.hits(3)
+			.targetHits(50)
+			.queryEmbedding(new float[] { 0.5f, -1.0f })
+			.summary("minimal")
+			.build();
+
+		VespaQueryTemplate template = compile(query);
+		JsonNode body = MAPPER.readTree(template.renderJson(MAPPER.getFactory(), query).copy());
+
+		assertThat(body.get("yql").asText()).isEqualTo(
+			"select * from music where ({targetHits:50}nearestNeighbor(chunk_embeddings, query_embedding)) limit 3");
+		assertThat(body.get("ranking.profile").asText()).isEqualTo("semantic");
+		assertThat(body.get("input.query(query_embedding)").asText()).isEqualTo("[0.5,-1.0]");
+		assertThat(body.get("hits").asInt()).isEqualTo(3);
+		assertThat(body.get("presentation.summary").asText()).isEqualTo("minimal");
+		assertThat(parameters(template.renderUri("http://vespa:8080", query)))
+			.containsEntry("input.query(query_embedding)", "[0.5,-1.0]")
+			.doesNotContainKey("query");
+	}
+
+	@Test
+	void rendersTheUserProfileAsAMappedTensor() throws Exception {
+		Map<String, Float> profile = new LinkedHashMap<>();
+		profile.put("pop", 0.5f);
+		profile.put("hip-hop", 1.0f);
+		VespaQuery query = VespaQuery.builder().searchMode("text").query("hits").hits(10)
+			.rankProfile("rank_albums").userProfile(profile).build();
+
+		JsonNode body = MAPPER.readTree(compile(query).renderJson(MAPPER.getFactory(), query).copy());
+
+		assertThat(body.get("ranking.profile").asText()).isEqualTo("rank_albums");
+		assertThat(body.get("input.query(user_profile)").asText()).isEqualTo("{\"pop\":0.5,\"hip-hop\":1.0}");
+	}
+
+	@Test
+	void rejectsProfileEntriesThatWouldBreakTheTensor() {
+		assertThatThrownBy(() -> VespaQueryTemplate.checkProfileEntry("pop\":1,\"rock", 1f))
+			.isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> VespaQueryTemplate.checkProfileEntry("pop", Float.NaN))
+			.isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> VespaQueryTemplate.checkProfileEntry("pop", null))
+			.isInstanceOf(IllegalArgumentException.class);
+		VespaQueryTemplate.checkProfileEntry("hip-hop_2", 0.5f);
+	}
+}
@@ -0,0 +1,87 @@
+package app.vespa.demo.service;
+
+import app.vespa.demo.model.QueryProfile;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class VespaTraceParserTests {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	// Two content nodes; matching on the second takes longer, profiling is summed over both
+	private static final String RESPONSE = """
+		{
+		  "timing": { "querytime": 0.012, "summaryfetchtime": 0.003, "searchtime": 0.016 },
+		  "trace": { "children": [ { "message": [ {
+		    "traces": [
+		      { "timestamp_ms": 0.0, "event": "Start query setup" },
+		      { "timestamp_ms": 1.0, "event": "Start matching and first phase ranking" },
+		      { "timestamp_ms": 5.0, "event": "Start second phase ranking" },
+		      { "timestamp_ms": 6.0, "event": "Start summary fetching" },
+		      { "timestamp_ms": 6.5, "event": "Done" }
+		    ],
+		    "match_profiling": { "roots": [
+		      { "name": "HNSW", "self_time_ms": 2.0, "children": [ { "name": "Term", "self_time_ms": 0.5 } ] }
+		    ] }
+		  }, {
+		    "traces": [
+		      { "timestamp_ms": 0.0, "event": "Start query setup" },
+		      { "timestamp_ms": 0.5, "event": "Start matching" },
+		      { "timestamp_ms": 7.5, "event": "Done" }
+		    ],
+		    "match_profiling": { "roots": [ { "name": "HNSW", "self_time_ms": 3.0 } ] }
+		  } ] } ] }
+		}
+		""";
+
+	@Test
+	void readsContainerTimingInMilliseconds() throws Exception {
+		QueryProfile profile = VespaTraceParser.parse(MAPPER.readTree(RESPONSE), 5);
+
+		assertThat(profile.getPhaseTimesMs().get("query")).isCloseTo(12.0, within(1e-9));
+		assertThat(profile.getPhaseTimesMs().get("summary_fetch")).isCloseTo(3.0, within(1e-9));
+		assertThat(profile.getPhaseTimesMs().get("search")).isCloseTo(16.0, within(1e-9));
+		assertThat(profile.getTraceLevel()).isEqualTo(5);
+	}
+
+	@Test
+	void takesTheSlowestNodePerPhase() throws Exception {
+		Map<String, Double> phases = VespaTraceParser.parse(MAPPER.readTree(RESPONSE), 5).getPhaseTimesMs();
+
+		assertThat(phases.get("query_setup")).isCloseTo(1.0, within(1e-9));
+		assertThat(phases.get("match_first_phase")).isCloseTo(7.0, within(1e-9));
+		assertThat(phases.get("second_phase")).isCloseTo(1.0, within(1e-9));
+		assertThat(phases.get("summary")).isCloseTo(0.5, within(1e-9));
+	}
+
+	@Test
+	void sumsRankingCostsOverNodes() throws Exception {
+		Map<String, Double> costs = VespaTraceParser.parse(MAPPER.readTree(RESPONSE), 5).getRankingCostMs();
+
+		assertThat(costs.keySet()).containsExactly("match:HNSW", "match:Term");
+		assertThat(costs.get("match:HNSW")).isCloseTo(5.0, within(1e-9));
+	}
+
+	@Test
+	void classifiesEvents() {
+		assertThat(VespaTraceParser.classify("Start query setup")).isEqualTo("query_setup");
+		assertThat(VespaTraceParser.classify("Calculate global filter")).isEqualTo("global_filter");
+		assertThat(VespaTraceParser.classify("Second phase ranking")).isEqualTo("second_phase");
+		assertThat(VespaTraceParser.classify("Start MATCH thread")).isEqualTo("match_first_phase");
+		assertThat(VespaTraceParser.classify("docsum fetch")).isEqualTo("summary");
+		assertThat(VespaTraceParser.classify("Something else")).isEqualTo("other");
+	}
+
+	@Test
+	void returnsEmptyMapsWithoutTrace() throws Exception {
+		QueryProfile profile = VespaTraceParser.parse(MAPPER.readTree("{\"root\": {}}"), 0);
+
+		assertThat(profile.getPhaseTimesMs()).isEmpty();
+		assertThat(profile.getRankingCostMs()).isEmpty();
+	}
+}